@@ -0,0 +1,200 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * An asynchronous facade for nested set operations. Every call is a separate unit of
+ * work that runs on the configured {@link Executor} with its own {@link EntityManager}
+ * and {@link JpaNestedSetManager}. Write operations run within their own transaction.
+ *
+ * <p>Since the EntityManager of a unit of work is closed once it completes, results are
+ * returned as detached entities instead of {@link Node}s, and nodes are identified by
+ * their entity class and id. Any executor can be used, e.g. a virtual thread per task
+ * executor on runtimes that provide one.</p>
+ */
+@ThreadSafe
+public class AsyncNestedSetManager {
+    private final EntityManagerFactory emf;
+    private final Executor executor;
+
+    public AsyncNestedSetManager(EntityManagerFactory emf, Executor executor) {
+        this.emf = emf;
+        this.executor = executor;
+    }
+
+    /**
+     * Runs the given read-only work in a new unit of work.
+     *
+     * @param <R>
+     * @param work
+     * @return The future result of the work.
+     */
+    public <R> CompletableFuture<R> read(Function<? super JpaNestedSetManager, ? extends R> work) {
+        return CompletableFuture.supplyAsync(() -> execute(work, false), this.executor);
+    }
+
+    /**
+     * Runs the given work in a new unit of work within a transaction. The transaction is
+     * committed if the work completes normally and rolled back otherwise.
+     *
+     * @param <R>
+     * @param work
+     * @return The future result of the work.
+     */
+    public <R> CompletableFuture<R> write(Function<? super JpaNestedSetManager, ? extends R> work) {
+        return CompletableFuture.supplyAsync(() -> execute(work, true), this.executor);
+    }
+
+    private <R> R execute(Function<? super JpaNestedSetManager, ? extends R> work, boolean transactional) {
+        EntityManager em = this.emf.createEntityManager();
+        try {
+            JpaNestedSetManager nsm = new JpaNestedSetManager(em);
+            if (!transactional) {
+                return work.apply(nsm);
+            }
+            EntityTransaction tx = em.getTransaction();
+            tx.begin();
+            try {
+                R result = work.apply(nsm);
+                tx.commit();
+                return result;
+            } finally {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+            }
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * List all nodes of a tree, in ascending order of {@link NodeInfo#getLeftValue}.
+     *
+     * @param <T>
+     * @param clazz
+     * @param rootId The tree ID.
+     * @return The future entities of the tree.
+     */
+    public <T extends NodeInfo> CompletableFuture<List<T>> listNodes(Class<T> clazz, int rootId) {
+        return read(nsm -> JpaNestedSetManager.unwrap(nsm.listNodes(clazz, rootId)));
+    }
+
+    /**
+     * List all nodes of several trees. Each tree is read by a separate unit of work,
+     * so that the trees are read in parallel as far as the executor permits.
+     *
+     * @param <T>
+     * @param clazz
+     * @param rootIds The tree IDs.
+     * @return The future entities of the trees, by tree ID in the iteration order of 'rootIds'.
+     */
+    public <T extends NodeInfo> CompletableFuture<Map<Integer, List<T>>> listNodes(Class<T> clazz,
+            Collection<Integer> rootIds) {
+        Map<Integer, CompletableFuture<List<T>>> futures = new LinkedHashMap<Integer, CompletableFuture<List<T>>>();
+        for (Integer rootId : rootIds) {
+            futures.put(rootId, listNodes(clazz, rootId));
+        }
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()]))
+                .thenApply(ignored -> {
+                    Map<Integer, List<T>> result = new LinkedHashMap<Integer, List<T>>();
+                    for (Map.Entry<Integer, CompletableFuture<List<T>>> e : futures.entrySet()) {
+                        result.put(e.getKey(), e.getValue().join());
+                    }
+                    return result;
+                });
+    }
+
+    public <T extends NodeInfo> CompletableFuture<List<T>> getDescendants(Class<T> clazz, int id) {
+        return read(nsm -> JpaNestedSetManager.unwrap(node(nsm, clazz, id).getDescendants()));
+    }
+
+    public <T extends NodeInfo> CompletableFuture<List<T>> getDescendants(Class<T> clazz, int id, int depth) {
+        return read(nsm -> JpaNestedSetManager.unwrap(node(nsm, clazz, id).getDescendants(depth)));
+    }
+
+    public <T extends NodeInfo> CompletableFuture<List<T>> getChildren(Class<T> clazz, int id) {
+        return read(nsm -> JpaNestedSetManager.unwrap(node(nsm, clazz, id).getChildren()));
+    }
+
+    public <T extends NodeInfo> CompletableFuture<List<T>> getAncestors(Class<T> clazz, int id) {
+        return read(nsm -> JpaNestedSetManager.unwrap(node(nsm, clazz, id).getAncestors()));
+    }
+
+    public <T extends NodeInfo> CompletableFuture<T> createRoot(T root) {
+        return write(nsm -> nsm.createRoot(root).unwrap());
+    }
+
+    public <T extends NodeInfo> CompletableFuture<T> addChild(Class<T> clazz, int parentId, T child) {
+        return write(nsm -> node(nsm, clazz, parentId).addChild(child).unwrap());
+    }
+
+    public <T extends NodeInfo> CompletableFuture<Void> moveAsFirstChildOf(Class<T> clazz, int id, int destId) {
+        return write(nsm -> {
+            node(nsm, clazz, id).moveAsFirstChildOf(node(nsm, clazz, destId));
+            return null;
+        });
+    }
+
+    public <T extends NodeInfo> CompletableFuture<Void> moveAsLastChildOf(Class<T> clazz, int id, int destId) {
+        return write(nsm -> {
+            node(nsm, clazz, id).moveAsLastChildOf(node(nsm, clazz, destId));
+            return null;
+        });
+    }
+
+    public <T extends NodeInfo> CompletableFuture<Void> moveAsPrevSiblingOf(Class<T> clazz, int id, int destId) {
+        return write(nsm -> {
+            node(nsm, clazz, id).moveAsPrevSiblingOf(node(nsm, clazz, destId));
+            return null;
+        });
+    }
+
+    public <T extends NodeInfo> CompletableFuture<Void> moveAsNextSiblingOf(Class<T> clazz, int id, int destId) {
+        return write(nsm -> {
+            node(nsm, clazz, id).moveAsNextSiblingOf(node(nsm, clazz, destId));
+            return null;
+        });
+    }
+
+    public <T extends NodeInfo> CompletableFuture<Void> makeRoot(Class<T> clazz, int id, int newRootId) {
+        return write(nsm -> {
+            node(nsm, clazz, id).makeRoot(newRootId);
+            return null;
+        });
+    }
+
+    public <T extends NodeInfo> CompletableFuture<Void> delete(Class<T> clazz, int id) {
+        return write(nsm -> {
+            node(nsm, clazz, id).delete();
+            return null;
+        });
+    }
+
+    private static <T extends NodeInfo> Node<T> node(JpaNestedSetManager nsm, Class<T> clazz, int id) {
+        T entity = nsm.getEntityManager().find(clazz, id);
+        if (entity == null) {
+            throw new IllegalArgumentException("No " + clazz.getSimpleName() + " with id " + id + " found.");
+        }
+        return nsm.getNode(entity);
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Reads trees written by a {@link BinaryTreeWriter}, one after another:
+ *
+ * <pre>
+ * while (reader.nextTree()) {
+ *     nsm.importTree(Category.class, reader.getRootId(), reader.readTree());
+ * }
+ * </pre>
+ *
+ * @param <T> The entity class.
+ */
+@NotThreadSafe
+public class BinaryTreeReader<T extends NodeInfo> implements Closeable {
+    private final DataInputStream in;
+    private final PayloadCodec<? extends T> codec;
+    private boolean inTree;
+    private boolean ended;
+    private int rootId;
+    private long lastLeft;
+    private int lastLevel;
+
+    /**
+     * Reads the header of the format.
+     *
+     * @param in The input, closed by {@link #close}.
+     * @param codec Reads the attributes of the nodes.
+     * @throws IOException If the input fails or is not in the format.
+     */
+    public BinaryTreeReader(InputStream in, PayloadCodec<? extends T> codec) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.codec = codec;
+        byte[] magic = new byte[BinaryTreeWriter.MAGIC.length];
+        this.in.readFully(magic);
+        if (!Arrays.equals(magic, BinaryTreeWriter.MAGIC)) {
+            throw new StreamCorruptedException("Not a binary tree stream.");
+        }
+        int version = this.in.readUnsignedByte();
+        if (version != BinaryTreeWriter.VERSION) {
+            throw new StreamCorruptedException("Unsupported version " + version + ".");
+        }
+    }
+
+    /**
+     * Moves to the next tree, skipping the unread nodes of the current one.
+     *
+     * @return Whether there is another tree.
+     * @throws IOException If the input fails or is malformed.
+     */
+    public boolean nextTree() throws IOException {
+        while (this.inTree) {
+            read();
+        }
+        if (this.ended) {
+            return false;
+        }
+        int marker = this.in.readUnsignedByte();
+        if (marker == BinaryTreeWriter.END) {
+            this.ended = true;
+            return false;
+        }
+        if (marker != BinaryTreeWriter.TREE) {
+            throw new StreamCorruptedException("Unexpected marker " + marker + ".");
+        }
+        this.rootId = Math.toIntExact(unzigzag(readVarLong(this.in)));
+        this.inTree = true;
+        this.lastLeft = 0;
+        this.lastLevel = 0;
+        return true;
+    }
+
+    /**
+     * @return The ID of the current tree, as it was written.
+     */
+    public int getRootId() {
+        return this.rootId;
+    }
+
+    /**
+     * Reads the next node of the current tree.
+     *
+     * @return A new node with its left, right and level values set, or null at the
+     *         end of the tree.
+     * @throws IOException If the input fails or is malformed.
+     */
+    public T read() throws IOException {
+        if (!this.inTree) {
+            return null;
+        }
+        long leftDelta = readVarLong(this.in);
+        if (leftDelta == 0) {
+            this.inTree = false;
+            return null;
+        }
+        long left = this.lastLeft + leftDelta;
+        long right = left + readVarLong(this.in);
+        long level = this.lastLevel + unzigzag(readVarLong(this.in));
+        if (left <= this.lastLeft || right <= left || level < 0 || level > Integer.MAX_VALUE) {
+            throw new StreamCorruptedException("Invalid node values [" + left + ", " + right + "] level "
+                    + level + ".");
+        }
+        T node = this.codec.read(this.in);
+        LongNodeInfo.setLeftOf(node, left);
+        LongNodeInfo.setRightOf(node, right);
+        node.setLevel((int) level);
+        this.lastLeft = left;
+        this.lastLevel = (int) level;
+        return node;
+    }
+
+    /**
+     * @return The unread nodes of the current tree in preorder.
+     * @throws IOException If the input fails or is malformed.
+     */
+    public List<T> readTree() throws IOException {
+        List<T> nodes = new ArrayList<T>();
+        for (T node; (node = read()) != null; ) {
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint.");
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Writes trees in a compact binary format, to be read by a {@link BinaryTreeReader}.
+ * The format is:
+ *
+ * <pre>
+ * stream  := "NSTB" version:byte tree* 0x00
+ * tree    := 0x01 rootId:zigzag node* 0x00
+ * node    := leftDelta:varint width:varint levelDelta:zigzag payload
+ * </pre>
+ *
+ * The nodes of a tree are written in preorder. 'leftDelta' is the difference to the
+ * left value of the previous node (to 0 for the first node) and thus at least 1,
+ * 'width' is right - left and 'levelDelta' the difference to the level of the previous
+ * node. Varints are unsigned LEB128, zigzag values are signed varints. The payload is
+ * written by a {@link PayloadCodec}. A node of a contiguously numbered tree usually
+ * takes three to five bytes plus its payload.
+ *
+ * @param <T> The entity class.
+ */
+@NotThreadSafe
+public class BinaryTreeWriter<T extends NodeInfo> implements Closeable {
+    static final byte[] MAGIC = {'N', 'S', 'T', 'B'};
+    static final int VERSION = 1;
+    static final int TREE = 1;
+    static final int END = 0;
+
+    /** The number of nodes read per query by {@link #writeTree(JpaNestedSetManager, Class, int)}. */
+    private static final int PAGE_SIZE = 1000;
+
+    private final DataOutputStream out;
+    private final PayloadCodec<? super T> codec;
+    private boolean inTree;
+    private long lastLeft;
+    private int lastLevel;
+
+    /**
+     * Writes the header of the format.
+     *
+     * @param out The output, closed by {@link #close}.
+     * @param codec Writes the attributes of the nodes.
+     * @throws IOException If the output fails.
+     */
+    public BinaryTreeWriter(OutputStream out, PayloadCodec<? super T> codec) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.codec = codec;
+        this.out.write(MAGIC);
+        this.out.writeByte(VERSION);
+    }
+
+    /**
+     * Starts a tree, to be followed by its nodes and {@link #endTree}.
+     *
+     * @param rootId The tree ID.
+     * @throws IOException If the output fails.
+     */
+    public void beginTree(int rootId) throws IOException {
+        if (this.inTree) {
+            throw new IllegalStateException("The previous tree has not been ended.");
+        }
+        this.out.writeByte(TREE);
+        writeVarLong(this.out, zigzag(rootId));
+        this.inTree = true;
+        this.lastLeft = 0;
+        this.lastLevel = 0;
+    }
+
+    /**
+     * Writes the next node of the current tree.
+     *
+     * @param node The node, following the previous node in preorder.
+     * @throws IOException If the output fails.
+     * @throws IllegalArgumentException If the left value of the node does not follow
+     *         the left value of the previous node.
+     */
+    public void write(T node) throws IOException {
+        if (!this.inTree) {
+            throw new IllegalStateException("No tree has been begun.");
+        }
+        long left = LongNodeInfo.leftOf(node);
+        long right = LongNodeInfo.rightOf(node);
+        if (left <= this.lastLeft || right <= left) {
+            throw new IllegalArgumentException("The node " + node.getId() + " [" + left + ", " + right
+                    + "] does not follow the left value " + this.lastLeft + ".");
+        }
+        writeVarLong(this.out, left - this.lastLeft);
+        writeVarLong(this.out, right - left);
+        writeVarLong(this.out, zigzag(node.getLevel() - this.lastLevel));
+        this.codec.write(node, this.out);
+        this.lastLeft = left;
+        this.lastLevel = node.getLevel();
+    }
+
+    /**
+     * Ends the current tree.
+     *
+     * @throws IOException If the output fails.
+     */
+    public void endTree() throws IOException {
+        if (!this.inTree) {
+            throw new IllegalStateException("No tree has been begun.");
+        }
+        this.out.writeByte(END);
+        this.inTree = false;
+    }
+
+    /**
+     * Writes a stored tree, reading it page by page through
+     * {@link JpaNestedSetManager#streamNodes}.
+     *
+     * @param nsm The manager to read the tree with.
+     * @param clazz The entity class.
+     * @param rootId The tree ID.
+     * @return The number of nodes written.
+     * @throws IOException If the output fails.
+     */
+    public int writeTree(JpaNestedSetManager nsm, Class<T> clazz, int rootId) throws IOException {
+        beginTree(rootId);
+        int[] count = new int[1];
+        try {
+            nsm.streamNodes(clazz, rootId, PAGE_SIZE, node -> {
+                try {
+                    write(node);
+                    ++count[0];
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        endTree();
+        return count[0];
+    }
+
+    /**
+     * Flushes the written trees to the output.
+     *
+     * @throws IOException If the output fails.
+     */
+    public void flush() throws IOException {
+        this.out.flush();
+    }
+
+    /**
+     * Writes the end of the format and closes the output.
+     *
+     * @throws IOException If the output fails.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.inTree) {
+                endTree();
+            }
+            this.out.writeByte(END);
+        } finally {
+            this.out.close();
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import net.jcip.annotations.Immutable;
+
+/**
+ * The renumbering of the children of a node into a new order. Every child keeps
+ * its interval size and moves with its descendants by a single offset, so only the
+ * children that change position, and nothing outside of the parent, are affected.
+ */
+@Immutable
+final class ChildOrder {
+    /** The left values of the children that change position. */
+    final long[] lefts;
+    /** The right values of the children that change position. */
+    final long[] rights;
+    /** The offsets by which the children move. */
+    final long[] deltas;
+
+    private ChildOrder(long[] lefts, long[] rights, long[] deltas) {
+        this.lefts = lefts;
+        this.rights = rights;
+        this.deltas = deltas;
+    }
+
+    /**
+     * @param parent
+     * @param current The children of 'parent' in their current order.
+     * @param order The same children in the desired order.
+     * @return The renumbering or <tt>null</tt> if the children are already in order.
+     * @throws IllegalArgumentException If 'order' does not consist of exactly the children.
+     */
+    static ChildOrder of(Node<?> parent, List<? extends Node<?>> current, List<? extends Node<?>> order) {
+        Set<Integer> ids = new HashSet<Integer>();
+        for (Node<?> child : current) {
+            ids.add(child.getId());
+        }
+        if (order.size() != current.size()) {
+            throw new IllegalArgumentException("Expected " + current.size() + " children, got " + order.size() + ".");
+        }
+        for (Node<?> child : order) {
+            if (!ids.remove(child.getId())) {
+                throw new IllegalArgumentException("Node " + child.getId() + " is not a child of node "
+                        + parent.getId() + " or appears more than once.");
+            }
+        }
+
+        long[] lefts = new long[order.size()];
+        long[] rights = new long[order.size()];
+        long[] deltas = new long[order.size()];
+        int moved = 0;
+        long next = parent.getLeft() + 1;
+        for (Node<?> child : order) {
+            long delta = next - child.getLeft();
+            next += child.getRight() - child.getLeft() + 1;
+            if (delta != 0) {
+                lefts[moved] = child.getLeft();
+                rights[moved] = child.getRight();
+                deltas[moved] = delta;
+                ++moved;
+            }
+        }
+        if (moved == 0) {
+            return null;
+        }
+        return new ChildOrder(Arrays.copyOf(lefts, moved), Arrays.copyOf(rights, moved),
+                Arrays.copyOf(deltas, moved));
+    }
+
+    /**
+     * @return The lowest left value of the children that change position.
+     */
+    long first() {
+        long first = Long.MAX_VALUE;
+        for (long left : this.lefts) {
+            first = Math.min(first, left);
+        }
+        return first;
+    }
+
+    /**
+     * @return The highest right value of the children that change position.
+     */
+    long last() {
+        long last = Long.MIN_VALUE;
+        for (long right : this.rights) {
+            last = Math.max(last, right);
+        }
+        return last;
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import javax.persistence.Entity;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import net.jcip.annotations.Immutable;
+import org.pkaboo.jpa.nestedset.annotations.ClosureTable;
+
+/**
+ * The closure table of an entity, see {@link ClosureTable}. The rows of a subtree are
+ * rewritten when the subtree is inserted, moved or deleted; changes of the left/right
+ * values alone do not affect them.
+ */
+@Immutable
+final class ClosureIndex {
+    private final Class<?> clazz;
+    private final String entityName;
+    private final Field ancestorField;
+    private final Field descendantField;
+    private final Field depthField;
+
+    private ClosureIndex(ClosureTable table) {
+        this.clazz = table.value();
+        Entity entity = this.clazz.getAnnotation(Entity.class);
+        if (entity == null) {
+            throw new IllegalArgumentException("The closure table is not an entity: " + this.clazz.getName());
+        }
+        this.entityName = entity.name().length() > 0 ? entity.name() : this.clazz.getSimpleName();
+        this.ancestorField = field(table.ancestor());
+        this.descendantField = field(table.descendant());
+        this.depthField = field(table.depth());
+    }
+
+    static ClosureIndex of(ClosureTable table) {
+        return new ClosureIndex(table);
+    }
+
+    private Field field(String name) {
+        try {
+            Field field = this.clazz.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException ex) {
+            throw new IllegalArgumentException("No field " + name + " in " + this.clazz.getName(), ex);
+        }
+    }
+
+    Class<?> getEntityClass() {
+        return this.clazz;
+    }
+
+    String getEntityName() {
+        return this.entityName;
+    }
+
+    String getAncestorFieldName() {
+        return this.ancestorField.getName();
+    }
+
+    String getDescendantFieldName() {
+        return this.descendantField.getName();
+    }
+
+    String getDepthFieldName() {
+        return this.depthField.getName();
+    }
+
+    /**
+     * Adds the rows of new nodes below the node 'parentId', <tt>null</tt> for roots. The
+     * ancestors of 'parentId' are read once for all nodes.
+     *
+     * @param nodes The new nodes in preorder.
+     * @param parents The index of the parent of each node in 'nodes', -1 for the nodes
+     *        directly below 'parentId'.
+     */
+    void insert(JpaNestedSetManager nsm, List<? extends NodeInfo> nodes, int[] parents, Integer parentId) {
+        List<Object[]> ancestors = parentId != null
+                ? rowsOf(nsm, getDescendantFieldName(), parentId) : Collections.<Object[]>emptyList();
+        for (int i = 0; i < nodes.size(); ++i) {
+            int id = nodes.get(i).getId();
+            persist(nsm, id, id, 0);
+            int depth = 1;
+            for (int p = parents[i]; p >= 0; p = parents[p], ++depth) {
+                persist(nsm, nodes.get(p).getId(), id, depth);
+            }
+            for (Object[] row : ancestors) {
+                persist(nsm, (Integer) row[0], id, (Integer) row[1] + depth);
+            }
+        }
+    }
+
+    /**
+     * Moves the subtree of the node 'id' below the node 'parentId', <tt>null</tt> for roots:
+     * removes the rows that link the subtree to its old ancestors and links every node of
+     * the subtree to every new ancestor.
+     * <p>
+     * The new links are read by a single query, but since the closure entity may have a
+     * generated ID, which no bulk statement can assign portably, they are persisted one
+     * by one: a subtree of n nodes moved below a node at depth d takes n * (d + 1)
+     * inserts, grouped only by the batch writing of the persistence provider.
+     */
+    void move(JpaNestedSetManager nsm, int id, Integer parentId) {
+        Query q = nsm.getEntityManager().createQuery("delete from " + this.entityName + " c"
+                + " where c." + getDescendantFieldName() + " in (select s." + getDescendantFieldName()
+                + " from " + this.entityName + " s where s." + getAncestorFieldName() + " = ?1)"
+                + " and c." + getAncestorFieldName() + " not in (select t." + getDescendantFieldName()
+                + " from " + this.entityName + " t where t." + getAncestorFieldName() + " = ?1)");
+        q.setParameter(1, id);
+        nsm.executeUpdate(q);
+
+        if (parentId != null) {
+            TypedQuery<Object[]> links = nsm.getEntityManager().createQuery("select a." + getAncestorFieldName()
+                    + ", d." + getDescendantFieldName() + ", a." + getDepthFieldName() + ", d." + getDepthFieldName()
+                    + " from " + this.entityName + " a, " + this.entityName + " d"
+                    + " where a." + getDescendantFieldName() + " = ?1 and d." + getAncestorFieldName() + " = ?2",
+                    Object[].class);
+            links.setParameter(1, parentId);
+            links.setParameter(2, id);
+            for (Object[] link : nsm.getResultList(links)) {
+                persist(nsm, (Integer) link[0], (Integer) link[1], (Integer) link[2] + (Integer) link[3] + 1);
+            }
+        }
+    }
+
+    /**
+     * Removes the rows of the subtrees of the given nodes.
+     */
+    void delete(JpaNestedSetManager nsm, Collection<Integer> ids) {
+        Query q = nsm.getEntityManager().createQuery("delete from " + this.entityName + " c"
+                + " where c." + getDescendantFieldName() + " in (select s." + getDescendantFieldName()
+                + " from " + this.entityName + " s where s." + getAncestorFieldName() + " in ?1)");
+        q.setParameter(1, ids);
+        nsm.executeUpdate(q);
+    }
+
+    /**
+     * Removes the rows of the given nodes only, unlike {@link #delete}. The rows that
+     * link their descendants to their ancestors remain until the descendants are moved.
+     */
+    void deleteNodes(JpaNestedSetManager nsm, Collection<Integer> ids) {
+        Query q = nsm.getEntityManager().createQuery("delete from " + this.entityName + " c"
+                + " where c." + getDescendantFieldName() + " in ?1 or c." + getAncestorFieldName() + " in ?1");
+        q.setParameter(1, ids);
+        nsm.executeUpdate(q);
+    }
+
+    /**
+     * @return The ID of the parent of the node 'id', <tt>null</tt> for roots.
+     */
+    Integer getParentId(JpaNestedSetManager nsm, int id) {
+        TypedQuery<Integer> q = nsm.getEntityManager().createQuery("select c." + getAncestorFieldName()
+                + " from " + this.entityName + " c where c." + getDescendantFieldName() + " = ?1"
+                + " and c." + getDepthFieldName() + " = 1", Integer.class);
+        q.setParameter(1, id);
+        List<Integer> parent = nsm.getResultList(q);
+        return parent.isEmpty() ? null : parent.get(0);
+    }
+
+    /**
+     * @return Whether the node 'id' is a descendant of the node 'ancestorId'.
+     */
+    boolean isDescendant(JpaNestedSetManager nsm, int id, int ancestorId) {
+        TypedQuery<Long> q = nsm.getEntityManager().createQuery("select count(c)"
+                + " from " + this.entityName + " c where c." + getAncestorFieldName() + " = ?1"
+                + " and c." + getDescendantFieldName() + " = ?2"
+                + " and c." + getDepthFieldName() + " > 0", Long.class);
+        q.setParameter(1, ancestorId);
+        q.setParameter(2, id);
+        return nsm.getSingleResult(q) > 0;
+    }
+
+    /**
+     * @return The (other ID, depth) pairs of the rows whose 'field' is 'id'.
+     */
+    private List<Object[]> rowsOf(JpaNestedSetManager nsm, String field, int id) {
+        String other = field.equals(getAncestorFieldName()) ? getDescendantFieldName() : getAncestorFieldName();
+        TypedQuery<Object[]> q = nsm.getEntityManager().createQuery("select c." + other + ", c." + getDepthFieldName()
+                + " from " + this.entityName + " c where c." + field + " = ?1", Object[].class);
+        q.setParameter(1, id);
+        return nsm.getResultList(q);
+    }
+
+    private void persist(JpaNestedSetManager nsm, int ancestor, int descendant, int depth) {
+        try {
+            Object row = this.clazz.getDeclaredConstructor().newInstance();
+            this.ancestorField.setInt(row, ancestor);
+            this.descendantField.setInt(row, descendant);
+            this.depthField.setInt(row, depth);
+            nsm.getEntityManager().persist(row);
+        } catch (ReflectiveOperationException ex) {
+            throw new PersistenceException(ex);
+        }
+    }
+}
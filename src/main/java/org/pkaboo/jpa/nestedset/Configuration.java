@@ -9,14 +9,48 @@
 
 package org.pkaboo.jpa.nestedset;
 
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.PersistenceException;
+import javax.persistence.QueryHint;
+import org.pkaboo.jpa.nestedset.annotations.ClosureTable;
+import org.pkaboo.jpa.nestedset.annotations.LeftColumn;
+import org.pkaboo.jpa.nestedset.annotations.LevelColumn;
+import org.pkaboo.jpa.nestedset.annotations.ParentColumn;
+import org.pkaboo.jpa.nestedset.annotations.PathColumn;
+import org.pkaboo.jpa.nestedset.annotations.ReadHints;
+import org.pkaboo.jpa.nestedset.annotations.RightColumn;
+import org.pkaboo.jpa.nestedset.annotations.RootColumn;
+import org.pkaboo.jpa.nestedset.annotations.SparseNumbering;
+
 class Configuration {
+    private String idFieldName;
     private String leftFieldName;
     private String rightFieldName;
     private String levelFieldName;
     private String rootIdFieldName;
+    private Field parentIdField;
+    private ClosureIndex closureIndex;
+    private Field pathField;
     private String entityName;
+    private Map<String, Object> readHints = Collections.emptyMap();
 
     private boolean hasManyRoots = false;
+    private boolean longValued = false;
+    private long gap = 0;
+    private long rootWidth = 2;
+
+    public String getIdFieldName() {
+        return idFieldName;
+    }
+
+    public void setIdFieldName(String idFieldName) {
+        this.idFieldName = idFieldName;
+    }
 
     public String getLeftFieldName() {
         return leftFieldName;
@@ -51,15 +85,169 @@ class Configuration {
         this.hasManyRoots = true;
     }
 
+    /**
+     * @return The name of the field that holds the ID of the parent node, <tt>null</tt>
+     *         if the entity has no parent column.
+     * @see ParentColumn
+     */
+    public String getParentIdFieldName() {
+        return this.parentIdField != null ? this.parentIdField.getName() : null;
+    }
+
+    public void setParentIdField(Field parentIdField) {
+        parentIdField.setAccessible(true);
+        this.parentIdField = parentIdField;
+    }
+
+    /**
+     * @return The ID of the parent of the given entity, <tt>null</tt> for roots.
+     */
+    public Integer getParentId(Object node) {
+        try {
+            Number id = (Number) this.parentIdField.get(node);
+            return id == null || id.intValue() == 0 ? null : id.intValue();
+        } catch (IllegalAccessException ex) {
+            throw new PersistenceException(ex);
+        }
+    }
+
+    /**
+     * Sets the ID of the parent of the given entity, <tt>null</tt> for roots.
+     */
+    public void setParentId(Object node, Integer parentId) {
+        try {
+            this.parentIdField.set(node, toParentIdParameter(parentId));
+        } catch (IllegalAccessException ex) {
+            throw new PersistenceException(ex);
+        }
+    }
+
+    /**
+     * @return The value of the parent field for the given parent ID, 0 instead of
+     *         <tt>null</tt> for <tt>int</tt> fields.
+     */
+    public Integer toParentIdParameter(Integer parentId) {
+        return parentId == null && this.parentIdField.getType() == int.class ? Integer.valueOf(0) : parentId;
+    }
+
+    /**
+     * @return The closure table of the entity, <tt>null</tt> if it has none.
+     * @see ClosureTable
+     */
+    public ClosureIndex getClosureIndex() {
+        return this.closureIndex;
+    }
+
+    public void setClosureIndex(ClosureIndex closureIndex) {
+        this.closureIndex = closureIndex;
+    }
+
+    /**
+     * @return The name of the field that holds the materialized path, <tt>null</tt> if
+     *         the entity has no path column.
+     * @see PathColumn
+     */
+    public String getPathFieldName() {
+        return this.pathField != null ? this.pathField.getName() : null;
+    }
+
+    public void setPathField(Field pathField) {
+        pathField.setAccessible(true);
+        this.pathField = pathField;
+    }
+
+    /**
+     * @return The materialized path of the given entity.
+     */
+    public String getPath(Object node) {
+        try {
+            return (String) this.pathField.get(node);
+        } catch (IllegalAccessException ex) {
+            throw new PersistenceException(ex);
+        }
+    }
+
+    public void setPath(Object node, String path) {
+        try {
+            this.pathField.set(node, path);
+        } catch (IllegalAccessException ex) {
+            throw new PersistenceException(ex);
+        }
+    }
+
+    /**
+     * @return Whether the parent of a node is stored in a parent column, closure table
+     *         or path column.
+     */
+    public boolean tracksParents() {
+        return this.parentIdField != null || this.closureIndex != null || this.pathField != null;
+    }
+
     public boolean hasManyRoots() {
         return this.hasManyRoots;
     }
 
+    /**
+     * @return Whether the left and right values are stored as <tt>long</tt> values.
+     */
+    public boolean isLongValued() {
+        return this.longValued;
+    }
+
+    public void setLongValued(boolean longValued) {
+        this.longValued = longValued;
+    }
+
+    /**
+     * @return Whether the left and right values are numbered sparsely.
+     * @see SparseNumbering
+     */
+    public boolean isSparse() {
+        return this.gap > 0;
+    }
+
+    /**
+     * @return The number of free values before a new node and within a new leaf,
+     *         0 if the values are contiguous.
+     */
+    public long getGap() {
+        return this.gap;
+    }
+
+    /**
+     * @return The width of the interval of a new root node.
+     */
+    public long getRootWidth() {
+        return this.rootWidth;
+    }
+
+    public void setSparseNumbering(long gap, long rootWidth) {
+        if (gap < 1 || rootWidth < 2) {
+            throw new IllegalArgumentException("The gap must be positive and the root width at least 2.");
+        }
+        this.gap = gap;
+        this.rootWidth = rootWidth;
+    }
+
+    /**
+     * Converts a left/right value or offset to a query parameter of the type of the
+     * left and right fields.
+     *
+     * @param value
+     * @return The parameter value.
+     * @throws ArithmeticException If the value exceeds the range of <tt>int</tt> fields.
+     */
+    public Number toParameter(long value) {
+        return this.longValued ? (Number) value : (Number) Math.toIntExact(value);
+    }
+
     @Override public String toString() {
         return "[leftFieldName: " + this.leftFieldName
             + ", rightFieldName:" + this.rightFieldName
             + ", levelFieldName: " + this.levelFieldName
             + ", rootIdFieldName:" + this.rootIdFieldName
+            + ", parentIdFieldName:" + getParentIdFieldName()
+            + ", pathFieldName:" + getPathFieldName()
             + "]";
     }
 
@@ -70,4 +258,77 @@ class Configuration {
 	public void setEntityName(String tableName) {
 		this.entityName = tableName;
 	}
+
+    /**
+     * @return The hints of the queries that read nodes, never <tt>null</tt>.
+     */
+    public Map<String, Object> getReadHints() {
+        return this.readHints;
+    }
+
+    public void setReadHints(Map<String, ?> readHints) {
+        this.readHints = readHints == null || readHints.isEmpty() ? Collections.<String, Object>emptyMap()
+                : Collections.unmodifiableMap(new HashMap<String, Object>(readHints));
+    }
+
+    /**
+     * Reads the nested set configuration from the annotations of the given
+     * entity class.
+     *
+     * @param clazz
+     * @return The configuration.
+     */
+    static Configuration forClass(Class<?> clazz) {
+        Configuration config = new Configuration();
+
+        Entity entity = clazz.getAnnotation(Entity.class);
+        String name = entity.name();
+        config.setEntityName((name != null && name.length() > 0) ? name : clazz.getSimpleName());
+
+        SparseNumbering sparse = clazz.getAnnotation(SparseNumbering.class);
+        if (sparse != null) {
+            config.setSparseNumbering(sparse.gap(), sparse.rootWidth());
+        }
+
+        ClosureTable closure = clazz.getAnnotation(ClosureTable.class);
+        if (closure != null) {
+            config.setClosureIndex(ClosureIndex.of(closure));
+        }
+
+        ReadHints readHints = clazz.getAnnotation(ReadHints.class);
+        if (readHints != null) {
+            Map<String, Object> hints = new HashMap<String, Object>();
+            for (QueryHint hint : readHints.value()) {
+                hints.put(hint.name(), hint.value());
+            }
+            config.setReadHints(hints);
+        }
+
+        for (Field field : clazz.getDeclaredFields()) {
+            if (field.getAnnotation(Id.class) != null) {
+                config.setIdFieldName(field.getName());
+            }
+            else if (field.getAnnotation(LeftColumn.class) != null) {
+                config.setLeftFieldName(field.getName());
+                config.setLongValued(field.getType() == long.class || field.getType() == Long.class);
+            }
+            else if (field.getAnnotation(RightColumn.class) != null) {
+                config.setRightFieldName(field.getName());
+            }
+            else if (field.getAnnotation(LevelColumn.class) != null) {
+                config.setLevelFieldName(field.getName());
+            }
+            else if (field.getAnnotation(RootColumn.class) != null) {
+                config.setRootIdFieldName(field.getName());
+            }
+            else if (field.getAnnotation(ParentColumn.class) != null) {
+                config.setParentIdField(field);
+            }
+            else if (field.getAnnotation(PathColumn.class) != null) {
+                config.setPathField(field);
+            }
+        }
+
+        return config;
+    }
 }
@@ -0,0 +1,110 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import net.jcip.annotations.Immutable;
+
+/**
+ * The disjoint left/right ranges of the subtrees deleted from a single tree, in
+ * ascending order, and the offsets by which the remaining values move to close the gaps.
+ */
+@Immutable
+final class DeletedRanges {
+    /** The left values of the ranges. */
+    final long[] lefts;
+    /** The right values of the ranges. */
+    final long[] rights;
+    /** The number of values removed up to and including each range. */
+    final long[] removed;
+
+    private DeletedRanges(long[] lefts, long[] rights) {
+        this.lefts = lefts;
+        this.rights = rights;
+        this.removed = new long[lefts.length];
+        long total = 0;
+        for (int i = 0; i < lefts.length; ++i) {
+            total += rights[i] - lefts[i] + 1;
+            this.removed[i] = total;
+        }
+    }
+
+    /**
+     * Groups the ranges of the given nodes by tree, dropping nodes that are descendants
+     * of other given nodes.
+     *
+     * @param nodes
+     * @return The ranges by tree ID, in ascending order of tree IDs.
+     */
+    static Map<Integer, DeletedRanges> of(Collection<? extends Node<?>> nodes) {
+        Map<Integer, List<Node<?>>> byRoot = new TreeMap<Integer, List<Node<?>>>();
+        for (Node<?> node : nodes) {
+            List<Node<?>> tree = byRoot.get(node.getRootValue());
+            if (tree == null) {
+                tree = new ArrayList<Node<?>>();
+                byRoot.put(node.getRootValue(), tree);
+            }
+            tree.add(node);
+        }
+
+        Map<Integer, DeletedRanges> result = new TreeMap<Integer, DeletedRanges>();
+        for (Map.Entry<Integer, List<Node<?>>> tree : byRoot.entrySet()) {
+            List<Node<?>> sorted = tree.getValue();
+            sorted.sort(Comparator.comparingLong(Node::getLeft));
+            long[] lefts = new long[sorted.size()];
+            long[] rights = new long[sorted.size()];
+            int count = 0;
+            for (Node<?> node : sorted) {
+                if (count > 0 && node.getLeft() <= rights[count - 1]) {
+                    continue; // within the previous range
+                }
+                lefts[count] = node.getLeft();
+                rights[count] = node.getRight();
+                ++count;
+            }
+            result.put(tree.getKey(), new DeletedRanges(Arrays.copyOf(lefts, count), Arrays.copyOf(rights, count)));
+        }
+        return result;
+    }
+
+    int size() {
+        return this.lefts.length;
+    }
+
+    /**
+     * @return Whether a left or right value lies within one of the ranges.
+     */
+    boolean contains(long value) {
+        int i = rangesBelow(value);
+        return i < this.lefts.length && value >= this.lefts[i];
+    }
+
+    /**
+     * @return The offset by which a remaining left or right value moves, 0 or negative.
+     */
+    long offset(long value) {
+        int i = rangesBelow(value);
+        return i == 0 ? 0 : -this.removed[i - 1];
+    }
+
+    /**
+     * @return The number of ranges whose right value is less than 'value'.
+     */
+    private int rangesBelow(long value) {
+        int i = Arrays.binarySearch(this.rights, value);
+        return i >= 0 ? i : -i - 1;
+    }
+}
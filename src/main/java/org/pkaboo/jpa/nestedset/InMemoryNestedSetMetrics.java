@@ -0,0 +1,135 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * {@link NestedSetMetrics} that keep counters and a latency histogram per operation in memory.
+ * The histograms have eight linear sub-buckets per power of two, i.e. percentiles are
+ * accurate to within 12.5%.
+ */
+@ThreadSafe
+public class InMemoryNestedSetMetrics implements NestedSetMetrics {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private static final class Stats {
+        final LongAdder count = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder statements = new LongAdder();
+        final LongAdder rowsShifted = new LongAdder();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+    }
+
+    private final Map<TreeOperation, Stats> stats;
+    private final LongAdder registrySyncs = new LongAdder();
+    private final LongAdder registrySyncNanos = new LongAdder();
+
+    public InMemoryNestedSetMetrics() {
+        this.stats = new EnumMap<TreeOperation, Stats>(TreeOperation.class);
+        for (TreeOperation op : TreeOperation.values()) {
+            this.stats.put(op, new Stats());
+        }
+    }
+
+    @Override
+    public void operationCompleted(TreeOperation operation, long nanos, int statements) {
+        Stats s = this.stats.get(operation);
+        s.count.increment();
+        s.nanos.add(nanos);
+        s.statements.add(statements);
+        s.histogram.incrementAndGet(bucket(nanos));
+    }
+
+    @Override
+    public void rowsShifted(TreeOperation operation, int rows) {
+        if (operation != null) {
+            this.stats.get(operation).rowsShifted.add(rows);
+        }
+    }
+
+    @Override
+    public void registrySynced(long nanos, int managedNodes) {
+        this.registrySyncs.increment();
+        this.registrySyncNanos.add(nanos);
+    }
+
+    public long getCount(TreeOperation operation) {
+        return this.stats.get(operation).count.sum();
+    }
+
+    public long getTotalNanos(TreeOperation operation) {
+        return this.stats.get(operation).nanos.sum();
+    }
+
+    public long getStatements(TreeOperation operation) {
+        return this.stats.get(operation).statements.sum();
+    }
+
+    public long getRowsShifted(TreeOperation operation) {
+        return this.stats.get(operation).rowsShifted.sum();
+    }
+
+    public long getRegistrySyncs() {
+        return this.registrySyncs.sum();
+    }
+
+    public long getRegistrySyncNanos() {
+        return this.registrySyncNanos.sum();
+    }
+
+    /**
+     * Gets an upper bound of the given percentile of the durations of an operation.
+     *
+     * @param operation
+     * @param percentile The percentile, between 0 and 100.
+     * @return The duration in nanoseconds, 0 if the operation has not been recorded.
+     */
+    public long getPercentileNanos(TreeOperation operation, double percentile) {
+        AtomicLongArray histogram = this.stats.get(operation).histogram;
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            total += histogram.get(i);
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += histogram.get(i);
+            if (seen > 0 && seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
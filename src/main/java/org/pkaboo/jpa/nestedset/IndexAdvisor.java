@@ -0,0 +1,245 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.persistence.PersistenceException;
+import net.jcip.annotations.Immutable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recommends the indexes that serve the queries and bulk updates of a nested set entity,
+ * as derived from its annotations, and checks a database for them.
+ *
+ * <p>The shifts and interval queries restrict the left or the right column within a
+ * tree, so both are indexed behind the root column. The left index also covers the
+ * right and level columns, which lets the descendant and child queries be answered
+ * from the index alone. Parent and path columns and closure tables are indexed for
+ * their lookups.</p>
+ */
+@Immutable
+public class IndexAdvisor {
+    private static final Logger log = LoggerFactory.getLogger(IndexAdvisor.class);
+
+    /** The databases for which DDL is generated. */
+    public enum Dialect {
+        HSQLDB,
+        MYSQL,
+        /** Indexes the path column with <tt>varchar_pattern_ops</tt> for prefix matches in any collation. */
+        POSTGRESQL
+    }
+
+    /** A recommended index. */
+    @Immutable
+    public static final class Index {
+        private final String name;
+        private final String tableName;
+        private final List<String> columns;
+        private final boolean prefixMatched;
+
+        Index(String name, String tableName, boolean prefixMatched, String... columns) {
+            this.name = name;
+            this.tableName = tableName;
+            this.columns = Collections.unmodifiableList(Arrays.asList(columns));
+            this.prefixMatched = prefixMatched;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public String getTableName() {
+            return this.tableName;
+        }
+
+        /**
+         * @return The indexed columns, in order.
+         */
+        public List<String> getColumns() {
+            return this.columns;
+        }
+
+        /**
+         * @return The statement that creates this index.
+         */
+        public String toDdl(Dialect dialect) {
+            StringBuilder sb = new StringBuilder("CREATE INDEX ").append(this.name)
+                    .append(" ON ").append(this.tableName).append(" (");
+            for (int i = 0; i < this.columns.size(); ++i) {
+                sb.append(i > 0 ? ", " : "").append(this.columns.get(i));
+            }
+            if (this.prefixMatched && dialect == Dialect.POSTGRESQL) {
+                sb.append(" varchar_pattern_ops");
+            }
+            return sb.append(')').toString();
+        }
+
+        @Override public String toString() {
+            return this.tableName + this.columns;
+        }
+    }
+
+    /**
+     * @return The indexes recommended for the given entity class, in the order of
+     *         their importance.
+     */
+    public List<Index> recommend(Class<? extends NodeInfo> clazz) {
+        Configuration config = Configuration.forClass(clazz);
+        String table = TableMapping.tableName(clazz, config.getEntityName());
+        String left = column(clazz, config.getLeftFieldName());
+        String right = column(clazz, config.getRightFieldName());
+        String level = column(clazz, config.getLevelFieldName());
+
+        List<Index> indexes = new ArrayList<Index>();
+        if (config.getRootIdFieldName() != null) {
+            String root = column(clazz, config.getRootIdFieldName());
+            indexes.add(new Index(name(table, left), table, false, root, left, right, level));
+            indexes.add(new Index(name(table, right), table, false, root, right, left));
+        } else {
+            indexes.add(new Index(name(table, left), table, false, left, right, level));
+            indexes.add(new Index(name(table, right), table, false, right, left));
+        }
+        if (config.getParentIdFieldName() != null) {
+            String parent = column(clazz, config.getParentIdFieldName());
+            indexes.add(new Index(name(table, parent), table, false, parent));
+        }
+        if (config.getPathFieldName() != null) {
+            String path = column(clazz, config.getPathFieldName());
+            indexes.add(new Index(name(table, path), table, true, path));
+        }
+        ClosureIndex closure = config.getClosureIndex();
+        if (closure != null) {
+            Class<?> closureClass = closure.getEntityClass();
+            String closureTable = TableMapping.tableName(closureClass, closure.getEntityName());
+            String ancestor = column(closureClass, closure.getAncestorFieldName());
+            String descendant = column(closureClass, closure.getDescendantFieldName());
+            String depth = column(closureClass, closure.getDepthFieldName());
+            indexes.add(new Index(name(closureTable, descendant), closureTable, false, descendant, depth, ancestor));
+            indexes.add(new Index(name(closureTable, ancestor), closureTable, false, ancestor, descendant));
+        }
+        return indexes;
+    }
+
+    /**
+     * @return The statements that create the recommended indexes of the given entity class.
+     */
+    public List<String> toDdl(Class<? extends NodeInfo> clazz, Dialect dialect) {
+        List<String> ddl = new ArrayList<String>();
+        for (Index index : recommend(clazz)) {
+            ddl.add(index.toDdl(dialect));
+        }
+        return ddl;
+    }
+
+    /**
+     * Compares the recommended indexes of the given entity class with the indexes of the
+     * database. A recommendation is met by any index, including a primary key, whose
+     * leading columns are the recommended columns in the same order.
+     *
+     * @return The recommended indexes that the database lacks.
+     */
+    public List<Index> findMissing(DatabaseMetaData metaData, Class<? extends NodeInfo> clazz) throws SQLException {
+        List<Index> missing = new ArrayList<Index>();
+        for (Index index : recommend(clazz)) {
+            if (!isCovered(index, existingIndexes(metaData, index.getTableName()))) {
+                missing.add(index);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Logs a warning with the DDL of every recommended index that the database lacks,
+     * as a check at startup.
+     *
+     * @return The missing indexes.
+     */
+    @SafeVarargs
+    public final List<Index> reportMissing(DatabaseMetaData metaData, Dialect dialect, Class<? extends NodeInfo>... classes) {
+        List<Index> missing = new ArrayList<Index>();
+        try {
+            for (Class<? extends NodeInfo> clazz : classes) {
+                for (Index index : findMissing(metaData, clazz)) {
+                    log.warn("Missing index for the nested set of {}: {}", clazz.getName(), index.toDdl(dialect));
+                    missing.add(index);
+                }
+            }
+        } catch (SQLException ex) {
+            throw new PersistenceException(ex);
+        }
+        return missing;
+    }
+
+    private static boolean isCovered(Index index, List<List<String>> existing) {
+        for (List<String> columns : existing) {
+            if (columns.size() >= index.getColumns().size()) {
+                boolean covered = true;
+                for (int i = 0; i < index.getColumns().size() && covered; ++i) {
+                    covered = columns.get(i).equalsIgnoreCase(index.getColumns().get(i));
+                }
+                if (covered) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The columns of each index of the given table, in order.
+     */
+    private static List<List<String>> existingIndexes(DatabaseMetaData metaData, String table) throws SQLException {
+        String name = metaData.storesUpperCaseIdentifiers() ? table.toUpperCase(Locale.ROOT)
+                : metaData.storesLowerCaseIdentifiers() ? table.toLowerCase(Locale.ROOT) : table;
+        Map<String, Map<Short, String>> indexes = new TreeMap<String, Map<Short, String>>();
+        try (ResultSet rs = metaData.getIndexInfo(null, null, name, false, false)) {
+            while (rs.next()) {
+                String index = rs.getString("INDEX_NAME");
+                String column = rs.getString("COLUMN_NAME");
+                if (index == null || column == null) {
+                    continue;
+                }
+                Map<Short, String> columns = indexes.get(index);
+                if (columns == null) {
+                    columns = new TreeMap<Short, String>();
+                    indexes.put(index, columns);
+                }
+                columns.put(rs.getShort("ORDINAL_POSITION"), column);
+            }
+        }
+        List<List<String>> result = new ArrayList<List<String>>();
+        for (Map<Short, String> columns : indexes.values()) {
+            result.add(new ArrayList<String>(columns.values()));
+        }
+        return result;
+    }
+
+    private static String name(String table, String column) {
+        return "ix_" + table.toLowerCase(Locale.ROOT) + "_" + column.toLowerCase(Locale.ROOT);
+    }
+
+    private static String column(Class<?> clazz, String fieldName) {
+        try {
+            return TableMapping.columnName(clazz.getDeclaredField(fieldName));
+        } catch (NoSuchFieldException ex) {
+            throw new IllegalArgumentException("No field " + fieldName + " in " + clazz.getName(), ex);
+        }
+    }
+}
@@ -0,0 +1,481 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.sql.DataSource;
+import net.jcip.annotations.NotThreadSafe;
+import org.pkaboo.jpa.nestedset.jfr.TreeMutationEvents;
+
+/**
+ * A {@link NestedSetManager} that operates directly on a JDBC {@link Connection},
+ * without an {@link EntityManager} and its persistence context. The table mapping
+ * is derived from the same annotations that are used by the {@link JpaNestedSetManager}.
+ *
+ * <p>Transactions are demarcated by the caller on the underlying connection. Entities
+ * whose id is generated (<tt>@GeneratedValue</tt>) and not yet assigned are inserted
+ * without an id and the id is read back from the generated keys, which requires
+ * an identity column.</p>
+ */
+@NotThreadSafe
+public class JdbcNestedSetManager implements NestedSetManager, AutoCloseable {
+    /** The maximum number of ranges deleted by a single statement of {@link #deleteAll}. */
+    private static final int MAX_DELETED_RANGES = 100;
+
+    private final Connection connection;
+    private final boolean ownsConnection;
+    private final NodeRegistry nodes;
+    private final Map<Class<?>, TableMapping> mappings;
+
+    /**
+     * Creates a manager that operates on the given connection. The connection is
+     * owned by the caller and not closed by {@link #close()}.
+     *
+     * @param connection
+     */
+    public JdbcNestedSetManager(Connection connection) {
+        this(connection, false);
+    }
+
+    /**
+     * Creates a manager that operates on a connection obtained from the given data source.
+     * The connection is closed by {@link #close()}.
+     *
+     * @param dataSource
+     */
+    public JdbcNestedSetManager(DataSource dataSource) {
+        this(openConnection(dataSource), true);
+    }
+
+    private JdbcNestedSetManager(Connection connection, boolean ownsConnection) {
+        this.connection = connection;
+        this.ownsConnection = ownsConnection;
+        this.nodes = new NodeRegistry();
+        this.mappings = new HashMap<Class<?>, TableMapping>();
+    }
+
+    private static Connection openConnection(DataSource dataSource) {
+        try {
+            return dataSource.getConnection();
+        } catch (SQLException ex) {
+            throw new PersistenceException(ex);
+        }
+    }
+
+    /**
+     * Get the Connection used by this NestedSetManager.
+     *
+     * @return The Connection.
+     */
+    public Connection getConnection() {
+        return this.connection;
+    }
+
+    @Override
+    public void clear() {
+        this.nodes.clear();
+    }
+
+    public Collection<Node<?>> getManagedNodes() {
+        return Collections.unmodifiableCollection(this.nodes.values());
+    }
+
+    @Override
+    public void close() {
+        if (this.ownsConnection) {
+            try {
+                this.connection.close();
+            } catch (SQLException ex) {
+                throw new PersistenceException(ex);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> List<Node<T>> listNodes(Class<T> clazz) {
+        return listNodes(clazz, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> List<Node<T>> listNodes(Class<T> clazz, int rootId) {
+        TableMapping m = getMapping(clazz);
+        return select(clazz, "n." + m.getLeftColumn() + " >= 1", "n." + m.getLeftColumn(), rootId, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Integer> listRootIds(Class<? extends NodeInfo> clazz) {
+        TableMapping m = getMapping(clazz);
+        if (m.getRootColumn() == null) {
+            return Collections.singletonList(0);
+        }
+        String sql = "select distinct " + m.getRootColumn() + " from " + m.getTableName()
+                + " order by " + m.getRootColumn();
+        try (PreparedStatement ps = this.connection.prepareStatement(sql);
+                ResultSet rs = ps.executeQuery()) {
+            List<Integer> rootIds = new ArrayList<Integer>();
+            while (rs.next()) {
+                rootIds.add(rs.getInt(1));
+            }
+            return rootIds;
+        } catch (SQLException ex) {
+            throw new PersistenceException(ex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> Node<T> createRoot(T root) {
+        if (LongNodeInfo.leftOf(root) < LongNodeInfo.rightOf(root)) {
+            throw new IllegalArgumentException("The node already has a position in a tree.");
+        }
+
+        TableMapping m = getMapping(root.getClass());
+
+        long maximumRight;
+        if (m.getConfig().hasManyRoots()) {
+            maximumRight = 0;
+        } else {
+            maximumRight = queryLong("select max(n." + m.getRightColumn() + ") from " + m.getTableName() + " n");
+        }
+        LongNodeInfo.setLeftOf(root, maximumRight + 1);
+        LongNodeInfo.setRightOf(root, maximumRight + 2);
+        root.setLevel(0);
+        insert(Collections.singletonList(root));
+
+        return getNode(root);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> void deleteAll(Collection<Node<T>> nodes) {
+        if (nodes.isEmpty()) {
+            return;
+        }
+
+        Class<?> clazz = nodes.iterator().next().unwrap().getClass();
+        for (Map.Entry<Integer, DeletedRanges> tree : DeletedRanges.of(nodes).entrySet()) {
+            deleteRanges(clazz, tree.getKey(), tree.getValue());
+        }
+    }
+
+    /**
+     * Deletes the ranges of a tree, in statements of at most {@link #MAX_DELETED_RANGES}
+     * ranges, and closes the gaps with a single update that moves every value by the
+     * size of the ranges below it.
+     */
+    private void deleteRanges(Class<?> clazz, int rootId, DeletedRanges ranges) {
+        Object event = TreeEvents.begin(TreeMutationEvents.DELETE);
+        TableMapping m = getMapping(clazz);
+        String lft = m.getLeftColumn();
+        String rgt = m.getRightColumn();
+
+        int rows = 0;
+        for (int from = 0; from < ranges.size(); from += MAX_DELETED_RANGES) {
+            int to = Math.min(from + MAX_DELETED_RANGES, ranges.size());
+            StringBuilder sql = new StringBuilder();
+            List<Object> params = new ArrayList<Object>();
+            sql.append("delete from ").append(m.getTableName()).append(" where (");
+            for (int i = from; i < to; ++i) {
+                sql.append(i > from ? " or " : "")
+                        .append("(").append(lft).append(" >= ? and ").append(rgt).append(" <= ?)");
+                params.add(ranges.lefts[i]);
+                params.add(ranges.rights[i]);
+            }
+            sql.append(")");
+            if (m.getRootColumn() != null) {
+                sql.append(" and ").append(m.getRootColumn()).append(" = ?");
+                params.add(rootId);
+            }
+            rows += executeUpdate(sql.toString(), params.toArray());
+        }
+
+        // Close all gaps, matching the highest range first
+        StringBuilder sql = new StringBuilder();
+        List<Object> params = new ArrayList<Object>();
+        sql.append("update ").append(m.getTableName()).append(" set ");
+        for (String col : new String[] {lft, rgt}) {
+            sql.append(col.equals(lft) ? "" : ", ").append(col).append(" = case");
+            for (int i = ranges.size() - 1; i >= 0; --i) {
+                sql.append(" when ").append(col).append(" > ? then ").append(col).append(" - ?");
+                params.add(ranges.rights[i]);
+                params.add(ranges.removed[i]);
+            }
+            sql.append(" else ").append(col).append(" end");
+        }
+        sql.append(" where ").append(rgt).append(" > ?");
+        params.add(ranges.rights[0]);
+        if (m.getRootColumn() != null) {
+            sql.append(" and ").append(m.getRootColumn()).append(" = ?");
+            params.add(rootId);
+        }
+        executeUpdate(sql.toString(), params.toArray());
+
+        this.nodes.removeRanges(ranges, rootId);
+        TreeEvents.commit(event, clazz, rootId, rootId, ranges.lefts[0], ranges.rights[ranges.size() - 1],
+                -ranges.removed[ranges.size() - 1], rows);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> Node<T> getNode(T nodeInfo) {
+        @SuppressWarnings("unchecked")
+        Node<T> n = (Node<T>) this.nodes.get(nodeInfo.getClass(), nodeInfo.getId());
+        if (n != null) {
+            return n;
+        }
+        Node<T> node = new JdbcNode<T>(nodeInfo, this);
+        if (!node.isValid()) {
+            throw new IllegalArgumentException("The given NodeInfo instance has no position " +
+                    "in a tree and is thus not yet a node.");
+        }
+        this.nodes.put(node);
+
+        return node;
+    }
+
+    /**
+     * Adds the given entities as the last children of a parent node, in the given order.
+     * The room for all children is made with a single shift and the children
+     * are inserted with one JDBC batch.
+     *
+     * @param <T>
+     * @param parent
+     * @param children
+     * @return The nodes of the added children.
+     */
+    public <T extends NodeInfo> List<Node<T>> addChildren(Node<T> parent, List<T> children) {
+        List<Node<T>> result = new ArrayList<Node<T>>(children.size());
+        if (children.isEmpty()) {
+            return result;
+        }
+        Object event = TreeEvents.begin(TreeMutationEvents.BULK_INSERT);
+
+        long left = parent.getRight();
+        int rootId = parent.getRootValue();
+        shiftRLValues(parent.unwrap().getClass(), left, 0, 2 * children.size(), rootId);
+        for (T child : children) {
+            if (child == parent.unwrap()) {
+                throw new IllegalArgumentException("Cannot add node as child of itself.");
+            }
+            child.setLevel(parent.getLevel() + 1);
+            LongNodeInfo.setLeftOf(child, left);
+            LongNodeInfo.setRightOf(child, left + 1);
+            child.setRootValue(rootId);
+            left += 2;
+        }
+        insert(children);
+        for (T child : children) {
+            result.add(getNode(child));
+        }
+        TreeEvents.commit(event, parent.unwrap().getClass(), rootId, rootId,
+                left - 2 * children.size(), left - 1, 0, children.size());
+
+        return result;
+    }
+
+    TableMapping getMapping(Class<?> clazz) {
+        TableMapping mapping = this.mappings.get(clazz);
+        if (mapping == null) {
+            mapping = TableMapping.forClass(clazz);
+            this.mappings.put(clazz, mapping);
+        }
+        return mapping;
+    }
+
+    NodeRegistry getRegistry() {
+        return this.nodes;
+    }
+
+    /**
+     * Selects the entities of the given class that match the given condition, restricted
+     * to the given tree if the table holds multiple trees.
+     *
+     * @param maxRows The maximum number of rows to return, 0 for no limit.
+     */
+    <T extends NodeInfo> List<Node<T>> select(Class<T> clazz, String where, String orderBy, int rootId,
+            int maxRows, Object... params) {
+        TableMapping m = getMapping(clazz);
+        StringBuilder sql = new StringBuilder();
+        sql.append("select ").append(m.getSelectList())
+                .append(" from ").append(m.getTableName()).append(" n")
+                .append(" where ").append(where);
+        if (m.getRootColumn() != null) {
+            sql.append(" and n.").append(m.getRootColumn()).append(" = ?");
+        }
+        if (orderBy != null) {
+            sql.append(" order by ").append(orderBy);
+        }
+
+        try (PreparedStatement ps = this.connection.prepareStatement(sql.toString())) {
+            int i = bind(ps, params);
+            if (m.getRootColumn() != null) {
+                ps.setInt(i, rootId);
+            }
+            if (maxRows > 0) {
+                ps.setMaxRows(maxRows);
+            }
+            List<Node<T>> result = new ArrayList<Node<T>>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    // The entity is only created for a row without a managed node
+                    @SuppressWarnings("unchecked")
+                    Node<T> managed = (Node<T>) this.nodes.get(clazz, m.readId(rs));
+                    result.add(managed != null ? managed : getNode(m.read(rs, clazz)));
+                }
+            }
+            return result;
+        } catch (SQLException ex) {
+            throw new PersistenceException(ex);
+        }
+    }
+
+    int executeUpdate(String sql, Object... params) {
+        try (PreparedStatement ps = this.connection.prepareStatement(sql)) {
+            bind(ps, params);
+            return ps.executeUpdate();
+        } catch (SQLException ex) {
+            throw new PersistenceException(ex);
+        }
+    }
+
+    private long queryLong(String sql, Object... params) {
+        try (PreparedStatement ps = this.connection.prepareStatement(sql)) {
+            bind(ps, params);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        } catch (SQLException ex) {
+            throw new PersistenceException(ex);
+        }
+    }
+
+    private static int bind(PreparedStatement ps, Object... params) throws SQLException {
+        int i = 1;
+        for (Object param : params) {
+            ps.setObject(i++, param);
+        }
+        return i;
+    }
+
+    /**
+     * Inserts the given entities of the same class with a single JDBC batch.
+     * Generated ids are written back into the entities.
+     */
+    <T extends NodeInfo> void insert(List<T> entities) {
+        TableMapping m = getMapping(entities.get(0).getClass());
+        boolean generate = m.needsGeneratedId(entities.get(0));
+        try (PreparedStatement ps = generate
+                ? this.connection.prepareStatement(m.getInsertSql(false), Statement.RETURN_GENERATED_KEYS)
+                : this.connection.prepareStatement(m.getInsertSql(true))) {
+            for (T entity : entities) {
+                if (m.needsGeneratedId(entity) != generate) {
+                    throw new IllegalArgumentException("Cannot mix entities with and without ids in one batch.");
+                }
+                m.bindInsert(ps, entity, !generate);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            if (generate) {
+                try (ResultSet keys = ps.getGeneratedKeys()) {
+                    for (T entity : entities) {
+                        if (!keys.next()) {
+                            throw new PersistenceException("Missing generated key for " + entity);
+                        }
+                        m.setGeneratedId(entity, keys);
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            throw new PersistenceException(ex);
+        }
+    }
+
+    /**
+     * Adds 'delta' to all left and right values that are >= 'first' and
+     * <= 'last' with a single statement. 'delta' can also be negative. If 'last' is 0
+     * it is skipped and there is no upper bound.
+     *
+     * @param clazz The entity class of the nodes to shift.
+     * @param first The first left/right value (inclusive) of the nodes to shift.
+     * @param last The last left/right value (inclusive) of the nodes to shift.
+     * @param delta The offset by which to shift the left/right values (can be negative).
+     * @param rootId The root/tree ID of the nodes to shift.
+     */
+    void shiftRLValues(Class<?> clazz, long first, long last, long delta, int rootId) {
+        Object event = TreeEvents.begin(TreeMutationEvents.SHIFT);
+        TableMapping m = getMapping(clazz);
+        String lft = m.getLeftColumn();
+        String rgt = m.getRightColumn();
+        String upper = last > 0 ? " and %1$s <= ?" : "";
+
+        String inLeft = String.format("%1$s >= ?" + upper, lft);
+        String inRight = String.format("%1$s >= ?" + upper, rgt);
+        StringBuilder sql = new StringBuilder();
+        sql.append("update ").append(m.getTableName())
+                .append(" set ").append(lft).append(" = case when ").append(inLeft)
+                .append(" then ").append(lft).append(" + ? else ").append(lft).append(" end")
+                .append(", ").append(rgt).append(" = case when ").append(inRight)
+                .append(" then ").append(rgt).append(" + ? else ").append(rgt).append(" end")
+                .append(" where (").append(inLeft).append(" or ").append(inRight).append(")");
+        if (m.getRootColumn() != null) {
+            sql.append(" and ").append(m.getRootColumn()).append(" = ?");
+        }
+
+        List<Object> params = new ArrayList<Object>();
+        for (int i = 0; i < 2; ++i) {
+            params.add(first);
+            if (last > 0) {
+                params.add(last);
+            }
+            params.add(delta);
+        }
+        for (int i = 0; i < 2; ++i) {
+            params.add(first);
+            if (last > 0) {
+                params.add(last);
+            }
+        }
+        if (m.getRootColumn() != null) {
+            params.add(rootId);
+        }
+        int rows = executeUpdate(sql.toString(), params.toArray());
+
+        this.nodes.updateLeftValues(first, last, delta, rootId);
+        this.nodes.updateRightValues(first, last, delta, rootId);
+        TreeEvents.commit(event, clazz, rootId, rootId, first, last, delta, rows);
+    }
+}
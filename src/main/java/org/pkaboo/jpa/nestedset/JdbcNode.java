@@ -0,0 +1,564 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+import javax.persistence.EntityGraph;
+import javax.persistence.NoResultException;
+import net.jcip.annotations.NotThreadSafe;
+import org.pkaboo.jpa.nestedset.jfr.TreeMutationEvents;
+
+/**
+ * A decorator for a {@link NodeInfo} implementation that enriches it with the full API
+ * of a node in a nested set tree, backed by plain JDBC statements.
+ *
+ * @param <T extends NodeInfo> The wrapped entity type.
+ */
+@NotThreadSafe
+class JdbcNode<T extends NodeInfo> implements Node<T> {
+    private final JdbcNestedSetManager nsm;
+    private final T node;
+    private final LongNodeInfo longNode;
+    private final Class<T> type;
+
+    @SuppressWarnings("unchecked")
+    public JdbcNode(T node, JdbcNestedSetManager nsm) {
+        this.node = node;
+        this.longNode = node instanceof LongNodeInfo ? (LongNodeInfo) node : null;
+        this.nsm = nsm;
+        this.type = (Class<T>) node.getClass();
+    }
+
+    @Override public int getId() {
+        return this.node.getId();
+    }
+
+    @Override public int getLeftValue() {
+        return this.node.getLeftValue();
+    }
+
+    @Override public int getRightValue() {
+        return this.node.getRightValue();
+    }
+
+    @Override public long getLeft() {
+        return this.longNode != null ? this.longNode.getLeft() : this.node.getLeftValue();
+    }
+
+    @Override public long getRight() {
+        return this.longNode != null ? this.longNode.getRight() : this.node.getRightValue();
+    }
+
+    @Override public int getLevel() {
+        return this.node.getLevel();
+    }
+
+    @Override public int getRootValue() {
+        return this.node.getRootValue();
+    }
+
+    @Override public void setRootValue(int value) {
+        this.node.setRootValue(value);
+    }
+
+    @Override public void setLeftValue(int value) {
+        this.node.setLeftValue(value);
+    }
+
+    @Override public void setRightValue(int value) {
+        this.node.setRightValue(value);
+    }
+
+    @Override public void setLeft(long value) {
+        if (this.longNode != null) {
+            this.longNode.setLeft(value);
+        } else {
+            this.node.setLeftValue(Math.toIntExact(value));
+        }
+    }
+
+    @Override public void setRight(long value) {
+        if (this.longNode != null) {
+            this.longNode.setRight(value);
+        } else {
+            this.node.setRightValue(Math.toIntExact(value));
+        }
+    }
+
+    @Override public void setLevel(int level) {
+        this.node.setLevel(level);
+    }
+
+    @Override
+    public String toString() {
+        return "[Left: " + getLeft() +
+                ", Right: " + getRight() +
+                ", Level: " + node.getLevel() +
+                ", NodeInfo: " + node.toString() +
+                "]";
+    }
+
+    @Override public T unwrap() {
+        return this.node;
+    }
+
+    @Override
+    public boolean hasChildren() {
+        return (getRight() - getLeft()) > 1;
+    }
+
+    @Override
+    public boolean hasParent() {
+        return !isRoot();
+    }
+
+    @Override
+    public boolean isValid() {
+        return getRight() > getLeft();
+    }
+
+    @Override
+    public boolean isRoot() {
+        return getLeft() == 1;
+    }
+
+    @Override
+    public boolean isDescendantOf(Node<T> subj) {
+        return ((getLeft() > subj.getLeft()) &&
+                (getRight() < subj.getRight()) &&
+                (getRootValue() == subj.getRootValue()));
+    }
+
+    private TableMapping mapping() {
+        return nsm.getMapping(this.type);
+    }
+
+    @Override
+    public List<Node<T>> getChildren() {
+        return getDescendants(1);
+    }
+
+    @Override
+    public void reorderChildren(Comparator<? super T> order) {
+        List<Node<T>> children = getChildren();
+        List<Node<T>> sorted = new ArrayList<Node<T>>(children);
+        sorted.sort((a, b) -> order.compare(a.unwrap(), b.unwrap()));
+        reorder(ChildOrder.of(this, children, sorted));
+    }
+
+    @Override
+    public void reorderChildren(List<Node<T>> children) {
+        reorder(ChildOrder.of(this, getChildren(), children));
+    }
+
+    /**
+     * Moves the children by their offsets with a single statement that is restricted to
+     * the range of the children that change position.
+     */
+    private void reorder(ChildOrder order) {
+        if (order == null) {
+            return; // already in order
+        }
+
+        TableMapping m = mapping();
+        StringBuilder sql = new StringBuilder();
+        List<Object> params = new ArrayList<Object>();
+        sql.append("update ").append(m.getTableName()).append(" set ");
+        for (String col : new String[] {m.getLeftColumn(), m.getRightColumn()}) {
+            if (!params.isEmpty()) {
+                sql.append(", ");
+            }
+            sql.append(col).append(" = case");
+            for (int i = 0; i < order.deltas.length; ++i) {
+                sql.append(" when ").append(col).append(" >= ? and ").append(col).append(" <= ? then ")
+                        .append(col).append(" + ?");
+                params.add(order.lefts[i]);
+                params.add(order.rights[i]);
+                params.add(order.deltas[i]);
+            }
+            sql.append(" else ").append(col).append(" end");
+        }
+        sql.append(" where ").append(m.getLeftColumn()).append(" >= ? and ")
+                .append(m.getRightColumn()).append(" <= ?");
+        params.add(order.first());
+        params.add(order.last());
+        if (m.getRootColumn() != null) {
+            sql.append(" and ").append(m.getRootColumn()).append(" = ?");
+            params.add(getRootValue());
+        }
+        nsm.executeUpdate(sql.toString(), params.toArray());
+
+        nsm.getRegistry().moveRanges(order.lefts, order.rights, order.deltas, getRootValue());
+    }
+
+    @Override
+    public Node<T> getParent() {
+        if (isRoot()) {
+            return null;
+        }
+
+        TableMapping m = mapping();
+        List<Node<T>> result = nsm.select(this.type,
+                "n." + m.getLeftColumn() + " < ? and n." + m.getRightColumn() + " > ?",
+                "n." + m.getRightColumn(), getRootValue(), 1,
+                getLeft(), getRight());
+
+        return result.get(0);
+    }
+
+    @Override public List<Node<T>> getDescendants() {
+        return getDescendants(0);
+    }
+
+    @Override public List<Node<T>> getDescendants(int depth) {
+        TableMapping m = mapping();
+        String where = "n." + m.getLeftColumn() + " > ? and n." + m.getRightColumn() + " < ?";
+        if (depth > 0) {
+            return nsm.select(this.type, where + " and n." + m.getLevelColumn() + " <= ?",
+                    "n." + m.getLeftColumn(), getRootValue(), 0,
+                    getLeft(), getRight(), getLevel() + depth);
+        }
+        return nsm.select(this.type, where, "n." + m.getLeftColumn(), getRootValue(), 0,
+                getLeft(), getRight());
+    }
+
+    /**
+     * The graph is ignored, the JDBC mapping has no associations.
+     */
+    @Override public List<Node<T>> getDescendants(int depth, EntityGraph<? super T> graph) {
+        return getDescendants(depth);
+    }
+
+    @Override
+    public List<Node<T>> getAncestors() {
+        TableMapping m = mapping();
+        return nsm.select(this.type,
+                "n." + m.getLeftColumn() + " < ? and n." + m.getRightColumn() + " > ?",
+                "n." + m.getLeftColumn(), getRootValue(), 0,
+                getLeft(), getRight());
+    }
+
+    /**
+     * The graph is ignored, the JDBC mapping has no associations.
+     */
+    @Override
+    public List<Node<T>> getAncestors(EntityGraph<? super T> graph) {
+        return getAncestors();
+    }
+
+    @Override
+    public Node<T> getFirstChild() {
+        return getSingleResult(mapping().getLeftColumn(), getLeft() + 1);
+    }
+
+    @Override
+    public Node<T> getLastChild() {
+        return getSingleResult(mapping().getRightColumn(), getRight() - 1);
+    }
+
+    private Node<T> getSingleResult(String column, long value) {
+        List<Node<T>> result = nsm.select(this.type, "n." + column + " = ?", null, getRootValue(), 1, value);
+        if (result.isEmpty()) {
+            throw new NoResultException();
+        }
+        return result.get(0);
+    }
+
+    @Override public Node<T> addChild(T child) {
+        if (child == this.node) {
+            throw new IllegalArgumentException("Cannot add node as child of itself.");
+        }
+
+        return nsm.addChildren(this, Collections.singletonList(child)).get(0);
+    }
+
+    @Override
+    public void delete() {
+        Object event = TreeEvents.begin(TreeMutationEvents.DELETE);
+        TableMapping m = mapping();
+        long left = getLeft();
+        long right = getRight();
+        int rootId = getRootValue();
+
+        StringBuilder sql = new StringBuilder();
+        sql.append("delete from ").append(m.getTableName())
+                .append(" where ").append(m.getLeftColumn()).append(" >= ?")
+                .append(" and ").append(m.getRightColumn()).append(" <= ?");
+        int rows;
+        if (m.getRootColumn() != null) {
+            sql.append(" and ").append(m.getRootColumn()).append(" = ?");
+            rows = nsm.executeUpdate(sql.toString(), left, right, rootId);
+        } else {
+            rows = nsm.executeUpdate(sql.toString(), left, right);
+        }
+
+        // Evict the subtree before closing the gap moves the following nodes into its range
+        nsm.getRegistry().removeNodes(left, right, rootId);
+        nsm.shiftRLValues(this.type, right + 1, 0, left - right - 1, rootId);
+        TreeEvents.commit(event, this.type, rootId, rootId, left, right, left - right - 1, rows);
+    }
+
+    @Override
+    public void moveAsPrevSiblingOf(Node<T> dest) {
+        if (isSameNode(dest)) {
+            throw new IllegalArgumentException("Cannot move node as previous sibling of itself");
+        }
+        moveTo(dest, dest.getLeft(), dest.getLevel());
+    }
+
+    @Override
+    public void moveAsNextSiblingOf(Node<T> dest) {
+        if (isSameNode(dest)) {
+            throw new IllegalArgumentException("Cannot move node as next sibling of itself");
+        }
+        moveTo(dest, dest.getRight() + 1, dest.getLevel());
+    }
+
+    @Override
+    public void moveAsFirstChildOf(Node<T> dest) {
+        if (isSameNode(dest)) {
+            throw new IllegalArgumentException("Cannot move node as first child of itself");
+        }
+        moveTo(dest, dest.getLeft() + 1, dest.getLevel() + 1);
+    }
+
+    @Override
+    public void moveAsLastChildOf(Node<T> dest) {
+        if (isSameNode(dest)) {
+            throw new IllegalArgumentException("Cannot move node as last child of itself");
+        }
+        moveTo(dest, dest.getRight(), dest.getLevel() + 1);
+    }
+
+    /**
+     * @return Whether the given node wraps the same row as this node, possibly through
+     *         another wrapper or entity instance.
+     */
+    private boolean isSameNode(Node<T> other) {
+        return other.getId() == getId() && other.unwrap().getClass() == this.type;
+    }
+
+    /**
+     * Moves this node and its descendants to the position 'destLeft' in the tree of 'dest'.
+     *
+     * @param dest The node relative to which this node is moved.
+     * @param destLeft The new left value, prior to making room for the subtree.
+     * @param newLevel The new level of this node.
+     */
+    private void moveTo(Node<T> dest, long destLeft, int newLevel) {
+        if (dest.isDescendantOf(this)) {
+            throw new IllegalArgumentException("Cannot move node below one of its descendants");
+        }
+
+        long left = getLeft();
+        long right = getRight();
+        int oldRoot = getRootValue();
+        int newRoot = dest.getRootValue();
+        long treeSize = right - left + 1;
+        int levelDiff = newLevel - getLevel();
+
+        if (newRoot == oldRoot) {
+            if (levelDiff == 0 && (destLeft == left || destLeft == right + 1)) {
+                return; // already in place
+            }
+            // Only the subtree and the nodes between it and its destination change
+            if (destLeft < left) {
+                rotate(destLeft, right, destLeft - left, treeSize, levelDiff);
+            } else {
+                rotate(left, destLeft - 1, destLeft - 1 - right, -treeSize, levelDiff);
+            }
+            return;
+        }
+
+        if (mapping().getRootColumn() == null) {
+            throw new UnsupportedOperationException("Moving nodes between trees requires a @RootColumn.");
+        }
+
+        // Make room in the new branch
+        nsm.shiftRLValues(this.type, destLeft, 0, treeSize, newRoot);
+
+        // Relocate the subtree into the gap
+        relocate(left, right, oldRoot, destLeft - left, levelDiff, newRoot);
+
+        // Close gap in old tree
+        nsm.shiftRLValues(this.type, right + 1, 0, -treeSize, oldRoot);
+    }
+
+    /**
+     * Moves this node and its descendants within the range [first, last] of its tree by
+     * 'delta' positions and 'levelDiff' levels, and all other left/right values within
+     * the range by 'otherDelta' positions, with a single statement.
+     */
+    private void rotate(long first, long last, long delta, long otherDelta, int levelDiff) {
+        Object event = TreeEvents.begin(TreeMutationEvents.SUBTREE_MOVE);
+        TableMapping m = mapping();
+        String lft = m.getLeftColumn();
+        String lvl = m.getLevelColumn();
+        long left = getLeft();
+        long right = getRight();
+        int rootId = getRootValue();
+
+        // The level is assigned first as some databases evaluate assignments in order
+        StringBuilder sql = new StringBuilder();
+        sql.append("update ").append(m.getTableName())
+                .append(" set ").append(lvl).append(" = case when ").append(lft).append(" >= ? and ")
+                .append(lft).append(" <= ? then ").append(lvl).append(" + ? else ").append(lvl).append(" end");
+        List<Object> params = new ArrayList<Object>();
+        params.add(left);
+        params.add(right);
+        params.add(levelDiff);
+        for (String col : new String[] {lft, m.getRightColumn()}) {
+            sql.append(", ").append(col).append(" = case")
+                    .append(" when ").append(col).append(" >= ? and ").append(col).append(" <= ? then ")
+                    .append(col).append(" + ?")
+                    .append(" when ").append(col).append(" >= ? and ").append(col).append(" <= ? then ")
+                    .append(col).append(" + ?")
+                    .append(" else ").append(col).append(" end");
+            params.add(left);
+            params.add(right);
+            params.add(delta);
+            params.add(first);
+            params.add(last);
+            params.add(otherDelta);
+        }
+        sql.append(" where ((").append(lft).append(" >= ? and ").append(lft).append(" <= ?)")
+                .append(" or (").append(m.getRightColumn()).append(" >= ? and ")
+                .append(m.getRightColumn()).append(" <= ?))");
+        params.add(first);
+        params.add(last);
+        params.add(first);
+        params.add(last);
+        if (m.getRootColumn() != null) {
+            sql.append(" and ").append(m.getRootColumn()).append(" = ?");
+            params.add(rootId);
+        }
+        int rows = nsm.executeUpdate(sql.toString(), params.toArray());
+
+        nsm.getRegistry().rotate(first, last, left, right, delta, otherDelta, levelDiff, rootId);
+        TreeEvents.commit(event, this.type, rootId, rootId, left, right, delta, rows);
+    }
+
+    /**
+     * Moves all nodes within [left, right] of the tree 'rootId' by 'delta' positions and
+     * 'levelDelta' levels into the tree 'newRootId'.
+     */
+    private void relocate(long left, long right, int rootId, long delta, int levelDelta, int newRootId) {
+        Object event = TreeEvents.begin(rootId == newRootId
+                ? TreeMutationEvents.SUBTREE_MOVE : TreeMutationEvents.CROSS_TREE_MOVE);
+        TableMapping m = mapping();
+        String lft = m.getLeftColumn();
+        String rgt = m.getRightColumn();
+        String lvl = m.getLevelColumn();
+
+        StringBuilder sql = new StringBuilder();
+        sql.append("update ").append(m.getTableName())
+                .append(" set ").append(lft).append(" = ").append(lft).append(" + ?")
+                .append(", ").append(rgt).append(" = ").append(rgt).append(" + ?")
+                .append(", ").append(lvl).append(" = ").append(lvl).append(" + ?");
+        int rows;
+        if (m.getRootColumn() != null) {
+            sql.append(", ").append(m.getRootColumn()).append(" = ?")
+                    .append(" where ").append(lft).append(" >= ?")
+                    .append(" and ").append(rgt).append(" <= ?")
+                    .append(" and ").append(m.getRootColumn()).append(" = ?");
+            rows = nsm.executeUpdate(sql.toString(), delta, delta, levelDelta, newRootId, left, right, rootId);
+        } else {
+            sql.append(" where ").append(lft).append(" >= ?")
+                    .append(" and ").append(rgt).append(" <= ?");
+            rows = nsm.executeUpdate(sql.toString(), delta, delta, levelDelta, left, right);
+        }
+
+        nsm.getRegistry().moveNodes(left, right, rootId, delta, levelDelta, newRootId);
+        TreeEvents.commit(event, this.type, rootId, newRootId, left, right, delta, rows);
+    }
+
+    @Override
+    public Node<T> copySubtreeAsLastChildOf(Node<T> dest, Function<? super T, ? extends T> copier) {
+        return copyTo(dest, dest.getRight(), dest.getLevel() + 1, copier);
+    }
+
+    @Override
+    public Node<T> copySubtreeAsFirstChildOf(Node<T> dest, Function<? super T, ? extends T> copier) {
+        return copyTo(dest, dest.getLeft() + 1, dest.getLevel() + 1, copier);
+    }
+
+    @Override
+    public Node<T> copySubtreeAsNextSiblingOf(Node<T> dest, Function<? super T, ? extends T> copier) {
+        return copyTo(dest, dest.getRight() + 1, dest.getLevel(), copier);
+    }
+
+    @Override
+    public Node<T> copySubtreeAsPrevSiblingOf(Node<T> dest, Function<? super T, ? extends T> copier) {
+        return copyTo(dest, dest.getLeft(), dest.getLevel(), copier);
+    }
+
+    /**
+     * Copies this node and its descendants to the position 'destLeft' in the tree of 'dest',
+     * inserting the copies with a single JDBC batch.
+     */
+    private Node<T> copyTo(Node<T> dest, long destLeft, int newLevel, Function<? super T, ? extends T> copier) {
+        if (dest.isRoot() && destLeft != dest.getLeft() + 1 && destLeft != dest.getRight()) {
+            throw new IllegalArgumentException("Cannot copy a node as sibling of a root node.");
+        }
+
+        // Read the source subtree and create the copies before the shift may renumber it
+        List<Node<T>> source = new ArrayList<Node<T>>();
+        source.add(this);
+        source.addAll(getDescendants());
+        List<T> copies = new ArrayList<T>(source.size());
+        int newRoot = dest.getRootValue();
+        for (Node<T> n : source) {
+            T copy = copier.apply(n.unwrap());
+            if (copy == n.unwrap()) {
+                throw new IllegalArgumentException("The copier must create new entities.");
+            }
+            LongNodeInfo.setLeftOf(copy, destLeft + n.getLeft() - getLeft());
+            LongNodeInfo.setRightOf(copy, destLeft + n.getRight() - getLeft());
+            copy.setLevel(newLevel + n.getLevel() - getLevel());
+            copy.setRootValue(newRoot);
+            copies.add(copy);
+        }
+
+        Object event = TreeEvents.begin(TreeMutationEvents.BULK_INSERT);
+        nsm.shiftRLValues(this.type, destLeft, 0, getRight() - getLeft() + 1, newRoot);
+        nsm.insert(copies);
+        TreeEvents.commit(event, this.type, getRootValue(), newRoot, destLeft,
+                LongNodeInfo.rightOf(copies.get(0)), destLeft - getLeft(), copies.size());
+
+        Node<T> copyRoot = nsm.getNode(copies.get(0));
+        for (int i = 1; i < copies.size(); ++i) {
+            nsm.getNode(copies.get(i));
+        }
+        return copyRoot;
+    }
+
+    @Override
+    public void makeRoot(int newRootId) {
+        if (isRoot()) {
+            return;
+        }
+        if (mapping().getRootColumn() == null) {
+            throw new UnsupportedOperationException("Making a node a root requires a @RootColumn.");
+        }
+
+        long oldLft = getLeft();
+        long oldRgt = getRight();
+        int oldRoot = getRootValue();
+
+        relocate(oldLft, oldRgt, oldRoot, 1 - oldLft, -getLevel(), newRootId);
+
+        // Detach from old tree (close gap in old tree)
+        nsm.shiftRLValues(this.type, oldRgt + 1, 0, oldLft - oldRgt - 1, oldRoot);
+    }
+}
@@ -9,55 +9,158 @@
 
 package org.pkaboo.jpa.nestedset;
 
-import java.lang.reflect.Field;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.Stack;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import javax.inject.Inject;
-import javax.persistence.Entity;
 import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 import net.jcip.annotations.NotThreadSafe;
-import org.pkaboo.jpa.nestedset.annotations.LeftColumn;
-import org.pkaboo.jpa.nestedset.annotations.LevelColumn;
-import org.pkaboo.jpa.nestedset.annotations.RightColumn;
-import org.pkaboo.jpa.nestedset.annotations.RootColumn;
+import org.pkaboo.jpa.nestedset.jfr.TreeMutationEvents;
 
 /** The default implementation of a JPA {@link NestedSetManager}. */
 @NotThreadSafe
 public class JpaNestedSetManager implements NestedSetManager {
+    /** The maximum number of ranges deleted by a single statement of {@link #deleteAll}. */
+    private static final int MAX_DELETED_RANGES = 100;
+    /** The maximum number of nodes deleted by a single statement of {@link #sync}. */
+    private static final int MAX_DELETED_IDS = 1000;
+    /** The maximum number of runs of values that one renumbering statement moves. */
+    private static final int MAX_RENUMBERED_RUNS = 100;
+
     private final EntityManager em;
-    private final Map<Key, Node<?>> nodes;
+    private final NodeRegistry nodes;
     private final Map<Class<?>, Configuration> configs;
+    private NestedSetMetrics metrics = NestedSetMetrics.NONE;
+    private SlowOperationLog slowOperationLog;
+    private final List<TreeChangeListener> changeListeners = new ArrayList<TreeChangeListener>();
+    private List<TreeChange> changes = new ArrayList<TreeChange>();
+    private int operationDepth;
+    private TreeOperation operation;
+    private int statements;
 
     @Inject
     public JpaNestedSetManager(EntityManager em) {
+        this(em, RegistryPolicy.strong());
+    }
+
+    /**
+     * Creates a manager that keeps its nodes according to the given policy.
+     *
+     * @param em
+     * @param policy
+     */
+    public JpaNestedSetManager(EntityManager em, RegistryPolicy policy) {
         this.em = em;
-        this.nodes = new HashMap<Key, Node<?>>();
+        this.nodes = new NodeRegistry(policy);
         this.configs = new HashMap<Class<?>, Configuration>();
     }
 
     /**
-     * {@inheritDoc}
+     * Get the EntityManager used by this NestedSetManager.
+     *
+     * @return The EntityManager.
      */
-    @Override
     public EntityManager getEntityManager() {
         return this.em;
     }
 
+    /**
+     * Sets the metrics that receive the measurements of the operations of this
+     * manager and its nodes.
+     *
+     * @param metrics
+     */
+    public void setMetrics(NestedSetMetrics metrics) {
+        this.metrics = metrics != null ? metrics : NestedSetMetrics.NONE;
+    }
+
+    public NestedSetMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Sets the hints of the queries that read nodes of the given class, replacing
+     * those of its {@link org.pkaboo.jpa.nestedset.annotations.ReadHints} annotation.
+     *
+     * @param clazz
+     * @param hints The hints or <tt>null</tt> to set none.
+     */
+    public void setReadHints(Class<? extends NodeInfo> clazz, Map<String, ?> hints) {
+        getConfig(clazz).setReadHints(hints);
+    }
+
+    /**
+     * Sets the log that reports bulk updates exceeding its thresholds.
+     *
+     * @param slowOperationLog The log or <tt>null</tt> to disable it.
+     */
+    public void setSlowOperationLog(SlowOperationLog slowOperationLog) {
+        this.slowOperationLog = slowOperationLog;
+    }
+
+    public SlowOperationLog getSlowOperationLog() {
+        return this.slowOperationLog;
+    }
+
+    /**
+     * Adds a listener that receives the structural changes of the trees on
+     * {@link #publishChanges}. Changes are only recorded while there are listeners.
+     *
+     * @param listener
+     */
+    public void addTreeChangeListener(TreeChangeListener listener) {
+        this.changeListeners.add(listener);
+    }
+
+    public void removeTreeChangeListener(TreeChangeListener listener) {
+        this.changeListeners.remove(listener);
+        if (this.changeListeners.isEmpty()) {
+            this.changes.clear();
+        }
+    }
+
+    /**
+     * Passes the changes recorded since the previous call, or since
+     * {@link #discardChanges}, to the listeners. Call this after the transaction that
+     * made the changes has committed.
+     */
+    public void publishChanges() {
+        if (this.changes.isEmpty()) {
+            return;
+        }
+        List<TreeChange> published = Collections.unmodifiableList(this.changes);
+        this.changes = new ArrayList<TreeChange>();
+        for (TreeChangeListener listener : new ArrayList<TreeChangeListener>(this.changeListeners)) {
+            listener.treeChanged(published);
+        }
+    }
+
+    /**
+     * Drops the changes recorded since the previous publication. Call this after the
+     * transaction that made the changes has been rolled back.
+     */
+    public void discardChanges() {
+        this.changes.clear();
+    }
+
     /**
      * {@inheritDoc}
      */
-    // @Override
+    @Override
     public void clear() {
         this.nodes.clear();
     }
@@ -83,20 +186,541 @@ public class JpaNestedSetManager implements NestedSetManager {
      */
     @Override
     public <T extends NodeInfo> List<Node<T>> listNodes(Class<T> clazz, int rootId) {
+        long start = beginOperation(TreeOperation.LIST_NODES);
+        try {
+            Configuration config = getConfig(clazz);
+            CriteriaBuilder cb = em.getCriteriaBuilder();
+            CriteriaQuery<T> cq = cb.createQuery(clazz);
+            Root<T> queryRoot = cq.from(clazz);
+            cq.where(cb.ge(queryRoot.<Number>get(config.getLeftFieldName()), 1));
+            cq.orderBy(cb.asc(queryRoot.get(config.getLeftFieldName())));
+            applyRootId(clazz, cq, rootId);
+
+            List<Node<T>> nodes = new ArrayList<Node<T>>();
+            for (T n : getResultList(withReadHints(em.createQuery(cq), clazz))) {
+                nodes.add(getNode(n));
+            }
+
+            return nodes;
+        } finally {
+            endOperation(start);
+        }
+    }
+
+    /**
+     * Passes the nodes of a tree to an action in preorder, reading them page by page
+     * in the order of their left values (and IDs), so that large trees can be
+     * processed in constant memory. The nodes are not wrapped; those that are not
+     * managed {@link Node}s of this manager are detached from the entity manager once
+     * their page is processed.
+     *
+     * @param <T>
+     * @param clazz
+     * @param rootId The tree ID, ignored without a root column.
+     * @param pageSize The number of nodes read per query.
+     * @param action Receives each node.
+     */
+    public <T extends NodeInfo> void streamNodes(Class<T> clazz, int rootId, int pageSize,
+            Consumer<? super T> action) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be positive.");
+        }
+        long start = beginOperation(TreeOperation.STREAM_NODES);
+        try {
+            Configuration config = getConfig(clazz);
+            StringBuilder sb = new StringBuilder();
+            sb.append("select n from ").append(config.getEntityName()).append(" n")
+                    .append(" where (n.").append(config.getLeftFieldName()).append(" > ?1")
+                    .append(" or (n.").append(config.getLeftFieldName()).append(" = ?1")
+                    .append(" and n.").append(config.getIdFieldName()).append(" > ?2))");
+            if (config.hasManyRoots()) {
+                sb.append(" and n.").append(config.getRootIdFieldName()).append(" = ?3");
+            }
+            sb.append(" order by n.").append(config.getLeftFieldName())
+                    .append(", n.").append(config.getIdFieldName());
+
+            TypedQuery<T> q = withReadHints(em.createQuery(sb.toString(), clazz), clazz);
+            q.setMaxResults(pageSize);
+            if (config.hasManyRoots()) {
+                q.setParameter(3, rootId);
+            }
+            // Starts after (0, MAX_VALUE), i.e. with the left values from 1 as listed by listNodes
+            long lastLeft = 0;
+            int lastId = Integer.MAX_VALUE;
+            List<T> page;
+            do {
+                q.setParameter(1, config.toParameter(lastLeft));
+                q.setParameter(2, lastId);
+                page = getResultList(q);
+                for (T node : page) {
+                    action.accept(node);
+                    lastLeft = LongNodeInfo.leftOf(node);
+                    lastId = node.getId();
+                }
+                for (T node : page) {
+                    if (this.nodes.get(clazz, node.getId()) == null) {
+                        em.detach(node);
+                    }
+                }
+            } while (page.size() == pageSize);
+        } finally {
+            endOperation(start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Integer> listRootIds(Class<? extends NodeInfo> clazz) {
         Configuration config = getConfig(clazz);
-        CriteriaBuilder cb = em.getCriteriaBuilder();
-        CriteriaQuery<T> cq = cb.createQuery(clazz);
-        Root<T> queryRoot = cq.from(clazz);
-        cq.where(cb.ge(queryRoot.<Number>get(config.getLeftFieldName()), 1));
-        cq.orderBy(cb.asc(queryRoot.get(config.getLeftFieldName())));
-        applyRootId(clazz, cq, rootId);
+        if (!config.hasManyRoots()) {
+            return Collections.singletonList(0);
+        }
+        String rootIdFieldName = config.getRootIdFieldName();
+        return em.createQuery("select distinct n." + rootIdFieldName + " from " + config.getEntityName() + " n"
+                + " order by n." + rootIdFieldName, Integer.class).getResultList();
+    }
+
+    /**
+     * Renumbers the left and right values of a tree so that they are contiguous, or
+     * evenly spaced by the gap of sparsely numbered entities, keeping the order of the
+     * nodes by left value and the nesting given by their levels.
+     * Only the nodes whose values change are written, with a statement per run of
+     * values that move by the same delta, as by {@link #renumber}.
+     *
+     * @param <T>
+     * @param clazz
+     * @param rootId The tree ID.
+     * @return The number of nodes whose values were changed.
+     */
+    public <T extends NodeInfo> int rebuild(Class<T> clazz, int rootId) {
+        long start = beginOperation(TreeOperation.REBUILD);
+        try {
+            Configuration config = getConfig(clazz);
+            List<Node<T>> nodes = listNodes(clazz, rootId);
+            long[] lefts = new long[nodes.size()];
+            long[] rights = new long[nodes.size()];
+            Deque<Integer> open = new ArrayDeque<Integer>();
+            long step = config.isSparse() ? config.getGap() : 1;
+            long counter = 1 - step;
+            for (int i = 0; i < nodes.size(); ++i) {
+                while (!open.isEmpty() && nodes.get(open.peek()).getLevel() >= nodes.get(i).getLevel()) {
+                    rights[open.pop()] = counter += step;
+                }
+                lefts[i] = counter += step;
+                open.push(i);
+            }
+            while (!open.isEmpty()) {
+                rights[open.pop()] = counter += step;
+            }
+
+            long[] from = new long[2 * nodes.size()];
+            long[] to = new long[2 * nodes.size()];
+            int changed = 0;
+            for (int i = 0; i < nodes.size(); ++i) {
+                Node<T> node = nodes.get(i);
+                from[2 * i] = node.getLeft();
+                from[2 * i + 1] = node.getRight();
+                to[2 * i] = lefts[i];
+                to[2 * i + 1] = rights[i];
+                if (node.getLeft() != lefts[i] || node.getRight() != rights[i]) {
+                    ++changed;
+                }
+            }
+            if (changed > 0) {
+                renumber(clazz, rootId, from, to);
+                for (int i = 0; i < nodes.size(); ++i) {
+                    nodes.get(i).setLeft(lefts[i]);
+                    nodes.get(i).setRight(rights[i]);
+                }
+                treeChanged(TreeChange.Kind.REBUILT, clazz, 0, rootId, rootId, 0, 0, 0, 0, 0);
+            }
+
+            return changed;
+        } finally {
+            endOperation(start);
+        }
+    }
+
+    /**
+     * Replaces the left and right values of the nodes of a tree, given as pairs of the
+     * current and the new value, which must list every value of the tree. The values
+     * are written by runs of consecutive values that move by the same delta, with an
+     * update of at most {@link #MAX_RENUMBERED_RUNS} runs per statement, so the rows
+     * whose values stay are not written and the number of statements depends on the
+     * number of runs rather than of rows. When several statements are needed, the
+     * values are written negated, lest a later statement move them again, and are
+     * flipped by a final statement.
+     *
+     * @return The number of rows written.
+     */
+    private int renumber(Class<?> clazz, int rootId, long[] from, long[] to) {
+        Configuration cfg = getConfig(clazz);
+        String leftFieldName = cfg.getLeftFieldName();
+        String rightFieldName = cfg.getRightFieldName();
+        String rootIdFieldName = cfg.getRootIdFieldName();
+
+        // The runs of consecutive current values with the same nonzero delta
+        Integer[] order = new Integer[from.length];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(from[a], from[b]));
+        List<long[]> runs = new ArrayList<long[]>();
+        long[] run = null;
+        for (int i : order) {
+            long delta = to[i] - from[i];
+            if (delta == 0) {
+                run = null;
+            } else if (run != null && run[2] == delta) {
+                run[1] = from[i];
+            } else {
+                run = new long[] {from[i], from[i], delta};
+                runs.add(run);
+            }
+        }
+
+        boolean negated = runs.size() > MAX_RENUMBERED_RUNS;
+        int rows = 0;
+        for (int first = 0; first < runs.size(); first += MAX_RENUMBERED_RUNS) {
+            int last = Math.min(first + MAX_RENUMBERED_RUNS, runs.size());
+            StringBuilder sb = new StringBuilder();
+            sb.append("update ").append(cfg.getEntityName()).append(" n set");
+            int param = 1;
+            for (String field : new String[] {leftFieldName, rightFieldName}) {
+                sb.append(field.equals(leftFieldName) ? " n." : ", n.").append(field).append(" = case");
+                for (int i = first; i < last; ++i) {
+                    sb.append(" when n.").append(field).append(" between ?").append(param++)
+                            .append(" and ?").append(param++);
+                    if (negated) {
+                        sb.append(" then ?").append(param++).append(" - n.").append(field);
+                    } else {
+                        sb.append(" then n.").append(field).append(" + ?").append(param++);
+                    }
+                }
+                sb.append(" else n.").append(field).append(" end");
+            }
+            sb.append(" where (");
+            for (int i = first; i < last; ++i) {
+                for (String field : new String[] {leftFieldName, rightFieldName}) {
+                    sb.append(i > first || field.equals(rightFieldName) ? " or " : "")
+                            .append("n.").append(field).append(" between ?").append(param++)
+                            .append(" and ?").append(param++);
+                }
+            }
+            sb.append(")");
+            if (rootIdFieldName != null) {
+                sb.append(" and n.").append(rootIdFieldName).append(" = ?").append(param);
+            }
+
+            Query q = em.createQuery(sb.toString());
+            param = 1;
+            for (int pass = 0; pass < 2; ++pass) {
+                for (int i = first; i < last; ++i) {
+                    long[] r = runs.get(i);
+                    q.setParameter(param++, cfg.toParameter(r[0]));
+                    q.setParameter(param++, cfg.toParameter(r[1]));
+                    q.setParameter(param++, cfg.toParameter(negated ? -r[2] : r[2]));
+                }
+            }
+            for (int i = first; i < last; ++i) {
+                long[] r = runs.get(i);
+                for (int pass = 0; pass < 2; ++pass) {
+                    q.setParameter(param++, cfg.toParameter(r[0]));
+                    q.setParameter(param++, cfg.toParameter(r[1]));
+                }
+            }
+            if (rootIdFieldName != null) {
+                q.setParameter(param, rootId);
+            }
+            rows += executeUpdate(q);
+        }
+
+        if (negated) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("update ").append(cfg.getEntityName()).append(" n set");
+            for (String field : new String[] {leftFieldName, rightFieldName}) {
+                sb.append(field.equals(leftFieldName) ? " n." : ", n.").append(field)
+                        .append(" = case when n.").append(field).append(" < 0 then 0 - n.").append(field)
+                        .append(" else n.").append(field).append(" end");
+            }
+            sb.append(" where (n.").append(leftFieldName).append(" < 0 or n.").append(rightFieldName).append(" < 0)");
+            if (rootIdFieldName != null) {
+                sb.append(" and n.").append(rootIdFieldName).append(" = ?1");
+            }
+            Query q = em.createQuery(sb.toString());
+            if (rootIdFieldName != null) {
+                q.setParameter(1, rootId);
+            }
+            executeUpdate(q);
+        }
+        rowsShifted(rows);
+
+        return rows;
+    }
+
+    /**
+     * Compares the tree 'rootId' with an incoming version of it, matching the nodes of
+     * both by a key, without changing anything. Runs in linear time over both trees,
+     * apart from ordering the children whose order changes.
+     *
+     * @param <T>
+     * @param <K>
+     * @param clazz
+     * @param rootId The tree ID.
+     * @param incoming The incoming nodes in preorder with their levels, the root at level 0,
+     *        e.g. as ordered by {@link TreeDiff#preorder}. Without a root column, the
+     *        incoming nodes may form several trees.
+     * @param key The key by which stored and incoming nodes are matched.
+     * @return The differences.
+     */
+    public <T extends NodeInfo, K> TreeDiff<T> diff(Class<T> clazz, int rootId, List<T> incoming,
+            Function<? super T, ? extends K> key) {
+        long start = beginOperation(TreeOperation.DIFF);
+        try {
+            Configuration config = getConfig(clazz);
+            return TreeDiff.of(rootId, listNodes(clazz, rootId), incoming, key, config,
+                    config.getRootIdFieldName() == null);
+        } finally {
+            endOperation(start);
+        }
+    }
+
+    /**
+     * Brings the tree 'rootId' in line with an incoming version of it, as computed by
+     * {@link #diff}: deletes the stored nodes without an incoming counterpart, persists
+     * the incoming nodes without a stored counterpart and writes the numbering of the
+     * incoming tree to the stored nodes whose values change, by runs of values that
+     * move by the same delta.
+     * Unchanged rows are not written, and the other attributes of the stored nodes are
+     * left as they are.
+     *
+     * @param <T>
+     * @param <K>
+     * @param clazz
+     * @param rootId The tree ID.
+     * @param incoming The incoming nodes in preorder with their levels, the root at level 0.
+     * @param key The key by which stored and incoming nodes are matched.
+     * @return The applied differences.
+     */
+    public <T extends NodeInfo, K> TreeDiff<T> sync(Class<T> clazz, int rootId, List<T> incoming,
+            Function<? super T, ? extends K> key) {
+        long start = beginOperation(TreeOperation.SYNC);
+        try {
+            TreeDiff<T> diff = diff(clazz, rootId, incoming, key);
+            if (diff.isEmpty()) {
+                return diff;
+            }
+            deleteNodes(clazz, diff.getDeleted());
+            apply(clazz, rootId, diff, incoming);
+            treeChanged(TreeChange.Kind.REBUILT, clazz, 0, rootId, rootId, 0, 0, 0, 0, 0);
+
+            return diff;
+        } finally {
+            endOperation(start);
+        }
+    }
 
-        List<Node<T>> nodes = new ArrayList<Node<T>>();
-        for (T n : em.createQuery(cq).getResultList()) {
-            nodes.add(getNode(n));
+    /**
+     * Imports a tree, e.g. as read by a {@link BinaryTreeReader}, as the tree 'rootId'.
+     * The numbering is computed from the levels of the nodes in one pass, as by
+     * {@link #sync}, and the nodes are persisted with their final values, so no values
+     * are shifted while the tree is built.
+     *
+     * @param <T>
+     * @param clazz
+     * @param rootId The tree ID.
+     * @param nodes The new nodes in preorder with their levels, the root at level 0.
+     *        Without a root column, the nodes may form several trees.
+     * @throws IllegalStateException If the tree 'rootId' already has nodes; use
+     *         {@link #sync} to merge a tree into a stored one.
+     */
+    public <T extends NodeInfo> void importTree(Class<T> clazz, int rootId, List<T> nodes) {
+        long start = beginOperation(TreeOperation.IMPORT_TREE);
+        try {
+            Configuration config = getConfig(clazz);
+            StringBuilder sb = new StringBuilder();
+            sb.append("select count(n) from ").append(config.getEntityName()).append(" n");
+            if (config.hasManyRoots()) {
+                sb.append(" where n.").append(config.getRootIdFieldName()).append(" = ?1");
+            }
+            TypedQuery<Long> q = em.createQuery(sb.toString(), Long.class);
+            if (config.hasManyRoots()) {
+                q.setParameter(1, rootId);
+            }
+            if (getSingleResult(q) > 0) {
+                throw new IllegalStateException("The tree " + rootId + " of " + config.getEntityName()
+                        + " is not empty.");
+            }
+            if (nodes.isEmpty()) {
+                return;
+            }
+
+            List<Node<T>> stored = Collections.emptyList();
+            apply(clazz, rootId, TreeDiff.of(rootId, stored, nodes, Function.identity(), config,
+                    config.getRootIdFieldName() == null), nodes);
+            treeChanged(TreeChange.Kind.REBUILT, clazz, 0, rootId, rootId, 0, 0, 0, 0, 0);
+        } finally {
+            endOperation(start);
+        }
+    }
+
+    /**
+     * Persists the inserted nodes of a diff and writes the numbering of the incoming
+     * tree to the stored nodes whose values change: the left and right values by runs,
+     * as by {@link #renumber}, and the levels, paths and parents with a statement per
+     * node whose values of these change.
+     */
+    private <T extends NodeInfo> void apply(Class<T> clazz, int rootId, TreeDiff<T> diff, List<T> incoming) {
+        Configuration cfg = getConfig(clazz);
+        long[] from = new long[2 * diff.targets.size()];
+        long[] to = new long[2 * diff.targets.size()];
+        int stored = 0;
+        for (int i = 0; i < diff.targets.size(); ++i) {
+            if (!diff.inserted[i]) {
+                T node = diff.targets.get(i);
+                from[stored] = LongNodeInfo.leftOf(node);
+                to[stored++] = diff.lefts[i];
+                from[stored] = LongNodeInfo.rightOf(node);
+                to[stored++] = diff.rights[i];
+                LongNodeInfo.setLeftOf(node, diff.lefts[i]);
+                LongNodeInfo.setRightOf(node, diff.rights[i]);
+            }
+        }
+        // Before the inserted nodes, which have their final values already
+        renumber(clazz, rootId, Arrays.copyOf(from, stored), Arrays.copyOf(to, stored));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(cfg.getEntityName()).append(" n")
+                .append(" set n.").append(cfg.getLevelFieldName()).append(" = ?1");
+        if (cfg.getPathFieldName() != null) {
+            sb.append(", n.").append(cfg.getPathFieldName()).append(" = ?3");
+        }
+        String where = " where n." + cfg.getIdFieldName() + " = ?2";
+        Query q = em.createQuery(sb + where);
+        Query reparent = null;
+        Query unparent = null;
+        if (cfg.getParentIdFieldName() != null) {
+            reparent = em.createQuery(sb + ", n." + cfg.getParentIdFieldName() + " = ?4" + where);
+            unparent = em.createQuery(sb + ", n." + cfg.getParentIdFieldName() + " = null" + where);
+        }
+
+        // In preorder, the parent of a node is in its final place before the node
+        for (int i = 0; i < diff.targets.size(); ++i) {
+            T node = diff.targets.get(i);
+            int level = incoming.get(i).getLevel();
+            int p = diff.parents[i];
+            Integer parentId = p < 0 ? null : diff.targets.get(p).getId();
+            String parentPath = cfg.getPathFieldName() == null ? null
+                    : p < 0 ? "" : cfg.getPath(diff.targets.get(p));
+            if (diff.inserted[i]) {
+                LongNodeInfo.setLeftOf(node, diff.lefts[i]);
+                LongNodeInfo.setRightOf(node, diff.rights[i]);
+                node.setLevel(level);
+                node.setRootValue(rootId);
+                persistNode(node, parentId, parentPath);
+                continue;
+            }
+
+            String path = parentPath != null ? MaterializedPath.child(parentPath, node.getId()) : null;
+            boolean reparented = diff.reparented[i];
+            if (!reparented && node.getLevel() == level && (path == null || path.equals(cfg.getPath(node)))) {
+                continue;
+            }
+            Integer parentValue = reparent != null ? cfg.toParentIdParameter(parentId) : null;
+            Query update = !reparented || reparent == null ? q : parentValue != null ? reparent : unparent;
+            update.setParameter(1, level);
+            update.setParameter(2, node.getId());
+            if (path != null) {
+                update.setParameter(3, path);
+            }
+            if (update == reparent) {
+                update.setParameter(4, parentValue);
+            }
+            executeUpdate(update);
+
+            node.setLevel(level);
+            if (path != null) {
+                cfg.setPath(node, path);
+            }
+            if (reparented && cfg.getParentIdFieldName() != null) {
+                cfg.setParentId(node, parentId);
+            }
+            if (reparented && cfg.getClosureIndex() != null) {
+                cfg.getClosureIndex().move(this, node.getId(), parentId);
+            }
+        }
+    }
+
+    /**
+     * Deletes the given nodes, but not their descendants, and removes them from the
+     * registry.
+     */
+    private void deleteNodes(Class<?> clazz, List<? extends NodeInfo> deleted) {
+        Configuration cfg = getConfig(clazz);
+        List<Integer> ids = new ArrayList<Integer>();
+        for (NodeInfo node : deleted) {
+            ids.add(node.getId());
+        }
+        for (int from = 0; from < ids.size(); from += MAX_DELETED_IDS) {
+            List<Integer> chunk = ids.subList(from, Math.min(from + MAX_DELETED_IDS, ids.size()));
+            if (cfg.getClosureIndex() != null) {
+                cfg.getClosureIndex().deleteNodes(this, chunk);
+            }
+            Query q = em.createQuery("delete from " + cfg.getEntityName() + " n"
+                    + " where n." + cfg.getIdFieldName() + " in ?1");
+            q.setParameter(1, chunk);
+            executeUpdate(q);
+        }
+        for (NodeInfo node : deleted) {
+            this.nodes.remove(node);
+            this.em.detach(node);
+            LongNodeInfo.setLeftOf(node, 0);
+            LongNodeInfo.setRightOf(node, 0);
+            node.setLevel(0);
+            node.setRootValue(0);
         }
+    }
+
+    /**
+     * Tells whether the node 'id' is a descendant of the node 'ancestorId' without loading
+     * the nodes. With a {@link org.pkaboo.jpa.nestedset.annotations.ClosureTable} this is
+     * a lookup of a single closure row, otherwise the intervals of both nodes are compared.
+     *
+     * @param <T>
+     * @param clazz
+     * @param id The ID of the presumed descendant.
+     * @param ancestorId The ID of the presumed ancestor.
+     * @return Whether the node is a descendant of the other node.
+     */
+    public <T extends NodeInfo> boolean isDescendantOf(Class<T> clazz, int id, int ancestorId) {
+        long start = beginOperation(TreeOperation.IS_DESCENDANT);
+        try {
+            Configuration config = getConfig(clazz);
+            if (config.getClosureIndex() != null) {
+                return config.getClosureIndex().isDescendant(this, id, ancestorId);
+            }
 
-        return nodes;
+            StringBuilder sb = new StringBuilder();
+            sb.append("select count(n) from ").append(config.getEntityName()).append(" n, ")
+                    .append(config.getEntityName()).append(" a")
+                    .append(" where n.").append(config.getIdFieldName()).append(" = ?1")
+                    .append(" and a.").append(config.getIdFieldName()).append(" = ?2")
+                    .append(" and n.").append(config.getLeftFieldName()).append(" > a.").append(config.getLeftFieldName())
+                    .append(" and n.").append(config.getRightFieldName()).append(" < a.").append(config.getRightFieldName());
+            if (config.getRootIdFieldName() != null) {
+                sb.append(" and n.").append(config.getRootIdFieldName())
+                        .append(" = a.").append(config.getRootIdFieldName());
+            }
+
+            TypedQuery<Long> q = em.createQuery(sb.toString(), Long.class);
+            q.setParameter(1, id);
+            q.setParameter(2, ancestorId);
+            return getSingleResult(q) > 0;
+        } finally {
+            endOperation(start);
+        }
     }
 
     /**
@@ -104,24 +728,165 @@ public class JpaNestedSetManager implements NestedSetManager {
      */
     @Override
     public <T extends NodeInfo> Node<T> createRoot(T root) {
-        if (root.getLeftValue() < root.getRightValue()) {
+        if (LongNodeInfo.leftOf(root) < LongNodeInfo.rightOf(root)) {
             throw new IllegalArgumentException("The node already has a position in a tree.");
         }
 
-        Configuration config = getConfig(root.getClass());
+        long start = beginOperation(TreeOperation.CREATE_ROOT);
+        try {
+            Configuration config = getConfig(root.getClass());
 
-        int maximumRight;
-        if (config.hasManyRoots()) {
-            maximumRight = 0;
-        } else {
-            maximumRight = getMaximumRight(root.getClass());
+            long maximumRight;
+            if (config.hasManyRoots()) {
+                maximumRight = 0;
+            } else {
+                maximumRight = getMaximumRight(root.getClass());
+            }
+            LongNodeInfo.setLeftOf(root, maximumRight + 1);
+            LongNodeInfo.setRightOf(root, maximumRight + (config.isSparse() ? config.getRootWidth() : 2));
+            root.setLevel(0);
+            persistNode(root, null, "");
+            treeChanged(TreeChange.Kind.ROOT_CREATED, root.getClass(), root.getId(), root.getRootValue(),
+                    root.getRootValue(), LongNodeInfo.leftOf(root), LongNodeInfo.rightOf(root), 0, 0, 0);
+
+            return getNode(root);
+        } finally {
+            endOperation(start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T extends NodeInfo> void deleteAll(Collection<Node<T>> nodes) {
+        if (nodes.isEmpty()) {
+            return;
+        }
+
+        long start = beginOperation(TreeOperation.DELETE_ALL);
+        try {
+            for (Node<T> node : nodes) {
+                revalidate(node);
+            }
+            Class<?> clazz = nodes.iterator().next().unwrap().getClass();
+            ClosureIndex closure = getConfig(clazz).getClosureIndex();
+            if (closure != null) {
+                List<Integer> ids = new ArrayList<Integer>();
+                for (Node<T> node : nodes) {
+                    ids.add(node.getId());
+                }
+                closure.delete(this, ids);
+            }
+            for (Map.Entry<Integer, DeletedRanges> tree : DeletedRanges.of(nodes).entrySet()) {
+                deleteRanges(clazz, tree.getKey(), tree.getValue());
+            }
+        } finally {
+            endOperation(start);
+        }
+    }
+
+    /**
+     * Deletes the ranges of a tree, in statements of at most {@link #MAX_DELETED_RANGES}
+     * ranges, and closes the gaps with a single update that moves every value by the
+     * size of the ranges below it. Sparsely numbered trees keep the gaps.
+     */
+    private void deleteRanges(Class<?> clazz, int rootId, DeletedRanges ranges) {
+        Object event = TreeEvents.begin(TreeMutationEvents.DELETE);
+        Configuration cfg = getConfig(clazz);
+        String leftFieldName = cfg.getLeftFieldName();
+        String rightFieldName = cfg.getRightFieldName();
+        String rootIdFieldName = cfg.getRootIdFieldName();
+
+        int rows = 0;
+        for (int from = 0; from < ranges.size(); from += MAX_DELETED_RANGES) {
+            int to = Math.min(from + MAX_DELETED_RANGES, ranges.size());
+            StringBuilder sb = new StringBuilder();
+            sb.append("delete from ").append(cfg.getEntityName()).append(" n where (");
+            int param = 1;
+            for (int i = from; i < to; ++i) {
+                sb.append(i > from ? " or " : "")
+                        .append("(n.").append(leftFieldName).append(" >= ?").append(param++)
+                        .append(" and n.").append(rightFieldName).append(" <= ?").append(param++).append(")");
+            }
+            sb.append(")");
+            if (rootIdFieldName != null) {
+                sb.append(" and n.").append(rootIdFieldName).append(" = ?").append(param);
+            }
+
+            Query q = em.createQuery(sb.toString());
+            param = 1;
+            for (int i = from; i < to; ++i) {
+                q.setParameter(param++, cfg.toParameter(ranges.lefts[i]));
+                q.setParameter(param++, cfg.toParameter(ranges.rights[i]));
+            }
+            if (rootIdFieldName != null) {
+                q.setParameter(param, rootId);
+            }
+            rows += executeUpdate(q);
+        }
+        for (int i = 0; i < ranges.size(); ++i) {
+            treeChanged(TreeChange.Kind.DELETED, clazz, 0, rootId, rootId, ranges.lefts[i], ranges.rights[i], 0, 0, 0);
+        }
+
+        if (cfg.isSparse()) {
+            for (int i = 0; i < ranges.size(); ++i) {
+                removeNodes(ranges.lefts[i], ranges.rights[i], rootId);
+            }
+            TreeEvents.commit(event, clazz, rootId, rootId, ranges.lefts[0], ranges.rights[ranges.size() - 1],
+                    0, rows);
+            return;
+        }
+
+        // Close all gaps, matching the highest range first
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(cfg.getEntityName()).append(" n set");
+        int param = 1;
+        for (String field : new String[] {leftFieldName, rightFieldName}) {
+            sb.append(field.equals(leftFieldName) ? " n." : ", n.").append(field).append(" = case");
+            for (int i = ranges.size() - 1; i >= 0; --i) {
+                sb.append(" when n.").append(field).append(" > ?").append(param++)
+                        .append(" then n.").append(field).append(" - ?").append(param++);
+            }
+            sb.append(" else n.").append(field).append(" end");
+        }
+        sb.append(" where n.").append(rightFieldName).append(" > ?").append(param++);
+        if (rootIdFieldName != null) {
+            sb.append(" and n.").append(rootIdFieldName).append(" = ?").append(param);
+        }
+
+        Query q = em.createQuery(sb.toString());
+        param = 1;
+        for (int pass = 0; pass < 2; ++pass) {
+            for (int i = ranges.size() - 1; i >= 0; --i) {
+                q.setParameter(param++, cfg.toParameter(ranges.rights[i]));
+                q.setParameter(param++, cfg.toParameter(ranges.removed[i]));
+            }
+        }
+        q.setParameter(param++, cfg.toParameter(ranges.rights[0]));
+        if (rootIdFieldName != null) {
+            q.setParameter(param, rootId);
+        }
+
+        long removed = ranges.removed[ranges.size() - 1];
+        long started = bulkUpdateStarted();
+        int shifted = executeUpdate(q);
+        bulkUpdateCompleted(started, SlowOperationLog.Statement.SHIFT, clazz, rootId,
+                ranges.rights[0] + 1, 0, -removed, shifted);
+        rowsShifted(shifted);
+        for (int i = ranges.size() - 1; i >= 0; --i) {
+            treeChanged(TreeChange.Kind.SHIFTED, clazz, 0, rootId, rootId, ranges.rights[i] + 1, 0,
+                    ranges.lefts[i] - ranges.rights[i] - 1, 0, 0);
+        }
+
+        long syncStart = System.nanoTime();
+        for (Node<?> n : this.nodes.removeRanges(ranges, rootId)) {
+            this.em.detach(n.unwrap());
         }
-        root.setLeftValue(maximumRight + 1);
-        root.setRightValue(maximumRight + 2);
-        root.setLevel(0);
-        em.persist(root);
+        this.metrics.registrySynced(System.nanoTime() - syncStart, this.nodes.size());
 
-        return getNode(root);
+        TreeEvents.commit(event, clazz, rootId, rootId, ranges.lefts[0], ranges.rights[ranges.size() - 1],
+                -removed, rows);
     }
 
     /**
@@ -129,63 +894,238 @@ public class JpaNestedSetManager implements NestedSetManager {
      */
     @Override
     public <T extends NodeInfo> Node<T> getNode(T nodeInfo) {
-        Key key = new Key(nodeInfo.getClass(), nodeInfo.getId());
-        if (this.nodes.containsKey(key)) {
-            @SuppressWarnings("unchecked")
-            Node<T> n = (Node<T>) this.nodes.get(key);
+        @SuppressWarnings("unchecked")
+        Node<T> n = (Node<T>) this.nodes.get(nodeInfo.getClass(), nodeInfo.getId());
+        if (n != null) {
             return n;
         }
-        Node<T> node = new JpaNode<T>(nodeInfo, this);
-        if (!node.isValid()) {
+        refreshIfStale(nodeInfo);
+        if (LongNodeInfo.rightOf(nodeInfo) <= LongNodeInfo.leftOf(nodeInfo)) {
             throw new IllegalArgumentException("The given NodeInfo instance has no position " +
                     "in a tree and is thus not yet a node.");
         }
-        this.nodes.put(key, node);
+        Node<T> node = new JpaNode<T>(nodeInfo, this);
+        this.nodes.put(node);
 
         return node;
     }
 
-    Configuration getConfig(Class<?> clazz) {
-        if (!this.configs.containsKey(clazz)) {
-            Configuration config = new Configuration();
-
-            Entity entity = clazz.getAnnotation(Entity.class);
-        	String name = entity.name();
-        	config.setEntityName((name != null && name.length() > 0) ? name : clazz.getSimpleName());
+    /**
+     * Puts a node that left the registry back into it before it is used, refreshing
+     * its values first if it missed an update in the meantime.
+     */
+    void revalidate(Node<?> node) {
+        if (!this.nodes.evicts()) {
+            return;
+        }
+        NodeInfo entity = node.unwrap();
+        Node<?> registered = this.nodes.get(entity.getClass(), entity.getId());
+        if (registered != null && registered.unwrap() == entity) {
+            return;
+        }
+        if (refreshIfStale(entity) && registered == null && node.isValid()) {
+            this.nodes.put(node);
+        }
+    }
 
-            for (Field field : clazz.getDeclaredFields()) {
-                if (field.getAnnotation(LeftColumn.class) != null) {
-                    config.setLeftFieldName(field.getName());
-                }
-                else if (field.getAnnotation(RightColumn.class) != null) {
-                    config.setRightFieldName(field.getName());
-                }
-                else if (field.getAnnotation(LevelColumn.class) != null) {
-                    config.setLevelFieldName(field.getName());
-                }
-                else if (field.getAnnotation(RootColumn.class) != null) {
-                    config.setRootIdFieldName(field.getName());
-                }
-            }
+    /**
+     * Reloads the tree values of an entity that missed an update after it left the
+     * registry. A deleted entity is detached and its values are reset.
+     *
+     * @return Whether the entity still exists.
+     */
+    private boolean refreshIfStale(NodeInfo entity) {
+        if (!this.nodes.isStale(entity)) {
+            return true;
+        }
+        Configuration cfg = getConfig(entity.getClass());
+        StringBuilder jpql = new StringBuilder("select n.").append(cfg.getLeftFieldName())
+                .append(", n.").append(cfg.getRightFieldName())
+                .append(", n.").append(cfg.getLevelFieldName());
+        if (cfg.getRootIdFieldName() != null) {
+            jpql.append(", n.").append(cfg.getRootIdFieldName());
+        }
+        if (cfg.getPathFieldName() != null) {
+            jpql.append(", n.").append(cfg.getPathFieldName());
+        }
+        jpql.append(" from ").append(cfg.getEntityName()).append(" n where n.")
+                .append(cfg.getIdFieldName()).append(" = ?1");
+        List<Object[]> rows = getResultList(this.em.createQuery(jpql.toString(), Object[].class)
+                .setParameter(1, entity.getId()));
+        if (rows.isEmpty()) {
+            this.em.detach(entity);
+            LongNodeInfo.setLeftOf(entity, 0);
+            LongNodeInfo.setRightOf(entity, 0);
+            entity.setLevel(0);
+            entity.setRootValue(0);
+            return false;
+        }
+        Object[] row = rows.get(0);
+        LongNodeInfo.setLeftOf(entity, ((Number) row[0]).longValue());
+        LongNodeInfo.setRightOf(entity, ((Number) row[1]).longValue());
+        entity.setLevel(((Number) row[2]).intValue());
+        int i = 3;
+        if (cfg.getRootIdFieldName() != null) {
+            entity.setRootValue(((Number) row[i++]).intValue());
+        }
+        if (cfg.getPathFieldName() != null) {
+            cfg.setPath(entity, (String) row[i]);
+        }
+        return true;
+    }
 
+    Configuration getConfig(Class<?> clazz) {
+        Configuration config = this.configs.get(clazz);
+        if (config == null) {
+            config = Configuration.forClass(clazz);
             this.configs.put(clazz, config);
         }
 
-        return this.configs.get(clazz);
+        return config;
     }
 
-    private int getMaximumRight(Class<? extends NodeInfo> clazz) {
+    private long getMaximumRight(Class<? extends NodeInfo> clazz) {
     	Configuration config = getConfig(clazz);
     	CriteriaBuilder cb = em.getCriteriaBuilder();
     	CriteriaQuery<? extends NodeInfo> cq = cb.createQuery(clazz);
         Root<? extends NodeInfo> queryRoot = cq.from(clazz);
         cq.orderBy(cb.desc(queryRoot.get(config.getRightFieldName())));
-        List<? extends NodeInfo>highestRows = em.createQuery(cq).setMaxResults(1).getResultList();
+        List<? extends NodeInfo>highestRows = getResultList(em.createQuery(cq).setMaxResults(1));
         if (highestRows.isEmpty()) {
         	return 0;
         } else {
-        	return highestRows.get(0).getRightValue();
+        	return LongNodeInfo.rightOf(highestRows.get(0));
+        }
+    }
+
+    /**
+     * Persists a new node below the node 'parentId', <tt>null</tt> for roots, and records
+     * its parent in the parent column, closure table and path column of its class.
+     *
+     * @param parentPath The materialized path of the parent, the empty string for roots.
+     */
+    void persistNode(NodeInfo node, Integer parentId, String parentPath) {
+        persistNodes(Collections.singletonList(node), new int[] {-1}, parentId, parentPath);
+    }
+
+    /**
+     * Persists new nodes like {@link #persistNode}, but in one pass: IDs generated on
+     * insert are fetched by a single flush, and the closure rows of all nodes are
+     * derived from one read of the ancestors of 'parentId'.
+     *
+     * @param nodes The new nodes in preorder, all of one class.
+     * @param parents The index of the parent of each node in 'nodes', -1 for the nodes
+     *        directly below 'parentId'.
+     * @param parentId The parent of the topmost nodes, <tt>null</tt> for roots.
+     * @param parentPath The materialized path of that parent, the empty string for roots.
+     */
+    void persistNodes(List<? extends NodeInfo> nodes, int[] parents, Integer parentId, String parentPath) {
+        if (nodes.isEmpty()) {
+            return;
+        }
+        Configuration config = getConfig(nodes.get(0).getClass());
+        boolean pending = false;
+        for (int i = 0; i < nodes.size(); ++i) {
+            NodeInfo node = nodes.get(i);
+            NodeInfo parent = parents[i] < 0 ? null : nodes.get(parents[i]);
+            if (config.getParentIdFieldName() != null && (parent == null || parent.getId() != 0)) {
+                config.setParentId(node, parent == null ? parentId : Integer.valueOf(parent.getId()));
+            }
+            em.persist(node);
+            if (node.getId() == 0) {
+                pending = true;
+            } else if (config.getPathFieldName() != null && (parent == null || parent.getId() != 0)) {
+                config.setPath(node, MaterializedPath.child(parent == null ? parentPath : config.getPath(parent),
+                        node.getId()));
+            }
+        }
+        if (pending && config.tracksParents()) {
+            em.flush(); // IDs generated on insert
+            completeInserted(config, nodes, parents, parentId, parentPath);
+        }
+        if (config.getClosureIndex() != null) {
+            config.getClosureIndex().insert(this, nodes, parents, parentId);
+        }
+    }
+
+    /**
+     * Writes the parent IDs and paths that were unknown when the nodes were persisted,
+     * since the IDs they depend on were only generated on insert.
+     */
+    private void completeInserted(Configuration config, List<? extends NodeInfo> nodes, int[] parents,
+            Integer parentId, String parentPath) {
+        Query path = config.getPathFieldName() == null ? null : em.createQuery("update " + config.getEntityName() + " n"
+                + " set n." + config.getPathFieldName() + " = ?1 where n." + config.getIdFieldName() + " = ?2");
+        Query parent = config.getParentIdFieldName() == null ? null : em.createQuery("update " + config.getEntityName() + " n"
+                + " set n." + config.getParentIdFieldName() + " = ?1 where n." + config.getIdFieldName() + " in ?2");
+        // The children whose parent ID was unknown, by parent
+        Map<Integer, List<Integer>> children = new HashMap<Integer, List<Integer>>();
+        for (int i = 0; i < nodes.size(); ++i) {
+            NodeInfo node = nodes.get(i);
+            NodeInfo p = parents[i] < 0 ? null : nodes.get(parents[i]);
+            if (parent != null && p != null && !Integer.valueOf(p.getId()).equals(config.getParentId(node))) {
+                config.setParentId(node, p.getId());
+                List<Integer> ids = children.get(p.getId());
+                if (ids == null) {
+                    ids = new ArrayList<Integer>();
+                    children.put(p.getId(), ids);
+                }
+                ids.add(node.getId());
+            }
+            if (path != null) {
+                String value = MaterializedPath.child(p == null ? parentPath : config.getPath(p), node.getId());
+                if (!value.equals(config.getPath(node))) {
+                    config.setPath(node, value);
+                    path.setParameter(1, value);
+                    path.setParameter(2, node.getId());
+                    executeUpdate(path);
+                }
+            }
+        }
+        for (Map.Entry<Integer, List<Integer>> entry : children.entrySet()) {
+            parent.setParameter(1, config.toParentIdParameter(entry.getKey()));
+            parent.setParameter(2, entry.getValue());
+            executeUpdate(parent);
+        }
+    }
+
+    /**
+     * Creates a predicate for a criteria query over 'root' that selects the descendants
+     * of 'ancestor', to combine with other restrictions. With a
+     * {@link org.pkaboo.jpa.nestedset.annotations.PathColumn} this is a prefix match on
+     * the path column that an index on it can serve, otherwise the intervals are compared.
+     *
+     * @param <T>
+     * @param root The root of the query, of the class of 'ancestor'.
+     * @param ancestor
+     * @return The predicate.
+     */
+    public <T extends NodeInfo> Predicate descendantsOf(Root<T> root, Node<T> ancestor) {
+        Configuration config = getConfig(ancestor.unwrap().getClass());
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        if (config.getPathFieldName() != null) {
+            // '_' requires at least one more character, which excludes the ancestor itself
+            return cb.like(root.<String>get(config.getPathFieldName()), config.getPath(ancestor.unwrap()) + "_%");
+        }
+
+        Predicate p = cb.and(
+                cb.gt(root.<Number>get(config.getLeftFieldName()), config.toParameter(ancestor.getLeft())),
+                cb.lt(root.<Number>get(config.getRightFieldName()), config.toParameter(ancestor.getRight())));
+        if (config.getRootIdFieldName() != null) {
+            p = cb.and(p, cb.equal(root.get(config.getRootIdFieldName()), ancestor.getRootValue()));
+        }
+        return p;
+    }
+
+    /**
+     * @return The entities of the given nodes, in the same order.
+     */
+    static <T extends NodeInfo> List<T> unwrap(List<Node<T>> nodes) {
+        List<T> result = new ArrayList<T>(nodes.size());
+        for (Node<T> n : nodes) {
+            result.add(n.unwrap());
         }
+        return result;
     }
 
     void applyRootId(Class<?> clazz, CriteriaQuery<?> cq, int rootId) {
@@ -198,52 +1138,142 @@ public class JpaNestedSetManager implements NestedSetManager {
         }
     }
 
-    void updateLeftValues(int minLeft, int maxLeft, int delta, int rootId) {
-        for (Node<?> node : this.nodes.values()) {
-            if (node.getRootValue() == rootId) {
-                if (node.getLeftValue() >= minLeft && (maxLeft == 0 || node.getLeftValue() <= maxLeft)) {
-                    node.setLeftValue(node.getLeftValue() + delta);
-                }
-            }
+    /**
+     * Marks the beginning of an operation. Operations that begin within another
+     * operation are accounted to the outermost one.
+     *
+     * @return The start time to pass to {@link #endOperation}.
+     */
+    long beginOperation(TreeOperation op) {
+        if (this.operationDepth++ == 0) {
+            this.operation = op;
+            this.statements = 0;
+            return System.nanoTime();
         }
+        return 0;
     }
 
-    void updateRightValues(int minRight, int maxRight, int delta, int rootId) {
-        for (Node<?> node : this.nodes.values()) {
-            if (node.getRootValue() == rootId) {
-                if (node.getRightValue() >= minRight && (maxRight == 0 || node.getRightValue() <= maxRight)) {
-                    node.setRightValue(node.getRightValue() + delta);
-                }
-            }
+    void endOperation(long start) {
+        if (--this.operationDepth == 0) {
+            TreeOperation op = this.operation;
+            this.operation = null;
+            this.metrics.operationCompleted(op, System.nanoTime() - start, this.statements);
         }
     }
 
-    void updateLevels(int left, int right, int delta, int rootId) {
-        for (Node<?> node : this.nodes.values()) {
-            if (node.getRootValue() == rootId) {
-                if (node.getLeftValue() > left && node.getRightValue() < right) {
-                    node.setLevel(node.getLevel() + delta);
-                }
-            }
+    /**
+     * Sets the read hints of the given class on a query that reads nodes.
+     */
+    <X> TypedQuery<X> withReadHints(TypedQuery<X> q, Class<?> clazz) {
+        for (Map.Entry<String, Object> hint : getReadHints(clazz).entrySet()) {
+            q.setHint(hint.getKey(), hint.getValue());
         }
+        return q;
     }
 
-    void removeNodes(int left, int right, int rootId) {
-        Set<Key> removed = new HashSet<Key>();
-        for (Node<?> node : this.nodes.values()) {
-            if (node.getRootValue() == rootId) {
-                if (node.getLeftValue() >= left && node.getRightValue() <= right) {
-                    removed.add(new Key(node.unwrap().getClass(), node.getId()));
-                }
-            }
+    /**
+     * @return The read hints of the given class, or none for the reads of an operation
+     *         that changes the tree, whose nodes must stay managed.
+     */
+    Map<String, Object> getReadHints(Class<?> clazz) {
+        if (this.operation != null && !this.operation.isRead()) {
+            return Collections.emptyMap();
+        }
+        return getConfig(clazz).getReadHints();
+    }
+
+    int executeUpdate(Query q) {
+        ++this.statements;
+        return q.executeUpdate();
+    }
+
+    <X> List<X> getResultList(TypedQuery<X> q) {
+        ++this.statements;
+        return q.getResultList();
+    }
+
+    <X> X getSingleResult(TypedQuery<X> q) {
+        ++this.statements;
+        return q.getSingleResult();
+    }
+
+    /**
+     * @return The start time of a bulk update guarded by the slow operation log.
+     */
+    long bulkUpdateStarted() {
+        return this.slowOperationLog != null ? System.nanoTime() : 0;
+    }
+
+    void bulkUpdateCompleted(long start, SlowOperationLog.Statement statement, Class<?> type, int rootId,
+            long first, long last, long delta, int rows) {
+        if (this.slowOperationLog != null) {
+            this.slowOperationLog.completed(this.operation, statement, type, rootId, first, last, delta, rows,
+                    System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records a structural change for the listeners, if there are any.
+     */
+    void treeChanged(TreeChange.Kind kind, Class<?> type, int nodeId, int rootId, int targetRootId,
+            long first, long last, long delta, int levelDelta, long displacement) {
+        if (!this.changeListeners.isEmpty()) {
+            this.changes.add(new TreeChange(kind, type, nodeId, rootId, targetRootId,
+                    first, last, delta, levelDelta, displacement));
         }
-        for (Key k : removed) {
-            Node<?> n = this.nodes.remove(k);
-            n.setLeftValue(0);
-            n.setRightValue(0);
-            n.setLevel(0);
-            n.setRootValue(0);
+    }
+
+    void rowsShifted(int rows) {
+        this.metrics.rowsShifted(this.operation, rows);
+    }
+
+    void updateLeftValues(long minLeft, long maxLeft, long delta, int rootId) {
+        long start = System.nanoTime();
+        this.nodes.updateLeftValues(minLeft, maxLeft, delta, rootId);
+        this.metrics.registrySynced(System.nanoTime() - start, this.nodes.size());
+    }
+
+    void updateRightValues(long minRight, long maxRight, long delta, int rootId) {
+        long start = System.nanoTime();
+        this.nodes.updateRightValues(minRight, maxRight, delta, rootId);
+        this.metrics.registrySynced(System.nanoTime() - start, this.nodes.size());
+    }
+
+    void updateLevels(long left, long right, int delta, int rootId) {
+        long start = System.nanoTime();
+        this.nodes.updateLevels(left, right, delta, rootId);
+        this.metrics.registrySynced(System.nanoTime() - start, this.nodes.size());
+    }
+
+    void rotate(long first, long last, long left, long right, long delta, long otherDelta, int levelDelta, int rootId) {
+        long start = System.nanoTime();
+        this.nodes.rotate(first, last, left, right, delta, otherDelta, levelDelta, rootId);
+        this.metrics.registrySynced(System.nanoTime() - start, this.nodes.size());
+    }
+
+    void moveRanges(long[] lefts, long[] rights, long[] deltas, int rootId) {
+        long start = System.nanoTime();
+        this.nodes.moveRanges(lefts, rights, deltas, rootId);
+        this.metrics.registrySynced(System.nanoTime() - start, this.nodes.size());
+    }
+
+    void moveNodes(long left, long right, int rootId, long delta, int levelDelta, int newRootId) {
+        long start = System.nanoTime();
+        this.nodes.moveNodes(left, right, rootId, delta, levelDelta, newRootId);
+        this.metrics.registrySynced(System.nanoTime() - start, this.nodes.size());
+    }
+
+    void rewritePaths(Class<?> clazz, String oldPrefix, String newPrefix) {
+        long start = System.nanoTime();
+        this.nodes.rewritePaths(clazz, getConfig(clazz), oldPrefix, newPrefix);
+        this.metrics.registrySynced(System.nanoTime() - start, this.nodes.size());
+    }
+
+    void removeNodes(long left, long right, int rootId) {
+        long start = System.nanoTime();
+        for (Node<?> n : this.nodes.removeNodes(left, right, rootId)) {
             this.em.detach(n.unwrap());
         }
+        this.metrics.registrySynced(System.nanoTime() - start, this.nodes.size());
     }
 }
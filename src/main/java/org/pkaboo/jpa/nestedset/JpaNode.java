@@ -10,15 +10,30 @@
 package org.pkaboo.jpa.nestedset;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
 
+import javax.persistence.AttributeNode;
 import javax.persistence.Entity;
+import javax.persistence.EntityGraph;
 import javax.persistence.Query;
+import javax.persistence.Subgraph;
+import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Fetch;
+import javax.persistence.criteria.FetchParent;
+import javax.persistence.criteria.JoinType;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.ManagedType;
 import net.jcip.annotations.NotThreadSafe;
+import org.pkaboo.jpa.nestedset.jfr.TreeMutationEvents;
 
 /**
  * A decorator for a {@link NodeInfo} implementation that enriches it with the full API
@@ -28,13 +43,9 @@ import net.jcip.annotations.NotThreadSafe;
  */
 @NotThreadSafe
 class JpaNode<T extends NodeInfo> implements Node<T> {
-    private static final int PREV_SIBLING = 1;
-    private static final int FIRST_CHILD = 2;
-    private static final int NEXT_SIBLING = 3;
-    private static final int LAST_CHILD = 4;
-
     private final JpaNestedSetManager nsm;
     private final T node;
+    private final LongNodeInfo longNode;
     private final Class<T> type;
 
     private CriteriaQuery<T> baseQuery;
@@ -43,10 +54,36 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
     @SuppressWarnings("unchecked")
     public JpaNode(T node, JpaNestedSetManager nsm) {
         this.node = node;
+        this.longNode = node instanceof LongNodeInfo ? (LongNodeInfo) node : null;
         this.nsm = nsm;
         this.type = (Class<T>) node.getClass();
     }
 
+    /**
+     * Begins an operation on this node, after making sure that its values are current.
+     */
+    private long begin(TreeOperation op) {
+        return begin(op, null);
+    }
+
+    /**
+     * Begins an operation of this node relative to 'dest', revalidating both nodes
+     * within the operation.
+     */
+    private long begin(TreeOperation op, Node<T> dest) {
+        long start = nsm.beginOperation(op);
+        try {
+            nsm.revalidate(this);
+            if (dest != null) {
+                nsm.revalidate(dest);
+            }
+        } catch (RuntimeException e) {
+            nsm.endOperation(start);
+            throw e;
+        }
+        return start;
+    }
+
     @Override public int getId() {
         return this.node.getId();
     }
@@ -59,6 +96,14 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
         return this.node.getRightValue();
     }
 
+    @Override public long getLeft() {
+        return this.longNode != null ? this.longNode.getLeft() : this.node.getLeftValue();
+    }
+
+    @Override public long getRight() {
+        return this.longNode != null ? this.longNode.getRight() : this.node.getRightValue();
+    }
+
     @Override public int getLevel() {
         return this.node.getLevel();
     }
@@ -79,14 +124,30 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
         this.node.setRightValue(value);
     }
 
+    @Override public void setLeft(long value) {
+        if (this.longNode != null) {
+            this.longNode.setLeft(value);
+        } else {
+            this.node.setLeftValue(Math.toIntExact(value));
+        }
+    }
+
+    @Override public void setRight(long value) {
+        if (this.longNode != null) {
+            this.longNode.setRight(value);
+        } else {
+            this.node.setRightValue(Math.toIntExact(value));
+        }
+    }
+
     @Override public void setLevel(int level) {
         this.node.setLevel(level);
     }
 
     @Override
     public String toString() {
-        return "[Left: " + node.getLeftValue() +
-                ", Right: " + node.getRightValue() +
+        return "[Left: " + getLeft() +
+                ", Right: " + getRight() +
                 ", Level: " + node.getLevel() +
                 ", NodeInfo: " + node.toString() +
                 "]";
@@ -94,7 +155,10 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 
     @Override
     public boolean hasChildren() {
-        return (getRightValue() - getLeftValue()) > 1;
+        if (nsm.getConfig(this.type).isSparse()) {
+            return countDescendants() > 0;
+        }
+        return (getRight() - getLeft()) > 1;
     }
 
     @Override
@@ -108,7 +172,14 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
     }
 
     private boolean isValidNode(NodeInfo node) {
-        return node != null && node.getRightValue() > node.getLeftValue();
+        return node != null && LongNodeInfo.rightOf(node) > LongNodeInfo.leftOf(node);
+    }
+
+    /**
+     * @return A query that reads nodes, with the read hints of the entity.
+     */
+    private TypedQuery<T> readQuery(CriteriaQuery<T> cq) {
+        return nsm.withReadHints(nsm.getEntityManager().createQuery(cq), this.type);
     }
 
     private CriteriaQuery<T> getBaseQuery() {
@@ -119,206 +190,355 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
         return this.baseQuery;
     }
 
+    private CriteriaQuery<T> getBaseQuery(EntityGraph<? super T> graph) {
+        return graph == null ? getBaseQuery() : newQuery(graph);
+    }
+
+    /**
+     * @return A new query that fetch joins the associations of the given graph, if any.
+     *         The base query is discarded, as it shares the query root.
+     */
+    private CriteriaQuery<T> newQuery(EntityGraph<? super T> graph) {
+        CriteriaQuery<T> cq = nsm.getEntityManager().getCriteriaBuilder().createQuery(type);
+        this.baseQuery = null;
+        this.queryRoot = cq.from(type);
+        if (graph != null && fetch(this.queryRoot, nsm.getEntityManager().getMetamodel().managedType(this.type),
+                graph.getAttributeNodes())) {
+            cq.distinct(true);
+        }
+        return cq;
+    }
+
+    /**
+     * Fetch joins the associations among the given attributes of a graph, recursing into
+     * their subgraphs. Basic attributes are left to the provider.
+     *
+     * @return Whether a collection was joined, which multiplies the rows.
+     */
+    private boolean fetch(FetchParent<?, ?> parent, ManagedType<?> type, Collection<AttributeNode<?>> attributes) {
+        boolean collection = false;
+        for (AttributeNode<?> attributeNode : attributes) {
+            Attribute<?, ?> attribute = type.getAttribute(attributeNode.getAttributeName());
+            if (!attribute.isAssociation() && !attribute.isCollection()) {
+                continue;
+            }
+            Fetch<?, ?> fetch = parent.fetch(attributeNode.getAttributeName(), JoinType.LEFT);
+            collection |= attribute.isCollection();
+            for (Subgraph<?> subgraph : attributeNode.getSubgraphs().values()) {
+                collection |= fetch(fetch, nsm.getEntityManager().getMetamodel().managedType(subgraph.getClassType()),
+                        subgraph.getAttributeNodes());
+            }
+        }
+        return collection;
+    }
+
+    /**
+     * @return A left/right value or offset as a query parameter of the type of the columns.
+     */
+    private Number pos(long value) {
+        return nsm.getConfig(this.type).toParameter(value);
+    }
+
     public int getNumberOfChildren() {
         return getChildren().size();
     }
 
     public int getNumberOfDescendants() {
-        return (this.getRightValue() - this.getLeftValue() - 1) / 2;
+        if (nsm.getConfig(this.type).isSparse()) {
+            return countDescendants();
+        }
+        return Math.toIntExact((this.getRight() - this.getLeft() - 1) / 2);
+    }
+
+    /**
+     * Counts the descendants with a query, as the values of sparsely numbered nodes
+     * do not tell their number.
+     */
+    private int countDescendants() {
+        Configuration cfg = nsm.getConfig(this.type);
+        CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
+        CriteriaQuery<Long> cq = cb.createQuery(Long.class);
+        Root<T> n = cq.from(this.type);
+        cq.select(cb.count(n));
+        cq.where(cb.gt(n.<Number>get(cfg.getLeftFieldName()), pos(getLeft())),
+                cb.lt(n.<Number>get(cfg.getRightFieldName()), pos(getRight())));
+        nsm.applyRootId(this.type, cq, getRootValue());
+
+        return nsm.getSingleResult(nsm.getEntityManager().createQuery(cq)).intValue();
     }
 
     @Override
     public boolean isRoot() {
-        return getLeftValue() == 1;
+        return getLeft() == 1;
     }
 
     @Override
     public List<Node<T>> getChildren() {
-        return getDescendants(1);
+        long start = begin(TreeOperation.GET_CHILDREN);
+        try {
+            Configuration cfg = nsm.getConfig(this.type);
+            if (cfg.getParentIdFieldName() == null) {
+                return getDescendants(1);
+            }
+
+            CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
+            CriteriaQuery<T> cq = getBaseQuery();
+            cq.where(cb.equal(queryRoot.get(cfg.getParentIdFieldName()), getId()));
+            cq.orderBy(cb.asc(queryRoot.get(cfg.getLeftFieldName())));
+
+            List<Node<T>> nodes = new ArrayList<Node<T>>();
+            for (T n : nsm.getResultList(readQuery(cq))) {
+                nodes.add(nsm.getNode(n));
+            }
+
+            return nodes;
+        } finally {
+            nsm.endOperation(start);
+        }
     }
 
     @Override
     public Node<T> getParent() {
-        if (isRoot()) {
-            return null;
+        long start = begin(TreeOperation.GET_PARENT);
+        try {
+            if (isRoot()) {
+                return null;
+            }
+
+            Configuration cfg = nsm.getConfig(this.type);
+            if (cfg.getParentIdFieldName() != null) {
+                return nsm.getNode(nsm.getEntityManager().find(this.type, cfg.getParentId(this.node),
+                        nsm.getReadHints(this.type)));
+            }
+
+            CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
+            CriteriaQuery<T> cq = getBaseQuery();
+            cq.where(cb.lt(
+                        queryRoot.<Number>get(nsm.getConfig(this.type).getLeftFieldName()),
+                        pos(getLeft())
+                        ),
+                    cb.gt(
+                        queryRoot.<Number>get(nsm.getConfig(this.type).getRightFieldName()),
+                        pos(getRight())
+                        ));
+            cq.orderBy(cb.asc(queryRoot.get(nsm.getConfig(this.type).getRightFieldName())));
+            nsm.applyRootId(this.type, cq, getRootValue());
+
+            List<T> result = nsm.getResultList(readQuery(cq));
+
+            return nsm.getNode(result.get(0));
+        } finally {
+            nsm.endOperation(start);
         }
-
-        CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
-        CriteriaQuery<T> cq = getBaseQuery();
-        cq.where(cb.lt(
-                    queryRoot.<Number>get(nsm.getConfig(this.type).getLeftFieldName()),
-                    getLeftValue()
-                    ),
-                cb.gt(
-                    queryRoot.<Number>get(nsm.getConfig(this.type).getRightFieldName()),
-                    getRightValue()
-                    ));
-        cq.orderBy(cb.asc(queryRoot.get(nsm.getConfig(this.type).getRightFieldName())));
-        nsm.applyRootId(this.type, cq, getRootValue());
-
-        List<T> result = nsm.getEntityManager().createQuery(cq).getResultList();
-
-        return nsm.getNode(result.get(0));
     }
 
-    @Override public List<Node<T>> getDescendants() {
-        return getDescendants(0);
+    @Override
+    public void reorderChildren(Comparator<? super T> order) {
+        long start = begin(TreeOperation.REORDER_CHILDREN);
+        try {
+            List<Node<T>> children = getChildren();
+            List<Node<T>> sorted = new ArrayList<Node<T>>(children);
+            sorted.sort((a, b) -> order.compare(a.unwrap(), b.unwrap()));
+            reorder(ChildOrder.of(this, children, sorted));
+        } finally {
+            nsm.endOperation(start);
+        }
     }
 
-    @Override public List<Node<T>> getDescendants(int depth) {
-        CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
-        CriteriaQuery<T> cq = getBaseQuery();
-        Predicate wherePredicate = cb.and(
-                cb.gt(
-                    queryRoot.<Number>get(nsm.getConfig(this.type).getLeftFieldName()),
-                    getLeftValue()
-                    ),
-                cb.lt(
-                    queryRoot.<Number>get(nsm.getConfig(this.type).getRightFieldName()),
-                    getRightValue()
-                    ));
-
-        if (depth > 0) {
-            wherePredicate = cb.and(
-                    wherePredicate,
-                    cb.le(
-                        queryRoot.<Number>get(nsm.getConfig(this.type).getLevelFieldName()),
-                        getLevel() + depth)
-                        );
-        }
-        cq.where(wherePredicate);
-        cq.orderBy(cb.asc(queryRoot.get(nsm.getConfig(this.type).getLeftFieldName())));
-
-        nsm.applyRootId(this.type, cq, getRootValue());
-
-        List<Node<T>> nodes = new ArrayList<Node<T>>();
-        for (T n : nsm.getEntityManager().createQuery(cq).getResultList()) {
-            nodes.add(nsm.getNode(n));
+    @Override
+    public void reorderChildren(List<Node<T>> children) {
+        long start = begin(TreeOperation.REORDER_CHILDREN);
+        try {
+            reorder(ChildOrder.of(this, getChildren(), children));
+        } finally {
+            nsm.endOperation(start);
         }
-
-        return nodes;
     }
 
-    @Override public Node<T> addChild(T child) {
-        if (child == this.node) {
-            throw new IllegalArgumentException("Cannot add node as child of itself.");
+    /**
+     * Moves the children by their offsets with a single update that is restricted to
+     * the range of the children that change position.
+     */
+    private void reorder(ChildOrder order) {
+        if (order == null) {
+            return; // already in order
         }
 
-        int newLeft = getRightValue();
-        int newRight = getRightValue() + 1;
-        int newRoot = getRootValue();
-
-        shiftRLValues(newLeft, 0, 2, newRoot);
-        child.setLevel(getLevel() + 1);
-        child.setLeftValue(newLeft);
-        child.setRightValue(newRight);
-        child.setRootValue(newRoot);
-        nsm.getEntityManager().persist(child);
-
-        return this.nsm.getNode(child);
-    }
+        Configuration cfg = nsm.getConfig(this.type);
+        String leftFieldName = cfg.getLeftFieldName();
+        String rightFieldName = cfg.getRightFieldName();
+        String rootIdFieldName = cfg.getRootIdFieldName();
 
-    private void insertAsPrevSiblingOf(Node<T> dest) {
-        if (dest == this.node) {
-            throw new IllegalArgumentException("Cannot add node as child of itself.");
+        StringBuilder updateQuery = new StringBuilder();
+        updateQuery.append("update ").append(cfg.getEntityName()).append(" n set");
+        int param = 1;
+        for (String field : new String[] {leftFieldName, rightFieldName}) {
+            updateQuery.append(field.equals(leftFieldName) ? " n." : ", n.").append(field).append(" = case");
+            for (int i = 0; i < order.deltas.length; ++i) {
+                updateQuery.append(" when n.").append(field).append(" >= ?").append(param++)
+                        .append(" and n.").append(field).append(" <= ?").append(param++)
+                        .append(" then n.").append(field).append(" + ?").append(param++);
+            }
+            updateQuery.append(" else n.").append(field).append(" end");
+        }
+        updateQuery.append(" where n.").append(leftFieldName).append(" >= ?").append(param++)
+                .append(" and n.").append(rightFieldName).append(" <= ?").append(param++);
+        if (rootIdFieldName != null) {
+            updateQuery.append(" and n.").append(rootIdFieldName).append(" = ?").append(param);
         }
 
-        int newLeft = dest.getLeftValue();
-        int newRight = dest.getLeftValue() + 1;
-        int newRoot = dest.getRootValue();
+        // Each value is matched by itself as the values of a node lie in the same range
+        Query q = nsm.getEntityManager().createQuery(updateQuery.toString());
+        param = 1;
+        for (int pass = 0; pass < 2; ++pass) {
+            for (int i = 0; i < order.deltas.length; ++i) {
+                q.setParameter(param++, pos(order.lefts[i]));
+                q.setParameter(param++, pos(order.rights[i]));
+                q.setParameter(param++, pos(order.deltas[i]));
+            }
+        }
+        q.setParameter(param++, pos(order.first()));
+        q.setParameter(param++, pos(order.last()));
+        if (rootIdFieldName != null) {
+            q.setParameter(param, getRootValue());
+        }
 
-        shiftRLValues(newLeft, 0, 2, newRoot);
-        setLevel(dest.getLevel());
-        setLeftValue(newLeft);
-        setRightValue(newRight);
-        setRootValue(newRoot);
-        nsm.getEntityManager().persist(this.node);
+        int rows = nsm.executeUpdate(q);
+        nsm.rowsShifted(rows);
+        nsm.moveRanges(order.lefts, order.rights, order.deltas, getRootValue());
+        nsm.treeChanged(TreeChange.Kind.REORDERED, this.type, getId(), getRootValue(), getRootValue(),
+                order.first(), order.last(), 0, 0, 0);
     }
 
-    private void insertAsNextSiblingOf(Node<T> dest) {
-        if (dest == this.node) {
-            throw new IllegalArgumentException("Cannot add node as child of itself.");
-        }
-
-        int newLeft = dest.getRightValue() + 1;
-        int newRight = dest.getRightValue() + 2;
-        int newRoot = dest.getRootValue();
+    @Override public List<Node<T>> getDescendants() {
+        return getDescendants(0);
+    }
 
-        shiftRLValues(newLeft, 0, 2, newRoot);
-        setLevel(dest.getLevel());
-        setLeftValue(newLeft);
-        setRightValue(newRight);
-        setRootValue(newRoot);
-        nsm.getEntityManager().persist(this.node);
+    @Override public List<Node<T>> getDescendants(int depth) {
+        return getDescendants(depth, null);
     }
 
-    private void insertAsLastChildOf(Node<T> dest) {
-        if (dest == this.node) {
-            throw new IllegalArgumentException("Cannot add node as child of itself.");
+    @Override public List<Node<T>> getDescendants(int depth, EntityGraph<? super T> graph) {
+        long start = begin(TreeOperation.GET_DESCENDANTS);
+        try {
+            CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
+            CriteriaQuery<T> cq = getBaseQuery(graph);
+            Predicate wherePredicate = cb.and(
+                    cb.gt(
+                        queryRoot.<Number>get(nsm.getConfig(this.type).getLeftFieldName()),
+                        pos(getLeft())
+                        ),
+                    cb.lt(
+                        queryRoot.<Number>get(nsm.getConfig(this.type).getRightFieldName()),
+                        pos(getRight())
+                        ));
+
+            if (depth > 0) {
+                wherePredicate = cb.and(
+                        wherePredicate,
+                        cb.le(
+                            queryRoot.<Number>get(nsm.getConfig(this.type).getLevelFieldName()),
+                            getLevel() + depth)
+                            );
+            }
+            cq.where(wherePredicate);
+            cq.orderBy(cb.asc(queryRoot.get(nsm.getConfig(this.type).getLeftFieldName())));
+
+            nsm.applyRootId(this.type, cq, getRootValue());
+
+            List<Node<T>> nodes = new ArrayList<Node<T>>();
+            for (T n : nsm.getResultList(readQuery(cq))) {
+                nodes.add(nsm.getNode(n));
+            }
+
+            return nodes;
+        } finally {
+            nsm.endOperation(start);
         }
-
-        int newLeft = dest.getRightValue();
-        int newRight = dest.getRightValue() + 1;
-        int newRoot = dest.getRootValue();
-
-        shiftRLValues(newLeft, 0, 2, newRoot);
-        setLevel(dest.getLevel() + 1);
-        setLeftValue(newLeft);
-        setRightValue(newRight);
-        setRootValue(newRoot);
-        nsm.getEntityManager().persist(this.node);
     }
 
-    private void insertAsFirstChildOf(Node<T> dest) {
-        if (dest == this.node) {
+    @Override public Node<T> addChild(T child) {
+        if (child == this.node) {
             throw new IllegalArgumentException("Cannot add node as child of itself.");
         }
 
-        int newLeft = dest.getLeftValue() + 1;
-        int newRight = dest.getLeftValue() + 2;
-        int newRoot = dest.getRootValue();
-
-        shiftRLValues(newLeft, 0, 2, newRoot);
-        setLevel(dest.getLevel());
-        setLeftValue(newLeft);
-        setRightValue(newRight);
-        setRootValue(newRoot);
-        nsm.getEntityManager().persist(this.node);
+        long start = begin(TreeOperation.ADD_CHILD);
+        try {
+            long newLeft = getRight();
+            long newRight = getRight() + 1;
+            int newRoot = getRootValue();
+
+            if (nsm.getConfig(this.type).isSparse()) {
+                long[] interval = reserve(boundary(getRight(), false), getRight(), getRight(), 2, newRoot);
+                newLeft = interval[0];
+                newRight = interval[1];
+            } else {
+                shiftRLValues(newLeft, 0, 2, newRoot);
+            }
+            child.setLevel(getLevel() + 1);
+            LongNodeInfo.setLeftOf(child, newLeft);
+            LongNodeInfo.setRightOf(child, newRight);
+            child.setRootValue(newRoot);
+            nsm.persistNode(child, getId(), pathOf(this));
+            nsm.treeChanged(TreeChange.Kind.INSERTED, this.type, child.getId(), newRoot, newRoot,
+                    newLeft, newRight, 0, 0, 0);
+
+            return this.nsm.getNode(child);
+        } finally {
+            nsm.endOperation(start);
+        }
     }
 
     @Override
     public void delete() {
-        int oldRoot = getRootValue();
-        Configuration cfg = nsm.getConfig(this.type);
-        String rootIdFieldName = cfg.getRootIdFieldName();
-        String leftFieldName = cfg.getLeftFieldName();
-        String rightFieldName = cfg.getRightFieldName();
-        String entityName =  cfg.getEntityName();
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("delete from " )
-                .append(entityName).append(" n")
-                .append(" where n.").append(leftFieldName).append(">= ?1")
-                .append(" and n.").append(rightFieldName).append("<= ?2");
-
-        if (rootIdFieldName != null) {
-            sb.append(" and n.").append(rootIdFieldName).append("= ?3");
+        long start = begin(TreeOperation.DELETE);
+        Object event = TreeEvents.begin(TreeMutationEvents.DELETE);
+        try {
+            int oldRoot = getRootValue();
+            Configuration cfg = nsm.getConfig(this.type);
+            String rootIdFieldName = cfg.getRootIdFieldName();
+            String leftFieldName = cfg.getLeftFieldName();
+            String rightFieldName = cfg.getRightFieldName();
+            String entityName =  cfg.getEntityName();
+
+            if (cfg.getClosureIndex() != null) {
+                cfg.getClosureIndex().delete(nsm, Collections.singletonList(getId()));
+            }
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("delete from " )
+                    .append(entityName).append(" n")
+                    .append(" where n.").append(leftFieldName).append(">= ?1")
+                    .append(" and n.").append(rightFieldName).append("<= ?2");
+
+            if (rootIdFieldName != null) {
+                sb.append(" and n.").append(rootIdFieldName).append("= ?3");
+            }
+
+            Query q = nsm.getEntityManager().createQuery(sb.toString());
+            long left = getLeft();
+            long right = getRight();
+            q.setParameter(1, pos(left));
+            q.setParameter(2, pos(right));
+            if (rootIdFieldName != null) {
+                q.setParameter(3, oldRoot);
+            }
+            int rows = nsm.executeUpdate(q);
+
+            nsm.treeChanged(TreeChange.Kind.DELETED, this.type, getId(), oldRoot, oldRoot, left, right, 0, 0, 0);
+
+            // Evict the subtree before closing the gap moves the following nodes into its range
+            nsm.removeNodes(left, right, oldRoot);
+            long delta = 0;
+            if (!cfg.isSparse()) {
+                delta = left - right - 1;
+                shiftRLValues(right + 1, 0, delta, oldRoot);
+            }
+
+            TreeEvents.commit(event, this.type, oldRoot, oldRoot, left, right, delta, rows);
+        } finally {
+            nsm.endOperation(start);
         }
-
-        Query q = nsm.getEntityManager().createQuery(sb.toString());
-        q.setParameter(1, getLeftValue());
-        q.setParameter(2, getRightValue());
-        if (rootIdFieldName != null) {
-            q.setParameter(3, oldRoot);
-        }
-        q.executeUpdate();
-
-        // Close gap in tree
-        int first = getRightValue() + 1;
-        int delta = getLeftValue() - getRightValue() - 1;
-        shiftRLValues(first, 0, delta, oldRoot);
-
-        nsm.removeNodes(getLeftValue(), getRightValue(), oldRoot);
     }
 
     /**
@@ -331,14 +551,15 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
      * @param delta The offset by which to shift the left/right values (can be negative).
      * @param rootId The root/tree ID of the nodes to shift.
      */
-    private void shiftRLValues(int first, int last, int delta, int rootId) {
+    private void shiftRLValues(long first, long last, long delta, int rootId) {
+        Object event = TreeEvents.begin(TreeMutationEvents.SHIFT);
     	Configuration cfg = nsm.getConfig(this.type);
         String rootIdFieldName = cfg.getRootIdFieldName();
         String leftFieldName = cfg.getLeftFieldName();
         String rightFieldName = cfg.getRightFieldName();
         String entityName = cfg.getEntityName();
 
-        // Shift left values
+        // Shift left values, keeping the in-memory values until both statements are timed
         StringBuilder sbLeft = new StringBuilder();
         sbLeft.append("update ").append(entityName).append(" n")
                 .append(" set n.").append(leftFieldName).append(" = n.").append(leftFieldName).append(" + ?1")
@@ -353,16 +574,16 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
         }
 
         Query qLeft = nsm.getEntityManager().createQuery(sbLeft.toString());
-        qLeft.setParameter(1, delta);
-        qLeft.setParameter(2, first);
+        qLeft.setParameter(1, pos(delta));
+        qLeft.setParameter(2, pos(first));
         if (last > 0) {
-            qLeft.setParameter(3, last);
+            qLeft.setParameter(3, pos(last));
         }
         if (rootIdFieldName != null) {
             qLeft.setParameter(4, rootId);
         }
-        qLeft.executeUpdate();
-        this.nsm.updateLeftValues(first, last, delta, rootId);
+        long started = nsm.bulkUpdateStarted();
+        int leftRows = nsm.executeUpdate(qLeft);
 
         // Shift right values
         StringBuilder sbRight = new StringBuilder();
@@ -379,16 +600,24 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
         }
 
         Query qRight = nsm.getEntityManager().createQuery(sbRight.toString());
-        qRight.setParameter(1, delta);
-        qRight.setParameter(2, first);
+        qRight.setParameter(1, pos(delta));
+        qRight.setParameter(2, pos(first));
         if (last > 0) {
-            qRight.setParameter(3, last);
+            qRight.setParameter(3, pos(last));
         }
         if (rootIdFieldName != null) {
             qRight.setParameter(4, rootId);
         }
-        qRight.executeUpdate();
+        int rightRows = nsm.executeUpdate(qRight);
+        // A node whose left and right values both lie in the range is updated by both statements
+        int rows = Math.max(leftRows, rightRows);
+        this.nsm.bulkUpdateCompleted(started, SlowOperationLog.Statement.SHIFT, this.type, rootId,
+                first, last, delta, rows);
+        this.nsm.rowsShifted(rows);
+        this.nsm.updateLeftValues(first, last, delta, rootId);
         this.nsm.updateRightValues(first, last, delta, rootId);
+        this.nsm.treeChanged(TreeChange.Kind.SHIFTED, this.type, 0, rootId, rootId, first, last, delta, 0, 0);
+        TreeEvents.commit(event, this.type, rootId, rootId, first, last, delta, rows);
     }
 
     @Override public T unwrap() {
@@ -401,53 +630,115 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 
     @Override
     public Node<T> getFirstChild() {
-        CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
-        CriteriaQuery<T> cq = getBaseQuery();
-        cq.where(cb.equal(queryRoot.get(nsm.getConfig(this.type).getLeftFieldName()), getLeftValue() + 1));
-
-        nsm.applyRootId(this.type, cq, getRootValue());
-
-        return nsm.getNode(nsm.getEntityManager().createQuery(cq).getSingleResult());
+        long start = begin(TreeOperation.GET_FIRST_CHILD);
+        try {
+            if (nsm.getConfig(this.type).isSparse()) {
+                return getOuterChild(false);
+            }
+            CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
+            CriteriaQuery<T> cq = getBaseQuery();
+            cq.where(cb.equal(queryRoot.get(nsm.getConfig(this.type).getLeftFieldName()), pos(getLeft() + 1)));
+
+            nsm.applyRootId(this.type, cq, getRootValue());
+
+            return nsm.getNode(nsm.getSingleResult(readQuery(cq)));
+        } finally {
+            nsm.endOperation(start);
+        }
     }
 
     @Override
     public Node<T> getLastChild() {
+        long start = begin(TreeOperation.GET_LAST_CHILD);
+        try {
+            if (nsm.getConfig(this.type).isSparse()) {
+                return getOuterChild(true);
+            }
+            CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
+            CriteriaQuery<T> cq = getBaseQuery();
+            cq.where(cb.equal(queryRoot.get(nsm.getConfig(this.type).getRightFieldName()), pos(getRight() - 1)));
+
+            nsm.applyRootId(this.type, cq, getRootValue());
+
+            return nsm.getNode(nsm.getSingleResult(readQuery(cq)));
+        } finally {
+            nsm.endOperation(start);
+        }
+    }
+
+    /**
+     * @return The first or last child of a sparsely numbered node, whose values do not
+     *         follow from the values of the node. The children are looked up by the
+     *         parent column if there is one.
+     */
+    private Node<T> getOuterChild(boolean last) {
+        Configuration cfg = nsm.getConfig(this.type);
         CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
         CriteriaQuery<T> cq = getBaseQuery();
-        cq.where(cb.equal(queryRoot.get(nsm.getConfig(this.type).getRightFieldName()), getRightValue() - 1));
-
-        nsm.applyRootId(this.type, cq, getRootValue());
+        if (cfg.getParentIdFieldName() != null) {
+            cq.where(cb.equal(queryRoot.get(cfg.getParentIdFieldName()), getId()));
+        } else {
+            cq.where(cb.gt(queryRoot.<Number>get(cfg.getLeftFieldName()), pos(getLeft())),
+                    cb.lt(queryRoot.<Number>get(cfg.getRightFieldName()), pos(getRight())),
+                    cb.equal(queryRoot.get(cfg.getLevelFieldName()), getLevel() + 1));
+            nsm.applyRootId(this.type, cq, getRootValue());
+        }
+        cq.orderBy(last
+                ? cb.desc(queryRoot.get(cfg.getRightFieldName()))
+                : cb.asc(queryRoot.get(cfg.getLeftFieldName())));
 
-        return nsm.getNode(nsm.getEntityManager().createQuery(cq).getSingleResult());
+        return nsm.getNode(nsm.getSingleResult(readQuery(cq).setMaxResults(1)));
     }
 
     @Override
     public List<Node<T>> getAncestors() {
-        CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
-        CriteriaQuery<T> cq = getBaseQuery();
-        Predicate wherePredicate = cb.and(
-                cb.lt(queryRoot.<Number>get(nsm.getConfig(this.type).getLeftFieldName()), getLeftValue()),
-                cb.gt(queryRoot.<Number>get(nsm.getConfig(this.type).getRightFieldName()), getRightValue())
-                );
-
-        cq.where(wherePredicate);
-        cq.orderBy(cb.asc(queryRoot.get(nsm.getConfig(this.type).getLeftFieldName())));
-
-        nsm.applyRootId(this.type, cq, getRootValue());
-
-        List<Node<T>> nodes = new ArrayList<Node<T>>();
+        return getAncestors(null);
+    }
 
-        for (T n : nsm.getEntityManager().createQuery(cq).getResultList()) {
-            nodes.add(nsm.getNode(n));
+    @Override
+    public List<Node<T>> getAncestors(EntityGraph<? super T> graph) {
+        long start = begin(TreeOperation.GET_ANCESTORS);
+        try {
+            Configuration cfg = nsm.getConfig(this.type);
+            CriteriaBuilder cb = nsm.getEntityManager().getCriteriaBuilder();
+            boolean byClosure = cfg.getPathFieldName() == null && cfg.getClosureIndex() != null;
+            CriteriaQuery<T> cq = byClosure ? newQuery(graph) : getBaseQuery(graph);
+            if (cfg.getPathFieldName() != null) {
+                // Looked up by the IDs in the materialized path of this node
+                List<Integer> ids = MaterializedPath.ancestorIds(cfg.getPath(this.node));
+                if (ids.isEmpty()) {
+                    return new ArrayList<Node<T>>();
+                }
+                cq.where(queryRoot.get(cfg.getIdFieldName()).in(ids));
+            } else if (byClosure) {
+                // Looked up by the ID of this node in the closure table
+                ClosureIndex closure = cfg.getClosureIndex();
+                Root<?> c = cq.from(closure.getEntityClass());
+                cq.where(cb.equal(c.get(closure.getDescendantFieldName()), getId()),
+                        cb.gt(c.<Integer>get(closure.getDepthFieldName()), 0),
+                        cb.equal(queryRoot.get(cfg.getIdFieldName()), c.get(closure.getAncestorFieldName())));
+            } else {
+                cq.where(cb.lt(queryRoot.<Number>get(cfg.getLeftFieldName()), pos(getLeft())),
+                        cb.gt(queryRoot.<Number>get(cfg.getRightFieldName()), pos(getRight())));
+                nsm.applyRootId(this.type, cq, getRootValue());
+            }
+            cq.orderBy(cb.asc(queryRoot.get(cfg.getLeftFieldName())));
+
+            List<Node<T>> nodes = new ArrayList<Node<T>>();
+            for (T n : nsm.getResultList(readQuery(cq))) {
+                nodes.add(nsm.getNode(n));
+            }
+
+            return nodes;
+        } finally {
+            nsm.endOperation(start);
         }
-
-        return nodes;
     }
 
     @Override
     public boolean isDescendantOf(Node<T> subj) {
-        return ((getLeftValue() > subj.getLeftValue()) &&
-                (getRightValue() < subj.getRightValue()) &&
+        return ((getLeft() > subj.getLeft()) &&
+                (getRight() < subj.getRight()) &&
                 (getRootValue() == subj.getRootValue()));
     }
 
@@ -463,259 +754,598 @@ class JpaNode<T extends NodeInfo> implements Node<T> {
 
     @Override
     public void moveAsPrevSiblingOf(Node<T> dest) {
-        if (dest == this.node) {
+        if (dest.unwrap() == this.node) {
             throw new IllegalArgumentException("Cannot move node as previous sibling of itself");
         }
 
-        if (dest.getRootValue() != getRootValue()) {
-            moveBetweenTrees(dest, dest.getLeftValue(), 1);
-        } else {
-            // Move within the tree
-            int oldLevel = getLevel();
-            setLevel(dest.getLevel());
-            updateNode(dest.getLeftValue(), getLevel() - oldLevel);
+        long start = begin(TreeOperation.MOVE_AS_PREV_SIBLING, dest);
+        try {
+            moveTo(dest, dest.getLeft(), dest.getLevel());
+        } finally {
+            nsm.endOperation(start);
         }
     }
 
-    /**
-     * move node's and its children to location 'destLeft' and update rest of tree.
-     *
-     * @param int destLeft destination left value
-     * @param levelDiff
-     */
-    private void updateNode(int destLeft, int levelDiff) {
-        int left = getLeftValue();
-        int right = getRightValue();
-        int rootId = getRootValue();
-        int treeSize = right - left + 1;
+    @Override
+    public void moveAsNextSiblingOf(Node<T> dest) {
+        if (dest.unwrap() == this.node) {
+            throw new IllegalArgumentException("Cannot move node as next sibling of itself");
+        }
 
-        // Make room in the new branch
-        shiftRLValues(destLeft, 0, treeSize, rootId);
+        long start = begin(TreeOperation.MOVE_AS_NEXT_SIBLING, dest);
+        try {
+            moveTo(dest, dest.getRight() + 1, dest.getLevel());
+        } finally {
+            nsm.endOperation(start);
+        }
+    }
 
-        if (left >= destLeft) { // src was shifted too?
-            left += treeSize;
-            right += treeSize;
+    @Override
+    public void moveAsFirstChildOf(Node<T> dest) {
+        if (dest.unwrap() == this.node) {
+            throw new IllegalArgumentException("Cannot move node as first child of itself");
         }
 
-        String levelFieldName = nsm.getConfig(this.type).getLevelFieldName();
-        String leftFieldName = nsm.getConfig(this.type).getLeftFieldName();
-        String rightFieldName = nsm.getConfig(this.type).getRightFieldName();
-        String rootIdFieldName = nsm.getConfig(this.type).getRootIdFieldName();
-        String entityName =  nsm.getConfig(this.type).getEntityName();
+        long start = begin(TreeOperation.MOVE_AS_FIRST_CHILD, dest);
+        try {
+            moveTo(dest, dest.getLeft() + 1, dest.getLevel() + 1);
+        } finally {
+            nsm.endOperation(start);
+        }
+    }
 
-        // update level for descendants
-        StringBuilder updateQuery = new StringBuilder();
-        updateQuery.append("update ").append(entityName).append(" n")
-                .append(" set n.").append(levelFieldName).append(" = n.").append(levelFieldName).append(" + ?1")
-                .append(" where n.").append(leftFieldName).append(" > ?2")
-                .append(" and n.").append(rightFieldName).append(" < ?3");
+    @Override
+    public void moveAsLastChildOf(Node<T> dest) {
+        if (dest.unwrap() == this.node) {
+            throw new IllegalArgumentException("Cannot move node as last child of itself");
+        }
 
-        if (rootIdFieldName != null) {
-            updateQuery.append(" and n.").append(rootIdFieldName).append(" = ?4");
+        long start = begin(TreeOperation.MOVE_AS_LAST_CHILD, dest);
+        try {
+            moveTo(dest, dest.getRight(), dest.getLevel() + 1);
+        } finally {
+            nsm.endOperation(start);
         }
+    }
 
-        Query q = nsm.getEntityManager().createQuery(updateQuery.toString());
-        q.setParameter(1, levelDiff);
-        q.setParameter(2, left);
-        q.setParameter(3, right);
-        if (rootIdFieldName != null) {
-            q.setParameter(4, rootId);
+    /**
+     * Moves this node and its descendants to the position 'destLeft' in the tree of 'dest'.
+     *
+     * @param dest The node relative to which this node is moved.
+     * @param destLeft The new left value, prior to making room for the subtree.
+     * @param newLevel The new level of this node.
+     */
+    private void moveTo(Node<T> dest, long destLeft, int newLevel) {
+        if (dest.isDescendantOf(this)) {
+            throw new IllegalArgumentException("Cannot move node below one of its descendants");
         }
-        q.executeUpdate();
-        this.nsm.updateLevels(left, right, levelDiff, rootId);
 
-        // now there's enough room next to target to move the subtree
-        shiftRLValues(left, right, destLeft - left, rootId);
+        Configuration cfg = nsm.getConfig(this.type);
+        Integer newParentId = cfg.tracksParents() ? parentIdAt(dest, newLevel) : null;
+        String newParentPath = pathAt(dest, newLevel);
+        boolean reparented = cfg.tracksParents() && !Objects.equals(newParentId, getParentId());
+
+        if (cfg.isSparse()) {
+            moveSparse(dest, destLeft, newLevel);
+        } else if (dest.getRootValue() != getRootValue()) {
+            moveBetweenTrees(dest, destLeft, newLevel);
+        } else {
+            moveWithinTree(destLeft, newLevel);
+        }
 
-        // correct values after source (close gap in old tree)
-        shiftRLValues(right + 1, 0, -treeSize, rootId);
+        if (reparented) {
+            reparent(newParentId, newParentPath);
+        }
     }
 
-    @Override
-    public void moveAsNextSiblingOf(Node<T> dest) {
-        if (dest == this.node) {
-            throw new IllegalArgumentException("Cannot move node as next sibling of itself");
+    /**
+     * Moves this node and its descendants to the position 'destLeft' in its own tree.
+     */
+    private void moveWithinTree(long destLeft, int newLevel) {
+        long left = getLeft();
+        long right = getRight();
+        int levelDiff = newLevel - getLevel();
+        if (levelDiff == 0 && (destLeft == left || destLeft == right + 1)) {
+            return; // already in place
         }
-        if (dest.getRootValue() != getRootValue()) {
-            moveBetweenTrees(dest, dest.getRightValue() + 1, 3);
+
+        // Only the subtree and the nodes between it and its destination change
+        long treeSize = right - left + 1;
+        if (destLeft < left) {
+            rotate(destLeft, right, destLeft - left, treeSize, levelDiff);
         } else {
-            // Move within tree
-            int oldLevel = getLevel();
-            setLevel(dest.getLevel());
-            updateNode(dest.getRightValue() + 1, getLevel() - oldLevel);
+            rotate(left, destLeft - 1, destLeft - 1 - right, -treeSize, levelDiff);
         }
     }
 
-    @Override
-    public void moveAsFirstChildOf(Node<T> dest) {
-        if (dest == this.node) {
-            throw new IllegalArgumentException("Cannot move node as first child of itself");
+    /**
+     * @return The ID of the parent of this node from the parent column, path column or
+     *         closure table, <tt>null</tt> for roots.
+     */
+    private Integer getParentId() {
+        return parentIdOf(this);
+    }
+
+    private Integer parentIdOf(Node<T> n) {
+        Configuration cfg = nsm.getConfig(this.type);
+        if (cfg.getParentIdFieldName() != null) {
+            return cfg.getParentId(n.unwrap());
+        }
+        if (cfg.getPathFieldName() != null) {
+            return MaterializedPath.parentId(cfg.getPath(n.unwrap()));
         }
+        return cfg.getClosureIndex().getParentId(nsm, n.getId());
+    }
 
-        if (dest.getRootValue() != getRootValue()) {
-            moveBetweenTrees(dest, dest.getLeftValue() + 1, 2);
-        } else {
-            // Move within tree
-            int oldLevel = getLevel();
-            setLevel(dest.getLevel() + 1);
-            updateNode(dest.getLeftValue() + 1, getLevel() - oldLevel);
+    /**
+     * @return The ID of the parent of a node at the level 'newLevel' next to or below
+     *         'dest', <tt>null</tt> for roots.
+     */
+    private Integer parentIdAt(Node<T> dest, int newLevel) {
+        return newLevel > dest.getLevel() ? Integer.valueOf(dest.getId()) : parentIdOf(dest);
+    }
+
+    /**
+     * @return The materialized path of the given node, <tt>null</tt> without a path column.
+     */
+    private String pathOf(Node<T> n) {
+        Configuration cfg = nsm.getConfig(this.type);
+        return cfg.getPathFieldName() != null ? cfg.getPath(n.unwrap()) : null;
+    }
+
+    /**
+     * @return The materialized path of the parent of a node at the level 'newLevel' next
+     *         to or below 'dest', <tt>null</tt> without a path column.
+     */
+    private String pathAt(Node<T> dest, int newLevel) {
+        String path = pathOf(dest);
+        return path == null || newLevel > dest.getLevel() ? path : MaterializedPath.parent(path);
+    }
+
+    /**
+     * Records 'parentId' as the new parent of this node, <tt>null</tt> for roots, in the
+     * parent column, closure table and path column.
+     *
+     * @param parentPath The materialized path of the parent, the empty string for roots.
+     */
+    private void reparent(Integer parentId, String parentPath) {
+        Configuration cfg = nsm.getConfig(this.type);
+        if (cfg.getClosureIndex() != null) {
+            cfg.getClosureIndex().move(nsm, getId(), parentId);
+        }
+        if (cfg.getParentIdFieldName() != null) {
+            updateParentId(parentId);
+        }
+        if (cfg.getPathFieldName() != null) {
+            rewritePaths(MaterializedPath.child(parentPath, getId()));
         }
     }
 
-    @Override
-    public void moveAsLastChildOf(Node<T> dest) {
-        if (dest == this.node) {
-            throw new IllegalArgumentException("Cannot move node as first child of itself");
+    /**
+     * Replaces the path of this node by 'newPath' in the paths of its subtree, with a
+     * single prefix rewrite.
+     */
+    private void rewritePaths(String newPath) {
+        Configuration cfg = nsm.getConfig(this.type);
+        String oldPath = cfg.getPath(this.node);
+        String pathFieldName = cfg.getPathFieldName();
+
+        // Paths consist of digits and separators only, so they need no escaping in patterns
+        Query q = nsm.getEntityManager().createQuery("update " + cfg.getEntityName() + " n"
+                + " set n." + pathFieldName + " = concat(?1, substring(n." + pathFieldName + ", ?2))"
+                + " where n." + pathFieldName + " like ?3");
+        q.setParameter(1, newPath);
+        q.setParameter(2, oldPath.length() + 1);
+        q.setParameter(3, oldPath + "%");
+        nsm.executeUpdate(q);
+        nsm.rewritePaths(this.type, oldPath, newPath);
+    }
+
+    /**
+     * Sets the parent column of this node to 'parentId'.
+     */
+    private void updateParentId(Integer parentId) {
+        Configuration cfg = nsm.getConfig(this.type);
+        Integer value = cfg.toParentIdParameter(parentId);
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ").append(cfg.getEntityName()).append(" n")
+                .append(" set n.").append(cfg.getParentIdFieldName()).append(value == null ? " = null" : " = ?2")
+                .append(" where n.").append(cfg.getIdFieldName()).append(" = ?1");
+
+        Query q = nsm.getEntityManager().createQuery(sb.toString());
+        q.setParameter(1, getId());
+        if (value != null) {
+            q.setParameter(2, value);
         }
+        nsm.executeUpdate(q);
+        cfg.setParentId(this.node, parentId);
+    }
 
-        if (dest.getRootValue() != getRootValue()) {
-            moveBetweenTrees(dest, dest.getLeftValue() + 1, 4);
-        } else {
-            // Move within tree
-            int oldLevel = getLevel();
-            setLevel(dest.getLevel() + 1);
-            updateNode(dest.getRightValue(), getLevel() - oldLevel);
+    /**
+     * Moves this sparsely numbered node and its descendants into the free space at the
+     * position 'destLeft', leaving its old interval free. The right value of this node
+     * is fitted to the free space, the values of the descendants keep their distances.
+     */
+    private void moveSparse(Node<T> dest, long destLeft, int newLevel) {
+        if (dest.getRootValue() != getRootValue() && nsm.getConfig(this.type).getRootIdFieldName() == null) {
+            throw new UnsupportedOperationException("Moving nodes between trees requires a @RootColumn.");
         }
+
+        long[] space = freeSpace(dest, destLeft);
+        int levelDiff = newLevel - getLevel();
+        if (levelDiff == 0 && (space[1] == getLeft() || space[0] == getRight())) {
+            return; // already in place
+        }
+
+        long minWidth = boundary(getRight(), false) - getLeft() + 2;
+        long[] interval = reserve(space[0], space[1], destLeft, minWidth, dest.getRootValue());
+        relocate(interval[0] - getLeft(), interval[1] - getRight(), levelDiff, dest.getRootValue());
     }
 
     /**
-     * Accomplishes moving of nodes between different trees.
-     * Used by the move* methods if the root values of the two nodes are different.
+     * @return The bounds (exclusive) of the free space at the position 'destLeft' next to
+     *         'dest' in its tree. A bound that is a value of 'dest' is not queried.
+     */
+    private long[] freeSpace(Node<T> dest, long destLeft) {
+        long prev = destLeft - 1 == dest.getLeft() || destLeft - 1 == dest.getRight()
+                ? destLeft - 1
+                : boundary(destLeft, false, dest.getRootValue());
+        long next = destLeft == dest.getLeft() || destLeft == dest.getRight()
+                ? destLeft
+                : boundary(destLeft, true, dest.getRootValue());
+        return new long[] {prev, next};
+    }
+
+    private long boundary(long value, boolean above) {
+        return boundary(value, above, getRootValue());
+    }
+
+    /**
+     * @return The highest left/right value of the tree 'rootId' below 'value' (0 if there
+     *         is none) or, if 'above', the lowest one at or above it (<tt>Long.MAX_VALUE</tt>
+     *         if there is none).
+     */
+    private long boundary(long value, boolean above, int rootId) {
+        Configuration cfg = nsm.getConfig(this.type);
+        long result = above ? Long.MAX_VALUE : 0;
+        for (String field : new String[] {cfg.getLeftFieldName(), cfg.getRightFieldName()}) {
+            StringBuilder jpql = new StringBuilder();
+            jpql.append("select ").append(above ? "min" : "max").append("(n.").append(field).append(")")
+                    .append(" from ").append(cfg.getEntityName()).append(" n")
+                    .append(" where n.").append(field).append(above ? " >= ?1" : " < ?1");
+            if (cfg.getRootIdFieldName() != null) {
+                jpql.append(" and n.").append(cfg.getRootIdFieldName()).append(" = ?2");
+            }
+
+            TypedQuery<Number> q = nsm.getEntityManager().createQuery(jpql.toString(), Number.class);
+            q.setParameter(1, pos(value));
+            if (cfg.getRootIdFieldName() != null) {
+                q.setParameter(2, rootId);
+            }
+            Number bound = nsm.getSingleResult(q);
+            if (bound != null) {
+                result = above ? Math.min(result, bound.longValue()) : Math.max(result, bound.longValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reserves an interval of at least 'minWidth' values in the free space between 'prev'
+     * and 'next' (exclusive) of a sparsely numbered tree. If the space is too small, a gap
+     * for the interval and the configured gap on either side is opened at 'destLeft' first.
      *
-     * @param dest
-     * @param newLeftValue
-     * @param moveType
+     * @return The left and right value of the interval.
      */
-    private void moveBetweenTrees(Node<T> dest, int newLeftValue, int moveType) {
+    private long[] reserve(long prev, long next, long destLeft, long minWidth, int rootId) {
+        long gap = nsm.getConfig(this.type).getGap();
+        long newLeft = SparseIntervals.place(prev, next, SparseIntervals.width(prev, next, minWidth, gap), gap);
+        if (newLeft < 0) {
+            long delta = minWidth + 3 * gap - 1;
+            shiftRLValues(destLeft, 0, delta, rootId);
+            next += delta;
+            newLeft = SparseIntervals.place(prev, next, SparseIntervals.width(prev, next, minWidth, gap), gap);
+        }
+        return new long[] {newLeft, newLeft + SparseIntervals.width(prev, next, minWidth, gap) - 1};
+    }
 
-    	Configuration cfg = nsm.getConfig(this.type);
+    /**
+     * Moves this node and its descendants within the range [first, last] of its tree by
+     * 'delta' positions and 'levelDiff' levels, and all other left/right values within
+     * the range by 'otherDelta' positions to fill the vacated space, in a single statement.
+     * Adjacent siblings are thus swapped by touching only their own intervals.
+     */
+    private void rotate(long first, long last, long delta, long otherDelta, int levelDiff) {
+        Object event = TreeEvents.begin(TreeMutationEvents.SUBTREE_MOVE);
+        Configuration cfg = nsm.getConfig(this.type);
         String leftFieldName = cfg.getLeftFieldName();
         String rightFieldName = cfg.getRightFieldName();
         String levelFieldName = cfg.getLevelFieldName();
         String rootIdFieldName = cfg.getRootIdFieldName();
         String entityName = cfg.getEntityName();
 
-        // Move between trees: Detach from old tree & insert into new tree
-        int newRoot = dest.getRootValue();
-        int oldRoot = getRootValue();
-        int oldLft = getLeftValue();
-        int oldRgt = getRightValue();
-        int oldLevel = getLevel();
+        long left = getLeft();
+        long right = getRight();
+        int rootId = getRootValue();
 
-        // Prepare target tree for insertion, make room
-        shiftRLValues(newLeftValue, 0, oldRgt - oldLft - 1, newRoot);
-
-        // Set new root id for this node
-        setRootValue(newRoot);
-        //$this ->  _node ->  save();
-        // Insert this node as a new node
-        setRightValue(0);
-        setLeftValue(0);
-
-        switch (moveType) {
-            case PREV_SIBLING:
-                insertAsPrevSiblingOf(dest);
-                break;
-            case FIRST_CHILD:
-                insertAsFirstChildOf(dest);
-                break;
-            case NEXT_SIBLING:
-                insertAsNextSiblingOf(dest);
-                break;
-            case LAST_CHILD:
-                insertAsLastChildOf(dest);
-                break;
-            default:
-                throw new IllegalArgumentException("Unknown move operation: " + moveType);
-        }
-
-        setRightValue(getLeftValue() + (oldRgt - oldLft));
-
-        int newLevel = getLevel();
-        int levelDiff = newLevel - oldLevel;
-
-        // Relocate descendants of the node
-        int diff = getLeftValue() - oldLft;
-
-        // Update lft/rgt/root/level for all descendants
+        // The level is assigned first as some databases evaluate assignments in order
         StringBuilder updateQuery = new StringBuilder();
         updateQuery.append("update ").append(entityName).append(" n")
-                .append(" set n.").append(leftFieldName).append(" = n.").append(leftFieldName).append(" + ?1")
-                .append(", n.").append(rightFieldName).append(" = n.").append(rightFieldName).append(" + ?2")
-                .append(", n.").append(levelFieldName).append(" = n.").append(levelFieldName).append(" + ?3")
-                .append(", n.").append(rootIdFieldName).append(" = ?4")
-                .append(" where n.").append(leftFieldName).append(" > ?5")
-                .append(" and n.").append(rightFieldName).append(" < ?6")
-                .append(" and n.").append(rootIdFieldName).append(" = ?7");
+                .append(" set n.").append(levelFieldName).append(" = case")
+                .append(" when n.").append(leftFieldName).append(" >= ?1 and n.").append(leftFieldName).append(" <= ?2")
+                .append(" then n.").append(levelFieldName).append(" + ?3")
+                .append(" else n.").append(levelFieldName).append(" end");
+        for (String field : new String[] {leftFieldName, rightFieldName}) {
+            updateQuery.append(", n.").append(field).append(" = case")
+                    .append(" when n.").append(field).append(" >= ?1 and n.").append(field).append(" <= ?2")
+                    .append(" then n.").append(field).append(" + ?4")
+                    .append(" when n.").append(field).append(" >= ?5 and n.").append(field).append(" <= ?6")
+                    .append(" then n.").append(field).append(" + ?7")
+                    .append(" else n.").append(field).append(" end");
+        }
+        updateQuery.append(" where ((n.").append(leftFieldName).append(" >= ?5 and n.").append(leftFieldName).append(" <= ?6)")
+                .append(" or (n.").append(rightFieldName).append(" >= ?5 and n.").append(rightFieldName).append(" <= ?6))");
+        if (rootIdFieldName != null) {
+            updateQuery.append(" and n.").append(rootIdFieldName).append(" = ?8");
+        }
 
         Query q = nsm.getEntityManager().createQuery(updateQuery.toString());
-        q.setParameter(1, diff);
-        q.setParameter(2, diff);
+        q.setParameter(1, pos(left));
+        q.setParameter(2, pos(right));
         q.setParameter(3, levelDiff);
-        q.setParameter(4, newRoot);
-        q.setParameter(5, oldLft);
-        q.setParameter(6, oldRgt);
-        q.setParameter(7, oldRoot);
+        q.setParameter(4, pos(delta));
+        q.setParameter(5, pos(first));
+        q.setParameter(6, pos(last));
+        q.setParameter(7, pos(otherDelta));
+        if (rootIdFieldName != null) {
+            q.setParameter(8, rootId);
+        }
+
+        long started = nsm.bulkUpdateStarted();
+        int rows = nsm.executeUpdate(q);
+        nsm.bulkUpdateCompleted(started, SlowOperationLog.Statement.ROTATE, this.type, rootId,
+                first, last, delta, rows);
+        nsm.rowsShifted(rows);
+        nsm.rotate(first, last, left, right, delta, otherDelta, levelDiff, rootId);
+        nsm.treeChanged(TreeChange.Kind.MOVED, this.type, getId(), rootId, rootId,
+                left, right, delta, levelDiff, otherDelta);
+        TreeEvents.commit(event, this.type, rootId, rootId, left, right, delta, rows);
+    }
 
-        q.executeUpdate();
+    /**
+     * Moves this node and its descendants to the position 'destLeft' in another tree:
+     * makes room in the new tree, relocates the subtree and closes the gap in the old tree.
+     */
+    private void moveBetweenTrees(Node<T> dest, long destLeft, int newLevel) {
+        if (nsm.getConfig(this.type).getRootIdFieldName() == null) {
+            throw new UnsupportedOperationException("Moving nodes between trees requires a @RootColumn.");
+        }
+
+        long left = getLeft();
+        long right = getRight();
+        int oldRoot = getRootValue();
+        int newRoot = dest.getRootValue();
+        long treeSize = right - left + 1;
+
+        // Prepare target tree for insertion, make room
+        shiftRLValues(destLeft, 0, treeSize, newRoot);
+
+        relocate(destLeft - left, newLevel - getLevel(), newRoot);
 
         // Close gap in old tree
-        int first = oldRgt + 1;
-        int delta = oldLft - oldRgt - 1;
-        shiftRLValues(first, 0, delta, oldRoot);
+        shiftRLValues(right + 1, 0, -treeSize, oldRoot);
     }
 
-    public void makeRoot(int newRootId) {
-        if (isRoot()) {
-            return;
-        }
+    /**
+     * Moves this node and its descendants by 'delta' positions and 'levelDiff'
+     * levels into the tree 'newRoot'. Without a root column, the node stays in its tree.
+     */
+    private void relocate(long delta, int levelDiff, int newRoot) {
+        relocate(delta, delta, levelDiff, newRoot);
+    }
 
+    /**
+     * Moves this node and its descendants as {@link #relocate(long, int, int)}, but the
+     * right value of this node by 'rightDelta' positions.
+     */
+    private void relocate(long delta, long rightDelta, int levelDiff, int newRoot) {
+        Object event = TreeEvents.begin(newRoot == getRootValue()
+                ? TreeMutationEvents.SUBTREE_MOVE : TreeMutationEvents.CROSS_TREE_MOVE);
         Configuration cfg = nsm.getConfig(this.type);
         String leftFieldName = cfg.getLeftFieldName();
         String rightFieldName = cfg.getRightFieldName();
         String levelFieldName = cfg.getLevelFieldName();
         String rootIdFieldName = cfg.getRootIdFieldName();
-        String entityName =  cfg.getEntityName();
+        String entityName = cfg.getEntityName();
 
-        int oldRgt = getRightValue();
-        int oldLft = getLeftValue();
+        long left = getLeft();
+        long right = getRight();
         int oldRoot = getRootValue();
-        int oldLevel = getLevel();
-
-        // Update descendants lft/rgt/root/level values
-        int diff = 1 - oldLft;
-        int newRoot = newRootId;
 
+        // Update lft/rgt/root/level for the node and its descendants
         StringBuilder updateQuery = new StringBuilder();
         updateQuery.append("update ").append(entityName).append(" n")
-                .append(" set n.").append(leftFieldName).append(" = n.").append(leftFieldName).append(" + ?1")
-                .append(", n.").append(rightFieldName).append(" = n.").append(rightFieldName).append(" + ?2")
-                .append(", n.").append(levelFieldName).append(" = n.").append(levelFieldName).append(" - ?3")
-                .append(", n.").append(rootIdFieldName).append(" = ?4")
-                .append("where n.").append(leftFieldName).append(" > ?5")
-                .append(" and n.").append(rightFieldName).append(" < ?6")
-                .append(" and n.").append(rootIdFieldName).append(" = ?7");
+                .append(" set n.").append(leftFieldName).append(" = n.").append(leftFieldName).append(" + ?1");
+        if (rightDelta != delta) {
+            // Matched by the right value itself as some databases evaluate assignments in order
+            updateQuery.append(", n.").append(rightFieldName).append(" = case when n.").append(rightFieldName)
+                    .append(" = ?5 then n.").append(rightFieldName).append(" + ?7")
+                    .append(" else n.").append(rightFieldName).append(" + ?1 end");
+        } else {
+            updateQuery.append(", n.").append(rightFieldName).append(" = n.").append(rightFieldName).append(" + ?1");
+        }
+        updateQuery.append(", n.").append(levelFieldName).append(" = n.").append(levelFieldName).append(" + ?2");
+        if (rootIdFieldName != null) {
+            updateQuery.append(", n.").append(rootIdFieldName).append(" = ?3");
+        }
+        updateQuery.append(" where n.").append(leftFieldName).append(" >= ?4")
+                .append(" and n.").append(rightFieldName).append(" <= ?5");
+        if (rootIdFieldName != null) {
+            updateQuery.append(" and n.").append(rootIdFieldName).append(" = ?6");
+        }
 
         Query q = nsm.getEntityManager().createQuery(updateQuery.toString());
-        q.setParameter(1, diff);
-        q.setParameter(2, diff);
-        q.setParameter(3, oldLevel);
-        q.setParameter(4, newRoot);
-        q.setParameter(5, oldLft);
-        q.setParameter(6, oldRgt);
-        q.setParameter(7, oldRoot);
-
-        q.executeUpdate();
-
-        // Detach from old tree (close gap in old tree)
-        int first = oldRgt + 1;
-        int delta = oldLft - oldRgt - 1;
-        shiftRLValues(first, 0, delta, getRootValue());
-
-        // Set new lft/rgt/root/level values for root node
-        setLeftValue(1);
-        setRightValue(oldRgt - oldLft + 1);
-        setRootValue(newRootId);
-        setLevel(0);
+        q.setParameter(1, pos(delta));
+        q.setParameter(2, levelDiff);
+        q.setParameter(4, pos(left));
+        q.setParameter(5, pos(right));
+        if (rootIdFieldName != null) {
+            q.setParameter(3, newRoot);
+            q.setParameter(6, oldRoot);
+        }
+        if (rightDelta != delta) {
+            q.setParameter(7, pos(rightDelta));
+        }
+
+        long started = nsm.bulkUpdateStarted();
+        int rows = nsm.executeUpdate(q);
+        nsm.bulkUpdateCompleted(started, SlowOperationLog.Statement.RELOCATE, this.type, oldRoot,
+                left, right, delta, rows);
+        nsm.moveNodes(left, right, oldRoot, delta, levelDiff, newRoot);
+        setRight(right + rightDelta);
+        nsm.treeChanged(TreeChange.Kind.MOVED, this.type, getId(), oldRoot, newRoot, left, right, delta, levelDiff, 0);
+        TreeEvents.commit(event, this.type, oldRoot, newRoot, left, right, delta, rows);
+    }
+
+    @Override
+    public Node<T> copySubtreeAsLastChildOf(Node<T> dest, Function<? super T, ? extends T> copier) {
+        long start = begin(TreeOperation.COPY_SUBTREE, dest);
+        try {
+            return copyTo(dest, dest.getRight(), dest.getLevel() + 1, copier);
+        } finally {
+            nsm.endOperation(start);
+        }
+    }
+
+    @Override
+    public Node<T> copySubtreeAsFirstChildOf(Node<T> dest, Function<? super T, ? extends T> copier) {
+        long start = begin(TreeOperation.COPY_SUBTREE, dest);
+        try {
+            return copyTo(dest, dest.getLeft() + 1, dest.getLevel() + 1, copier);
+        } finally {
+            nsm.endOperation(start);
+        }
+    }
+
+    @Override
+    public Node<T> copySubtreeAsNextSiblingOf(Node<T> dest, Function<? super T, ? extends T> copier) {
+        long start = begin(TreeOperation.COPY_SUBTREE, dest);
+        try {
+            return copyTo(dest, dest.getRight() + 1, dest.getLevel(), copier);
+        } finally {
+            nsm.endOperation(start);
+        }
+    }
+
+    @Override
+    public Node<T> copySubtreeAsPrevSiblingOf(Node<T> dest, Function<? super T, ? extends T> copier) {
+        long start = begin(TreeOperation.COPY_SUBTREE, dest);
+        try {
+            return copyTo(dest, dest.getLeft(), dest.getLevel(), copier);
+        } finally {
+            nsm.endOperation(start);
+        }
+    }
+
+    /**
+     * Copies this node and its descendants to the position 'destLeft' in the tree of 'dest'.
+     *
+     * @param dest The node relative to which the copy is placed.
+     * @param destLeft The left value of the copy of this node.
+     * @param newLevel The level of the copy of this node.
+     * @param copier Creates the copy of an entity.
+     */
+    // Runs within the COPY_SUBTREE operation begun by the caller
+    private Node<T> copyTo(Node<T> dest, long destLeft, int newLevel, Function<? super T, ? extends T> copier) {
+        if (dest.isRoot() && destLeft != dest.getLeft() + 1 && destLeft != dest.getRight()) {
+            throw new IllegalArgumentException("Cannot copy a node as sibling of a root node.");
+        }
+
+        Object event = TreeEvents.begin(TreeMutationEvents.BULK_INSERT);
+        // Read the source subtree before the shift may renumber it
+        List<Node<T>> source = new ArrayList<Node<T>>();
+        source.add(this);
+        source.addAll(getDescendants());
+        long[] positions = new long[source.size() * 3];
+        for (int i = 0; i < source.size(); ++i) {
+            Node<T> n = source.get(i);
+            positions[3 * i] = n.getLeft() - getLeft();
+            positions[3 * i + 1] = n.getRight() - getLeft();
+            positions[3 * i + 2] = n.getLevel() - getLevel();
+        }
+
+        int newRoot = dest.getRootValue();
+        if (nsm.getConfig(this.type).isSparse()) {
+            long[] space = freeSpace(dest, destLeft);
+            destLeft = reserve(space[0], space[1], destLeft, getRight() - getLeft() + 1, newRoot)[0];
+        } else {
+            shiftRLValues(destLeft, 0, getRight() - getLeft() + 1, newRoot);
+        }
+
+        // The copies are in preorder, so the parent of a copy is the last copy one level up
+        Configuration cfg = nsm.getConfig(this.type);
+        List<T> copies = new ArrayList<T>(source.size());
+        int[] parents = new int[source.size()];
+        List<Integer> lastCopies = new ArrayList<Integer>();
+        for (int i = 0; i < source.size(); ++i) {
+            T original = source.get(i).unwrap();
+            T copy = copier.apply(original);
+            if (copy == original) {
+                throw new IllegalArgumentException("The copier must create new entities.");
+            }
+            LongNodeInfo.setLeftOf(copy, destLeft + positions[3 * i]);
+            LongNodeInfo.setRightOf(copy, destLeft + positions[3 * i + 1]);
+            int depth = (int) positions[3 * i + 2];
+            copy.setLevel(newLevel + depth);
+            copy.setRootValue(newRoot);
+            parents[i] = depth == 0 ? -1 : lastCopies.get(depth - 1);
+            if (depth < lastCopies.size()) {
+                lastCopies.set(depth, i);
+            } else {
+                lastCopies.add(i);
+            }
+            copies.add(copy);
+        }
+        nsm.persistNodes(copies, parents, cfg.tracksParents() ? parentIdAt(dest, newLevel) : null,
+                pathAt(dest, newLevel));
+
+        Node<T> copyRoot = nsm.getNode(copies.get(0));
+        for (int i = 1; i < copies.size(); ++i) {
+            nsm.getNode(copies.get(i));
+        }
+
+        nsm.treeChanged(TreeChange.Kind.INSERTED, this.type, copyRoot.getId(), newRoot, newRoot,
+                destLeft, copyRoot.getRight(), 0, 0, 0);
+        TreeEvents.commit(event, this.type, getRootValue(), newRoot, destLeft,
+                copyRoot.getRight(), destLeft - getLeft(), source.size());
+        return copyRoot;
+    }
+
+    public void makeRoot(int newRootId) {
+        if (isRoot()) {
+            return;
+        }
+        if (nsm.getConfig(this.type).getRootIdFieldName() == null) {
+            throw new UnsupportedOperationException("Making a node a root requires a @RootColumn.");
+        }
+
+        long start = begin(TreeOperation.MAKE_ROOT);
+        try {
+            long oldLft = getLeft();
+            long oldRgt = getRight();
+            int oldRoot = getRootValue();
+
+            relocate(1 - oldLft, -getLevel(), newRootId);
+
+            // Detach from old tree (close gap in old tree)
+            if (!nsm.getConfig(this.type).isSparse()) {
+                shiftRLValues(oldRgt + 1, 0, oldLft - oldRgt - 1, oldRoot);
+            }
+            if (nsm.getConfig(this.type).tracksParents()) {
+                reparent(null, "");
+            }
+        } finally {
+            nsm.endOperation(start);
+        }
     }
 }
@@ -0,0 +1,85 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+/**
+ * A {@link NodeInfo} whose left and right values are stored in <tt>long</tt> columns,
+ * for trees that outgrow the range of <tt>int</tt>, e.g. because of gaps in the numbering.
+ * Implementors only provide the <tt>long</tt> accessors; the <tt>int</tt> accessors
+ * of <tt>NodeInfo</tt> fail with an {@link ArithmeticException} once a value exceeds
+ * the range of <tt>int</tt>. All operations of the nested set managers use the
+ * <tt>long</tt> accessors.
+ */
+public interface LongNodeInfo extends NodeInfo {
+    long getLeft();
+    long getRight();
+    void setLeft(long value);
+    void setRight(long value);
+
+    @Override
+    default int getLeftValue() {
+        return Math.toIntExact(getLeft());
+    }
+
+    @Override
+    default int getRightValue() {
+        return Math.toIntExact(getRight());
+    }
+
+    @Override
+    default void setLeftValue(int value) {
+        setLeft(value);
+    }
+
+    @Override
+    default void setRightValue(int value) {
+        setRight(value);
+    }
+
+    /**
+     * @return The left value of any node info, without narrowing.
+     */
+    static long leftOf(NodeInfo info) {
+        return info instanceof LongNodeInfo ? ((LongNodeInfo) info).getLeft() : info.getLeftValue();
+    }
+
+    /**
+     * @return The right value of any node info, without narrowing.
+     */
+    static long rightOf(NodeInfo info) {
+        return info instanceof LongNodeInfo ? ((LongNodeInfo) info).getRight() : info.getRightValue();
+    }
+
+    /**
+     * Sets the left value of any node info.
+     *
+     * @throws ArithmeticException If the value exceeds the range of a plain <tt>NodeInfo</tt>.
+     */
+    static void setLeftOf(NodeInfo info, long value) {
+        if (info instanceof LongNodeInfo) {
+            ((LongNodeInfo) info).setLeft(value);
+        } else {
+            info.setLeftValue(Math.toIntExact(value));
+        }
+    }
+
+    /**
+     * Sets the right value of any node info.
+     *
+     * @throws ArithmeticException If the value exceeds the range of a plain <tt>NodeInfo</tt>.
+     */
+    static void setRightOf(NodeInfo info, long value) {
+        if (info instanceof LongNodeInfo) {
+            ((LongNodeInfo) info).setRight(value);
+        } else {
+            info.setRightValue(Math.toIntExact(value));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encoding of materialized paths. Every ID is followed by the separator, so that the
+ * path of a node is a prefix of exactly the paths of its subtree.
+ *
+ * @see org.pkaboo.jpa.nestedset.annotations.PathColumn
+ */
+final class MaterializedPath {
+    static final char SEPARATOR = '/';
+
+    private MaterializedPath() {}
+
+    /**
+     * @param parentPath The path of the parent, the empty string for roots.
+     * @param id
+     * @return The path of the node 'id' below the given parent.
+     */
+    static String child(String parentPath, int id) {
+        return parentPath + id + SEPARATOR;
+    }
+
+    /**
+     * @return The path of the parent, the empty string for roots.
+     */
+    static String parent(String path) {
+        return path.substring(0, path.lastIndexOf(SEPARATOR, path.length() - 2) + 1);
+    }
+
+    /**
+     * @return The ID of the parent, <tt>null</tt> for roots.
+     */
+    static Integer parentId(String path) {
+        String parent = parent(path);
+        return parent.isEmpty()
+                ? null
+                : Integer.valueOf(parent.substring(parent.lastIndexOf(SEPARATOR, parent.length() - 2) + 1,
+                        parent.length() - 1));
+    }
+
+    /**
+     * @return The IDs of the ancestors, from the root down.
+     */
+    static List<Integer> ancestorIds(String path) {
+        List<Integer> ids = new ArrayList<Integer>();
+        int start = 0;
+        for (int end = path.indexOf(SEPARATOR); end >= 0; end = path.indexOf(SEPARATOR, start)) {
+            ids.add(Integer.valueOf(path.substring(start, end)));
+            start = end + 1;
+        }
+        ids.remove(ids.size() - 1);
+        return ids;
+    }
+}
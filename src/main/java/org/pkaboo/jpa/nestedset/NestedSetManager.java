@@ -23,7 +23,7 @@ public interface NestedSetManager {
      * <tt>NestedSetManager</tt>. Any entities wrapped by such nodes are
      * not detached from the underlying {@link EntityManager}.
      */
-    // void clear();
+    void clear();
 
     /**
      * Create a root node for the given NodeInfo instance.
@@ -54,11 +54,24 @@ public interface NestedSetManager {
     <T extends NodeInfo> List<Node<T>> listNodes(Class<T> clazz, int rootId);
 
     /**
-     * Get the EntityManager used by this NestedSetManager.
+     * List the IDs of all trees of the given class, in ascending order. If the class
+     * has no {@link org.pkaboo.jpa.nestedset.annotations.RootColumn} all nodes
+     * belong to the single tree 0.
      *
-     * @return The EntityManager.
+     * @param clazz
+     * @return The tree IDs.
+     */
+    List<Integer> listRootIds(Class<? extends NodeInfo> clazz);
+
+    /**
+     * Deletes the given nodes and all of their descendants. Nodes that are descendants
+     * of other given nodes are covered by their ancestors. The subtrees of each tree are
+     * deleted together and the gaps they leave are closed with a single update per tree.
+     *
+     * @param <T>
+     * @param nodes
      */
-    EntityManager getEntityManager();
+    <T extends NodeInfo> void deleteAll(Collection<Node<T>> nodes);
 
     /**
      * Get the node that represents the given NodeInfo instance in the tree.
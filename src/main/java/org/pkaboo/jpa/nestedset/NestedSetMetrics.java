@@ -0,0 +1,53 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+/**
+ * Receives measurements of the operations of a {@link JpaNestedSetManager}.
+ * Operations invoked from within other operations are accounted to the outermost one.
+ * An implementation may be shared by several managers and must then be thread-safe.
+ *
+ * @see JpaNestedSetManager#setMetrics
+ */
+public interface NestedSetMetrics {
+    /** Metrics that discard all measurements. */
+    NestedSetMetrics NONE = new NestedSetMetrics() {
+        @Override public void operationCompleted(TreeOperation operation, long nanos, int statements) {}
+        @Override public void rowsShifted(TreeOperation operation, int rows) {}
+        @Override public void registrySynced(long nanos, int managedNodes) {}
+    };
+
+    /**
+     * Called when an operation has completed, normally or exceptionally.
+     *
+     * @param operation The operation.
+     * @param nanos The duration of the operation in nanoseconds.
+     * @param statements The number of JPQL statements issued by the operation.
+     */
+    void operationCompleted(TreeOperation operation, long nanos, int statements);
+
+    /**
+     * Called with the number of nodes whose values were updated by a shift of left
+     * and right values.
+     *
+     * @param operation The operation that issued the shift.
+     * @param rows The number of nodes updated, each counted once.
+     */
+    void rowsShifted(TreeOperation operation, int rows);
+
+    /**
+     * Called when the in-memory values of the managed nodes have been synchronized
+     * with a bulk update.
+     *
+     * @param nanos The duration of the synchronization in nanoseconds.
+     * @param managedNodes The number of managed nodes.
+     */
+    void registrySynced(long nanos, int managedNodes);
+}
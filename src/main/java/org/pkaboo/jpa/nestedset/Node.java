@@ -9,22 +9,75 @@
 
 package org.pkaboo.jpa.nestedset;
 
+import java.util.Comparator;
 import java.util.List;
+import java.util.function.Function;
+import javax.persistence.EntityGraph;
 
 /**
- * A node in a nested set tree.
+ * A node in a nested set tree. The left and right values of a node are always available
+ * as <tt>long</tt> values, regardless of whether the wrapped entity implements
+ * {@link LongNodeInfo}.
  *
  * @param <T extends NodeInfo> The wrapped entity type.
  */
-public interface Node<T extends NodeInfo> extends NodeInfo {
+public interface Node<T extends NodeInfo> extends LongNodeInfo {
     void moveAsLastChildOf(Node<T> dest);
     void moveAsFirstChildOf(Node<T> dest);
     void moveAsNextSiblingOf(Node<T> dest);
     void moveAsPrevSiblingOf(Node<T> dest);
+    /**
+     * Copies this node and all of its descendants to the position of the last child
+     * of 'dest'. The copies are created with the given function, which must return a new,
+     * not yet persistent entity for every entity of the subtree. Room for the copies is
+     * made with a single shift.
+     *
+     * @param dest
+     * @param copier
+     * @return The node of the copy of this node.
+     */
+    Node<T> copySubtreeAsLastChildOf(Node<T> dest, Function<? super T, ? extends T> copier);
+    /** @see #copySubtreeAsLastChildOf */
+    Node<T> copySubtreeAsFirstChildOf(Node<T> dest, Function<? super T, ? extends T> copier);
+    /** @see #copySubtreeAsLastChildOf */
+    Node<T> copySubtreeAsNextSiblingOf(Node<T> dest, Function<? super T, ? extends T> copier);
+    /** @see #copySubtreeAsLastChildOf */
+    Node<T> copySubtreeAsPrevSiblingOf(Node<T> dest, Function<? super T, ? extends T> copier);
     List<Node<T>> getChildren();
+    /**
+     * Reorders the children of this node, together with their descendants, according to
+     * the given comparator. Only the intervals of the children that change position are
+     * renumbered, with a single statement; nothing outside of this node is touched.
+     *
+     * @param order
+     */
+    void reorderChildren(Comparator<? super T> order);
+    /**
+     * Reorders the children of this node into the given order.
+     *
+     * @param children All children of this node in the desired order.
+     * @throws IllegalArgumentException If 'children' are not exactly the children of this node.
+     * @see #reorderChildren(Comparator)
+     */
+    void reorderChildren(List<Node<T>> children);
     List<Node<T>> getDescendants(int depth);
     List<Node<T>> getDescendants();
+    /**
+     * Gets the descendants of this node down to the given depth, fetching the
+     * associations of the given graph with the same query, in left-value order.
+     *
+     * @param depth The depth or 0 for all descendants.
+     * @param graph The associations to fetch or <tt>null</tt>.
+     */
+    List<Node<T>> getDescendants(int depth, EntityGraph<? super T> graph);
     List<Node<T>> getAncestors();
+    /**
+     * Gets the ancestors of this node, fetching the associations of the given graph
+     * with the same query, in left-value order.
+     *
+     * @param graph The associations to fetch or <tt>null</tt>.
+     */
+    List<Node<T>> getAncestors(EntityGraph<? super T> graph);
     Node<T> addChild(T child);
     Node<T> getParent();
     Node<T> getFirstChild();
@@ -0,0 +1,541 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * The registry of nodes managed by a {@link NestedSetManager}. Keeps the in-memory
+ * left/right/level/root values of the managed nodes in sync with the bulk updates
+ * that are issued against the database.
+ * <p>
+ * The nodes are looked up by class and ID in a table per class that is keyed by the
+ * primitive ID, so that a lookup neither allocates nor boxes. All entries are also
+ * linked in a list, in order of use if the registry is bounded, which the syncs walk.
+ * <p>
+ * Depending on its {@link RegistryPolicy}, the registry may drop nodes that are still
+ * in use. Their entities are stamped with the version of the registry at that time, and
+ * every sync advances the version, so that a stale entity can be told apart from one
+ * that missed no update.
+ */
+@NotThreadSafe
+class NodeRegistry {
+    /** A registered node. */
+    private static class Entry {
+        final int id;
+        final IdTable table;
+        Entry before;
+        Entry after;
+        private final Node<?> node;
+
+        Entry(int id, IdTable table, Node<?> node) {
+            this.id = id;
+            this.table = table;
+            this.node = node;
+        }
+
+        /** @return The node or <tt>null</tt> if it was garbage collected. */
+        Node<?> node() {
+            return this.node;
+        }
+
+        NodeInfo entity() {
+            return this.node.unwrap();
+        }
+    }
+
+    private static final class WeakEntry extends Entry {
+        private final NodeRef ref;
+        private final WeakReference<NodeInfo> entity;
+
+        WeakEntry(int id, IdTable table, Node<?> node, ReferenceQueue<Node<?>> queue) {
+            super(id, table, null);
+            this.ref = new NodeRef(node, queue, this);
+            this.entity = new WeakReference<NodeInfo>(node.unwrap());
+        }
+
+        @Override Node<?> node() {
+            return this.ref.get();
+        }
+
+        @Override NodeInfo entity() {
+            return this.entity.get();
+        }
+    }
+
+    private static final class NodeRef extends WeakReference<Node<?>> {
+        final WeakEntry entry;
+
+        NodeRef(Node<?> node, ReferenceQueue<Node<?>> queue, WeakEntry entry) {
+            super(node, queue);
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * An open addressing hash table of the entries of one class, keyed by ID.
+     */
+    private static final class IdTable {
+        private Entry[] slots = new Entry[16];
+        private int shift = 28;
+        private int size;
+
+        private int index(int id) {
+            return (id * 0x9E3779B9) >>> this.shift;
+        }
+
+        Entry get(int id) {
+            int mask = this.slots.length - 1;
+            for (int i = index(id); ; i = (i + 1) & mask) {
+                Entry e = this.slots[i];
+                if (e == null || e.id == id) {
+                    return e;
+                }
+            }
+        }
+
+        /** Adds an entry whose ID is not in the table. */
+        void add(Entry entry) {
+            if (++this.size * 2 > this.slots.length) {
+                Entry[] old = this.slots;
+                this.slots = new Entry[old.length * 2];
+                --this.shift;
+                for (Entry e : old) {
+                    if (e != null) {
+                        insert(e);
+                    }
+                }
+            }
+            insert(entry);
+        }
+
+        private void insert(Entry entry) {
+            int mask = this.slots.length - 1;
+            int i = index(entry.id);
+            while (this.slots[i] != null) {
+                i = (i + 1) & mask;
+            }
+            this.slots[i] = entry;
+        }
+
+        void remove(Entry entry) {
+            int mask = this.slots.length - 1;
+            int gap = index(entry.id);
+            while (this.slots[gap] != entry) {
+                gap = (gap + 1) & mask;
+            }
+            // Shift back the following entries of the cluster that may fill the gap
+            for (int i = (gap + 1) & mask; this.slots[i] != null; i = (i + 1) & mask) {
+                if (((i - index(this.slots[i].id)) & mask) >= ((i - gap) & mask)) {
+                    this.slots[gap] = this.slots[i];
+                    gap = i;
+                }
+            }
+            this.slots[gap] = null;
+            --this.size;
+        }
+    }
+
+    private final RegistryPolicy policy;
+    private final Map<Class<?>, IdTable> tables = new IdentityHashMap<Class<?>, IdTable>();
+    private Class<?> lastClass;
+    private IdTable lastTable;
+    /** The sentinel of the list of entries. */
+    private final Entry head = new Entry(0, null, null);
+    private int size;
+    private final ReferenceQueue<Node<?>> collected = new ReferenceQueue<Node<?>>();
+    private final Map<NodeInfo, Long> evicted = new WeakHashMap<NodeInfo, Long>();
+    private long version;
+
+    NodeRegistry() {
+        this(RegistryPolicy.strong());
+    }
+
+    NodeRegistry(RegistryPolicy policy) {
+        this.policy = policy;
+        this.head.before = this.head;
+        this.head.after = this.head;
+    }
+
+    /**
+     * @return Whether nodes may leave the registry before it is cleared.
+     */
+    boolean evicts() {
+        return this.policy.getKind() != RegistryPolicy.Kind.STRONG;
+    }
+
+    private IdTable table(Class<?> clazz, boolean create) {
+        if (clazz == this.lastClass) {
+            return this.lastTable;
+        }
+        IdTable table = this.tables.get(clazz);
+        if (table == null) {
+            if (!create) {
+                return null;
+            }
+            table = new IdTable();
+            this.tables.put(clazz, table);
+        }
+        this.lastClass = clazz;
+        this.lastTable = table;
+        return table;
+    }
+
+    Node<?> get(Class<?> clazz, int id) {
+        expunge();
+        IdTable table = table(clazz, false);
+        Entry entry = table != null ? table.get(id) : null;
+        if (entry == null) {
+            return null;
+        }
+        if (this.policy.getKind() == RegistryPolicy.Kind.BOUNDED) {
+            unlink(entry);
+            link(entry);
+        }
+        return entry.node();
+    }
+
+    void put(Node<?> node) {
+        expunge();
+        NodeInfo entity = node.unwrap();
+        IdTable table = table(entity.getClass(), true);
+        Entry old = table.get(entity.getId());
+        if (old != null) {
+            remove(old);
+        }
+        this.evicted.remove(entity);
+        Entry entry = this.policy.getKind() == RegistryPolicy.Kind.WEAK
+                ? new WeakEntry(entity.getId(), table, node, this.collected)
+                : new Entry(entity.getId(), table, node);
+        table.add(entry);
+        link(entry);
+        ++this.size;
+        if (this.policy.getKind() == RegistryPolicy.Kind.BOUNDED && this.size > this.policy.getMaxNodes()) {
+            Entry eldest = this.head.after;
+            remove(eldest);
+            evict(eldest.entity());
+        }
+    }
+
+    /**
+     * Removes the node of the given entity, if it is registered.
+     *
+     * @return The removed node or <tt>null</tt>.
+     */
+    Node<?> remove(NodeInfo entity) {
+        expunge();
+        IdTable table = table(entity.getClass(), false);
+        Entry entry = table != null ? table.get(entity.getId()) : null;
+        if (entry == null) {
+            return null;
+        }
+        remove(entry);
+        return entry.node();
+    }
+
+    void clear() {
+        this.tables.clear();
+        this.lastClass = null;
+        this.lastTable = null;
+        this.head.before = this.head;
+        this.head.after = this.head;
+        this.size = 0;
+        this.evicted.clear();
+        while (this.collected.poll() != null) {
+            // Discard
+        }
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    Collection<Node<?>> values() {
+        expunge();
+        List<Node<?>> values = new ArrayList<Node<?>>(this.size);
+        for (Entry entry = this.head.after; entry != this.head; entry = entry.after) {
+            Node<?> node = entry.node();
+            if (node != null) {
+                values.add(node);
+            }
+        }
+        return values;
+    }
+
+    private void link(Entry entry) {
+        entry.before = this.head.before;
+        entry.after = this.head;
+        this.head.before.after = entry;
+        this.head.before = entry;
+    }
+
+    private void unlink(Entry entry) {
+        entry.before.after = entry.after;
+        entry.after.before = entry.before;
+        entry.before = null;
+        entry.after = null;
+    }
+
+    private void remove(Entry entry) {
+        entry.table.remove(entry);
+        unlink(entry);
+        --this.size;
+    }
+
+    /**
+     * Removes the stamp of an entity that left the registry.
+     *
+     * @return Whether the entity missed an update since it left the registry.
+     */
+    boolean isStale(NodeInfo entity) {
+        Long stamp = this.evicted.remove(entity);
+        return stamp != null && stamp != this.version;
+    }
+
+    private void evict(NodeInfo entity) {
+        if (entity != null) {
+            this.evicted.put(entity, this.version);
+        }
+    }
+
+    /**
+     * Removes the entries of garbage collected nodes, stamping the entities that are
+     * still alive.
+     */
+    private void expunge() {
+        for (Object ref; (ref = this.collected.poll()) != null; ) {
+            WeakEntry entry = ((NodeRef) ref).entry;
+            if (entry.after != null) {
+                remove(entry);
+                evict(entry.entity());
+            }
+        }
+    }
+
+    /**
+     * Prepares the registry for a sync with a bulk update.
+     */
+    private void sync() {
+        expunge();
+        ++this.version;
+    }
+
+    /**
+     * @return The node of an entry visited by a sync, or <tt>null</tt> if it was garbage
+     *         collected since the sync began. The entity of such a node misses the update,
+     *         so it is stamped with the version before the sync.
+     */
+    private Node<?> syncedNode(Entry entry) {
+        Node<?> node = entry.node();
+        if (node == null) {
+            remove(entry);
+            NodeInfo entity = entry.entity();
+            if (entity != null) {
+                this.evicted.put(entity, this.version - 1);
+            }
+        }
+        return node;
+    }
+
+    void updateLeftValues(long minLeft, long maxLeft, long delta, int rootId) {
+        sync();
+        for (Entry entry = this.head.after, next; entry != this.head; entry = next) {
+            next = entry.after;
+            Node<?> node = syncedNode(entry);
+            if (node != null && node.getRootValue() == rootId) {
+                if (node.getLeft() >= minLeft && (maxLeft == 0 || node.getLeft() <= maxLeft)) {
+                    node.setLeft(node.getLeft() + delta);
+                }
+            }
+        }
+    }
+
+    void updateRightValues(long minRight, long maxRight, long delta, int rootId) {
+        sync();
+        for (Entry entry = this.head.after, next; entry != this.head; entry = next) {
+            next = entry.after;
+            Node<?> node = syncedNode(entry);
+            if (node != null && node.getRootValue() == rootId) {
+                if (node.getRight() >= minRight && (maxRight == 0 || node.getRight() <= maxRight)) {
+                    node.setRight(node.getRight() + delta);
+                }
+            }
+        }
+    }
+
+    void updateLevels(long left, long right, int delta, int rootId) {
+        sync();
+        for (Entry entry = this.head.after, next; entry != this.head; entry = next) {
+            next = entry.after;
+            Node<?> node = syncedNode(entry);
+            if (node != null && node.getRootValue() == rootId) {
+                if (node.getLeft() > left && node.getRight() < right) {
+                    node.setLevel(node.getLevel() + delta);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the nodes within [left, right] of the tree 'rootId' by 'delta' positions and
+     * 'levelDelta' levels, and all other left/right values within [first, last] by
+     * 'otherDelta' positions. The subtree [left, right] must lie within [first, last].
+     */
+    void rotate(long first, long last, long left, long right, long delta, long otherDelta, int levelDelta, int rootId) {
+        sync();
+        for (Entry entry = this.head.after, next; entry != this.head; entry = next) {
+            next = entry.after;
+            Node<?> node = syncedNode(entry);
+            if (node != null && node.getRootValue() == rootId) {
+                long lft = node.getLeft();
+                long rgt = node.getRight();
+                if (lft >= left && lft <= right) {
+                    node.setLevel(node.getLevel() + levelDelta);
+                }
+                node.setLeft(rotate(lft, first, last, left, right, delta, otherDelta));
+                node.setRight(rotate(rgt, first, last, left, right, delta, otherDelta));
+            }
+        }
+    }
+
+    private static long rotate(long value, long first, long last, long left, long right, long delta, long otherDelta) {
+        if (value >= left && value <= right) {
+            return value + delta;
+        }
+        if (value >= first && value <= last) {
+            return value + otherDelta;
+        }
+        return value;
+    }
+
+    /**
+     * Moves the nodes within each of the disjoint ranges [lefts[i], rights[i]] of the tree
+     * 'rootId' (inclusive) by 'deltas[i]' positions.
+     */
+    void moveRanges(long[] lefts, long[] rights, long[] deltas, int rootId) {
+        sync();
+        for (Entry entry = this.head.after, next; entry != this.head; entry = next) {
+            next = entry.after;
+            Node<?> node = syncedNode(entry);
+            if (node != null && node.getRootValue() == rootId) {
+                for (int i = 0; i < lefts.length; ++i) {
+                    if (node.getLeft() >= lefts[i] && node.getRight() <= rights[i]) {
+                        node.setLeft(node.getLeft() + deltas[i]);
+                        node.setRight(node.getRight() + deltas[i]);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Relocates all nodes within the range [left, right] of the tree 'rootId'
+     * (inclusive) by 'delta' positions and 'levelDelta' levels into the tree 'newRootId'.
+     */
+    void moveNodes(long left, long right, int rootId, long delta, int levelDelta, int newRootId) {
+        sync();
+        for (Entry entry = this.head.after, next; entry != this.head; entry = next) {
+            next = entry.after;
+            Node<?> node = syncedNode(entry);
+            if (node != null && node.getRootValue() == rootId) {
+                if (node.getLeft() >= left && node.getRight() <= right) {
+                    node.setLeft(node.getLeft() + delta);
+                    node.setRight(node.getRight() + delta);
+                    node.setLevel(node.getLevel() + levelDelta);
+                    node.setRootValue(newRootId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the prefix 'oldPrefix' of the materialized paths of the nodes of the
+     * given class by 'newPrefix'.
+     */
+    void rewritePaths(Class<?> clazz, Configuration config, String oldPrefix, String newPrefix) {
+        sync();
+        for (Entry entry = this.head.after, next; entry != this.head; entry = next) {
+            next = entry.after;
+            Node<?> node = syncedNode(entry);
+            if (node != null && node.unwrap().getClass() == clazz) {
+                String path = config.getPath(node.unwrap());
+                if (path != null && path.startsWith(oldPrefix)) {
+                    config.setPath(node.unwrap(), newPrefix + path.substring(oldPrefix.length()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all nodes within the range [left, right] of the tree 'rootId' (inclusive)
+     * from the registry and resets their left/right/level/root values.
+     *
+     * @return The removed nodes.
+     */
+    List<Node<?>> removeNodes(long left, long right, int rootId) {
+        sync();
+        List<Node<?>> result = new ArrayList<Node<?>>();
+        for (Entry entry = this.head.after, next; entry != this.head; entry = next) {
+            next = entry.after;
+            Node<?> node = syncedNode(entry);
+            if (node != null && node.getRootValue() == rootId) {
+                if (node.getLeft() >= left && node.getRight() <= right) {
+                    remove(entry);
+                    reset(node);
+                    result.add(node);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes all nodes within the given ranges of the tree 'rootId' from the registry
+     * and closes the gaps left by them in the values of the remaining nodes of the tree,
+     * in a single pass.
+     *
+     * @return The removed nodes.
+     */
+    List<Node<?>> removeRanges(DeletedRanges ranges, int rootId) {
+        sync();
+        List<Node<?>> result = new ArrayList<Node<?>>();
+        for (Entry entry = this.head.after, next; entry != this.head; entry = next) {
+            next = entry.after;
+            Node<?> node = syncedNode(entry);
+            if (node != null && node.getRootValue() == rootId) {
+                if (ranges.contains(node.getLeft())) {
+                    remove(entry);
+                    reset(node);
+                    result.add(node);
+                } else {
+                    node.setLeft(node.getLeft() + ranges.offset(node.getLeft()));
+                    node.setRight(node.getRight() + ranges.offset(node.getRight()));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void reset(Node<?> node) {
+        node.setLeft(0);
+        node.setRight(0);
+        node.setLevel(0);
+        node.setRootValue(0);
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Runs operations over all trees of an entity class, partitioned by tree ID. Every tree
+ * is processed concurrently in its own unit of work, with its own {@link EntityManager},
+ * in a transaction for writing tasks (see {@link AsyncNestedSetManager#write}) and
+ * without one for read-only tasks (see {@link AsyncNestedSetManager#read}).
+ */
+@ThreadSafe
+public class ParallelTreeOperations {
+    /**
+     * An operation on a single tree.
+     *
+     * @param <R> The result type.
+     */
+    public interface TreeTask<R> {
+        R execute(JpaNestedSetManager nsm, int rootId);
+    }
+
+    private final EntityManagerFactory emf;
+    private final Executor executor;
+    private final int parallelism;
+    private volatile ProgressListener progressListener;
+
+    /**
+     * Creates an instance that processes up to 'parallelism' trees at a time, each
+     * operation on a pool of its own.
+     *
+     * @param emf
+     * @param parallelism
+     */
+    public ParallelTreeOperations(EntityManagerFactory emf, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("The parallelism must be positive.");
+        }
+        this.emf = emf;
+        this.executor = null;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Creates an instance that processes the trees on the given executor, which is
+     * owned by the caller and determines the parallelism.
+     *
+     * @param emf
+     * @param executor
+     */
+    public ParallelTreeOperations(EntityManagerFactory emf, Executor executor) {
+        this.emf = emf;
+        this.executor = executor;
+        this.parallelism = 0;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Runs the given task for every tree of the given class, in a transaction per tree.
+     *
+     * @param <R>
+     * @param clazz
+     * @param task
+     * @return The results of the task, by tree ID in ascending order.
+     * @throws CompletionException If the task failed for any of the trees, after
+     *         all trees have been processed.
+     */
+    public <R> Map<Integer, R> forEachTree(Class<? extends NodeInfo> clazz, TreeTask<R> task) {
+        return forEachTree(clazz, task, false);
+    }
+
+    /**
+     * Runs the given task for every tree of the given class.
+     *
+     * @param <R>
+     * @param clazz
+     * @param task
+     * @param readOnly Whether the task only reads, so that no transaction is needed.
+     * @return The results of the task, by tree ID in ascending order.
+     * @throws CompletionException If the task failed for any of the trees, after
+     *         all trees have been processed.
+     */
+    public <R> Map<Integer, R> forEachTree(Class<? extends NodeInfo> clazz, TreeTask<R> task, boolean readOnly) {
+        List<Integer> rootIds = new AsyncNestedSetManager(this.emf, Runnable::run)
+                .read(nsm -> nsm.listRootIds(clazz)).join();
+
+        ForkJoinPool pool = this.executor == null ? new ForkJoinPool(this.parallelism) : null;
+        try {
+            AsyncNestedSetManager async = new AsyncNestedSetManager(this.emf, pool != null ? pool : this.executor);
+            AtomicInteger completed = new AtomicInteger();
+            int total = rootIds.size();
+
+            List<CompletableFuture<R>> futures = new ArrayList<CompletableFuture<R>>(total);
+            for (Integer rootId : rootIds) {
+                CompletableFuture<R> future = readOnly
+                        ? async.<R>read(nsm -> task.execute(nsm, rootId))
+                        : async.<R>write(nsm -> task.execute(nsm, rootId));
+                futures.add(future.whenComplete((result, ex) -> {
+                    ProgressListener listener = this.progressListener;
+                    if (listener != null) {
+                        listener.treeCompleted(rootId, completed.incrementAndGet(), total);
+                    }
+                }));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[total])).join();
+
+            Map<Integer, R> results = new LinkedHashMap<Integer, R>();
+            for (int i = 0; i < total; ++i) {
+                results.put(rootIds.get(i), futures.get(i).join());
+            }
+            return results;
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Lists the nodes of all trees of the given class.
+     *
+     * @param <T>
+     * @param clazz
+     * @return The detached entities of the trees, in ascending order of
+     *         {@link NodeInfo#getLeftValue}, by tree ID.
+     */
+    public <T extends NodeInfo> Map<Integer, List<T>> listAll(Class<T> clazz) {
+        return forEachTree(clazz, (nsm, rootId) -> JpaNestedSetManager.unwrap(nsm.listNodes(clazz, rootId)), true);
+    }
+
+    /**
+     * Passes the nodes of every tree of the given class to the given exporter. The exporter
+     * is called concurrently for different trees and must be thread-safe.
+     *
+     * @param <T>
+     * @param clazz
+     * @param exporter Receives the tree ID and the entities of the tree in ascending
+     *        order of {@link NodeInfo#getLeftValue}.
+     */
+    public <T extends NodeInfo> void exportAll(Class<T> clazz, BiConsumer<Integer, List<T>> exporter) {
+        forEachTree(clazz, (nsm, rootId) -> {
+            exporter.accept(rootId, JpaNestedSetManager.unwrap(nsm.listNodes(clazz, rootId)));
+            return null;
+        }, true);
+    }
+
+    /**
+     * Rebuilds the numbering of all trees of the given class.
+     *
+     * @param clazz
+     * @return The number of changed nodes, by tree ID.
+     * @see JpaNestedSetManager#rebuild
+     */
+    public Map<Integer, Integer> rebuildAll(Class<? extends NodeInfo> clazz) {
+        return forEachTree(clazz, (nsm, rootId) -> nsm.rebuild(clazz, rootId));
+    }
+
+    /**
+     * Validates all trees of the given class.
+     *
+     * @param clazz
+     * @param maxViolations The maximum number of violations reported per tree.
+     * @return The violations, by tree ID. Valid trees have an empty list.
+     * @see TreeValidator
+     */
+    public Map<Integer, List<TreeValidator.Violation>> validateAll(Class<? extends NodeInfo> clazz, int maxViolations) {
+        return forEachTree(clazz, (nsm, rootId) ->
+                new TreeValidator(nsm.getEntityManager(), maxViolations, 1000).validate(clazz, rootId), true);
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads the attributes of a node other than its tree values, for the
+ * {@link BinaryTreeWriter} and the {@link BinaryTreeReader}.
+ *
+ * @param <T> The entity class.
+ */
+public interface PayloadCodec<T extends NodeInfo> {
+    /**
+     * Writes the attributes of a node.
+     *
+     * @param node The node.
+     * @param out The output.
+     * @throws IOException If the output fails.
+     */
+    void write(T node, DataOutput out) throws IOException;
+
+    /**
+     * Reads the attributes of a node as written by {@link #write}.
+     *
+     * @param in The input.
+     * @return A new, transient node with the attributes set. The tree values are set
+     *         by the reader.
+     * @throws IOException If the input fails or is malformed.
+     */
+    T read(DataInput in) throws IOException;
+}
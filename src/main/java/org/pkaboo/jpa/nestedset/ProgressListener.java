@@ -0,0 +1,25 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+/**
+ * Receives progress notifications of operations that process many trees. Notifications
+ * may be delivered concurrently from several threads.
+ */
+public interface ProgressListener {
+    /**
+     * Called whenever the processing of a tree has finished, successfully or not.
+     *
+     * @param rootId The ID of the finished tree.
+     * @param completed The number of trees finished so far.
+     * @param total The total number of trees.
+     */
+    void treeCompleted(int rootId, int completed, int total);
+}
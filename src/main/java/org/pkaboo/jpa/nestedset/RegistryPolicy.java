@@ -0,0 +1,75 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Decides how long a {@link JpaNestedSetManager} keeps the nodes it hands out in its
+ * registry. The registry keeps the in-memory values of its nodes in sync with the bulk
+ * updates. A node that left the registry is refreshed from the database when it is
+ * used again and the tree was changed in the meantime.
+ *
+ * @see JpaNestedSetManager#JpaNestedSetManager(javax.persistence.EntityManager, RegistryPolicy)
+ */
+@Immutable
+public final class RegistryPolicy {
+    enum Kind { STRONG, WEAK, BOUNDED }
+
+    private static final RegistryPolicy STRONG = new RegistryPolicy(Kind.STRONG, 0);
+    private static final RegistryPolicy WEAK = new RegistryPolicy(Kind.WEAK, 0);
+
+    private final Kind kind;
+    private final int maxNodes;
+
+    private RegistryPolicy(Kind kind, int maxNodes) {
+        this.kind = kind;
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * Keeps every node until the manager is cleared. This is the default.
+     */
+    public static RegistryPolicy strong() {
+        return STRONG;
+    }
+
+    /**
+     * Keeps a node as long as the application holds a reference to it.
+     */
+    public static RegistryPolicy weak() {
+        return WEAK;
+    }
+
+    /**
+     * Keeps the most recently used nodes, up to the given number.
+     *
+     * @param maxNodes The maximum number of nodes in the registry.
+     */
+    public static RegistryPolicy bounded(int maxNodes) {
+        if (maxNodes < 1) {
+            throw new IllegalArgumentException("The registry must hold at least one node.");
+        }
+        return new RegistryPolicy(Kind.BOUNDED, maxNodes);
+    }
+
+    Kind getKind() {
+        return this.kind;
+    }
+
+    int getMaxNodes() {
+        return this.maxNodes;
+    }
+
+    @Override
+    public String toString() {
+        return this.kind == Kind.BOUNDED ? "bounded(" + this.maxNodes + ")" : this.kind.name().toLowerCase();
+    }
+}
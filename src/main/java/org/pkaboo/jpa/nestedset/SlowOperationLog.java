@@ -0,0 +1,239 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reports bulk updates of tree values that touch more rows or take longer than
+ * configured thresholds, together with the call stack that issued them.
+ *
+ * <p>The guarded statements are the shifts of left/right values and the moves
+ * of subtrees within and between trees. Unlike {@link NestedSetMetrics}, which aggregates, every
+ * offending statement is reported individually, by default as a warning to the
+ * <tt>org.pkaboo.jpa.nestedset.SlowOperationLog</tt> logger.</p>
+ *
+ * @see JpaNestedSetManager#setSlowOperationLog
+ */
+@ThreadSafe
+public class SlowOperationLog {
+    /** The kinds of guarded bulk updates. */
+    public enum Statement {
+        /** A shift of the left/right values of a range of nodes. */
+        SHIFT,
+        /** A move of a subtree within its tree, renumbering the nodes it passes. */
+        ROTATE,
+        /** A move of a subtree into another or a new tree. */
+        RELOCATE
+    }
+
+    /** Receives the slow operations. */
+    public interface Reporter {
+        void report(SlowOperation operation);
+    }
+
+    /** A reporter that logs slow operations as warnings including the call stack. */
+    public static final Reporter LOGGING = new Reporter() {
+        private final Logger log = LoggerFactory.getLogger(SlowOperationLog.class);
+
+        @Override public void report(SlowOperation operation) {
+            if (log.isWarnEnabled()) {
+                Throwable callStack = new Throwable("Call stack");
+                callStack.setStackTrace(operation.getStackTrace());
+                log.warn(operation.toString(), callStack);
+            }
+        }
+    };
+
+    /** A bulk update that exceeded a threshold. */
+    @Immutable
+    public static final class SlowOperation {
+        private final TreeOperation operation;
+        private final Statement statement;
+        private final Class<?> entityType;
+        private final int rootId;
+        private final long first;
+        private final long last;
+        private final long delta;
+        private final int rows;
+        private final long nanos;
+        private final StackTraceElement[] stackTrace;
+
+        SlowOperation(TreeOperation operation, Statement statement, Class<?> entityType, int rootId,
+                long first, long last, long delta, int rows, long nanos, StackTraceElement[] stackTrace) {
+            this.operation = operation;
+            this.statement = statement;
+            this.entityType = entityType;
+            this.rootId = rootId;
+            this.first = first;
+            this.last = last;
+            this.delta = delta;
+            this.rows = rows;
+            this.nanos = nanos;
+            this.stackTrace = stackTrace;
+        }
+
+        /**
+         * @return The operation that issued the statement.
+         */
+        public TreeOperation getOperation() {
+            return this.operation;
+        }
+
+        public Statement getStatement() {
+            return this.statement;
+        }
+
+        public Class<?> getEntityType() {
+            return this.entityType;
+        }
+
+        public int getRootId() {
+            return this.rootId;
+        }
+
+        /**
+         * @return The first left/right value (inclusive) of the affected range.
+         */
+        public long getFirst() {
+            return this.first;
+        }
+
+        /**
+         * @return The last left/right value (inclusive) of the affected range, 0 if unbounded.
+         */
+        public long getLast() {
+            return this.last;
+        }
+
+        public long getDelta() {
+            return this.delta;
+        }
+
+        /**
+         * @return The number of nodes whose values the statement changed. A shift updates
+         *         the left and the right values with separate statements, and counts the
+         *         larger number of rows of both, since a node may be updated by each.
+         */
+        public int getRows() {
+            return this.rows;
+        }
+
+        /**
+         * @return The time spent executing the statement in the database, without the
+         *         update of the in-memory values of the managed nodes.
+         */
+        public long getNanos() {
+            return this.nanos;
+        }
+
+        /**
+         * @return The call stack that issued the statement, starting at the node
+         *         that issued it.
+         */
+        public StackTraceElement[] getStackTrace() {
+            return this.stackTrace.clone();
+        }
+
+        /**
+         * @return The first frame of the call stack outside of this library, or <tt>null</tt>.
+         */
+        public StackTraceElement getCallSite() {
+            for (StackTraceElement frame : this.stackTrace) {
+                if (!isLibraryFrame(frame)) {
+                    return frame;
+                }
+            }
+            return null;
+        }
+
+        @Override public String toString() {
+            return "Slow " + this.statement + " in " + this.operation + " of " + this.entityType.getSimpleName()
+                    + ": root=" + this.rootId + ", range=[" + this.first + ", " + (this.last > 0 ? this.last : "*")
+                    + "], delta=" + this.delta + ", nodes=" + this.rows
+                    + ", db time=" + TimeUnit.NANOSECONDS.toMillis(this.nanos) + "ms, caller=" + getCallSite();
+        }
+    }
+
+    private static final String PACKAGE = SlowOperationLog.class.getPackage().getName() + ".";
+
+    private final int maxRows;
+    private final long maxNanos;
+    private final Reporter reporter;
+
+    /**
+     * Creates a log that reports to {@link #LOGGING}.
+     *
+     * @param maxRows The number of rows above which a statement is reported.
+     * @param maxDuration The duration above which a statement is reported.
+     * @param unit The unit of 'maxDuration'.
+     */
+    public SlowOperationLog(int maxRows, long maxDuration, TimeUnit unit) {
+        this(maxRows, maxDuration, unit, LOGGING);
+    }
+
+    /**
+     * @param maxRows The number of rows above which a statement is reported.
+     * @param maxDuration The duration above which a statement is reported.
+     * @param unit The unit of 'maxDuration'.
+     * @param reporter
+     */
+    public SlowOperationLog(int maxRows, long maxDuration, TimeUnit unit, Reporter reporter) {
+        if (maxRows < 0 || maxDuration < 0) {
+            throw new IllegalArgumentException("Thresholds must not be negative.");
+        }
+        this.maxRows = maxRows;
+        this.maxNanos = unit.toNanos(maxDuration);
+        this.reporter = reporter;
+    }
+
+    public int getMaxRows() {
+        return this.maxRows;
+    }
+
+    public long getMaxNanos() {
+        return this.maxNanos;
+    }
+
+    /**
+     * Called when a guarded statement has completed; reports it if it exceeds a threshold.
+     */
+    void completed(TreeOperation operation, Statement statement, Class<?> entityType, int rootId,
+            long first, long last, long delta, int rows, long nanos) {
+        if (rows <= this.maxRows && nanos <= this.maxNanos) {
+            return;
+        }
+        this.reporter.report(new SlowOperation(operation, statement, entityType, rootId,
+                first, last, delta, rows, nanos, callStack()));
+    }
+
+    /**
+     * @return The current call stack without the frames of the reporting itself.
+     */
+    private static StackTraceElement[] callStack() {
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        int start = 0;
+        while (start < stack.length && (stack[start].getClassName().equals(SlowOperationLog.class.getName())
+                || stack[start].getClassName().equals(JpaNestedSetManager.class.getName()))) {
+            ++start;
+        }
+        return Arrays.copyOfRange(stack, start, stack.length);
+    }
+
+    private static boolean isLibraryFrame(StackTraceElement frame) {
+        String className = frame.getClassName();
+        return className.startsWith(PACKAGE) && className.indexOf('.', PACKAGE.length()) < 0;
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+/**
+ * Placement of intervals into the free space of sparsely numbered trees.
+ *
+ * @see org.pkaboo.jpa.nestedset.annotations.SparseNumbering
+ */
+final class SparseIntervals {
+    private SparseIntervals() {}
+
+    /**
+     * @param prev The highest value before the free space.
+     * @param next The lowest value after the free space.
+     * @param minWidth The number of values the interval needs at least, 2 for a leaf.
+     * @param gap
+     * @return The width of an interval in the free space: 'gap' - 1 values more than needed,
+     *         leaving room for new children, but at most a third of the free space.
+     */
+    static long width(long prev, long next, long minWidth, long gap) {
+        return Math.max(minWidth, Math.min(minWidth + gap - 1, (next - prev - 1) / 3));
+    }
+
+    /**
+     * Places an interval into the free space between 'prev' and 'next' (exclusive),
+     * after at most 'gap' - 1 free values. Smaller spaces are split evenly.
+     *
+     * @param prev The highest value before the free space.
+     * @param next The lowest value after the free space.
+     * @param width The number of values of the interval.
+     * @param gap
+     * @return The left value of the interval, or -1 if it does not fit.
+     */
+    static long place(long prev, long next, long width, long gap) {
+        long free = next - prev - 1;
+        if (free < width) {
+            return -1;
+        }
+        return prev + Math.min(gap, (free - width) / 2 + 1);
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.Column;
+import javax.persistence.Embedded;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.ManyToMany;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+import javax.persistence.OneToOne;
+import javax.persistence.PersistenceException;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+import net.jcip.annotations.Immutable;
+
+/**
+ * The relational mapping of a {@link NodeInfo} entity class, derived from the
+ * same JPA and nested set annotations that drive the JPA implementation.
+ * Only basic (non-relationship) fields of the entity class are mapped.
+ */
+@Immutable
+class TableMapping {
+    private final Class<?> clazz;
+    private final Configuration config;
+    private final String tableName;
+    private final Constructor<?> constructor;
+    private final Field idField;
+    private final int idIndex;
+    private final boolean generatedId;
+    private final List<Field> fields;
+    private final Map<String, String> columns;
+    private final String selectList;
+
+    private TableMapping(Class<?> clazz, Configuration config) {
+        if (config.isSparse()) {
+            throw new UnsupportedOperationException("Sparse numbering is not supported with plain JDBC: "
+                    + clazz.getName());
+        }
+        if (config.getParentIdFieldName() != null) {
+            throw new UnsupportedOperationException("Parent columns are not supported with plain JDBC: "
+                    + clazz.getName());
+        }
+        if (config.getClosureIndex() != null) {
+            throw new UnsupportedOperationException("Closure tables are not supported with plain JDBC: "
+                    + clazz.getName());
+        }
+        if (config.getPathFieldName() != null) {
+            throw new UnsupportedOperationException("Path columns are not supported with plain JDBC: "
+                    + clazz.getName());
+        }
+        this.clazz = clazz;
+        this.config = config;
+
+        this.tableName = tableName(clazz, config.getEntityName());
+        try {
+            this.constructor = clazz.getDeclaredConstructor();
+        } catch (NoSuchMethodException ex) {
+            throw new IllegalArgumentException("No no-arg constructor found in " + clazz.getName(), ex);
+        }
+        this.constructor.setAccessible(true);
+
+        Field id = null;
+        List<Field> mapped = new ArrayList<Field>();
+        Map<String, String> cols = new HashMap<String, String>();
+        for (Field field : clazz.getDeclaredFields()) {
+            if (!isPersistent(field)) {
+                continue;
+            }
+            field.setAccessible(true);
+            if (field.getAnnotation(Id.class) != null) {
+                id = field;
+            }
+            cols.put(field.getName(), columnName(field));
+            mapped.add(field);
+        }
+        if (id == null) {
+            throw new IllegalArgumentException("No @Id field found in " + clazz.getName());
+        }
+
+        this.idField = id;
+        this.idIndex = mapped.indexOf(id) + 1;
+        this.generatedId = id.getAnnotation(GeneratedValue.class) != null;
+        this.fields = Collections.unmodifiableList(mapped);
+        this.columns = Collections.unmodifiableMap(cols);
+
+        StringBuilder sb = new StringBuilder();
+        for (Field field : this.fields) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append("n.").append(this.columns.get(field.getName()));
+        }
+        this.selectList = sb.toString();
+    }
+
+    static TableMapping forClass(Class<?> clazz) {
+        return new TableMapping(clazz, Configuration.forClass(clazz));
+    }
+
+    /**
+     * @return The name of the table of an entity class, by its <tt>@Table</tt> annotation.
+     */
+    static String tableName(Class<?> clazz, String entityName) {
+        Table table = clazz.getAnnotation(Table.class);
+        return (table != null && table.name().length() > 0) ? table.name() : entityName;
+    }
+
+    /**
+     * @return The name of the column of a field, by its <tt>@Column</tt> annotation.
+     */
+    static String columnName(Field field) {
+        Column column = field.getAnnotation(Column.class);
+        return (column != null && column.name().length() > 0) ? column.name() : field.getName();
+    }
+
+    private static boolean isPersistent(Field field) {
+        int mod = field.getModifiers();
+        return !Modifier.isStatic(mod) && !Modifier.isTransient(mod)
+                && field.getAnnotation(Transient.class) == null
+                && field.getAnnotation(OneToMany.class) == null
+                && field.getAnnotation(ManyToMany.class) == null
+                && field.getAnnotation(ManyToOne.class) == null
+                && field.getAnnotation(OneToOne.class) == null
+                && field.getAnnotation(Embedded.class) == null;
+    }
+
+    Configuration getConfig() {
+        return this.config;
+    }
+
+    String getTableName() {
+        return this.tableName;
+    }
+
+    String getLeftColumn() {
+        return this.columns.get(this.config.getLeftFieldName());
+    }
+
+    String getRightColumn() {
+        return this.columns.get(this.config.getRightFieldName());
+    }
+
+    String getLevelColumn() {
+        return this.columns.get(this.config.getLevelFieldName());
+    }
+
+    /**
+     * @return The name of the root column or <tt>null</tt> if the table holds a single tree.
+     */
+    String getRootColumn() {
+        return this.config.getRootIdFieldName() != null ? this.columns.get(this.config.getRootIdFieldName()) : null;
+    }
+
+    String getIdColumn() {
+        return this.columns.get(this.idField.getName());
+    }
+
+    /**
+     * @return The comma separated list of all mapped columns, qualified with the alias <tt>n</tt>.
+     */
+    String getSelectList() {
+        return this.selectList;
+    }
+
+    /**
+     * Whether the id of the given entity has yet to be generated by the database.
+     */
+    boolean needsGeneratedId(Object entity) {
+        if (!this.generatedId) {
+            return false;
+        }
+        try {
+            Object value = this.idField.get(entity);
+            return value == null || (value instanceof Number && ((Number) value).longValue() == 0);
+        } catch (IllegalAccessException ex) {
+            throw new PersistenceException(ex);
+        }
+    }
+
+    /**
+     * Builds the insert statement for the mapped columns, optionally without the id column.
+     */
+    String getInsertSql(boolean withId) {
+        StringBuilder cols = new StringBuilder();
+        StringBuilder params = new StringBuilder();
+        for (Field field : this.fields) {
+            if (!withId && field == this.idField) {
+                continue;
+            }
+            if (cols.length() > 0) {
+                cols.append(", ");
+                params.append(", ");
+            }
+            cols.append(this.columns.get(field.getName()));
+            params.append('?');
+        }
+        return "insert into " + this.tableName + " (" + cols + ") values (" + params + ")";
+    }
+
+    void bindInsert(PreparedStatement ps, Object entity, boolean withId) throws SQLException {
+        int i = 1;
+        try {
+            for (Field field : this.fields) {
+                if (!withId && field == this.idField) {
+                    continue;
+                }
+                ps.setObject(i++, field.get(entity));
+            }
+        } catch (IllegalAccessException ex) {
+            throw new PersistenceException(ex);
+        }
+    }
+
+    void setGeneratedId(Object entity, ResultSet keys) throws SQLException {
+        try {
+            this.idField.set(entity, read(keys, 1, this.idField.getType()));
+        } catch (IllegalAccessException ex) {
+            throw new PersistenceException(ex);
+        }
+    }
+
+    /**
+     * @return The id of the current row of a result set whose columns are those of
+     *         {@link #getSelectList()}, without creating an entity.
+     */
+    int readId(ResultSet rs) throws SQLException {
+        return rs.getInt(this.idIndex);
+    }
+
+    /**
+     * Creates an entity instance from the current row of a result set whose columns
+     * are those of {@link #getSelectList()}.
+     */
+    <T> T read(ResultSet rs, Class<T> type) throws SQLException {
+        try {
+            T entity = type.cast(this.constructor.newInstance());
+            int i = 1;
+            for (Field field : this.fields) {
+                field.set(entity, read(rs, i++, field.getType()));
+            }
+            return entity;
+        } catch (ReflectiveOperationException ex) {
+            throw new PersistenceException("Cannot instantiate " + this.clazz.getName(), ex);
+        }
+    }
+
+    private static Object read(ResultSet rs, int index, Class<?> type) throws SQLException {
+        if (type == int.class) {
+            return rs.getInt(index);
+        } else if (type == long.class) {
+            return rs.getLong(index);
+        } else if (type == short.class) {
+            return rs.getShort(index);
+        } else if (type == byte.class) {
+            return rs.getByte(index);
+        } else if (type == boolean.class) {
+            return rs.getBoolean(index);
+        } else if (type == double.class) {
+            return rs.getDouble(index);
+        } else if (type == float.class) {
+            return rs.getFloat(index);
+        } else if (type == char.class) {
+            String s = rs.getString(index);
+            return (s == null || s.isEmpty()) ? '\0' : s.charAt(0);
+        }
+        return rs.getObject(index, type);
+    }
+}
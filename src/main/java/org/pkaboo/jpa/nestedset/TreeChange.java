@@ -0,0 +1,174 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * A structural change of a tree, as published to a {@link TreeChangeListener}.
+ * The ranges of a change refer to the left/right values as they were before the
+ * change, so the changes of a transaction can be applied one after another to a copy
+ * of the tree values to bring it up to date.
+ */
+@Immutable
+public final class TreeChange {
+    /** The kinds of changes. */
+    public enum Kind {
+        /** A root node was created, with the range [first, last]. */
+        ROOT_CREATED,
+        /**
+         * A node or the copy of a subtree was inserted with the range [first, last]. The
+         * room for it was made by a preceding {@link #SHIFTED} change.
+         */
+        INSERTED,
+        /**
+         * All left and right values within [first, last] were moved by 'delta'. A 'last'
+         * of 0 means there is no upper bound.
+         */
+        SHIFTED,
+        /**
+         * The subtree [first, last] was moved by 'delta' positions and 'levelDelta' levels
+         * into the tree 'targetRootId'. Within a tree, the left and right values between
+         * the old and the new position of the subtree, the range [last + 1, last + delta]
+         * or [first + delta, first - 1], were moved by 'displacement' at the same time.
+         * For sparsely numbered entities the right value of the moved node is fitted to
+         * the free space at its new position.
+         */
+        MOVED,
+        /**
+         * The subtree [first, last] was deleted. The gap is closed by a following
+         * {@link #SHIFTED} change, unless the entity is sparsely numbered.
+         */
+        DELETED,
+        /**
+         * The children of the node were reordered within the range [first, last]. The
+         * nodes in the range, and their levels, stay the same.
+         */
+        REORDERED,
+        /**
+         * The tree was rebuilt or synchronized with an incoming version, so any of its
+         * values may have changed.
+         */
+        REBUILT
+    }
+
+    private final Kind kind;
+    private final Class<?> entityType;
+    private final int nodeId;
+    private final int rootId;
+    private final int targetRootId;
+    private final long first;
+    private final long last;
+    private final long delta;
+    private final int levelDelta;
+    private final long displacement;
+
+    TreeChange(Kind kind, Class<?> entityType, int nodeId, int rootId, int targetRootId,
+            long first, long last, long delta, int levelDelta, long displacement) {
+        this.kind = kind;
+        this.entityType = entityType;
+        this.nodeId = nodeId;
+        this.rootId = rootId;
+        this.targetRootId = targetRootId;
+        this.first = first;
+        this.last = last;
+        this.delta = delta;
+        this.levelDelta = levelDelta;
+        this.displacement = displacement;
+    }
+
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    /**
+     * @return The entity class of the nodes.
+     */
+    public Class<?> getEntityType() {
+        return this.entityType;
+    }
+
+    /**
+     * @return The ID of the created, inserted, moved or deleted node, or of the parent
+     *         of the reordered children, 0 for shifts, rebuilds and the subtrees deleted
+     *         by {@link JpaNestedSetManager#deleteAll}.
+     */
+    public int getNodeId() {
+        return this.nodeId;
+    }
+
+    /**
+     * @return The tree ID.
+     */
+    public int getRootId() {
+        return this.rootId;
+    }
+
+    /**
+     * @return The tree ID a subtree was moved to, otherwise the tree ID.
+     */
+    public int getTargetRootId() {
+        return this.targetRootId;
+    }
+
+    /**
+     * @return The first left/right value (inclusive) of the range.
+     */
+    public long getFirst() {
+        return this.first;
+    }
+
+    /**
+     * @return The last left/right value (inclusive) of the range, 0 if unbounded.
+     */
+    public long getLast() {
+        return this.last;
+    }
+
+    /**
+     * @return The offset by which the values of the range were moved.
+     */
+    public long getDelta() {
+        return this.delta;
+    }
+
+    /**
+     * @return The offset by which the levels of a moved subtree were changed.
+     */
+    public int getLevelDelta() {
+        return this.levelDelta;
+    }
+
+    /**
+     * @return The offset by which the values between the old and the new position of a
+     *         subtree moved within its tree were moved, 0 if they were not.
+     */
+    public long getDisplacement() {
+        return this.displacement;
+    }
+
+    @Override public String toString() {
+        StringBuilder sb = new StringBuilder().append(this.kind).append(' ')
+                .append(this.entityType.getSimpleName()).append(" #").append(this.nodeId)
+                .append(" tree ").append(this.rootId);
+        if (this.targetRootId != this.rootId) {
+            sb.append("->").append(this.targetRootId);
+        }
+        sb.append(" [").append(this.first).append(", ").append(this.last > 0 ? String.valueOf(this.last) : "*")
+                .append("] delta ").append(this.delta);
+        if (this.levelDelta != 0) {
+            sb.append(" level ").append(this.levelDelta);
+        }
+        if (this.displacement != 0) {
+            sb.append(" displacement ").append(this.displacement);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.List;
+
+/**
+ * Receives the structural changes of the trees of a {@link JpaNestedSetManager} once
+ * they are committed, e.g. to update caches or search indexes incrementally.
+ *
+ * @see JpaNestedSetManager#addTreeChangeListener
+ * @see JpaNestedSetManager#publishChanges
+ */
+public interface TreeChangeListener {
+    /**
+     * Called with the changes made since the previous publication.
+     *
+     * @param changes The changes in the order they were made, never empty.
+     */
+    void treeChanged(List<TreeChange> changes);
+}
@@ -0,0 +1,396 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import net.jcip.annotations.Immutable;
+
+/**
+ * The structural differences between a stored tree and an incoming version of it,
+ * whose nodes are matched by a key: the nodes to insert and to delete, and the stored
+ * nodes that move with their subtrees. The moves are minimal: a node moves if its
+ * parent changes, and among the children that keep their parent, all but a longest
+ * run of children that keep their relative order move.
+ *
+ * <p>The diff also holds the numbering of the incoming tree, which
+ * {@link JpaNestedSetManager#sync} writes to the rows whose values change.</p>
+ *
+ * @see JpaNestedSetManager#diff
+ */
+@Immutable
+public final class TreeDiff<T extends NodeInfo> {
+    final int rootId;
+    /** The nodes of the incoming tree in preorder, stored entities where matched. */
+    final List<T> targets;
+    /** Whether each of the targets is a new entity. */
+    final boolean[] inserted;
+    /** Whether each of the targets changes its parent. */
+    final boolean[] reparented;
+    /** The index of the parent of each target, -1 for roots. */
+    final int[] parents;
+    final long[] lefts;
+    final long[] rights;
+    private final List<T> insertedNodes;
+    private final List<T> deleted;
+    private final List<T> moved;
+    private final int renumbered;
+
+    private TreeDiff(int rootId, List<T> targets, boolean[] inserted, boolean[] reparented, int[] parents,
+            long[] lefts, long[] rights, List<T> insertedNodes, List<T> deleted, List<T> moved, int renumbered) {
+        this.rootId = rootId;
+        this.targets = targets;
+        this.inserted = inserted;
+        this.reparented = reparented;
+        this.parents = parents;
+        this.lefts = lefts;
+        this.rights = rights;
+        this.insertedNodes = Collections.unmodifiableList(insertedNodes);
+        this.deleted = Collections.unmodifiableList(deleted);
+        this.moved = Collections.unmodifiableList(moved);
+        this.renumbered = renumbered;
+    }
+
+    /**
+     * @return The tree ID.
+     */
+    public int getRootId() {
+        return this.rootId;
+    }
+
+    /**
+     * @return The incoming nodes without a stored counterpart, in preorder.
+     */
+    public List<T> getInserted() {
+        return this.insertedNodes;
+    }
+
+    /**
+     * @return The stored nodes without an incoming counterpart, in preorder.
+     */
+    public List<T> getDeleted() {
+        return this.deleted;
+    }
+
+    /**
+     * @return The stored nodes that move with their subtrees, in the preorder of the
+     *         incoming tree.
+     */
+    public List<T> getMoved() {
+        return this.moved;
+    }
+
+    /**
+     * @return The number of stored nodes whose left, right, level, parent or path values
+     *         change, including the moved nodes.
+     */
+    public int getRenumbered() {
+        return this.renumbered;
+    }
+
+    /**
+     * @return Whether the stored tree already matches the incoming tree.
+     */
+    public boolean isEmpty() {
+        return this.insertedNodes.isEmpty() && this.deleted.isEmpty() && this.renumbered == 0;
+    }
+
+    @Override public String toString() {
+        return "[TreeDiff: rootId=" + this.rootId + ", inserted=" + this.insertedNodes.size()
+                + ", deleted=" + this.deleted.size() + ", moved=" + this.moved.size()
+                + ", renumbered=" + this.renumbered + "]";
+    }
+
+    /**
+     * Orders the nodes of an adjacency list for {@link JpaNestedSetManager#diff}: sets
+     * the level of every node and returns the nodes in preorder, children in the order
+     * of the list. Nodes whose parent key is <tt>null</tt> or not in the list are roots.
+     *
+     * @param <T>
+     * @param <K>
+     * @param nodes
+     * @param key The key of a node.
+     * @param parentKey The key of the parent of a node.
+     * @return The nodes in preorder.
+     * @throws IllegalArgumentException If a key appears more than once or the parents form a cycle.
+     */
+    public static <T extends NodeInfo, K> List<T> preorder(Collection<T> nodes,
+            Function<? super T, ? extends K> key, Function<? super T, ? extends K> parentKey) {
+        Map<K, Integer> indexes = new HashMap<K, Integer>();
+        List<T> list = new ArrayList<T>(nodes);
+        for (int i = 0; i < list.size(); ++i) {
+            if (indexes.put(key.apply(list.get(i)), i) != null) {
+                throw new IllegalArgumentException("Duplicate key " + key.apply(list.get(i)) + ".");
+            }
+        }
+
+        // The children of each node as linked lists, in the order of the input
+        int[] firstChild = new int[list.size()];
+        int[] lastChild = new int[list.size()];
+        int[] nextSibling = new int[list.size()];
+        Arrays.fill(firstChild, -1);
+        Arrays.fill(nextSibling, -1);
+        List<Integer> roots = new ArrayList<Integer>();
+        for (int i = 0; i < list.size(); ++i) {
+            K pk = parentKey.apply(list.get(i));
+            Integer parent = pk != null ? indexes.get(pk) : null;
+            if (parent == null) {
+                roots.add(i);
+            } else if (firstChild[parent] < 0) {
+                firstChild[parent] = lastChild[parent] = i;
+            } else {
+                nextSibling[lastChild[parent]] = i;
+                lastChild[parent] = i;
+            }
+        }
+
+        List<T> result = new ArrayList<T>(list.size());
+        int[] stack = new int[list.size()];
+        for (int root : roots) {
+            int depth = 0;
+            stack[0] = root;
+            int node = root;
+            while (node >= 0) {
+                list.get(node).setLevel(depth);
+                result.add(list.get(node));
+                if (firstChild[node] >= 0) {
+                    stack[++depth] = node = firstChild[node];
+                    continue;
+                }
+                while (depth > 0 && nextSibling[stack[depth]] < 0) {
+                    --depth;
+                }
+                node = depth > 0 ? (stack[depth] = nextSibling[stack[depth]]) : -1;
+            }
+        }
+        if (result.size() != list.size()) {
+            throw new IllegalArgumentException("The parents of " + (list.size() - result.size())
+                    + " nodes form a cycle.");
+        }
+        return result;
+    }
+
+    /**
+     * @param stored The nodes of the stored tree in preorder.
+     * @param incoming The nodes of the incoming tree in preorder, with their levels.
+     * @param key The key by which stored and incoming nodes are matched.
+     * @param cfg The configuration of the entity class.
+     * @param allowForest Whether the incoming tree may have several roots.
+     * @throws IllegalArgumentException If a key appears more than once on either side or
+     *         the levels of the incoming nodes do not describe a tree.
+     */
+    static <T extends NodeInfo, K> TreeDiff<T> of(int rootId, List<Node<T>> stored, List<T> incoming,
+            Function<? super T, ? extends K> key, Configuration cfg, boolean allowForest) {
+        int n = incoming.size();
+        int[] storedParents = parents(stored.size(), i -> stored.get(i).getLevel(), true);
+        int[] parents = parents(n, i -> incoming.get(i).getLevel(), allowForest);
+
+        Map<K, Integer> storedIndexes = new HashMap<K, Integer>();
+        for (int j = 0; j < stored.size(); ++j) {
+            K k = key.apply(stored.get(j).unwrap());
+            if (storedIndexes.put(k, j) != null) {
+                throw new IllegalArgumentException("Duplicate key " + k + " in the stored tree.");
+            }
+        }
+        int[] matches = new int[n];
+        boolean[] matched = new boolean[stored.size()];
+        for (int i = 0; i < n; ++i) {
+            K k = key.apply(incoming.get(i));
+            Integer j = storedIndexes.get(k);
+            if (j != null && matched[j]) {
+                throw new IllegalArgumentException("Duplicate key " + k + " in the incoming tree.");
+            }
+            matches[i] = j != null ? j : -1;
+            if (j != null) {
+                matched[j] = true;
+            }
+        }
+
+        // A matched node moves if its parent changes, or if it is out of order among
+        // the children that keep their parent
+        boolean[] moves = new boolean[n];
+        boolean[] reparented = new boolean[n];
+        int[] firstChild = new int[n];
+        int[] nextSibling = new int[n];
+        Arrays.fill(firstChild, -1);
+        Arrays.fill(nextSibling, -1);
+        int[] lastChild = new int[n];
+        List<Integer> keptRoots = new ArrayList<Integer>();
+        for (int i = 0; i < n; ++i) {
+            if (matches[i] < 0) {
+                continue;
+            }
+            int p = parents[i];
+            int oldParent = storedParents[matches[i]];
+            int newParent = p < 0 ? -1 : matches[p] >= 0 ? matches[p] : -2;
+            if (newParent != oldParent) {
+                moves[i] = true;
+                reparented[i] = true;
+            } else if (p < 0) {
+                keptRoots.add(i);
+            } else if (firstChild[p] < 0) {
+                firstChild[p] = lastChild[p] = i;
+            } else {
+                nextSibling[lastChild[p]] = i;
+                lastChild[p] = i;
+            }
+        }
+        int[] siblings = new int[n];
+        for (int p = -1; p < n; ++p) {
+            int count = 0;
+            if (p < 0) {
+                for (int i : keptRoots) {
+                    siblings[count++] = i;
+                }
+            } else {
+                for (int i = firstChild[p]; i >= 0; i = nextSibling[i]) {
+                    siblings[count++] = i;
+                }
+            }
+            if (count > 1) {
+                markOutOfOrder(siblings, count, matches, moves);
+            }
+        }
+
+        // The numbering of the incoming tree, evenly spaced for sparsely numbered entities
+        long step = cfg.isSparse() ? cfg.getGap() : 1;
+        long[] lefts = new long[n];
+        long[] rights = new long[n];
+        int[] open = new int[n];
+        int depth = 0;
+        long counter = 1 - step;
+        for (int i = 0; i < n; ++i) {
+            while (depth > 0 && incoming.get(open[depth - 1]).getLevel() >= incoming.get(i).getLevel()) {
+                rights[open[--depth]] = counter += step;
+            }
+            lefts[i] = counter += step;
+            open[depth++] = i;
+        }
+        while (depth > 0) {
+            rights[open[--depth]] = counter += step;
+        }
+
+        // Paths are unknown below inserted nodes, whose IDs are not yet generated
+        String[] paths = new String[n];
+        if (cfg.getPathFieldName() != null) {
+            for (int i = 0; i < n; ++i) {
+                String parentPath = parents[i] < 0 ? "" : paths[parents[i]];
+                if (matches[i] >= 0 && parentPath != null) {
+                    paths[i] = MaterializedPath.child(parentPath, stored.get(matches[i]).getId());
+                }
+            }
+        }
+
+        List<T> targets = new ArrayList<T>(n);
+        boolean[] inserted = new boolean[n];
+        List<T> insertedNodes = new ArrayList<T>();
+        List<T> moved = new ArrayList<T>();
+        int renumbered = 0;
+        for (int i = 0; i < n; ++i) {
+            if (matches[i] < 0) {
+                inserted[i] = true;
+                insertedNodes.add(incoming.get(i));
+                targets.add(incoming.get(i));
+                continue;
+            }
+            Node<T> node = stored.get(matches[i]);
+            targets.add(node.unwrap());
+            if (moves[i]) {
+                moved.add(node.unwrap());
+            }
+            if (moves[i] || node.getLeft() != lefts[i] || node.getRight() != rights[i]
+                    || node.getLevel() != incoming.get(i).getLevel()
+                    || cfg.getPathFieldName() != null && !String.valueOf(paths[i]).equals(cfg.getPath(node.unwrap()))) {
+                ++renumbered;
+            }
+        }
+        List<T> deleted = new ArrayList<T>();
+        for (int j = 0; j < stored.size(); ++j) {
+            if (!matched[j]) {
+                deleted.add(stored.get(j).unwrap());
+            }
+        }
+
+        return new TreeDiff<T>(rootId, targets, inserted, reparented, parents, lefts, rights,
+                insertedNodes, deleted, moved, renumbered);
+    }
+
+    private interface Levels {
+        int levelOf(int index);
+    }
+
+    /**
+     * @return The index of the parent of each node of a preorder, -1 for roots.
+     */
+    private static int[] parents(int size, Levels levels, boolean allowForest) {
+        int[] parents = new int[size];
+        int[] open = new int[size + 1];
+        int depth = 0;
+        for (int i = 0; i < size; ++i) {
+            int level = levels.levelOf(i);
+            while (depth > 0 && levels.levelOf(open[depth - 1]) >= level) {
+                --depth;
+            }
+            boolean valid = depth > 0 ? level == levels.levelOf(open[depth - 1]) + 1
+                    : level == 0 && (i == 0 || allowForest);
+            if (!valid) {
+                throw new IllegalArgumentException("Node " + i + " with level " + level + " does not continue"
+                        + " the preorder of a tree" + (allowForest ? "." : " with a single root."));
+            }
+            parents[i] = depth > 0 ? open[depth - 1] : -1;
+            open[depth++] = i;
+        }
+        return parents;
+    }
+
+    /**
+     * Marks the siblings outside of a longest run whose stored order is ascending as
+     * moved, in O(k log k) for k siblings.
+     */
+    private static void markOutOfOrder(int[] siblings, int count, int[] matches, boolean[] moves) {
+        // tails[l] is the sibling ending the best ascending run of length l + 1
+        int[] tails = new int[count];
+        int[] previous = new int[count];
+        int length = 0;
+        for (int s = 0; s < count; ++s) {
+            int position = matches[siblings[s]];
+            int lo = 0;
+            int hi = length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (matches[siblings[tails[mid]]] < position) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            previous[s] = lo > 0 ? tails[lo - 1] : -1;
+            tails[lo] = s;
+            if (lo == length) {
+                ++length;
+            }
+        }
+        boolean[] kept = new boolean[count];
+        for (int s = length > 0 ? tails[length - 1] : -1; s >= 0; s = previous[s]) {
+            kept[s] = true;
+        }
+        for (int s = 0; s < count; ++s) {
+            if (!kept[s]) {
+                moves[siblings[s]] = true;
+            }
+        }
+    }
+}
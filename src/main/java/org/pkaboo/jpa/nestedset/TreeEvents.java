@@ -0,0 +1,61 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import org.pkaboo.jpa.nestedset.jfr.TreeMutationEvents;
+
+/**
+ * Emits Java Flight Recorder events for structural tree mutations. All methods are
+ * no-ops on runtimes without JFR support, and {@link #begin} returns <tt>null</tt>
+ * without allocating anything if the requested kind of event is not being recorded.
+ */
+final class TreeEvents {
+    private static final boolean AVAILABLE = isAvailable();
+
+    private TreeEvents() {}
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts the timing of an event of the given kind.
+     *
+     * @param kind One of the kinds of {@link TreeMutationEvents}.
+     * @return The started event, or <tt>null</tt> if it is not being recorded.
+     */
+    static Object begin(int kind) {
+        return AVAILABLE ? TreeMutationEvents.begin(kind) : null;
+    }
+
+    /**
+     * Ends and commits an event started by {@link #begin}.
+     *
+     * @param event The event, may be <tt>null</tt>.
+     * @param entityType The entity class of the nodes.
+     * @param rootId The tree ID.
+     * @param targetRootId The tree ID the nodes are moved to, or 'rootId'.
+     * @param first The first left/right value (inclusive) of the affected range.
+     * @param last The last left/right value (inclusive) of the affected range, 0 if unbounded.
+     * @param delta The offset by which the values were shifted.
+     * @param rows The number of rows affected.
+     */
+    static void commit(Object event, Class<?> entityType, int rootId, int targetRootId,
+            long first, long last, long delta, int rows) {
+        if (event != null) {
+            TreeMutationEvents.commit(event, entityType, rootId, targetRootId, first, last, delta, rows);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+/** The operations of a {@link NestedSetManager} and its {@link Node}s. */
+public enum TreeOperation {
+    CREATE_ROOT(false),
+    LIST_NODES(true),
+    STREAM_NODES(true),
+    REBUILD(false),
+    DIFF(true),
+    SYNC(false),
+    IMPORT_TREE(false),
+    ADD_CHILD(false),
+    MOVE_AS_PREV_SIBLING(false),
+    MOVE_AS_NEXT_SIBLING(false),
+    MOVE_AS_FIRST_CHILD(false),
+    MOVE_AS_LAST_CHILD(false),
+    REORDER_CHILDREN(false),
+    COPY_SUBTREE(false),
+    DELETE(false),
+    DELETE_ALL(false),
+    MAKE_ROOT(false),
+    GET_PARENT(true),
+    GET_CHILDREN(true),
+    GET_DESCENDANTS(true),
+    GET_ANCESTORS(true),
+    GET_FIRST_CHILD(true),
+    GET_LAST_CHILD(true),
+    IS_DESCENDANT(true);
+
+    private final boolean read;
+
+    TreeOperation(boolean read) {
+        this.read = read;
+    }
+
+    /**
+     * @return Whether the operation only reads nodes.
+     */
+    public boolean isRead() {
+        return this.read;
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Checks the integrity of the left/right/level values of a stored tree.
+ *
+ * <p>The tree is read in ascending order of left values in pages of a configurable size,
+ * as plain values without materializing any entities, and is checked in a single pass
+ * with an explicit stack of the ancestors of the current node. Hence the memory used
+ * is bounded by the page size and the depth of the tree.</p>
+ */
+@NotThreadSafe
+public class TreeValidator {
+    /** The kinds of integrity violations. */
+    public enum Kind {
+        /** The right value of a node is not greater than its left value. */
+        INVALID_INTERVAL,
+        /** The interval of a node is not nested within the interval of its parent. */
+        OVERLAPPING_INTERVAL,
+        /** The level of a node does not equal the level of its parent plus one. */
+        LEVEL_MISMATCH,
+        /** The left and right values of the tree are not contiguous. Not checked for sparse numbering. */
+        NUMBERING_GAP,
+        /** A node lies outside of the interval of the root node. */
+        MULTIPLE_ROOTS,
+        /** The right value of the root node is not twice the number of nodes. Not checked for sparse numbering. */
+        ROOT_RIGHT_MISMATCH
+    }
+
+    /** A violation of the integrity of a tree. */
+    @Immutable
+    public static final class Violation {
+        private final Kind kind;
+        private final int rootId;
+        private final int nodeId;
+        private final String message;
+
+        Violation(Kind kind, int rootId, int nodeId, String message) {
+            this.kind = kind;
+            this.rootId = rootId;
+            this.nodeId = nodeId;
+            this.message = message;
+        }
+
+        public Kind getKind() {
+            return this.kind;
+        }
+
+        public int getRootId() {
+            return this.rootId;
+        }
+
+        /**
+         * @return The ID of the offending node.
+         */
+        public int getNodeId() {
+            return this.nodeId;
+        }
+
+        public String getMessage() {
+            return this.message;
+        }
+
+        @Override public String toString() {
+            return "[" + this.kind + ": root=" + this.rootId + ", node=" + this.nodeId + ", " + this.message + "]";
+        }
+    }
+
+    private static final int ID = 0;
+    private static final int LEFT = 1;
+    private static final int RIGHT = 2;
+    private static final int LEVEL = 3;
+
+    private final EntityManager em;
+    private final int maxViolations;
+    private final int pageSize;
+
+    public TreeValidator(EntityManager em) {
+        this(em, 100, 1000);
+    }
+
+    /**
+     * @param em
+     * @param maxViolations The number of violations after which validation of a tree stops.
+     * @param pageSize The number of nodes read per query.
+     */
+    public TreeValidator(EntityManager em, int maxViolations, int pageSize) {
+        if (maxViolations < 1 || pageSize < 1) {
+            throw new IllegalArgumentException("maxViolations and pageSize must be positive.");
+        }
+        this.em = em;
+        this.maxViolations = maxViolations;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Validates a tree.
+     *
+     * @param clazz
+     * @param rootId The tree ID.
+     * @return The first violations found, in ascending order of left values, at most
+     *         as many as configured. An empty list if the tree is valid.
+     */
+    public List<Violation> validate(Class<? extends NodeInfo> clazz, int rootId) {
+        Configuration config = Configuration.forClass(clazz);
+        String alias = "n.";
+        StringBuilder jpql = new StringBuilder();
+        jpql.append("select ")
+                .append(alias).append(config.getIdFieldName()).append(", ")
+                .append(alias).append(config.getLeftFieldName()).append(", ")
+                .append(alias).append(config.getRightFieldName()).append(", ")
+                .append(alias).append(config.getLevelFieldName())
+                .append(" from ").append(config.getEntityName()).append(" n")
+                .append(" where (").append(alias).append(config.getLeftFieldName()).append(" > ?1")
+                .append(" or (").append(alias).append(config.getLeftFieldName()).append(" = ?1")
+                .append(" and ").append(alias).append(config.getIdFieldName()).append(" > ?2))");
+        if (config.hasManyRoots()) {
+            jpql.append(" and ").append(alias).append(config.getRootIdFieldName()).append(" = ?3");
+        }
+        jpql.append(" order by ").append(alias).append(config.getLeftFieldName())
+                .append(", ").append(alias).append(config.getIdFieldName());
+
+        TypedQuery<Object[]> q = this.em.createQuery(jpql.toString(), Object[].class);
+        q.setMaxResults(this.pageSize);
+        if (config.hasManyRoots()) {
+            q.setParameter(3, rootId);
+        }
+
+        Check check = new Check(rootId, !config.isSparse());
+        long lastLeft = config.isLongValued() ? Long.MIN_VALUE : Integer.MIN_VALUE;
+        int lastId = Integer.MIN_VALUE;
+        List<Object[]> page;
+        do {
+            q.setParameter(1, config.toParameter(lastLeft));
+            q.setParameter(2, lastId);
+            page = q.getResultList();
+            for (Object[] row : page) {
+                long[] node = new long[] {
+                    ((Number) row[ID]).longValue(),
+                    ((Number) row[LEFT]).longValue(),
+                    ((Number) row[RIGHT]).longValue(),
+                    ((Number) row[LEVEL]).longValue()
+                };
+                if (!check.next(node)) {
+                    return check.violations;
+                }
+                lastLeft = node[LEFT];
+                lastId = (int) node[ID];
+            }
+        } while (page.size() == this.pageSize);
+
+        check.finish();
+        return check.violations;
+    }
+
+    /** The state of the validation of a single tree. */
+    private final class Check {
+        private final int rootId;
+        /** Whether the values must be contiguous. */
+        private final boolean contiguous;
+        private final List<Violation> violations = new ArrayList<Violation>();
+        private final Deque<long[]> ancestors = new ArrayDeque<long[]>();
+        private long[] root;
+        private int count;
+        private long counter;
+
+        Check(int rootId, boolean contiguous) {
+            this.rootId = rootId;
+            this.contiguous = contiguous;
+        }
+
+        /**
+         * Checks the next node in left order.
+         *
+         * @return Whether validation should continue.
+         */
+        boolean next(long[] node) {
+            ++count;
+            if (node[RIGHT] <= node[LEFT]) {
+                report(Kind.INVALID_INTERVAL, node, "right value " + node[RIGHT]
+                        + " is not greater than left value " + node[LEFT]);
+            }
+
+            while (!ancestors.isEmpty() && ancestors.peek()[RIGHT] < node[LEFT]) {
+                close(ancestors.pop());
+            }
+
+            long[] parent = ancestors.peek();
+            if (root == null) {
+                root = node;
+                if (node[LEVEL] != 0) {
+                    report(Kind.LEVEL_MISMATCH, node, "root node has level " + node[LEVEL]);
+                }
+            } else if (parent == null) {
+                report(Kind.MULTIPLE_ROOTS, node, "interval [" + node[LEFT] + ", " + node[RIGHT]
+                        + "] lies outside of the root interval [" + root[LEFT] + ", " + root[RIGHT] + "]");
+            } else {
+                if (node[RIGHT] >= parent[RIGHT]) {
+                    report(Kind.OVERLAPPING_INTERVAL, node, "interval [" + node[LEFT] + ", " + node[RIGHT]
+                            + "] is not nested in parent interval [" + parent[LEFT] + ", " + parent[RIGHT] + "]");
+                }
+                if (node[LEVEL] != parent[LEVEL] + 1) {
+                    report(Kind.LEVEL_MISMATCH, node, "level " + node[LEVEL] + " does not match parent level "
+                            + parent[LEVEL]);
+                }
+            }
+
+            if (contiguous && node[LEFT] != counter + 1) {
+                report(Kind.NUMBERING_GAP, node, "left value " + node[LEFT] + " should be " + (counter + 1));
+            }
+            counter = node[LEFT];
+            ancestors.push(node);
+
+            return violations.size() < maxViolations;
+        }
+
+        private void close(long[] node) {
+            if (contiguous && node[RIGHT] != counter + 1) {
+                report(Kind.NUMBERING_GAP, node, "right value " + node[RIGHT] + " should be " + (counter + 1));
+            }
+            counter = Math.max(counter, node[RIGHT]);
+        }
+
+        void finish() {
+            while (!ancestors.isEmpty() && violations.size() < maxViolations) {
+                close(ancestors.pop());
+            }
+            if (contiguous && root != null && root[RIGHT] != 2L * count && violations.size() < maxViolations) {
+                report(Kind.ROOT_RIGHT_MISMATCH, root, "right value " + root[RIGHT] + " of the root should be "
+                        + (2 * count) + " for " + count + " nodes");
+            }
+        }
+
+        private void report(Kind kind, long[] node, String message) {
+            if (violations.size() < maxViolations) {
+                violations.add(new Violation(kind, rootId, (int) node[ID], message));
+            }
+        }
+    }
+}
@@ -57,7 +57,7 @@ public class TreeView<T extends NodeInfo> {
             tree.parent = parent;
             parent.children.add(tree);
 
-            boolean hasChildren = node.getRightValue() - node.getLeftValue() > 1;
+            boolean hasChildren = LongNodeInfo.rightOf(node) - LongNodeInfo.leftOf(node) > 1;
             if (hasChildren && (maxLevel == -1 || maxLevel > level)) {
                 ancestors.push(tree);
             }
@@ -0,0 +1,28 @@
+package org.pkaboo.jpa.nestedset.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Maintains a closure table for an entity: an entity with a row (ancestor, descendant,
+ * depth) for every node and each of its ancestors, including the node itself at depth 0.
+ * The <tt>JpaNestedSetManager</tt> keeps the rows up to date and answers ancestor
+ * queries by equality on the ID columns of the closure table.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ClosureTable {
+    /** The entity class of the closure table, with a no-argument constructor. */
+    Class<?> value();
+
+    /** The <tt>int</tt> field of the closure entity that holds the ID of the ancestor. */
+    String ancestor() default "ancestor";
+
+    /** The <tt>int</tt> field of the closure entity that holds the ID of the descendant. */
+    String descendant() default "descendant";
+
+    /** The <tt>int</tt> field of the closure entity that holds the distance in levels. */
+    String depth() default "depth";
+}
@@ -0,0 +1,12 @@
+package org.pkaboo.jpa.nestedset.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Marks an <tt>int</tt> or <tt>Integer</tt> field that holds the ID of the parent node,
+ * <tt>null</tt> or 0 for roots. The field is maintained by the <tt>JpaNestedSetManager</tt>,
+ * which then navigates to parents and children by equality on this column.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ParentColumn {}
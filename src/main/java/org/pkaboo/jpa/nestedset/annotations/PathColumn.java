@@ -0,0 +1,12 @@
+package org.pkaboo.jpa.nestedset.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Marks a <tt>String</tt> field that holds the materialized path of a node: the IDs of
+ * the root, the ancestors and the node itself, each followed by a slash, as in
+ * <tt>"1/5/12/"</tt>. The field is maintained by the <tt>JpaNestedSetManager</tt>.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface PathColumn {}
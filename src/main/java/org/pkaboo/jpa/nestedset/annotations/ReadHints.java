@@ -0,0 +1,25 @@
+package org.pkaboo.jpa.nestedset.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import javax.persistence.QueryHint;
+
+/**
+ * The query hints set on every query that reads nodes of an entity, such as
+ * <tt>javax.persistence.cache.retrieveMode</tt> or provider hints like
+ * <tt>eclipselink.read-only</tt> and <tt>eclipselink.jdbc.fetch-size</tt>. The hints
+ * are also passed to <tt>EntityManager.find</tt>. Hints unknown to the provider are
+ * ignored by it.
+ * <p>
+ * The hints are not applied to the reads that operations changing a tree make
+ * internally, such as moves, copies and deletes. Nodes read with a read-only hint
+ * are shared with the provider cache, so they are only safe for trees that are never
+ * changed through the manager that read them.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ReadHints {
+    QueryHint[] value();
+}
@@ -0,0 +1,22 @@
+package org.pkaboo.jpa.nestedset.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Numbers the left and right values of an entity sparsely: nodes are placed into the
+ * free space between the existing values, so that inserts, moves and deletes do not
+ * renumber unrelated nodes. Only when the free space at a position is exhausted, a new
+ * gap is opened by shifting the following values.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface SparseNumbering {
+    /** The number of free values before a new node and within a new leaf. */
+    long gap() default 1024;
+
+    /** The width of the interval of a new root node. */
+    long rootWidth() default 1L << 30;
+}
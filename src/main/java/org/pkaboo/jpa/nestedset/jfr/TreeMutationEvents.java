@@ -0,0 +1,144 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder events emitted for structural tree mutations. They are
+ * enabled like any other JFR event, by their name, e.g.
+ * <tt>org.pkaboo.jpa.nestedset.Shift#enabled=true</tt>.
+ */
+public final class TreeMutationEvents {
+    /** A shift of the left/right values of a range of nodes. */
+    public static final int SHIFT = 0;
+    /** A move of a subtree within its tree. */
+    public static final int SUBTREE_MOVE = 1;
+    /** A move of a subtree into another or a new tree. */
+    public static final int CROSS_TREE_MOVE = 2;
+    /** A deletion of a subtree. */
+    public static final int DELETE = 3;
+    /** An insertion of many nodes at once. */
+    public static final int BULK_INSERT = 4;
+
+    @Category({ "JPA Nested Set" })
+    abstract static class TreeMutationEvent extends Event {
+        @Label("Entity Type")
+        Class<?> entityType;
+
+        @Label("Root ID")
+        int rootId;
+
+        @Label("Target Root ID")
+        int targetRootId;
+
+        @Label("First")
+        @Description("The first left/right value (inclusive) of the affected range.")
+        long first;
+
+        @Label("Last")
+        @Description("The last left/right value (inclusive) of the affected range, 0 if unbounded.")
+        long last;
+
+        @Label("Delta")
+        long delta;
+
+        @Label("Rows Affected")
+        int rows;
+    }
+
+    @Name("org.pkaboo.jpa.nestedset.Shift")
+    @Label("Nested Set Shift")
+    static final class ShiftEvent extends TreeMutationEvent {}
+
+    @Name("org.pkaboo.jpa.nestedset.SubtreeMove")
+    @Label("Nested Set Subtree Move")
+    static final class SubtreeMoveEvent extends TreeMutationEvent {}
+
+    @Name("org.pkaboo.jpa.nestedset.CrossTreeMove")
+    @Label("Nested Set Cross-Tree Move")
+    static final class CrossTreeMoveEvent extends TreeMutationEvent {}
+
+    @Name("org.pkaboo.jpa.nestedset.Delete")
+    @Label("Nested Set Delete")
+    static final class DeleteEvent extends TreeMutationEvent {}
+
+    @Name("org.pkaboo.jpa.nestedset.BulkInsert")
+    @Label("Nested Set Bulk Insert")
+    static final class BulkInsertEvent extends TreeMutationEvent {}
+
+    private static final EventType[] TYPES = {
+        EventType.getEventType(ShiftEvent.class),
+        EventType.getEventType(SubtreeMoveEvent.class),
+        EventType.getEventType(CrossTreeMoveEvent.class),
+        EventType.getEventType(DeleteEvent.class),
+        EventType.getEventType(BulkInsertEvent.class)
+    };
+
+    private TreeMutationEvents() {}
+
+    /**
+     * Starts the timing of an event of the given kind.
+     *
+     * @param kind
+     * @return The started event, or <tt>null</tt> if it is not being recorded.
+     */
+    public static Object begin(int kind) {
+        if (!TYPES[kind].isEnabled()) {
+            return null;
+        }
+        TreeMutationEvent event;
+        switch (kind) {
+            case SHIFT:
+                event = new ShiftEvent();
+                break;
+            case SUBTREE_MOVE:
+                event = new SubtreeMoveEvent();
+                break;
+            case CROSS_TREE_MOVE:
+                event = new CrossTreeMoveEvent();
+                break;
+            case DELETE:
+                event = new DeleteEvent();
+                break;
+            case BULK_INSERT:
+                event = new BulkInsertEvent();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown event kind: " + kind);
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends and commits an event started by {@link #begin}.
+     */
+    public static void commit(Object started, Class<?> entityType, int rootId, int targetRootId,
+            long first, long last, long delta, int rows) {
+        TreeMutationEvent event = (TreeMutationEvent) started;
+        event.end();
+        if (event.shouldCommit()) {
+            event.entityType = entityType;
+            event.rootId = rootId;
+            event.targetRootId = targetRootId;
+            event.first = first;
+            event.last = last;
+            event.delta = delta;
+            event.rows = rows;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.pkaboo.jpa.nestedset.model.Category;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class AsyncNestedSetManagerTest extends FunctionalNestedSetTest {
+    private ExecutorService executor;
+    private AsyncNestedSetManager async;
+
+    @BeforeMethod
+    protected void createAsyncManager() {
+        this.executor = Executors.newFixedThreadPool(4);
+        this.async = new AsyncNestedSetManager(emFactory, executor);
+    }
+
+    @AfterMethod
+    protected void shutdownExecutor() {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void testReadsAndWrites() {
+        Category root = async.createRoot(category("Programming", 1)).join();
+        Category java = async.addChild(Category.class, root.getId(), category("Java", 0)).join();
+        Category net = async.addChild(Category.class, root.getId(), category(".NET", 0)).join();
+        assertEquals(java.getLeftValue(), 2);
+        assertEquals(net.getLeftValue(), 4);
+
+        async.moveAsFirstChildOf(Category.class, net.getId(), java.getId()).join();
+
+        List<Category> descendants = async.getDescendants(Category.class, root.getId()).join();
+        assertEquals(descendants.size(), 2);
+        assertEquals(descendants.get(0).getName(), "Java");
+        assertEquals(descendants.get(1).getName(), ".NET");
+        assertEquals(descendants.get(1).getLevel(), 2);
+
+        List<Category> ancestors = async.getAncestors(Category.class, net.getId()).join();
+        assertEquals(ancestors.size(), 2);
+        assertEquals(ancestors.get(0).getName(), "Programming");
+
+        async.delete(Category.class, java.getId()).join();
+        assertEquals(async.listNodes(Category.class, 1).join().size(), 1);
+    }
+
+    @Test
+    public void testParallelListNodes() {
+        for (int rootId = 1; rootId <= 3; ++rootId) {
+            Category root = async.createRoot(category("Root " + rootId, rootId)).join();
+            for (int i = 0; i < rootId; ++i) {
+                async.addChild(Category.class, root.getId(), category("Child " + i, 0)).join();
+            }
+        }
+
+        Map<Integer, List<Category>> trees = async.listNodes(Category.class, Arrays.asList(1, 2, 3)).join();
+        assertEquals(trees.size(), 3);
+        assertEquals(trees.get(1).size(), 2);
+        assertEquals(trees.get(2).size(), 3);
+        assertEquals(trees.get(3).size(), 4);
+        assertEquals(trees.get(3).get(0).getRightValue(), 8);
+    }
+
+    @Test
+    public void testFailedWriteIsRolledBack() {
+        Category root = async.createRoot(category("Programming", 1)).join();
+        try {
+            async.write(nsm -> {
+                nsm.getNode(nsm.getEntityManager().find(Category.class, root.getId()))
+                        .addChild(category("Java", 0));
+                throw new IllegalStateException("rollback");
+            }).join();
+            fail("The write should have failed.");
+        } catch (CompletionException expected) {
+            assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(async.listNodes(Category.class, 1).join().size(), 1);
+        assertEquals(async.listNodes(Category.class, 1).join().get(0).getRightValue(), 2);
+    }
+}
@@ -9,6 +9,7 @@
 
 package org.pkaboo.jpa.nestedset;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -253,6 +254,151 @@ public class BasicTest extends FunctionalNestedSetTest {
         assert 2 == wpfNode.getLevel();
     }
 
+    /**
+     * Moving a persisted node within its tree writes the new levels of the node
+     * itself and of its descendants, not only their in-memory values.
+     */
+    @Test
+    public void testMovingPersistedNodesWritesLevels() {
+        this.createBasicTree();
+
+        em.getTransaction().begin();
+        Node<Category> netNode = this.nsm.getNode(em.find(Category.class, this.netCat.getId()));
+        Node<Category> wpfNode = netNode.addChild(category("WPF", 0));
+        wpfNode.addChild(category("XAML", 0));
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+
+        // Move WPF > XAML up below "Programming" and then down below "Java"
+        em.getTransaction().begin();
+        Node<Category> progNode = this.nsm.getNode(em.find(Category.class, this.progCat.getId()));
+        wpfNode = this.nsm.getNode(em.find(Category.class, wpfNode.getId()));
+        wpfNode.moveAsLastChildOf(progNode);
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+
+        List<Node<Category>> tree = nsm.listNodes(Category.class);
+        assertEquals(tree.get(3).unwrap().getName(), "WPF");
+        assertEquals(tree.get(3).getLevel(), 1);
+        assertEquals(tree.get(4).getLevel(), 2);
+
+        em.getTransaction().begin();
+        Node<Category> javaNode = this.nsm.getNode(em.find(Category.class, this.javaCat.getId()));
+        tree.get(3).moveAsFirstChildOf(javaNode);
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+
+        tree = nsm.listNodes(Category.class);
+        assertEquals(tree.get(2).unwrap().getName(), "WPF");
+        assertEquals(tree.get(2).getLevel(), 2);
+        assertEquals(tree.get(3).getLevel(), 3);
+        assertTrue(new TreeValidator(em).validate(Category.class, 0).isEmpty());
+    }
+
+    @Test
+    public void testRedundantAndAdjacentMoves() {
+        this.createBasicTree();
+        InMemoryNestedSetMetrics metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+
+        em.getTransaction().begin();
+        Node<Category> progNode = this.nsm.getNode(em.find(Category.class, this.progCat.getId()));
+        Node<Category> javaNode = this.nsm.getNode(em.find(Category.class, this.javaCat.getId()));
+        Node<Category> netNode = this.nsm.getNode(em.find(Category.class, this.netCat.getId()));
+
+        // Moves to the current position issue no statements
+        javaNode.moveAsPrevSiblingOf(netNode);
+        netNode.moveAsNextSiblingOf(javaNode);
+        javaNode.moveAsFirstChildOf(progNode);
+        netNode.moveAsLastChildOf(progNode);
+        assertEquals(metrics.getStatements(TreeOperation.MOVE_AS_PREV_SIBLING), 0);
+        assertEquals(metrics.getStatements(TreeOperation.MOVE_AS_NEXT_SIBLING), 0);
+        assertEquals(metrics.getStatements(TreeOperation.MOVE_AS_FIRST_CHILD), 0);
+        assertEquals(metrics.getStatements(TreeOperation.MOVE_AS_LAST_CHILD), 0);
+
+        // Swapping adjacent siblings only renumbers the two siblings
+        netNode.moveAsPrevSiblingOf(javaNode);
+        assertEquals(metrics.getStatements(TreeOperation.MOVE_AS_PREV_SIBLING), 1);
+        assertEquals(metrics.getRowsShifted(TreeOperation.MOVE_AS_PREV_SIBLING), 2);
+        assertEquals(netNode.getLeftValue(), 2);
+        assertEquals(javaNode.getLeftValue(), 4);
+        em.getTransaction().commit();
+
+        em.refresh(progNode.unwrap());
+        em.refresh(javaNode.unwrap());
+        em.refresh(netNode.unwrap());
+        assertEquals(netNode.getLeftValue(), 2);
+        assertEquals(netNode.getRightValue(), 3);
+        assertEquals(javaNode.getLeftValue(), 4);
+        assertEquals(javaNode.getRightValue(), 5);
+        assertEquals(progNode.getRightValue(), 6);
+
+        try {
+            progNode.moveAsFirstChildOf(javaNode);
+            fail("Moving a node below one of its descendants should fail.");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testReorderChildren() {
+        this.createBasicTree();
+        InMemoryNestedSetMetrics metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+
+        /*
+                 Programming                      Programming
+                  /   |   \           ==>         /   |   \
+               Java  .NET  C++                  .NET C++  Java
+                 |                                         |
+                EJB                                       EJB
+        */
+        em.getTransaction().begin();
+        Node<Category> progNode = this.nsm.getNode(em.find(Category.class, this.progCat.getId()));
+        Node<Category> javaNode = this.nsm.getNode(em.find(Category.class, this.javaCat.getId()));
+        Category ejbCat = new Category();
+        ejbCat.setName("EJB");
+        Node<Category> ejbNode = javaNode.addChild(ejbCat);
+        Category cppCat = new Category();
+        cppCat.setName("C++");
+        Node<Category> cppNode = progNode.addChild(cppCat);
+        em.getTransaction().commit();
+
+        em.getTransaction().begin();
+        progNode.reorderChildren((a, b) -> a.getName().compareTo(b.getName()));
+        em.getTransaction().commit();
+        assertEquals(metrics.getStatements(TreeOperation.REORDER_CHILDREN), 2);
+
+        for (Node<Category> n : Arrays.asList(progNode, javaNode, ejbNode, cppNode)) {
+            em.refresh(n.unwrap());
+        }
+        Category netCat = em.find(Category.class, this.netCat.getId());
+        em.refresh(netCat);
+        assertEquals(netCat.getLeftValue(), 2);
+        assertEquals(netCat.getRightValue(), 3);
+        assertEquals(cppNode.getLeftValue(), 4);
+        assertEquals(cppNode.getRightValue(), 5);
+        assertEquals(javaNode.getLeftValue(), 6);
+        assertEquals(javaNode.getRightValue(), 9);
+        assertEquals(ejbNode.getLeftValue(), 7);
+        assertEquals(ejbNode.getRightValue(), 8);
+        assertEquals(ejbNode.getLevel(), 2);
+        assertEquals(progNode.getRightValue(), 10);
+
+        // Already in order
+        progNode.reorderChildren((a, b) -> a.getName().compareTo(b.getName()));
+        assertEquals(metrics.getStatements(TreeOperation.REORDER_CHILDREN), 3);
+
+        try {
+            progNode.reorderChildren(Arrays.asList(javaNode, cppNode, ejbNode));
+            fail("Reordering with a node that is not a child should fail.");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
     @Test
     public void testDeleteNode() {
         this.createBasicTree();
@@ -283,6 +429,101 @@ public class BasicTest extends FunctionalNestedSetTest {
         em.getTransaction().commit();
     }
 
+    @Test
+    public void testDeleteAll() {
+        this.createBasicTree();
+        InMemoryNestedSetMetrics metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+
+        /*
+                 Programming                        Programming
+                  /   |   \           ==>             |
+               Java  .NET  C++                       .NET
+                 |           |
+                EJB         STL
+        */
+        em.getTransaction().begin();
+        Node<Category> progNode = this.nsm.getNode(em.find(Category.class, this.progCat.getId()));
+        Node<Category> javaNode = this.nsm.getNode(em.find(Category.class, this.javaCat.getId()));
+        Node<Category> netNode = this.nsm.getNode(em.find(Category.class, this.netCat.getId()));
+        Category ejbCat = new Category();
+        ejbCat.setName("EJB");
+        Node<Category> ejbNode = javaNode.addChild(ejbCat);
+        Category cppCat = new Category();
+        cppCat.setName("C++");
+        Node<Category> cppNode = progNode.addChild(cppCat);
+        Category stlCat = new Category();
+        stlCat.setName("STL");
+        cppNode.addChild(stlCat);
+        em.getTransaction().commit();
+
+        em.getTransaction().begin();
+        nsm.deleteAll(Arrays.asList(ejbNode, cppNode, javaNode));
+        em.getTransaction().commit();
+        assertEquals(metrics.getStatements(TreeOperation.DELETE_ALL), 2);
+
+        assertEquals(netNode.getLeftValue(), 2);
+        assertEquals(netNode.getRightValue(), 3);
+        assertEquals(progNode.getRightValue(), 4);
+        assertEquals(javaNode.getLeftValue(), 0);
+        assertFalse(em.contains(javaNode.unwrap()));
+
+        em.clear();
+        nsm.clear();
+        List<Node<Category>> tree = nsm.listNodes(Category.class);
+        assertEquals(tree.size(), 2);
+        assertEquals(tree.get(0).getRightValue(), 4);
+        assertEquals(tree.get(1).unwrap().getName(), ".NET");
+        assertEquals(tree.get(1).getLeftValue(), 2);
+        assertEquals(tree.get(1).getRightValue(), 3);
+    }
+
+    @Test
+    public void testCopySubtree() {
+        this.createBasicTree();
+
+        em.getTransaction().begin();
+        Node<Category> javaNode = nsm.getNode(em.find(Category.class, this.javaCat.getId()));
+        Category ejbCat = new Category();
+        ejbCat.setName("EJB");
+        javaNode.addChild(ejbCat);
+        Node<Category> netNode = nsm.getNode(em.find(Category.class, this.netCat.getId()));
+
+        /*
+                 Programming
+                   /     \
+                Java     .NET
+                  |        |
+                 EJB      Java
+                           |
+                          EJB
+        */
+        Node<Category> copy = javaNode.copySubtreeAsLastChildOf(netNode, c -> {
+            Category cat = new Category();
+            cat.setName(c.getName());
+            return cat;
+        });
+        assertNotSame(copy.unwrap(), javaNode.unwrap());
+        assertEquals(copy.getLeftValue(), 7);
+        assertEquals(copy.getRightValue(), 10);
+        assertEquals(copy.getLevel(), 2);
+        assertEquals(netNode.getRightValue(), 11);
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+
+        List<Node<Category>> nodes = nsm.listNodes(Category.class, 0);
+        assertEquals(nodes.size(), 6);
+        String[] names = { "Programming", "Java", "EJB", ".NET", "Java", "EJB" };
+        int[] levels = { 0, 1, 2, 1, 2, 3 };
+        for (int i = 0; i < nodes.size(); ++i) {
+            assertEquals(nodes.get(i).unwrap().getName(), names[i]);
+            assertEquals(nodes.get(i).getLevel(), levels[i]);
+        }
+        assertEquals(nodes.get(0).getRightValue(), 12);
+        assertEquals(nodes.get(5).getLeftValue(), 8);
+    }
+
     @Test
     public void testTreeView() {
         // Create tree
@@ -412,4 +653,102 @@ public class BasicTest extends FunctionalNestedSetTest {
         assert catJ == viewJ.node;
         assert catK == viewK.node;
     }
+
+    /**
+     * Asserts that the in-memory values of the given entity match the database.
+     */
+    private void assertCurrent(Category cat) {
+        Object[] row = em.createQuery("select n.lft, n.rgt, n.level from Category n where n.id = ?1",
+                Object[].class).setParameter(1, cat.getId()).getSingleResult();
+        assertEquals(cat.getLeftValue(), ((Number) row[0]).intValue(), "left of " + cat.getName());
+        assertEquals(cat.getRightValue(), ((Number) row[1]).intValue(), "right of " + cat.getName());
+        assertEquals(cat.getLevel(), ((Number) row[2]).intValue(), "level of " + cat.getName());
+    }
+
+    @Test
+    public void testBoundedRegistryRefreshesEvictedNodes() {
+        nsm = new JpaNestedSetManager(em, RegistryPolicy.bounded(2));
+        em.getTransaction().begin();
+        Node<Category> root = nsm.createRoot(category("Root", 1));
+        Node<Category> a = root.addChild(category("A", 0));
+        Node<Category> b = root.addChild(category("B", 0));
+        Node<Category> c = root.addChild(category("C", 0));
+        assertEquals(nsm.getManagedNodes().size(), 2);
+
+        // A and B have left the registry and miss the shift
+        c.moveAsFirstChildOf(root);
+        Node<Category> a1 = a.addChild(category("A1", 0));
+        assertCurrent(a.unwrap());
+        assertEquals(a.getRight(), a1.getRight() + 1);
+        assertCurrent(nsm.getNode(b.unwrap()).unwrap());
+        b.moveAsFirstChildOf(a);
+        em.getTransaction().commit();
+
+        assertTrue(nsm.getManagedNodes().size() <= 2);
+        assertTrue(new TreeValidator(em).validate(Category.class, 1).isEmpty());
+        assertEquals(a.getChildren().size(), 2);
+    }
+
+    @Test
+    public void testWeakRegistryDropsUnreferencedNodes() throws InterruptedException {
+        nsm = new JpaNestedSetManager(em, RegistryPolicy.weak());
+        em.getTransaction().begin();
+        Node<Category> root = nsm.createRoot(category("Root", 1));
+        Category a = root.addChild(category("A", 0)).unwrap();
+        Category b = root.addChild(category("B", 0)).unwrap();
+
+        for (int i = 0; i < 50 && nsm.getManagedNodes().size() > 1; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(nsm.getManagedNodes().size(), 1);
+
+        root.getFirstChild().addChild(category("A1", 0));
+        assertCurrent(nsm.getNode(a).unwrap());
+        assertCurrent(nsm.getNode(b).unwrap());
+        em.getTransaction().commit();
+        assertTrue(new TreeValidator(em).validate(Category.class, 1).isEmpty());
+    }
+
+    @Test
+    public void testEvictedDeletedNodeIsReset() {
+        nsm = new JpaNestedSetManager(em, RegistryPolicy.bounded(1));
+        em.getTransaction().begin();
+        Node<Category> root = nsm.createRoot(category("Root", 1));
+        Node<Category> a = root.addChild(category("A", 0));
+        Node<Category> a1 = a.addChild(category("A1", 0));
+        a.delete();
+        em.getTransaction().commit();
+
+        try {
+            nsm.getNode(a1.unwrap());
+            fail("A1 was deleted along with A");
+        } catch (IllegalArgumentException expected) {
+            // Refreshed and found gone
+        }
+        assertEquals(a1.getLeft(), 0);
+        assertFalse(a1.isValid());
+        assertFalse(em.contains(a1.unwrap()));
+        assertEquals(nsm.getNode(root.unwrap()).getRight(), 2);
+    }
+
+    @Test
+    public void testDestinationIsRevalidatedWithinTheOperation() {
+        nsm = new JpaNestedSetManager(em, RegistryPolicy.bounded(1));
+        em.getTransaction().begin();
+        Node<Category> root = nsm.createRoot(category("Root", 1));
+        Node<Category> a = root.addChild(category("A", 0));
+        Node<Category> b = root.addChild(category("B", 0));
+        // A has left the registry and misses the shift
+        b.addChild(category("B1", 0));
+
+        InMemoryNestedSetMetrics metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+        b.copySubtreeAsLastChildOf(a, c -> category(c.getName() + "'", 0));
+        em.getTransaction().commit();
+
+        // The refresh of A, the descendants of B and the shift of the left and right values
+        assertEquals(metrics.getStatements(TreeOperation.COPY_SUBTREE), 4);
+        assertTrue(new TreeValidator(em).validate(Category.class, 1).isEmpty());
+    }
 }
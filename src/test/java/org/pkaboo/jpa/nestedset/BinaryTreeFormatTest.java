@@ -0,0 +1,125 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+import org.pkaboo.jpa.nestedset.model.Category;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class BinaryTreeFormatTest extends FunctionalNestedSetTest {
+    private static final PayloadCodec<Category> CODEC = new PayloadCodec<Category>() {
+        @Override public void write(Category node, DataOutput out) throws IOException {
+            out.writeUTF(node.getName());
+        }
+
+        @Override public Category read(DataInput in) throws IOException {
+            Category cat = new Category();
+            cat.setName(in.readUTF());
+            return cat;
+        }
+    };
+
+    private void createTrees() {
+        em.getTransaction().begin();
+        Node<Category> root = nsm.createRoot(category("Root", 1));
+        Node<Category> a = root.addChild(category("A", 0));
+        a.addChild(category("A1", 0));
+        a.addChild(category("A2", 0));
+        root.addChild(category("B", 0)).addChild(category("B1", 0));
+        nsm.createRoot(category("X", 2)).addChild(category("Y", 0));
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+    }
+
+    private List<String> values(int rootId) {
+        List<String> values = new ArrayList<String>();
+        for (Node<Category> n : nsm.listNodes(Category.class, rootId)) {
+            values.add(n.unwrap().getName() + " " + n.getLeft() + "-" + n.getRight() + " " + n.getLevel());
+        }
+        return values;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        createTrees();
+        InMemoryNestedSetMetrics metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BinaryTreeWriter<Category> writer = new BinaryTreeWriter<Category>(bytes, CODEC)) {
+            assertEquals(writer.writeTree(nsm, Category.class, 1), 6);
+            assertEquals(writer.writeTree(nsm, Category.class, 2), 2);
+        }
+        assertEquals(metrics.getStatements(TreeOperation.STREAM_NODES), 2);
+        // Header, two trees of three bytes per node plus the names with their lengths, and the end
+        assertEquals(bytes.size(), 5 + (2 + 6 * 3 + 6 * 2 + 12 + 1) + (2 + 2 * 3 + 2 * 2 + 2 + 1) + 1);
+
+        em.getTransaction().begin();
+        try (BinaryTreeReader<Category> reader = new BinaryTreeReader<Category>(
+                new ByteArrayInputStream(bytes.toByteArray()), CODEC)) {
+            while (reader.nextTree()) {
+                nsm.importTree(Category.class, reader.getRootId() + 10, reader.readTree());
+            }
+        }
+        em.getTransaction().commit();
+        // Only the check that the trees are empty; the nodes are persisted with their final values
+        assertEquals(metrics.getStatements(TreeOperation.IMPORT_TREE), 2);
+        nsm.clear();
+        em.clear();
+
+        assertEquals(values(11), values(1));
+        assertEquals(values(12), values(2));
+        assertTrue(new TreeValidator(em).validate(Category.class, 11).isEmpty());
+        assertEquals(values(11).get(0), "Root 1-12 0");
+    }
+
+    @Test
+    public void testStreamNodesInPages() {
+        createTrees();
+        List<String> names = new ArrayList<String>();
+        nsm.streamNodes(Category.class, 1, 2, node -> names.add(node.getName()));
+        assertEquals(String.join(", ", names), "Root, A, A1, A2, B, B1");
+        assertTrue(nsm.getManagedNodes().isEmpty());
+    }
+
+    @Test
+    public void testRejectsMalformedInputAndNonEmptyTrees() throws IOException {
+        createTrees();
+        try {
+            new BinaryTreeReader<Category>(new ByteArrayInputStream(new byte[] {'N', 'S', 'T', 'X', 1}), CODEC);
+            fail("Expected StreamCorruptedException");
+        } catch (StreamCorruptedException expected) {
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BinaryTreeWriter<Category> writer = new BinaryTreeWriter<Category>(bytes, CODEC)) {
+            writer.writeTree(nsm, Category.class, 2);
+        }
+        BinaryTreeReader<Category> reader = new BinaryTreeReader<Category>(
+                new ByteArrayInputStream(bytes.toByteArray()), CODEC);
+        assertTrue(reader.nextTree());
+        List<Category> tree = reader.readTree();
+        assertFalse(reader.nextTree());
+        try {
+            nsm.importTree(Category.class, 1, tree);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+import org.pkaboo.jpa.nestedset.model.Category;
+import org.pkaboo.jpa.nestedset.model.ClosureCategory;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Compares ancestor checks and queries on the closure table with the interval queries
+ * on a tree of the same shape. Run with <tt>mvn test -Pbenchmark</tt>.
+ */
+public class ClosureTableBenchmark extends FunctionalNestedSetTest {
+    private static final int FANOUT = 8;
+    private static final int DEPTH = 4;
+    private static final int LOOKUPS = 2000;
+
+    /**
+     * Builds a tree of the given fanout and depth in preorder, so that every insert only
+     * shifts the right values of its ancestors.
+     *
+     * @return The IDs of the nodes, in preorder.
+     */
+    private <T extends NodeInfo> List<Integer> createTree(Function<String, T> factory) {
+        em.getTransaction().begin();
+        List<Integer> ids = new ArrayList<Integer>();
+        Node<T> root = nsm.createRoot(factory.apply("Root"));
+        ids.add(root.getId());
+        addChildren(root, factory, ids, 1);
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+        return ids;
+    }
+
+    private <T extends NodeInfo> void addChildren(Node<T> parent, Function<String, T> factory,
+            List<Integer> ids, int level) {
+        for (int i = 0; i < FANOUT; ++i) {
+            Node<T> child = parent.addChild(factory.apply("Node " + ids.size()));
+            ids.add(child.getId());
+            if (level < DEPTH) {
+                addChildren(child, factory, ids, level + 1);
+            }
+        }
+    }
+
+    private <T extends NodeInfo> void run(String name, Class<T> clazz, List<Integer> ids) {
+        Random random = new Random(42);
+        InMemoryNestedSetMetrics metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+
+        int found = 0;
+        for (int i = 0; i < LOOKUPS; ++i) {
+            int id = ids.get(random.nextInt(ids.size()));
+            int ancestorId = ids.get(random.nextInt(ids.size() / FANOUT));
+            if (nsm.isDescendantOf(clazz, id, ancestorId)) {
+                ++found;
+            }
+        }
+        assertTrue(found > 0);
+
+        List<Node<T>> leaves = new ArrayList<Node<T>>();
+        for (Node<T> node : nsm.listNodes(clazz, 1)) {
+            if (node.getLevel() == DEPTH) {
+                leaves.add(node);
+            }
+        }
+        for (int i = 0; i < LOOKUPS; ++i) {
+            assertEquals(leaves.get(random.nextInt(leaves.size())).getAncestors().size(), DEPTH);
+        }
+
+        System.out.printf("%s (%d nodes): isDescendantOf %.1f us, getAncestors %.1f us%n", name, ids.size(),
+                metrics.getTotalNanos(TreeOperation.IS_DESCENDANT) / 1000.0 / LOOKUPS,
+                metrics.getTotalNanos(TreeOperation.GET_ANCESTORS) / 1000.0 / LOOKUPS);
+    }
+
+    @Test
+    public void benchmarkAncestorQueries() {
+        List<Integer> intervalIds = createTree(name -> category(name, 1));
+        List<Integer> closureIds = createTree(name -> node(ClosureCategory.class, name, 1));
+
+        // Warm up both paths before measuring
+        run("Intervals (warm-up)", Category.class, intervalIds);
+        run("Closure table (warm-up)", ClosureCategory.class, closureIds);
+        run("Intervals", Category.class, intervalIds);
+        run("Closure table", ClosureCategory.class, closureIds);
+    }
+}
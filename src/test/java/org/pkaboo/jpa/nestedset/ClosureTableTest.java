@@ -0,0 +1,125 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.pkaboo.jpa.nestedset.model.Category;
+import org.pkaboo.jpa.nestedset.model.CategoryClosure;
+import org.pkaboo.jpa.nestedset.model.ClosureCategory;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class ClosureTableTest extends FunctionalNestedSetTest {
+
+    /**
+     * Asserts that the closure table holds exactly one row per node and ancestor of the
+     * trees, as given by their intervals.
+     */
+    private void assertClosure() {
+        Set<String> expected = new TreeSet<String>();
+        for (int rootId : nsm.listRootIds(ClosureCategory.class)) {
+            List<Node<ClosureCategory>> tree = nsm.listNodes(ClosureCategory.class, rootId);
+            for (Node<ClosureCategory> a : tree) {
+                for (Node<ClosureCategory> d : tree) {
+                    if (a.getLeft() <= d.getLeft() && d.getRight() <= a.getRight()) {
+                        expected.add(a.getId() + ">" + d.getId() + ":" + (d.getLevel() - a.getLevel()));
+                    }
+                }
+            }
+        }
+
+        Set<String> actual = new TreeSet<String>();
+        for (CategoryClosure c : em.createQuery("select c from CategoryClosure c", CategoryClosure.class)
+                .getResultList()) {
+            assertTrue(actual.add(c.getAncestor() + ">" + c.getDescendant() + ":" + c.getDepth()));
+        }
+        assertEquals(actual, expected);
+    }
+
+    private static String names(List<Node<ClosureCategory>> nodes) {
+        StringBuilder sb = new StringBuilder();
+        for (Node<ClosureCategory> node : nodes) {
+            sb.append(sb.length() > 0 ? ", " : "").append(node.unwrap().getName());
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testClosureIsMaintained() {
+        em.getTransaction().begin();
+        Node<ClosureCategory> root = nsm.createRoot(node(ClosureCategory.class, "Root", 1));
+        Node<ClosureCategory> a = root.addChild(node(ClosureCategory.class, "A", 0));
+        Node<ClosureCategory> b = root.addChild(node(ClosureCategory.class, "B", 0));
+        Node<ClosureCategory> a1 = a.addChild(node(ClosureCategory.class, "A1", 0));
+        a1.addChild(node(ClosureCategory.class, "A11", 0));
+        assertClosure();
+
+        a1.moveAsFirstChildOf(b);
+        assertClosure();
+        a1.moveAsNextSiblingOf(b);
+        assertClosure();
+        b.moveAsLastChildOf(a);
+        assertClosure();
+        InMemoryNestedSetMetrics metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+        a.copySubtreeAsLastChildOf(a1, c -> node(ClosureCategory.class, c.getName() + "'", 0));
+        // The descendants, the shift and one read of the ancestors for all copies
+        assertEquals(metrics.getStatements(TreeOperation.COPY_SUBTREE), 4);
+        assertClosure();
+        a.makeRoot(2);
+        assertClosure();
+        a1.getFirstChild().delete();
+        assertClosure();
+        nsm.deleteAll(Arrays.asList(a, a1.getLastChild().getFirstChild()));
+        assertClosure();
+        em.getTransaction().commit();
+
+        nsm.clear();
+        em.clear();
+        List<Node<ClosureCategory>> tree = nsm.listNodes(ClosureCategory.class, 1);
+        assertEquals(names(tree), "Root, A1, A'");
+        assertEquals(names(tree.get(2).getAncestors()), "Root, A1");
+    }
+
+    @Test
+    public void testIsDescendantOfById() {
+        em.getTransaction().begin();
+        Node<ClosureCategory> root = nsm.createRoot(node(ClosureCategory.class, "Root", 1));
+        Node<ClosureCategory> a = root.addChild(node(ClosureCategory.class, "A", 0));
+        Node<ClosureCategory> a1 = a.addChild(node(ClosureCategory.class, "A1", 0));
+        Node<ClosureCategory> b = root.addChild(node(ClosureCategory.class, "B", 0));
+
+        Category plain = new Category();
+        plain.setName("Plain");
+        plain.setRootValue(1);
+        Node<Category> plainRoot = nsm.createRoot(plain);
+        Category child = new Category();
+        child.setName("Child");
+        Node<Category> plainChild = plainRoot.addChild(child);
+        em.getTransaction().commit();
+
+        nsm.clear();
+        em.clear();
+        InMemoryNestedSetMetrics metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+        assertTrue(nsm.isDescendantOf(ClosureCategory.class, a1.getId(), root.getId()));
+        assertTrue(nsm.isDescendantOf(ClosureCategory.class, a1.getId(), a.getId()));
+        assertFalse(nsm.isDescendantOf(ClosureCategory.class, a1.getId(), b.getId()));
+        assertFalse(nsm.isDescendantOf(ClosureCategory.class, a.getId(), a.getId()));
+        assertFalse(nsm.isDescendantOf(ClosureCategory.class, root.getId(), a.getId()));
+        assertTrue(nsm.isDescendantOf(Category.class, plainChild.getId(), plainRoot.getId()));
+        assertFalse(nsm.isDescendantOf(Category.class, plainRoot.getId(), plainChild.getId()));
+        assertEquals(metrics.getStatements(TreeOperation.IS_DESCENDANT), 7);
+        assertTrue(nsm.getManagedNodes().isEmpty());
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.List;
+import javax.persistence.EntityGraph;
+import javax.persistence.PersistenceUnitUtil;
+import org.pkaboo.jpa.nestedset.model.TaggedCategory;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class EntityGraphTest extends FunctionalNestedSetTest {
+
+    private static TaggedCategory category(String name, String... tags) {
+        TaggedCategory cat = node(TaggedCategory.class, name, 1);
+        for (String tag : tags) {
+            cat.getTags().add(tag);
+        }
+        return cat;
+    }
+
+    private static String names(List<Node<TaggedCategory>> nodes) {
+        StringBuilder sb = new StringBuilder();
+        for (Node<TaggedCategory> node : nodes) {
+            sb.append(sb.length() > 0 ? ", " : "").append(node.unwrap().getName());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates the tree Root(A(A1, A2), B) with several tags per node and reloads the
+     * root into an empty persistence context.
+     */
+    private Node<TaggedCategory> createTree() {
+        em.getTransaction().begin();
+        Node<TaggedCategory> root = nsm.createRoot(category("Root", "top"));
+        Node<TaggedCategory> a = root.addChild(category("A", "x", "y"));
+        a.addChild(category("A1", "x", "y", "z"));
+        a.addChild(category("A2"));
+        root.addChild(category("B", "y"));
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+        return nsm.listNodes(TaggedCategory.class, 1).get(0);
+    }
+
+    @Test
+    public void testDescendantsFetchGraphInOneQuery() {
+        Node<TaggedCategory> root = createTree();
+        InMemoryNestedSetMetrics metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+        PersistenceUnitUtil util = emFactory.getPersistenceUnitUtil();
+
+        EntityGraph<?> graph = em.getEntityGraph("TaggedCategory.tags");
+        @SuppressWarnings("unchecked")
+        List<Node<TaggedCategory>> descendants = root.getDescendants(0, (EntityGraph<TaggedCategory>) graph);
+        assertEquals(names(descendants), "A, A1, A2, B");
+        assertEquals(metrics.getStatements(TreeOperation.GET_DESCENDANTS), 1);
+        for (Node<TaggedCategory> node : descendants) {
+            assertTrue(util.isLoaded(node.unwrap(), "tags"), node.toString());
+            assertSame(nsm.getNode(node.unwrap()), node);
+        }
+        assertEquals(descendants.get(1).unwrap().getTags().size(), 3);
+        assertTrue(descendants.get(2).unwrap().getTags().isEmpty());
+
+        // The plain read is not affected by the graph read
+        em.clear();
+        nsm.clear();
+        root = nsm.listNodes(TaggedCategory.class, 1).get(0);
+        assertFalse(util.isLoaded(root.getDescendants().get(0).unwrap(), "tags"));
+    }
+
+    @Test
+    public void testAncestorsFetchGraph() {
+        Node<TaggedCategory> root = createTree();
+        Node<TaggedCategory> a1 = root.getDescendants().get(1);
+        em.clear();
+        nsm.clear();
+        a1 = nsm.getNode(em.find(TaggedCategory.class, a1.getId()));
+
+        EntityGraph<TaggedCategory> graph = em.createEntityGraph(TaggedCategory.class);
+        graph.addAttributeNodes("tags");
+        List<Node<TaggedCategory>> ancestors = a1.getAncestors(graph);
+        assertEquals(names(ancestors), "Root, A");
+        assertTrue(emFactory.getPersistenceUnitUtil().isLoaded(ancestors.get(1).unwrap(), "tags"));
+        assertEquals(ancestors.get(1).unwrap().getTags().size(), 2);
+        assertEquals(names(a1.getAncestors()), "Root, A");
+    }
+}
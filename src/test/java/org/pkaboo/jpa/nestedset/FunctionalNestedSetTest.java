@@ -12,6 +12,7 @@ package org.pkaboo.jpa.nestedset;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import org.pkaboo.jpa.nestedset.model.Category;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeClass;
@@ -42,6 +43,13 @@ public class FunctionalNestedSetTest {
         if (em != null) {
             em.getTransaction().begin();
             em.createQuery("delete from Category").executeUpdate();
+            em.createQuery("delete from LongCategory").executeUpdate();
+            em.createQuery("delete from SparseCategory").executeUpdate();
+            em.createQuery("delete from ParentCategory").executeUpdate();
+            em.createQuery("delete from ClosureCategory").executeUpdate();
+            em.createQuery("delete from CategoryClosure").executeUpdate();
+            em.createQuery("delete from PathCategory").executeUpdate();
+            em.createQuery("delete from TaggedCategory").executeUpdate();
             em.getTransaction().commit();
             em.close();
             em = null;
@@ -56,6 +64,25 @@ public class FunctionalNestedSetTest {
         }
     }
 
+    /**
+     * Creates a transient node of one of the test entity classes with the given name,
+     * for the tree 'rootId'.
+     */
+    protected static <T extends NodeInfo> T node(Class<T> clazz, String name, int rootId) {
+        try {
+            T node = clazz.getDeclaredConstructor().newInstance();
+            clazz.getMethod("setName", String.class).invoke(node, name);
+            node.setRootValue(rootId);
+            return node;
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    protected static Category category(String name, int rootId) {
+        return node(Category.class, name, rootId);
+    }
+
     protected void printTree(Node<?> node) {
         printNode(node);
         if (node.hasChildren()) {
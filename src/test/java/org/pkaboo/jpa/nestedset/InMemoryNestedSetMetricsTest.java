@@ -0,0 +1,61 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import org.pkaboo.jpa.nestedset.model.Category;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class InMemoryNestedSetMetricsTest extends FunctionalNestedSetTest {
+
+    @Test
+    public void testOperationsAreRecorded() {
+        InMemoryNestedSetMetrics metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+
+        em.getTransaction().begin();
+        Node<Category> root = nsm.createRoot(category("Programming", 0));
+        Node<Category> java = root.addChild(category("Java", 0));
+        root.addChild(category(".NET", 0));
+        java.moveAsNextSiblingOf(root.getLastChild());
+        assertEquals(root.getChildren().size(), 2);
+        em.getTransaction().commit();
+
+        assertEquals(metrics.getCount(TreeOperation.CREATE_ROOT), 1);
+        assertEquals(metrics.getCount(TreeOperation.ADD_CHILD), 2);
+        // one update for the left and one for the right values per child
+        assertEquals(metrics.getStatements(TreeOperation.ADD_CHILD), 4);
+        // depends on which of the new rows have been flushed at the time of the shifts
+        assertTrue(metrics.getRowsShifted(TreeOperation.ADD_CHILD) > 0);
+        assertEquals(metrics.getCount(TreeOperation.GET_LAST_CHILD), 1);
+        assertEquals(metrics.getCount(TreeOperation.MOVE_AS_NEXT_SIBLING), 1);
+        assertTrue(metrics.getRowsShifted(TreeOperation.MOVE_AS_NEXT_SIBLING) > 0);
+
+        // getChildren() is recorded once, not as a nested getDescendants()
+        assertEquals(metrics.getCount(TreeOperation.GET_CHILDREN), 1);
+        assertEquals(metrics.getStatements(TreeOperation.GET_CHILDREN), 1);
+        assertEquals(metrics.getCount(TreeOperation.GET_DESCENDANTS), 0);
+
+        assertTrue(metrics.getRegistrySyncs() > 0);
+        assertTrue(metrics.getPercentileNanos(TreeOperation.ADD_CHILD, 50) > 0);
+        assertTrue(metrics.getPercentileNanos(TreeOperation.ADD_CHILD, 100)
+                >= metrics.getPercentileNanos(TreeOperation.ADD_CHILD, 50));
+        assertEquals(metrics.getPercentileNanos(TreeOperation.DELETE, 99), 0);
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        for (long value : new long[] { 0, 1, 7, 8, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE }) {
+            long upper = InMemoryNestedSetMetrics.upperBound(InMemoryNestedSetMetrics.bucket(value));
+            assertTrue(upper >= value);
+            assertTrue(upper - value <= value / 8);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import org.pkaboo.jpa.nestedset.IndexAdvisor.Dialect;
+import org.pkaboo.jpa.nestedset.IndexAdvisor.Index;
+import org.pkaboo.jpa.nestedset.model.Category;
+import org.pkaboo.jpa.nestedset.model.ClosureCategory;
+import org.pkaboo.jpa.nestedset.model.PathCategory;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class IndexAdvisorTest extends FunctionalNestedSetTest {
+    private final IndexAdvisor advisor = new IndexAdvisor();
+
+    @Test
+    public void testRecommendations() {
+        List<Index> indexes = advisor.recommend(Category.class);
+        assertEquals(indexes.size(), 2);
+        assertEquals(indexes.get(0).getColumns(), Arrays.asList("rootId", "lft", "rgt", "level"));
+        assertEquals(indexes.get(1).getColumns(), Arrays.asList("rootId", "rgt", "lft"));
+        assertEquals(advisor.toDdl(Category.class, Dialect.MYSQL).get(0),
+                "CREATE INDEX ix_category_lft ON Category (rootId, lft, rgt, level)");
+
+        List<String> pathDdl = advisor.toDdl(PathCategory.class, Dialect.POSTGRESQL);
+        assertEquals(pathDdl.get(2), "CREATE INDEX ix_pathcategory_path ON PathCategory (path varchar_pattern_ops)");
+        assertEquals(advisor.toDdl(PathCategory.class, Dialect.HSQLDB).get(2),
+                "CREATE INDEX ix_pathcategory_path ON PathCategory (path)");
+
+        List<Index> closure = advisor.recommend(ClosureCategory.class);
+        assertEquals(closure.size(), 4);
+        assertEquals(closure.get(2).getTableName(), "CategoryClosure");
+        assertEquals(closure.get(2).getColumns(), Arrays.asList("descendant", "depth", "ancestor"));
+    }
+
+    @Test
+    public void testFindMissingIndexes() throws SQLException {
+        em.getTransaction().begin();
+        Connection connection = em.unwrap(Connection.class);
+        DatabaseMetaData metaData = connection.getMetaData();
+
+        // The path index is declared by the entity, the interval indexes are not
+        List<Index> missing = advisor.findMissing(metaData, PathCategory.class);
+        assertEquals(missing.size(), 2);
+        assertEquals(missing.get(0).getColumns().get(1), "lft");
+
+        List<Index> reported = advisor.reportMissing(metaData, Dialect.HSQLDB, Category.class);
+        assertEquals(reported.size(), 2);
+        try (Statement st = connection.createStatement()) {
+            for (Index index : reported) {
+                st.execute(index.toDdl(Dialect.HSQLDB));
+            }
+            assertTrue(advisor.findMissing(metaData, Category.class).isEmpty());
+            for (Index index : reported) {
+                st.execute("DROP INDEX " + index.getName());
+            }
+        }
+        em.getTransaction().commit();
+    }
+}
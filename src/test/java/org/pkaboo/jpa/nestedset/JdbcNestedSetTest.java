@@ -0,0 +1,267 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import org.pkaboo.jpa.nestedset.model.Category;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.pkaboo.jpa.nestedset.FunctionalNestedSetTest.category;
+import static org.testng.Assert.*;
+
+public class JdbcNestedSetTest {
+    private Connection connection;
+    private JdbcNestedSetManager nsm;
+
+    @BeforeMethod
+    protected void createConnection() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:hsqldb:mem:unit-testing-jdbc", "sa", "");
+        try (Statement st = connection.createStatement()) {
+            st.execute("create table Category (id integer generated by default as identity (start with 1) primary key,"
+                    + " name varchar(255), lft integer, rgt integer, level integer, rootId integer)");
+        }
+        connection.setAutoCommit(false);
+        nsm = new JdbcNestedSetManager(connection);
+    }
+
+    @AfterMethod
+    protected void closeConnection() throws SQLException {
+        nsm.close();
+        try (Statement st = connection.createStatement()) {
+            st.execute("drop table Category");
+        }
+        connection.commit();
+        connection.close();
+    }
+
+    /**
+     * Creates the tree
+     *
+     *           Programming
+     *            /       \
+     *         Java       .NET
+     */
+    private Node<Category> createBasicTree() throws SQLException {
+        Node<Category> root = nsm.createRoot(category("Programming", 0));
+        nsm.addChildren(root, Arrays.asList(category("Java", 0), category(".NET", 0)));
+        connection.commit();
+        return root;
+    }
+
+    private Category reload(Category cat) {
+        nsm.clear();
+        for (Node<Category> n : nsm.listNodes(Category.class, cat.getRootValue())) {
+            if (n.getId() == cat.getId()) {
+                return n.unwrap();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testCreateTree() throws SQLException {
+        Node<Category> root = createBasicTree();
+        assertTrue(root.getId() > 0);
+        assertEquals(root.getRightValue(), 6);
+
+        nsm.clear();
+        List<Node<Category>> nodes = nsm.listNodes(Category.class);
+        assertEquals(nodes.size(), 3);
+        assertEquals(nodes.get(0).unwrap().getName(), "Programming");
+        assertEquals(nodes.get(1).unwrap().getName(), "Java");
+        assertEquals(nodes.get(1).getLeftValue(), 2);
+        assertEquals(nodes.get(1).getLevel(), 1);
+        assertEquals(nodes.get(2).unwrap().getName(), ".NET");
+        assertEquals(nodes.get(2).getLeftValue(), 4);
+        assertEquals(nodes.get(2).getRightValue(), 5);
+
+        Node<Category> root2 = nodes.get(0);
+        assertNull(root2.getParent());
+        assertEquals(root2.getChildren().size(), 2);
+        assertSame(root2.getFirstChild(), nodes.get(1));
+        assertSame(root2.getLastChild(), nodes.get(2));
+        assertSame(nodes.get(2).getParent(), root2);
+        assertEquals(nodes.get(2).getAncestors().size(), 1);
+    }
+
+    @Test
+    public void testMovingNodes() throws SQLException {
+        Node<Category> root = createBasicTree();
+        List<Node<Category>> children = root.getChildren();
+        Node<Category> javaNode = children.get(0);
+        Node<Category> netNode = children.get(1);
+
+        Node<Category> ejbNode = root.addChild(category("EJB", 0));
+        assertEquals(ejbNode.getLeftValue(), 6);
+        assertEquals(root.getRightValue(), 8);
+
+        ejbNode.moveAsLastChildOf(javaNode);
+        assertEquals(ejbNode.getLeftValue(), 3);
+        assertEquals(ejbNode.getRightValue(), 4);
+        assertEquals(ejbNode.getLevel(), 2);
+        assertEquals(javaNode.getRightValue(), 5);
+        assertEquals(netNode.getLeftValue(), 6);
+
+        // Already in place
+        netNode.moveAsNextSiblingOf(javaNode);
+        assertEquals(netNode.getLeftValue(), 6);
+        assertEquals(netNode.getRightValue(), 7);
+
+        javaNode.moveAsNextSiblingOf(netNode);
+        connection.commit();
+
+        // Another wrapper of the same row is not a valid destination either
+        Node<Category> javaCopy = nsm.getNode(reload(javaNode.unwrap()));
+        assertNotSame(javaCopy, javaNode);
+        try {
+            javaNode.moveAsFirstChildOf(javaCopy);
+            fail("Moved a node below itself");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        Category java = reload(javaNode.unwrap());
+        assertEquals(java.getLeftValue(), 4);
+        assertEquals(java.getRightValue(), 7);
+        assertEquals(java.getLevel(), 1);
+        assertEquals(nsm.getNode(java).getChildren().size(), 1);
+        assertEquals(nsm.getNode(java).getChildren().get(0).getLevel(), 2);
+    }
+
+    @Test
+    public void testReorderChildren() throws SQLException {
+        Node<Category> root = createBasicTree();
+        List<Node<Category>> children = root.getChildren();
+        children.get(0).addChild(category("EJB", 0));
+
+        root.reorderChildren(Arrays.asList(children.get(1), children.get(0)));
+        connection.commit();
+
+        Category net = reload(children.get(1).unwrap());
+        assertEquals(net.getLeftValue(), 2);
+        assertEquals(net.getRightValue(), 3);
+        List<Node<Category>> javaTree = nsm.getNode(reload(children.get(0).unwrap())).getDescendants();
+        assertEquals(javaTree.size(), 1);
+        assertEquals(javaTree.get(0).getLeftValue(), 5);
+        assertEquals(javaTree.get(0).getRightValue(), 6);
+    }
+
+    @Test
+    public void testMoveBetweenTreesAndMakeRoot() throws SQLException {
+        Category javaCat = category("Java", 0);
+        javaCat.setRootValue(1);
+        Category netCat = category(".NET", 0);
+        netCat.setRootValue(2);
+
+        Node<Category> javaNode = nsm.createRoot(javaCat);
+        Node<Category> netNode = nsm.createRoot(netCat);
+        Node<Category> ejbNode = javaNode.addChild(category("EJB", 0));
+        ejbNode.addChild(category("JPA", 0));
+
+        ejbNode.moveAsLastChildOf(netNode);
+        assertEquals(javaNode.getRightValue(), 2);
+        assertEquals(netNode.getRightValue(), 6);
+        assertEquals(ejbNode.getRootValue(), 2);
+        connection.commit();
+
+        List<Node<Category>> net = nsm.listNodes(Category.class, 2);
+        assertEquals(net.size(), 3);
+        assertEquals(net.get(2).unwrap().getName(), "JPA");
+        assertEquals(net.get(2).getLeftValue(), 3);
+        assertEquals(net.get(2).getLevel(), 2);
+
+        ejbNode.makeRoot(3);
+        connection.commit();
+        assertEquals(netNode.getRightValue(), 2);
+
+        nsm.clear();
+        List<Node<Category>> ejb = nsm.listNodes(Category.class, 3);
+        assertEquals(ejb.size(), 2);
+        assertEquals(ejb.get(0).getLeftValue(), 1);
+        assertEquals(ejb.get(0).getRightValue(), 4);
+        assertEquals(ejb.get(0).getLevel(), 0);
+        assertEquals(ejb.get(1).getLevel(), 1);
+    }
+
+    @Test
+    public void testCopySubtree() throws SQLException {
+        Node<Category> root = createBasicTree();
+        Node<Category> javaNode = root.getFirstChild();
+        javaNode.addChild(category("EJB", 0));
+
+        Node<Category> copy = javaNode.copySubtreeAsPrevSiblingOf(javaNode, c -> category(c.getName(), 0));
+        connection.commit();
+        assertEquals(copy.getLeftValue(), 2);
+        assertEquals(copy.getRightValue(), 5);
+        assertEquals(javaNode.getLeftValue(), 6);
+
+        nsm.clear();
+        List<Node<Category>> nodes = nsm.listNodes(Category.class);
+        assertEquals(nodes.size(), 6);
+        assertEquals(nodes.get(1).unwrap().getName(), "Java");
+        assertEquals(nodes.get(2).unwrap().getName(), "EJB");
+        assertEquals(nodes.get(2).getLevel(), 2);
+        assertEquals(nodes.get(3).getId(), javaNode.getId());
+        assertEquals(nodes.get(0).getRightValue(), 12);
+    }
+
+    @Test
+    public void testDeleteNode() throws SQLException {
+        Node<Category> root = createBasicTree();
+        Node<Category> netNode = root.getLastChild();
+        Category netCat = netNode.unwrap();
+
+        netNode.delete();
+        connection.commit();
+
+        assertEquals(root.getRightValue(), 4);
+        assertEquals(root.getChildren().size(), 1);
+        try {
+            nsm.getNode(netCat);
+            fail("Retrieving node for deleted category should fail.");
+        } catch (IllegalArgumentException expected) {}
+        assertEquals(reload(root.unwrap()).getRightValue(), 4);
+    }
+
+    @Test
+    public void testDeleteAll() throws SQLException {
+        Node<Category> root = createBasicTree();
+        Category other = category("Other", 0);
+        other.setRootValue(root.getRootValue() + 1);
+        Node<Category> otherRoot = nsm.createRoot(other);
+        List<Node<Category>> otherChildren = nsm.addChildren(otherRoot,
+                Arrays.asList(category("A", 0), category("B", 0), category("C", 0)));
+        connection.commit();
+
+        List<Node<Category>> children = root.getChildren();
+        nsm.deleteAll(Arrays.asList(children.get(0), otherChildren.get(0), otherChildren.get(2)));
+        connection.commit();
+
+        assertEquals(root.getRightValue(), 4);
+        assertEquals(children.get(1).getLeftValue(), 2);
+        assertEquals(otherRoot.getRightValue(), 4);
+        assertEquals(otherChildren.get(1).getLeftValue(), 2);
+        assertEquals(otherChildren.get(1).getRightValue(), 3);
+        assertEquals(otherChildren.get(0).getLeftValue(), 0);
+
+        nsm.clear();
+        assertEquals(nsm.listNodes(Category.class, root.getRootValue()).size(), 2);
+        List<Node<Category>> otherTree = nsm.listNodes(Category.class, other.getRootValue());
+        assertEquals(otherTree.size(), 2);
+        assertEquals(otherTree.get(0).getRightValue(), 4);
+        assertEquals(otherTree.get(1).unwrap().getName(), "B");
+        assertEquals(otherTree.get(1).getLeftValue(), 2);
+    }
+}
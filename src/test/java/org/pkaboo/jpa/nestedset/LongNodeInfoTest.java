@@ -0,0 +1,99 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.List;
+import org.pkaboo.jpa.nestedset.model.LongCategory;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class LongNodeInfoTest extends FunctionalNestedSetTest {
+    private static final long OFFSET = 3L * Integer.MAX_VALUE;
+
+    /**
+     * Creates the tree Root(Java, .NET, Archive) with a gap in Archive, such that
+     * Archive and Root end beyond the range of int.
+     */
+    private Node<LongCategory> createTree() {
+        em.getTransaction().begin();
+        Node<LongCategory> root = nsm.createRoot(node(LongCategory.class, "Root", 1));
+        root.addChild(node(LongCategory.class, "Java", 1));
+        root.addChild(node(LongCategory.class, ".NET", 1));
+        root.addChild(node(LongCategory.class, "Archive", 1));
+        em.createQuery("update LongCategory n set n.rgt = n.rgt + ?1 where n.rgt >= 7")
+                .setParameter(1, OFFSET).executeUpdate();
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+
+        return nsm.listNodes(LongCategory.class, 1).get(0);
+    }
+
+    @Test
+    public void testConfiguration() {
+        assertTrue(nsm.getConfig(LongCategory.class).isLongValued());
+        assertEquals(nsm.getConfig(LongCategory.class).toParameter(5), 5L);
+    }
+
+    @Test
+    public void testOperationsBeyondIntRange() {
+        Node<LongCategory> root = createTree();
+        assertEquals(root.getRight(), OFFSET + 8);
+        try {
+            root.getRightValue();
+            fail("The right value exceeds the range of int.");
+        } catch (ArithmeticException expected) {
+        }
+
+        em.getTransaction().begin();
+        Node<LongCategory> archive = root.getLastChild();
+        Node<LongCategory> net = root.getChildren().get(1);
+        assertEquals(archive.getLeft(), 6);
+        Node<LongCategory> jsp = archive.addChild(node(LongCategory.class, "JSP", 1));
+        assertEquals(jsp.getLeft(), OFFSET + 7);
+        assertEquals(root.getRight(), OFFSET + 10);
+
+        net.moveAsLastChildOf(archive);
+        assertEquals(archive.getLeft(), 4);
+        assertEquals(jsp.getLeft(), OFFSET + 5);
+        assertEquals(net.getLeft(), OFFSET + 7);
+        assertEquals(net.getLevel(), 2);
+        em.getTransaction().commit();
+
+        nsm.clear();
+        em.clear();
+        List<Node<LongCategory>> tree = nsm.listNodes(LongCategory.class, 1);
+        assertEquals(tree.size(), 5);
+        assertEquals(tree.get(4).unwrap().getName(), ".NET");
+        assertEquals(tree.get(4).getParent().unwrap().getName(), "Archive");
+        assertEquals(tree.get(2).getLastChild().unwrap().getName(), ".NET");
+        assertEquals(tree.get(2).getDescendants().size(), 2);
+
+        em.getTransaction().begin();
+        tree.get(3).delete();
+        em.getTransaction().commit();
+        assertEquals(tree.get(0).getRight(), OFFSET + 8);
+        assertEquals(tree.get(4).getLeft(), OFFSET + 5);
+    }
+
+    @Test
+    public void testRebuildRemovesGaps() {
+        createTree();
+        em.getTransaction().begin();
+        assertEquals(nsm.rebuild(LongCategory.class, 1), 2);
+        em.getTransaction().commit();
+
+        List<Node<LongCategory>> tree = nsm.listNodes(LongCategory.class, 1);
+        assertEquals(tree.get(0).getRightValue(), 8);
+        assertEquals(tree.get(3).getLeftValue(), 6);
+        assertEquals(tree.get(3).getRightValue(), 7);
+        assertTrue(new TreeValidator(em).validate(LongCategory.class, 1).isEmpty());
+    }
+}
@@ -9,8 +9,13 @@
 
 package org.pkaboo.jpa.nestedset;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.pkaboo.jpa.nestedset.model.Category;
 import org.testng.annotations.Test;
+import static org.testng.Assert.*;
 
 public class MultiRootNodeTest extends FunctionalNestedSetTest {
 
@@ -82,5 +87,170 @@ public class MultiRootNodeTest extends FunctionalNestedSetTest {
 
     }
 
+    @Test
+    public void testMoveSubtreesBetweenTrees() {
+        Category javaCat = category("Java", 1);
+        Category ejbCat = category("EJB", 0);
+        Category jpaCat = category("JPA", 0);
+        Category netCat = category(".NET", 2);
+        Category wpfCat = category("WPF", 0);
+
+        em.getTransaction().begin();
+        Node<Category> javaNode = nsm.createRoot(javaCat);
+        Node<Category> ejbNode = javaNode.addChild(ejbCat);
+        ejbNode.addChild(jpaCat);
+        Node<Category> netNode = nsm.createRoot(netCat);
+        netNode.addChild(wpfCat);
+
+        // Java(1) > EJB > JPA and .NET(2) > WPF become Java(1) and .NET(2) > [EJB > JPA, WPF]
+        ejbNode.moveAsFirstChildOf(netNode);
+        em.getTransaction().commit();
+        em.refresh(javaCat);
+        em.refresh(ejbCat);
+        em.refresh(jpaCat);
+        em.refresh(netCat);
+        em.refresh(wpfCat);
+
+        assert 2 == javaCat.getRightValue();
+        assert 2 == ejbCat.getRootValue() && 2 == jpaCat.getRootValue();
+        assert 2 == ejbCat.getLeftValue() && 5 == ejbCat.getRightValue() && 1 == ejbCat.getLevel();
+        assert 3 == jpaCat.getLeftValue() && 4 == jpaCat.getRightValue() && 2 == jpaCat.getLevel();
+        assert 6 == wpfCat.getLeftValue() && 7 == wpfCat.getRightValue();
+        assert 8 == netCat.getRightValue();
 
+        // Move it back as last child and then make it the root of a new tree
+        em.getTransaction().begin();
+        ejbNode.moveAsLastChildOf(javaNode);
+        assert 2 == ejbNode.getLeftValue() && 5 == ejbNode.getRightValue() && 6 == javaNode.getRightValue();
+        ejbNode.makeRoot(3);
+        em.getTransaction().commit();
+        em.refresh(javaCat);
+        em.refresh(ejbCat);
+        em.refresh(jpaCat);
+        em.refresh(netCat);
+
+        assert 2 == javaCat.getRightValue();
+        assert 4 == netCat.getRightValue();
+        assert 3 == ejbCat.getRootValue() && 3 == jpaCat.getRootValue();
+        assert 1 == ejbCat.getLeftValue() && 4 == ejbCat.getRightValue() && 0 == ejbCat.getLevel();
+        assert 2 == jpaCat.getLeftValue() && 3 == jpaCat.getRightValue() && 1 == jpaCat.getLevel();
+    }
+
+    /**
+     * Creates the trees 1..count, where tree i has i children below its root.
+     */
+    private void createTrees(int count) {
+        em.getTransaction().begin();
+        for (int rootId = 1; rootId <= count; ++rootId) {
+            Node<Category> rootNode = nsm.createRoot(category("Root " + rootId, rootId));
+            for (int i = 0; i < rootId; ++i) {
+                rootNode.addChild(category("Child " + rootId + "." + i, 0));
+            }
+        }
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+    }
+
+    @Test
+    public void testListAllAndProgress() {
+        createTrees(5);
+        assertEquals(nsm.listRootIds(Category.class).size(), 5);
+
+        ParallelTreeOperations ops = new ParallelTreeOperations(emFactory, 3);
+        AtomicInteger progress = new AtomicInteger();
+        ops.setProgressListener((rootId, completed, total) -> {
+            assertEquals(total, 5);
+            progress.incrementAndGet();
+        });
+
+        Map<Integer, List<Category>> trees = ops.listAll(Category.class);
+        assertEquals(trees.size(), 5);
+        assertEquals(progress.get(), 5);
+        for (int rootId = 1; rootId <= 5; ++rootId) {
+            List<Category> tree = trees.get(rootId);
+            assertEquals(tree.size(), rootId + 1);
+            assertEquals(tree.get(0).getLevel(), 0);
+            assertEquals(tree.get(0).getRightValue(), 2 * (rootId + 1));
+        }
+
+        Map<Integer, Integer> exported = new ConcurrentHashMap<Integer, Integer>();
+        ops.exportAll(Category.class, (rootId, nodes) -> exported.put(rootId, nodes.size()));
+        assertEquals(exported.size(), 5);
+        assertEquals(exported.get(4).intValue(), 5);
+
+        Map<Integer, Boolean> transactions = ops.forEachTree(Category.class,
+                (nsm, rootId) -> nsm.getEntityManager().getTransaction().isActive(), true);
+        assertFalse(transactions.containsValue(true));
+        transactions = ops.forEachTree(Category.class,
+                (nsm, rootId) -> nsm.getEntityManager().getTransaction().isActive());
+        assertFalse(transactions.containsValue(false));
+    }
+
+    @Test
+    public void testRebuildAll() {
+        createTrees(3);
+
+        // Open a gap after the first child of tree 3
+        em.getTransaction().begin();
+        em.createQuery("update Category n set n.lft = n.lft + 10 where n.lft > 3 and n.rootId = 3").executeUpdate();
+        em.createQuery("update Category n set n.rgt = n.rgt + 10 where n.rgt > 3 and n.rootId = 3").executeUpdate();
+        em.getTransaction().commit();
+        em.clear();
+
+        Map<Integer, Integer> changed = new ParallelTreeOperations(emFactory, 2).rebuildAll(Category.class);
+        assertEquals(changed.get(1).intValue(), 0);
+        assertEquals(changed.get(2).intValue(), 0);
+        assertEquals(changed.get(3).intValue(), 3);
+
+        em.clear();
+        List<Node<Category>> tree = nsm.listNodes(Category.class, 3);
+        for (int i = 1; i < tree.size(); ++i) {
+            assertEquals(tree.get(i).getLeftValue(), 2 * i);
+            assertEquals(tree.get(i).getRightValue(), 2 * i + 1);
+        }
+        assertEquals(tree.get(0).getRightValue(), 8);
+    }
+
+    @Test
+    public void testRebuildWritesRunsOfValues() {
+        createTrees(2);
+        em.getTransaction().begin();
+        Node<Category> root = nsm.createRoot(category("Root 3", 3));
+        for (int i = 0; i < 150; ++i) {
+            root.addChild(category("Child 3." + i, 0));
+        }
+        // Open a gap after the first child of tree 2 and before every value of tree 3
+        em.createQuery("update Category n set n.lft = n.lft + 10 where n.lft > 3 and n.rootId = 2").executeUpdate();
+        em.createQuery("update Category n set n.rgt = n.rgt + 10 where n.rgt > 3 and n.rootId = 2").executeUpdate();
+        em.createQuery("update Category n set n.lft = 3 * n.lft, n.rgt = 3 * n.rgt where n.rootId = 3").executeUpdate();
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+
+        em.getTransaction().begin();
+        InMemoryNestedSetMetrics metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+        // The listing and one update of the single run
+        assertEquals(nsm.rebuild(Category.class, 2), 2);
+        assertEquals(metrics.getStatements(TreeOperation.REBUILD), 2);
+        assertEquals(metrics.getRowsShifted(TreeOperation.REBUILD), 2);
+        // The listing, an update per 100 of the 302 runs and the final one of the negated values
+        metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+        assertEquals(nsm.rebuild(Category.class, 3), 151);
+        assertEquals(metrics.getStatements(TreeOperation.REBUILD), 6);
+        em.getTransaction().commit();
+        assertEquals(root.getRight(), 302);
+        nsm.clear();
+        em.clear();
+
+        TreeValidator validator = new TreeValidator(em);
+        for (int rootId = 1; rootId <= 3; ++rootId) {
+            assertTrue(validator.validate(Category.class, rootId).isEmpty());
+        }
+        List<Node<Category>> tree = nsm.listNodes(Category.class, 3);
+        assertEquals(tree.get(0).getRight(), 302);
+        assertEquals(tree.get(150).getLeft(), 300);
+    }
 }
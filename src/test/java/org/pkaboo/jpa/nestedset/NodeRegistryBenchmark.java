@@ -0,0 +1,72 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import org.pkaboo.jpa.nestedset.model.Category;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Measures the time and the heap allocated per {@link JpaNestedSetManager#getNode}
+ * call for entities that are already in the registry. Run with
+ * <tt>mvn test -Pbenchmark</tt>.
+ */
+public class NodeRegistryBenchmark extends FunctionalNestedSetTest {
+    private static final int NODES = 2000;
+    private static final int LOOKUPS = 5000000;
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private int run(String name, List<Category> entities) {
+        int hits = 0;
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; ++i) {
+            Category entity = entities.get(i % entities.size());
+            if (nsm.getNode(entity).unwrap() == entity) {
+                ++hits;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        bytes = allocatedBytes() - bytes;
+        System.out.printf("%s (%d nodes): getNode %.1f ns, %.2f bytes allocated%n", name, entities.size(),
+                (double) nanos / LOOKUPS, (double) bytes / LOOKUPS);
+        return hits;
+    }
+
+    @Test
+    public void benchmarkGetNode() {
+        em.getTransaction().begin();
+        Category rootCat = new Category();
+        rootCat.setName("Root");
+        rootCat.setRootValue(1);
+        Node<Category> root = nsm.createRoot(rootCat);
+        for (int i = 1; i < NODES; ++i) {
+            Category cat = new Category();
+            cat.setName("Node " + i);
+            root.addChild(cat);
+        }
+        em.getTransaction().commit();
+
+        List<Category> entities = em.createQuery("select c from Category c", Category.class).getResultList();
+        for (Category entity : entities) {
+            nsm.getNode(entity);
+        }
+
+        // Warm up before measuring
+        run("Registry hits (warm-up)", entities);
+        assertEquals(run("Registry hits", entities), LOOKUPS);
+    }
+}
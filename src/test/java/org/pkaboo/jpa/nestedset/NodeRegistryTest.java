@@ -0,0 +1,114 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.lang.ref.WeakReference;
+import org.pkaboo.jpa.nestedset.model.Category;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class NodeRegistryTest {
+    private static final int NODES = 1000;
+
+    /** A category with a fixed ID and the interval [2 * id, 2 * id + 1]. */
+    private static Node<Category> node(final int id) {
+        Category cat = new Category() {
+            @Override public int getId() {
+                return id;
+            }
+        };
+        cat.setLeftValue(2 * id);
+        cat.setRightValue(2 * id + 1);
+        cat.setRootValue(1);
+        return new JpaNode<Category>(cat, null);
+    }
+
+    @Test
+    public void testLookupAfterRemovals() {
+        NodeRegistry registry = new NodeRegistry();
+        Node<?>[] nodes = new Node<?>[NODES];
+        for (int id = 0; id < NODES; ++id) {
+            nodes[id] = node(id * 7919);
+            registry.put(nodes[id]);
+        }
+        assertEquals(registry.size(), NODES);
+
+        // Remove every node whose ID lies within a band, leaving holes in the probe sequences
+        for (int id = 0; id < NODES; id += 10) {
+            long left = 2L * id * 7919;
+            registry.removeNodes(left, left + 2L * 7919 * 3 + 1, 1);
+        }
+        for (int id = 0; id < NODES; ++id) {
+            Node<?> found = registry.get(nodes[id].unwrap().getClass(), id * 7919);
+            if (id % 10 < 4) {
+                assertNull(found, "node " + id);
+                assertEquals(nodes[id].getLeft(), 0);
+            } else {
+                assertSame(found, nodes[id], "node " + id);
+            }
+        }
+        assertEquals(registry.size(), NODES * 6 / 10);
+        assertEquals(registry.values().size(), NODES * 6 / 10);
+    }
+
+    @Test
+    public void testBoundedRegistryKeepsRecentlyUsedNodes() {
+        NodeRegistry registry = new NodeRegistry(RegistryPolicy.bounded(2));
+        Node<Category> a = node(1);
+        Node<Category> b = node(2);
+        registry.put(a);
+        registry.put(b);
+        assertSame(registry.get(a.unwrap().getClass(), 1), a);
+        registry.put(node(3));
+        assertEquals(registry.size(), 2);
+        assertSame(registry.get(a.unwrap().getClass(), 1), a);
+        assertNull(registry.get(a.unwrap().getClass(), 2));
+        assertFalse(registry.isStale(b.unwrap()));
+    }
+
+    @Test
+    public void testNodeCollectedDuringSyncIsStale() throws InterruptedException {
+        NodeRegistry registry = new NodeRegistry(RegistryPolicy.weak());
+        Node<?>[] b = {node(2)};
+        Category bEntity = (Category) b[0].unwrap();
+        WeakReference<Node<?>> bRef = new WeakReference<Node<?>>(b[0]);
+        boolean[] collected = {false};
+        // Drops the node 'b' while the shift visits 'a', after the sync expunged the registry
+        Category aEntity = new Category() {
+            @Override public int getId() {
+                return 1;
+            }
+        };
+        aEntity.setRootValue(1);
+        Node<Category> a = new JpaNode<Category>(aEntity, null) {
+            @Override public int getRootValue() {
+                if (b[0] != null) {
+                    b[0] = null;
+                    for (int i = 0; i < 100 && bRef.get() != null; ++i) {
+                        System.gc();
+                    }
+                    collected[0] = bRef.get() == null;
+                }
+                return super.getRootValue();
+            }
+        };
+        registry.put(a);
+        registry.put(b[0]);
+
+        registry.updateLeftValues(1, 0, 2, 1);
+        if (!collected[0]) {
+            throw new SkipException("The node was not garbage collected.");
+        }
+        assertEquals(bEntity.getLeftValue(), 4);
+        assertNull(registry.get(bEntity.getClass(), 2));
+        assertTrue(registry.isStale(bEntity));
+    }
+}
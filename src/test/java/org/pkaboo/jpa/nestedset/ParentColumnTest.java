@@ -0,0 +1,89 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.List;
+import org.pkaboo.jpa.nestedset.model.ParentCategory;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class ParentColumnTest extends FunctionalNestedSetTest {
+
+    private static void assertParent(Node<ParentCategory> node, Node<ParentCategory> parent) {
+        assertEquals(node.unwrap().getParentId(), parent == null ? null : Integer.valueOf(parent.getId()),
+                "parent of " + node);
+    }
+
+    private static String names(List<Node<ParentCategory>> nodes) {
+        StringBuilder sb = new StringBuilder();
+        for (Node<ParentCategory> node : nodes) {
+            sb.append(sb.length() > 0 ? ", " : "").append(node.unwrap().getName());
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testParentIsMaintained() {
+        em.getTransaction().begin();
+        Node<ParentCategory> root = nsm.createRoot(node(ParentCategory.class, "Root", 1));
+        Node<ParentCategory> a = root.addChild(node(ParentCategory.class, "A", 0));
+        Node<ParentCategory> b = root.addChild(node(ParentCategory.class, "B", 0));
+        Node<ParentCategory> a1 = a.addChild(node(ParentCategory.class, "A1", 0));
+        assertParent(root, null);
+        assertParent(a, root);
+        assertParent(a1, a);
+
+        a1.moveAsFirstChildOf(b);
+        assertParent(a1, b);
+        a1.moveAsPrevSiblingOf(a);
+        assertParent(a1, root);
+        b.moveAsLastChildOf(a);
+        assertParent(b, a);
+
+        Node<ParentCategory> copy = a.copySubtreeAsNextSiblingOf(a1, c -> node(ParentCategory.class, c.getName(), 0));
+        assertParent(copy, root);
+        assertParent(copy.getFirstChild(), copy);
+
+        a.makeRoot(2);
+        assertParent(a, null);
+        assertParent(b, a);
+        em.getTransaction().commit();
+
+        nsm.clear();
+        em.clear();
+        List<Node<ParentCategory>> tree = nsm.listNodes(ParentCategory.class, 1);
+        assertEquals(names(tree), "Root, A1, A, B");
+        assertEquals(names(tree.get(0).getChildren()), "A1, A");
+        assertEquals(tree.get(3).getParent().unwrap().getName(), "A");
+        assertNull(tree.get(0).getParent());
+        assertEquals(names(nsm.listNodes(ParentCategory.class, 2).get(0).getChildren()), "B");
+    }
+
+    @Test
+    public void testChildrenAreNotSelectedByInterval() {
+        em.getTransaction().begin();
+        Node<ParentCategory> root = nsm.createRoot(node(ParentCategory.class, "Root", 1));
+        Node<ParentCategory> a = root.addChild(node(ParentCategory.class, "A", 0));
+        root.addChild(node(ParentCategory.class, "B", 0));
+        em.getTransaction().commit();
+
+        // A parent column that disagrees with the intervals shows which one is queried
+        em.getTransaction().begin();
+        em.createQuery("update ParentCategory n set n.parentId = null where n.id = ?1")
+                .setParameter(1, a.getId()).executeUpdate();
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+
+        Node<ParentCategory> reloaded = nsm.listNodes(ParentCategory.class, 1).get(0);
+        assertEquals(names(reloaded.getChildren()), "B");
+        assertEquals(names(reloaded.getDescendants()), "A, B");
+    }
+}
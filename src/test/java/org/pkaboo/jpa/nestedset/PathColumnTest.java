@@ -0,0 +1,105 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.List;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import org.pkaboo.jpa.nestedset.model.PathCategory;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class PathColumnTest extends FunctionalNestedSetTest {
+
+    /**
+     * Asserts that the stored paths of all trees match the ancestors given by the intervals.
+     * Clears the persistence context, as the bulk updates do not refresh it.
+     */
+    private void assertPaths() {
+        em.flush();
+        em.clear();
+        for (int rootId : nsm.listRootIds(PathCategory.class)) {
+            List<PathCategory> tree = em.createQuery("select n from PathCategory n where n.rootId = ?1"
+                    + " order by n.lft", PathCategory.class).setParameter(1, rootId).getResultList();
+            for (PathCategory n : tree) {
+                StringBuilder expected = new StringBuilder();
+                for (PathCategory a : tree) {
+                    if (a.getLeftValue() <= n.getLeftValue() && n.getRightValue() <= a.getRightValue()) {
+                        expected.append(a.getId()).append('/');
+                    }
+                }
+                assertEquals(n.getPath(), expected.toString(), "path of " + n.getName());
+            }
+        }
+    }
+
+    private static String names(List<Node<PathCategory>> nodes) {
+        StringBuilder sb = new StringBuilder();
+        for (Node<PathCategory> node : nodes) {
+            sb.append(sb.length() > 0 ? ", " : "").append(node.unwrap().getName());
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testPathsAreMaintained() {
+        em.getTransaction().begin();
+        Node<PathCategory> root = nsm.createRoot(node(PathCategory.class, "Root", 1));
+        Node<PathCategory> a = root.addChild(node(PathCategory.class, "A", 0));
+        Node<PathCategory> b = root.addChild(node(PathCategory.class, "B", 0));
+        Node<PathCategory> a1 = a.addChild(node(PathCategory.class, "A1", 0));
+        Node<PathCategory> a11 = a1.addChild(node(PathCategory.class, "A11", 0));
+        assertEquals(a11.unwrap().getPath(), root.getId() + "/" + a.getId() + "/" + a1.getId() + "/" + a11.getId() + "/");
+
+        a1.moveAsFirstChildOf(b);
+        assertEquals(a11.unwrap().getPath(), root.getId() + "/" + b.getId() + "/" + a1.getId() + "/" + a11.getId() + "/");
+        a1.moveAsPrevSiblingOf(a);
+        b.moveAsLastChildOf(a);
+        a.copySubtreeAsLastChildOf(a1, c -> node(PathCategory.class, c.getName() + "'", 0));
+        assertPaths();
+
+        a.makeRoot(2);
+        assertEquals(a.unwrap().getPath(), a.getId() + "/");
+        assertEquals(b.unwrap().getPath(), a.getId() + "/" + b.getId() + "/");
+        assertPaths();
+        em.getTransaction().commit();
+
+        nsm.clear();
+        em.clear();
+        List<Node<PathCategory>> tree = nsm.listNodes(PathCategory.class, 1);
+        assertEquals(names(tree), "Root, A1, A11, A', B'");
+        assertEquals(names(tree.get(4).getAncestors()), "Root, A1, A'");
+        assertTrue(tree.get(0).getAncestors().isEmpty());
+        assertEquals(((JpaNode<PathCategory>) tree.get(4)).getPath("/").split("/").length, 3);
+    }
+
+    @Test
+    public void testDescendantsOfPredicate() {
+        em.getTransaction().begin();
+        Node<PathCategory> root = nsm.createRoot(node(PathCategory.class, "Root", 1));
+        Node<PathCategory> a = root.addChild(node(PathCategory.class, "A", 0));
+        a.addChild(node(PathCategory.class, "Java", 0));
+        a.addChild(node(PathCategory.class, "JSP", 0));
+        root.addChild(node(PathCategory.class, "B", 0)).addChild(node(PathCategory.class, "Java EE", 0));
+        em.getTransaction().commit();
+
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<PathCategory> cq = cb.createQuery(PathCategory.class);
+        Root<PathCategory> n = cq.from(PathCategory.class);
+        cq.where(nsm.descendantsOf(n, a), cb.like(n.<String>get("name"), "Java%"));
+        List<PathCategory> result = em.createQuery(cq).getResultList();
+        assertEquals(result.size(), 1);
+        assertEquals(result.get(0).getName(), "Java");
+
+        cq.where(nsm.descendantsOf(n, root));
+        assertEquals(em.createQuery(cq).getResultList().size(), 5);
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.Entity;
+import javax.persistence.QueryHint;
+import org.pkaboo.jpa.nestedset.annotations.ReadHints;
+import org.pkaboo.jpa.nestedset.model.Category;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class ReadHintsTest extends FunctionalNestedSetTest {
+
+    @Entity
+    @ReadHints({
+        @QueryHint(name = "eclipselink.read-only", value = "true"),
+        @QueryHint(name = "eclipselink.jdbc.fetch-size", value = "500")
+    })
+    static class HintedCategory extends Category {
+    }
+
+    @Test
+    public void testHintsAreReadFromAnnotation() {
+        Map<String, Object> expected = new HashMap<String, Object>();
+        expected.put("eclipselink.read-only", "true");
+        expected.put("eclipselink.jdbc.fetch-size", "500");
+        assertEquals(Configuration.forClass(HintedCategory.class).getReadHints(), expected);
+        assertTrue(Configuration.forClass(Category.class).getReadHints().isEmpty());
+    }
+
+    @Test
+    public void testReadOnlyHintAppliesToTreeReads() {
+        em.getTransaction().begin();
+        Node<Category> root = nsm.createRoot(category("Root", 1));
+        root.addChild(category("A", 0)).addChild(category("A1", 0));
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+
+        Map<String, Object> hints = new HashMap<String, Object>();
+        hints.put("eclipselink.read-only", "true");
+        hints.put("eclipselink.jdbc.fetch-size", "100");
+        nsm.setReadHints(Category.class, hints);
+
+        // Read-only results are not managed by the persistence context
+        List<Node<Category>> tree = nsm.listNodes(Category.class, 1);
+        assertEquals(tree.size(), 3);
+        for (Node<Category> node : tree) {
+            assertFalse(em.contains(node.unwrap()), node.toString());
+        }
+        nsm.clear();
+        Node<Category> reloaded = nsm.getNode(tree.get(0).unwrap());
+        assertFalse(em.contains(reloaded.getFirstChild().unwrap()));
+        assertFalse(em.contains(reloaded.getDescendants().get(1).unwrap()));
+        assertFalse(em.contains(tree.get(2).getAncestors().get(0).unwrap()));
+
+        nsm.setReadHints(Category.class, null);
+        nsm.clear();
+        assertTrue(em.contains(nsm.listNodes(Category.class, 1).get(0).unwrap()));
+    }
+
+    @Test
+    public void testChangesReadManagedNodes() {
+        em.getTransaction().begin();
+        Node<Category> root = nsm.createRoot(category("Root", 1));
+        int a = root.addChild(category("A", 0)).getId();
+        root.getFirstChild().addChild(category("A1", 0));
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+
+        Map<String, Object> hints = new HashMap<String, Object>();
+        hints.put("eclipselink.read-only", "true");
+        nsm.setReadHints(Category.class, hints);
+
+        // The copy reads the descendants of A, which are changed by the shift
+        em.getTransaction().begin();
+        Node<Category> node = nsm.getNode(em.find(Category.class, a));
+        node.copySubtreeAsNextSiblingOf(node, c -> category(c.getName() + "'", 0));
+        em.getTransaction().commit();
+        assertEquals(nsm.getManagedNodes().size(), 4);
+        for (Node<?> n : nsm.getManagedNodes()) {
+            assertTrue(em.contains(n.unwrap()), n.toString());
+        }
+    }
+}
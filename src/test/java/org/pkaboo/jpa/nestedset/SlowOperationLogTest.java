@@ -0,0 +1,91 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.pkaboo.jpa.nestedset.SlowOperationLog.SlowOperation;
+import org.pkaboo.jpa.nestedset.model.Category;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class SlowOperationLogTest extends FunctionalNestedSetTest {
+
+    @Test
+    public void testReportsOperationsAboveRowThreshold() {
+        List<SlowOperation> reported = new ArrayList<SlowOperation>();
+        nsm.setSlowOperationLog(new SlowOperationLog(4, 1, TimeUnit.HOURS, reported::add));
+
+        em.getTransaction().begin();
+        Node<Category> root = nsm.createRoot(category("Root", 1));
+        Node<Category> first = root.addChild(category("First", 1));
+        for (int i = 0; i < 4; ++i) {
+            root.addChild(category("Child " + i, 1));
+        }
+        assertTrue(reported.isEmpty(), reported.toString());
+
+        // Shifts the right value of the first child and both values of its 4 siblings and the root
+        first.addChild(category("Grandchild", 1));
+        em.getTransaction().commit();
+
+        assertEquals(reported.size(), 1);
+        SlowOperation op = reported.get(0);
+        assertEquals(op.getOperation(), TreeOperation.ADD_CHILD);
+        assertEquals(op.getStatement(), SlowOperationLog.Statement.SHIFT);
+        assertEquals(op.getEntityType(), Category.class);
+        assertEquals(op.getRootId(), 1);
+        assertEquals(op.getFirst(), 3);
+        assertEquals(op.getLast(), 0);
+        assertEquals(op.getDelta(), 2);
+        // Each node is counted once, though the siblings and the root are updated by both statements
+        assertEquals(op.getRows(), 6);
+        boolean found = false;
+        for (StackTraceElement frame : op.getStackTrace()) {
+            found |= frame.getMethodName().equals("testReportsOperationsAboveRowThreshold");
+        }
+        assertTrue(found);
+        assertTrue(op.toString().contains("root=1"));
+        assertTrue(op.toString().contains("nodes=6"));
+    }
+
+    @Test
+    public void testReportsRelocations() {
+        em.getTransaction().begin();
+        Node<Category> root = nsm.createRoot(category("Root", 1));
+        Node<Category> child = root.addChild(category("Child", 1));
+        child.addChild(category("Grandchild", 1));
+
+        List<SlowOperation> reported = new ArrayList<SlowOperation>();
+        nsm.setSlowOperationLog(new SlowOperationLog(1, 1, TimeUnit.HOURS, reported::add));
+        child.makeRoot(2);
+        em.getTransaction().commit();
+
+        assertEquals(reported.size(), 1);
+        SlowOperation op = reported.get(0);
+        assertEquals(op.getOperation(), TreeOperation.MAKE_ROOT);
+        assertEquals(op.getStatement(), SlowOperationLog.Statement.RELOCATE);
+        assertEquals(op.getRootId(), 1);
+        assertEquals(op.getFirst(), 2);
+        assertEquals(op.getLast(), 5);
+        assertEquals(op.getDelta(), -1);
+        assertEquals(op.getRows(), 2);
+    }
+
+    @Test
+    public void testDefaultReporterLogs() {
+        nsm.setSlowOperationLog(new SlowOperationLog(0, 0, TimeUnit.MILLISECONDS));
+        em.getTransaction().begin();
+        Node<Category> root = nsm.createRoot(category("Root", 1));
+        root.addChild(category("Child", 1));
+        em.getTransaction().commit();
+        assertEquals(root.getRightValue(), 4);
+    }
+}
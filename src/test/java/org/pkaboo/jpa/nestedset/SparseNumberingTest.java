@@ -0,0 +1,146 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.List;
+import org.pkaboo.jpa.nestedset.model.SparseCategory;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class SparseNumberingTest extends FunctionalNestedSetTest {
+
+    private static void assertInterval(Node<?> node, long left, long right) {
+        assertEquals(node.getLeft(), left, "left of " + node);
+        assertEquals(node.getRight(), right, "right of " + node);
+    }
+
+    /**
+     * Creates the tree Root(A, B, C) with the numbering gap 4 and root width 64.
+     */
+    private Node<SparseCategory> createTree() {
+        Node<SparseCategory> root = nsm.createRoot(node(SparseCategory.class, "Root", 1));
+        root.addChild(node(SparseCategory.class, "A", 0));
+        root.addChild(node(SparseCategory.class, "B", 0));
+        root.addChild(node(SparseCategory.class, "C", 0));
+        return root;
+    }
+
+    @Test
+    public void testInsertsUseFreeSpace() {
+        InMemoryNestedSetMetrics metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+
+        em.getTransaction().begin();
+        Node<SparseCategory> root = createTree();
+        assertInterval(root, 1, 64);
+        List<Node<SparseCategory>> children = root.getChildren();
+        Node<SparseCategory> a = children.get(0);
+        Node<SparseCategory> b = children.get(1);
+        Node<SparseCategory> c = children.get(2);
+        assertInterval(a, 5, 9);
+        assertInterval(b, 13, 17);
+        assertInterval(c, 21, 25);
+
+        Node<SparseCategory> a1 = a.addChild(node(SparseCategory.class, "A1", 0));
+        assertInterval(a1, 6, 7);
+        assertEquals(metrics.getRowsShifted(TreeOperation.ADD_CHILD), 0);
+
+        // A is full, a gap is opened after A1
+        Node<SparseCategory> a2 = a.addChild(node(SparseCategory.class, "A2", 0));
+        assertInterval(a2, 11, 14);
+        assertInterval(a, 5, 22);
+        assertInterval(b, 26, 30);
+        assertInterval(root, 1, 77);
+        assertTrue(metrics.getRowsShifted(TreeOperation.ADD_CHILD) > 0);
+        em.getTransaction().commit();
+
+        assertEquals(((JpaNode<?>) a).getNumberOfDescendants(), 2);
+        assertTrue(a.hasChildren());
+        assertFalse(b.hasChildren());
+        assertEquals(a.getFirstChild().unwrap().getName(), "A1");
+        assertEquals(a.getLastChild().unwrap().getName(), "A2");
+        assertEquals(root.getLastChild().unwrap().getName(), "C");
+        assertTrue(new TreeValidator(em).validate(SparseCategory.class, 1).isEmpty());
+    }
+
+    @Test
+    public void testMovesAndDeletesLeaveOtherNodesInPlace() {
+        InMemoryNestedSetMetrics metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+
+        em.getTransaction().begin();
+        Node<SparseCategory> root = createTree();
+        List<Node<SparseCategory>> children = root.getChildren();
+        Node<SparseCategory> a = children.get(0);
+        Node<SparseCategory> b = children.get(1);
+        Node<SparseCategory> c = children.get(2);
+        Node<SparseCategory> a1 = a.addChild(node(SparseCategory.class, "A1", 0));
+
+        // The moved leaf is fitted into the free space of C
+        b.moveAsLastChildOf(c);
+        assertInterval(b, 22, 23);
+        assertEquals(b.getLevel(), 2);
+        assertInterval(a, 5, 9);
+        assertInterval(c, 21, 25);
+
+        a1.moveAsNextSiblingOf(a);
+        assertInterval(a1, 13, 15);
+        assertEquals(a1.getLevel(), 1);
+        assertInterval(a, 5, 9);
+
+        // Already in place
+        c.moveAsNextSiblingOf(a1);
+        assertInterval(c, 21, 25);
+
+        b.delete();
+        assertInterval(c, 21, 25);
+        assertInterval(root, 1, 64);
+        assertFalse(c.hasChildren());
+        assertEquals(metrics.getRowsShifted(TreeOperation.MOVE_AS_LAST_CHILD), 0);
+        assertEquals(metrics.getRowsShifted(TreeOperation.MOVE_AS_NEXT_SIBLING), 0);
+        assertEquals(metrics.getRowsShifted(TreeOperation.DELETE), 0);
+
+        // Into another tree
+        Node<SparseCategory> root2 = nsm.createRoot(node(SparseCategory.class, "Root 2", 2));
+        c.moveAsLastChildOf(root2);
+        assertInterval(c, 5, 9);
+        assertEquals(c.getRootValue(), 2);
+        em.getTransaction().commit();
+
+        nsm.clear();
+        em.clear();
+        List<Node<SparseCategory>> tree = nsm.listNodes(SparseCategory.class, 1);
+        assertEquals(tree.size(), 3);
+        assertEquals(tree.get(2).unwrap().getName(), "A1");
+        assertEquals(tree.get(2).getParent().unwrap().getName(), "Root");
+        assertEquals(nsm.listNodes(SparseCategory.class, 2).get(0).getLastChild().unwrap().getName(), "C");
+        assertTrue(new TreeValidator(em).validate(SparseCategory.class, 1).isEmpty());
+    }
+
+    @Test
+    public void testRebuildRespacesValues() {
+        em.getTransaction().begin();
+        Node<SparseCategory> root = createTree();
+        root.getFirstChild().addChild(node(SparseCategory.class, "A1", 0));
+        root.getFirstChild().addChild(node(SparseCategory.class, "A2", 0));
+        em.getTransaction().commit();
+
+        em.getTransaction().begin();
+        assertEquals(nsm.rebuild(SparseCategory.class, 1), 6);
+        em.getTransaction().commit();
+
+        List<Node<SparseCategory>> tree = nsm.listNodes(SparseCategory.class, 1);
+        assertInterval(tree.get(0), 1, 45);
+        assertInterval(tree.get(1), 5, 25);
+        assertInterval(tree.get(2), 9, 13);
+        assertInterval(tree.get(5), 37, 41);
+        assertTrue(new TreeValidator(em).validate(SparseCategory.class, 1).isEmpty());
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.pkaboo.jpa.nestedset.model.Category;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class TreeChangeListenerTest extends FunctionalNestedSetTest {
+    private final List<TreeChange> published = new ArrayList<TreeChange>();
+
+    /**
+     * @return The values (left, right, level, root) of all nodes by ID, as read from the database.
+     */
+    private Map<Integer, List<Long>> readValues() {
+        em.clear();
+        nsm.clear();
+        Map<Integer, List<Long>> values = new TreeMap<Integer, List<Long>>();
+        for (int rootId : nsm.listRootIds(Category.class)) {
+            for (Node<Category> n : nsm.listNodes(Category.class, rootId)) {
+                values.put(n.getId(), Arrays.asList(n.getLeft(), n.getRight(), (long) n.getLevel(), (long) n.getRootValue()));
+            }
+        }
+        return values;
+    }
+
+    private static boolean within(long value, long first, long last) {
+        return value >= first && (last == 0 || value <= last);
+    }
+
+    /**
+     * Applies the changes to the given values as a consumer would, without reading the
+     * inserted nodes.
+     */
+    private static void apply(Map<Integer, List<Long>> values, List<TreeChange> changes) {
+        for (TreeChange c : changes) {
+            Iterator<List<Long>> it = values.values().iterator();
+            while (it.hasNext()) {
+                List<Long> v = it.next();
+                if (v.get(3) != c.getRootId()) {
+                    continue;
+                }
+                boolean inRange = v.get(0) >= c.getFirst() && v.get(1) <= c.getLast();
+                switch (c.getKind()) {
+                    case SHIFTED:
+                        for (int i = 0; i < 2; ++i) {
+                            if (within(v.get(i), c.getFirst(), c.getLast())) {
+                                v.set(i, v.get(i) + c.getDelta());
+                            }
+                        }
+                        break;
+                    case DELETED:
+                        if (inRange) {
+                            it.remove();
+                        }
+                        break;
+                    case MOVED:
+                        if (inRange) {
+                            v.set(0, v.get(0) + c.getDelta());
+                            v.set(1, v.get(1) + c.getDelta());
+                            v.set(2, v.get(2) + c.getLevelDelta());
+                            v.set(3, (long) c.getTargetRootId());
+                        } else {
+                            long first = c.getDelta() > 0 ? c.getLast() + 1 : c.getFirst() + c.getDelta();
+                            long last = c.getDelta() > 0 ? c.getLast() + c.getDelta() : c.getFirst() - 1;
+                            for (int i = 0; i < 2; ++i) {
+                                if (within(v.get(i), first, last)) {
+                                    v.set(i, v.get(i) + c.getDisplacement());
+                                }
+                            }
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testChangesApplyToCopyOfTree() {
+        em.getTransaction().begin();
+        Node<Category> root = nsm.createRoot(category("Root", 1));
+        Node<Category> a = root.addChild(category("A", 0));
+        a.addChild(category("A1", 0));
+        Node<Category> a2 = a.addChild(category("A2", 0));
+        Node<Category> b = root.addChild(category("B", 0));
+        b.addChild(category("B1", 0));
+        Node<Category> c = root.addChild(category("C", 0));
+        Node<Category> x = nsm.createRoot(category("X", 2));
+        em.getTransaction().commit();
+        Map<Integer, List<Long>> copy = readValues();
+        a = nsm.getNode(em.find(Category.class, a.getId()));
+        a2 = nsm.getNode(em.find(Category.class, a2.getId()));
+        b = nsm.getNode(em.find(Category.class, b.getId()));
+        c = nsm.getNode(em.find(Category.class, c.getId()));
+        x = nsm.getNode(em.find(Category.class, x.getId()));
+
+        nsm.addTreeChangeListener(published::addAll);
+        em.getTransaction().begin();
+        c.addChild(category("C1", 0));
+        a2.moveAsFirstChildOf(c);
+        b.moveAsPrevSiblingOf(a);
+        a.moveAsLastChildOf(x);
+        b.delete();
+        c.makeRoot(3);
+        em.getTransaction().commit();
+        assertTrue(published.isEmpty());
+        nsm.publishChanges();
+
+        List<TreeChange.Kind> kinds = new ArrayList<TreeChange.Kind>();
+        for (TreeChange change : published) {
+            kinds.add(change.getKind());
+        }
+        assertEquals(kinds, Arrays.asList(
+                TreeChange.Kind.SHIFTED, TreeChange.Kind.INSERTED,
+                TreeChange.Kind.MOVED,
+                TreeChange.Kind.MOVED,
+                TreeChange.Kind.SHIFTED, TreeChange.Kind.MOVED, TreeChange.Kind.SHIFTED,
+                TreeChange.Kind.DELETED, TreeChange.Kind.SHIFTED,
+                TreeChange.Kind.MOVED, TreeChange.Kind.SHIFTED));
+        assertEquals(published.get(3).getNodeId(), b.getId());
+        assertEquals(published.get(3).getDisplacement(), 4);
+        assertEquals(published.get(5).getTargetRootId(), 2);
+
+        apply(copy, published);
+        Map<Integer, List<Long>> actual = readValues();
+        actual.keySet().retainAll(copy.keySet());
+        assertEquals(copy, actual);
+
+        // Published changes are not delivered again
+        published.clear();
+        nsm.publishChanges();
+        assertTrue(published.isEmpty());
+    }
+
+    @Test
+    public void testDeleteAllAndDiscard() {
+        em.getTransaction().begin();
+        Node<Category> root = nsm.createRoot(category("Root", 1));
+        List<Node<Category>> deleted = new ArrayList<Node<Category>>();
+        for (int i = 0; i < 5; ++i) {
+            Node<Category> child = root.addChild(category("C" + i, 0));
+            child.addChild(category("C" + i + "1", 0));
+            if (i % 2 == 1) {
+                deleted.add(child);
+            }
+        }
+        em.getTransaction().commit();
+        Map<Integer, List<Long>> copy = readValues();
+
+        nsm.addTreeChangeListener(published::addAll);
+        em.getTransaction().begin();
+        nsm.getNode(em.find(Category.class, root.getId())).addChild(category("Rolled back", 0));
+        em.getTransaction().rollback();
+        nsm.discardChanges();
+        nsm.publishChanges();
+        assertTrue(published.isEmpty());
+
+        em.clear();
+        nsm.clear();
+        List<Node<Category>> reloaded = new ArrayList<Node<Category>>();
+        for (Node<Category> n : deleted) {
+            reloaded.add(nsm.getNode(em.find(Category.class, n.getId())));
+        }
+        em.getTransaction().begin();
+        nsm.deleteAll(reloaded);
+        em.getTransaction().commit();
+        nsm.publishChanges();
+        assertEquals(published.size(), 4);
+        assertEquals(published.get(0).getKind(), TreeChange.Kind.DELETED);
+        assertEquals(published.get(2).getKind(), TreeChange.Kind.SHIFTED);
+        assertEquals(published.get(2).getFirst(), copy.get(deleted.get(1).getId()).get(1) + 1);
+
+        apply(copy, published);
+        Map<Integer, List<Long>> actual = readValues();
+        assertEquals(copy, actual);
+    }
+}
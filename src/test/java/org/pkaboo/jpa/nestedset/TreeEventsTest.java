@@ -0,0 +1,89 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.pkaboo.jpa.nestedset.model.Category;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class TreeEventsTest extends FunctionalNestedSetTest {
+    private static final String PREFIX = "org.pkaboo.jpa.nestedset.";
+
+    @Test
+    public void testEventsAreRecorded() throws Exception {
+        List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+        Path file = Files.createTempFile("nestedset", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : new String[] {"Shift", "SubtreeMove", "Delete", "BulkInsert"}) {
+                recording.enable(PREFIX + name).withoutThreshold();
+            }
+            recording.start();
+
+            em.getTransaction().begin();
+            Node<Category> root = nsm.createRoot(category("Programming", 1));
+            Node<Category> java = root.addChild(category("Java", 1));
+            Node<Category> net = root.addChild(category(".NET", 1));
+            net.moveAsFirstChildOf(java);
+            java.copySubtreeAsLastChildOf(root, c -> category(c.getName(), 1));
+            net.delete();
+            em.getTransaction().commit();
+
+            recording.stop();
+            recording.dump(file);
+            events.addAll(RecordingFile.readAllEvents(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        RecordedEvent move = single(events, "SubtreeMove");
+        assertEquals(move.getClass("entityType").getName(), Category.class.getName());
+        assertEquals(move.getInt("rootId"), 1);
+        assertEquals(move.getLong("first"), 4);
+        assertEquals(move.getLong("last"), 5);
+        assertEquals(move.getLong("delta"), -1);
+
+        RecordedEvent copy = single(events, "BulkInsert");
+        assertEquals(copy.getLong("first"), 6);
+        assertEquals(copy.getLong("last"), 9);
+        assertEquals(copy.getInt("rows"), 2);
+
+        RecordedEvent delete = single(events, "Delete");
+        assertEquals(delete.getLong("first"), 3);
+        assertEquals(delete.getLong("last"), 4);
+        assertEquals(delete.getInt("rows"), 1);
+
+        int shifts = 0;
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(PREFIX + "Shift")) {
+                ++shifts;
+            }
+        }
+        assertTrue(shifts > 0);
+    }
+
+    private static RecordedEvent single(List<RecordedEvent> events, String name) {
+        RecordedEvent found = null;
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(PREFIX + name)) {
+                assertNull(found, "More than one " + name + " event");
+                found = event;
+            }
+        }
+        assertNotNull(found, "No " + name + " event");
+        return found;
+    }
+}
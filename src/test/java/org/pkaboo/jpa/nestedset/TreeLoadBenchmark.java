@@ -0,0 +1,301 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.persistence.CacheRetrieveMode;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import org.pkaboo.jpa.nestedset.model.Category;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+/**
+ * Runs concurrent readers and writers against the trees of the test database for a
+ * while, reports the throughput and latency percentiles per operation and checks the
+ * integrity of all trees afterwards. Run with <tt>mvn test -Pbenchmark
+ * -Dtest=TreeLoadBenchmark</tt> and configure with the system properties:
+ *
+ * <ul>
+ * <li><tt>load.readers</tt>, <tt>load.writers</tt>: The number of threads of each kind.</li>
+ * <li><tt>load.roots</tt>, <tt>load.nodes</tt>: The initial trees and their sizes.</li>
+ * <li><tt>load.seconds</tt>: The duration of the run.</li>
+ * <li><tt>load.mix</tt>: The weights of the write operations, e.g. <tt>add=4,move=3,delete=2,makeRoot=1</tt>.</li>
+ * <li><tt>load.locking</tt>: The {@link Locking} strategy of the writers.</li>
+ * </ul>
+ *
+ * Every operation runs in a transaction of its own, with a fresh manager that reads
+ * the tree after the lock of the strategy is acquired.
+ */
+public class TreeLoadBenchmark extends FunctionalNestedSetTest {
+    /** How writers serialize their modifications of a tree. */
+    enum Locking {
+        /** Not at all, which is expected to corrupt the trees. */
+        NONE,
+        /** With a lock per tree ID within this JVM. */
+        ROOT_MUTEX,
+        /** With a pessimistic write lock on the root node row. */
+        PESSIMISTIC
+    }
+
+    enum Op { ADD, MOVE, DELETE, MAKE_ROOT, READ }
+
+    private final int readers = Integer.getInteger("load.readers", 2);
+    private final int writers = Integer.getInteger("load.writers", 4);
+    private final int initialRoots = Integer.getInteger("load.roots", 4);
+    private final int initialNodes = Integer.getInteger("load.nodes", 30);
+    private final int seconds = Integer.getInteger("load.seconds", 5);
+    private final Locking locking = Locking.valueOf(System.getProperty("load.locking", "ROOT_MUTEX"));
+    private final Map<Op, Integer> mix = parseMix(System.getProperty("load.mix", "add=4,move=3,delete=2,makeRoot=1"));
+
+    private final List<Integer> roots = new CopyOnWriteArrayList<Integer>();
+    private final AtomicInteger nextRootId = new AtomicInteger(1);
+    private final Map<Integer, ReentrantLock> mutexes = new ConcurrentHashMap<Integer, ReentrantLock>();
+    private final Map<Op, List<Long>> latencies = new EnumMap<Op, List<Long>>(Op.class);
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile boolean running;
+
+    private static Map<Op, Integer> parseMix(String spec) {
+        Map<Op, Integer> mix = new EnumMap<Op, Integer>(Op.class);
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split("=");
+            String name = kv[0].trim().replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase();
+            mix.put(Op.valueOf(name), Integer.parseInt(kv[1].trim()));
+        }
+        return mix;
+    }
+
+    /**
+     * @return A manager that reads the trees from the database rather than from the
+     *         shared cache, which may hold values from before a concurrent commit.
+     */
+    private static JpaNestedSetManager manager(EntityManager em) {
+        JpaNestedSetManager nsm = new JpaNestedSetManager(em);
+        nsm.setReadHints(Category.class,
+                Collections.singletonMap("javax.persistence.cache.retrieveMode", CacheRetrieveMode.BYPASS));
+        return nsm;
+    }
+
+    private void createTrees() {
+        Random random = new Random(42);
+        em.getTransaction().begin();
+        for (int r = 0; r < initialRoots; ++r) {
+            int rootId = nextRootId.getAndIncrement();
+            List<Node<Category>> tree = new ArrayList<Node<Category>>();
+            tree.add(nsm.createRoot(category("Root " + rootId, rootId)));
+            for (int i = 1; i < initialNodes; ++i) {
+                tree.add(tree.get(random.nextInt(tree.size())).addChild(category("Node " + i, 0)));
+            }
+            roots.add(rootId);
+        }
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+    }
+
+    private Op pickWrite(Random random) {
+        int total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+        int pick = random.nextInt(total);
+        for (Map.Entry<Op, Integer> e : mix.entrySet()) {
+            if ((pick -= e.getValue()) < 0) {
+                return e.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private void record(Op op, long nanos) {
+        List<Long> list = latencies.get(op);
+        synchronized (list) {
+            list.add(nanos);
+        }
+    }
+
+    /**
+     * Acquires the in-JVM locks of the given trees in ascending order.
+     */
+    private List<ReentrantLock> lockTrees(int... rootIds) {
+        List<ReentrantLock> locks = new ArrayList<ReentrantLock>();
+        if (locking == Locking.ROOT_MUTEX) {
+            int[] ids = rootIds.clone();
+            Arrays.sort(ids);
+            for (int id : ids) {
+                ReentrantLock lock = mutexes.computeIfAbsent(id, k -> new ReentrantLock());
+                lock.lock();
+                locks.add(lock);
+            }
+        }
+        return locks;
+    }
+
+    private void write(Op op, Random random) {
+        int rootId = roots.get(random.nextInt(roots.size()));
+        int newRootId = op == Op.MAKE_ROOT ? nextRootId.getAndIncrement() : rootId;
+        List<ReentrantLock> locks = lockTrees(rootId, newRootId);
+        EntityManager wem = emFactory.createEntityManager();
+        long start = System.nanoTime();
+        try {
+            wem.getTransaction().begin();
+            if (locking == Locking.PESSIMISTIC) {
+                wem.createQuery("select c from Category c where c.rootId = ?1 and c.lft = 1", Category.class)
+                        .setParameter(1, rootId).setLockMode(LockModeType.PESSIMISTIC_WRITE).getResultList();
+            }
+            List<Node<Category>> tree = manager(wem).listNodes(Category.class, rootId);
+            if (tree.isEmpty()) {
+                return;
+            }
+            if (tree.size() < 3) {
+                op = Op.ADD;
+            }
+            // Any node but the root
+            Node<Category> node = op == Op.ADD ? null : tree.get(1 + random.nextInt(tree.size() - 1));
+            switch (op) {
+                case ADD:
+                    tree.get(random.nextInt(tree.size())).addChild(category("Added", 0));
+                    break;
+                case MOVE:
+                    List<Node<Category>> targets = new ArrayList<Node<Category>>();
+                    for (Node<Category> n : tree) {
+                        if (n.getLeft() < node.getLeft() || n.getLeft() > node.getRight()) {
+                            targets.add(n);
+                        }
+                    }
+                    Node<Category> dest = targets.get(random.nextInt(targets.size()));
+                    if (dest.isRoot() || random.nextBoolean()) {
+                        node.moveAsLastChildOf(dest);
+                    } else {
+                        node.moveAsNextSiblingOf(dest);
+                    }
+                    break;
+                case DELETE:
+                    node.delete();
+                    break;
+                case MAKE_ROOT:
+                    node.makeRoot(newRootId);
+                    roots.add(newRootId);
+                    break;
+                default:
+                    throw new IllegalArgumentException(op.name());
+            }
+            wem.getTransaction().commit();
+            record(op, System.nanoTime() - start);
+        } catch (RuntimeException ex) {
+            failures.incrementAndGet();
+            if (wem.getTransaction().isActive()) {
+                wem.getTransaction().rollback();
+            }
+        } finally {
+            wem.close();
+            for (ReentrantLock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void read(Random random) {
+        int rootId = roots.get(random.nextInt(roots.size()));
+        EntityManager rem = emFactory.createEntityManager();
+        long start = System.nanoTime();
+        try {
+            List<Node<Category>> tree = manager(rem).listNodes(Category.class, rootId);
+            if (!tree.isEmpty()) {
+                tree.get(random.nextInt(tree.size())).getAncestors();
+            }
+            record(Op.READ, System.nanoTime() - start);
+        } catch (RuntimeException ex) {
+            failures.incrementAndGet();
+        } finally {
+            rem.close();
+        }
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(p * sorted.size()) - 1));
+    }
+
+    private void report(long nanos) {
+        System.out.printf("%d readers, %d writers, %s locking, %.1f s:%n", readers, writers, locking, nanos / 1e9);
+        for (Map.Entry<Op, List<Long>> e : latencies.entrySet()) {
+            List<Long> sorted = new ArrayList<Long>(e.getValue());
+            if (sorted.isEmpty()) {
+                continue;
+            }
+            Collections.sort(sorted);
+            System.out.printf("  %-9s %7d ops %9.1f ops/s   p50 %7.2f ms   p95 %7.2f ms   p99 %7.2f ms   max %7.2f ms%n",
+                    e.getKey(), sorted.size(), sorted.size() / (nanos / 1e9),
+                    percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.95) / 1e6,
+                    percentile(sorted, 0.99) / 1e6, sorted.get(sorted.size() - 1) / 1e6);
+        }
+        System.out.printf("  %d failed operations%n", failures.get());
+    }
+
+    @Test
+    public void benchmarkConcurrentLoad() throws Exception {
+        for (Op op : Op.values()) {
+            latencies.put(op, new ArrayList<Long>());
+        }
+        createTrees();
+
+        ExecutorService pool = Executors.newFixedThreadPool(readers + writers);
+        List<Future<?>> threads = new ArrayList<Future<?>>();
+        running = true;
+        long start = System.nanoTime();
+        for (int i = 0; i < readers + writers; ++i) {
+            final boolean writer = i < writers;
+            final Random random = new Random(i);
+            threads.add(pool.submit(() -> {
+                while (running) {
+                    if (writer) {
+                        write(pickWrite(random), random);
+                    } else {
+                        read(random);
+                    }
+                }
+            }));
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running = false;
+        for (Future<?> thread : threads) {
+            thread.get();
+        }
+        pool.shutdown();
+        report(System.nanoTime() - start);
+
+        TreeValidator validator = new TreeValidator(em);
+        int violations = 0;
+        for (int rootId : roots) {
+            for (TreeValidator.Violation v : validator.validate(Category.class, rootId)) {
+                System.out.println("  " + v);
+                ++violations;
+            }
+        }
+        System.out.printf("  %d trees, %d integrity violations%n", roots.size(), violations);
+        if (locking != Locking.NONE) {
+            assertEquals(violations, 0);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.pkaboo.jpa.nestedset.model.Category;
+import org.pkaboo.jpa.nestedset.model.ClosureCategory;
+import org.pkaboo.jpa.nestedset.model.ParentCategory;
+import org.pkaboo.jpa.nestedset.model.PathCategory;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class TreeSyncTest extends FunctionalNestedSetTest {
+
+    /**
+     * Parses a tree like "Root(A(A1, A2), B)" into its nodes in preorder, with levels.
+     */
+    private static <T extends NodeInfo> List<T> parse(String spec, Function<String, T> factory) {
+        List<T> nodes = new ArrayList<T>();
+        int level = 0;
+        StringBuilder name = new StringBuilder();
+        for (char c : (spec + ",").toCharArray()) {
+            if (Character.isLetterOrDigit(c)) {
+                name.append(c);
+                continue;
+            }
+            if (name.length() > 0) {
+                T node = factory.apply(name.toString());
+                node.setLevel(level);
+                nodes.add(node);
+                name.setLength(0);
+            }
+            if (c == '(') {
+                ++level;
+            } else if (c == ')') {
+                --level;
+            }
+        }
+        return nodes;
+    }
+
+    private static <T extends NodeInfo> String render(List<Node<T>> nodes, Function<T, String> name) {
+        StringBuilder sb = new StringBuilder();
+        int level = 0;
+        for (Node<T> node : nodes) {
+            for (; level > node.getLevel(); --level) {
+                sb.append(')');
+            }
+            if (node.getLevel() > level) {
+                sb.append('(');
+                level = node.getLevel();
+            } else if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(name.apply(node.unwrap()));
+        }
+        for (; level > 0; --level) {
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+
+    private static <T extends NodeInfo> String names(List<T> nodes, Function<T, String> name) {
+        List<String> names = new ArrayList<String>();
+        for (T node : nodes) {
+            names.add(name.apply(node));
+        }
+        return String.join(", ", names);
+    }
+
+    private void store(String spec) {
+        em.getTransaction().begin();
+        nsm.sync(Category.class, 1, parse(spec, name -> category(name, 1)), Category::getName);
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+    }
+
+    @Test
+    public void testDiffIsMinimal() {
+        store("Root(A(A1, A2, A3), B(B1), C)");
+        assertEquals(render(nsm.listNodes(Category.class, 1), Category::getName), "Root(A(A1, A2, A3), B(B1), C)");
+
+        List<Category> incoming = parse("Root(C, A(A3, A1, A2, A4), B1)", name -> category(name, 1));
+        TreeDiff<Category> diff = nsm.diff(Category.class, 1, incoming, Category::getName);
+        assertEquals(names(diff.getInserted(), Category::getName), "A4");
+        assertEquals(names(diff.getDeleted(), Category::getName), "B");
+        assertEquals(names(diff.getMoved(), Category::getName), "C, A3, B1");
+
+        em.getTransaction().begin();
+        nsm.sync(Category.class, 1, incoming, Category::getName);
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+        assertEquals(render(nsm.listNodes(Category.class, 1), Category::getName), "Root(C, A(A3, A1, A2, A4), B1)");
+        assertTrue(new TreeValidator(em).validate(Category.class, 1).isEmpty());
+
+        InMemoryNestedSetMetrics metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+        em.getTransaction().begin();
+        diff = nsm.sync(Category.class, 1, parse("Root(C, A(A3, A1, A2, A4), B1)", name -> category(name, 1)),
+                Category::getName);
+        em.getTransaction().commit();
+        assertTrue(diff.isEmpty(), diff.toString());
+        assertEquals(metrics.getStatements(TreeOperation.SYNC), 1);
+    }
+
+    @Test
+    public void testUnchangedRowsAreNotWritten() {
+        store("Root(A(A1), B(B1), C(C1))");
+        InMemoryNestedSetMetrics metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+
+        em.getTransaction().begin();
+        TreeDiff<Category> diff = nsm.sync(Category.class, 1,
+                parse("Root(A(A1), B(B1), C(C1, C2))", name -> category(name, 1)), Category::getName);
+        em.getTransaction().commit();
+        assertTrue(diff.getMoved().isEmpty());
+        assertEquals(diff.getRenumbered(), 2);
+        // The read, and the update of the run of the right values of C and the root
+        assertEquals(metrics.getStatements(TreeOperation.SYNC), 2);
+        assertEquals(metrics.getRowsShifted(TreeOperation.SYNC), 2);
+
+        // A node inserted at the left edge moves all later values by the same delta
+        metrics = new InMemoryNestedSetMetrics();
+        nsm.setMetrics(metrics);
+        em.getTransaction().begin();
+        diff = nsm.sync(Category.class, 1,
+                parse("Root(A0, A(A1), B(B1), C(C1, C2))", name -> category(name, 1)), Category::getName);
+        em.getTransaction().commit();
+        assertEquals(diff.getRenumbered(), 8);
+        assertEquals(metrics.getStatements(TreeOperation.SYNC), 2);
+
+        nsm.clear();
+        em.clear();
+        assertEquals(render(nsm.listNodes(Category.class, 1), Category::getName),
+                "Root(A0, A(A1), B(B1), C(C1, C2))");
+        assertTrue(new TreeValidator(em).validate(Category.class, 1).isEmpty());
+    }
+
+    @Test
+    public void testSyncFromAdjacencyList() {
+        Map<String, String> parents = new HashMap<String, String>();
+        String[][] rows = {{"B1", "B"}, {"Root", null}, {"A", "Root"}, {"B", "Root"}, {"A1", "A"}};
+        for (String[] row : rows) {
+            parents.put(row[0], row[1]);
+        }
+        Function<String, PathCategory> factory = name -> node(PathCategory.class, name, 0);
+        List<PathCategory> incoming = new ArrayList<PathCategory>();
+        for (String[] row : rows) {
+            incoming.add(factory.apply(row[0]));
+        }
+        incoming = TreeDiff.preorder(incoming, PathCategory::getName, cat -> parents.get(cat.getName()));
+        assertEquals(names(incoming, PathCategory::getName), "Root, A, A1, B, B1");
+
+        em.getTransaction().begin();
+        nsm.sync(PathCategory.class, 1, incoming, PathCategory::getName);
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+
+        // Move A1 below B and replace A by A2
+        parents.put("A1", "B");
+        parents.put("A2", "Root");
+        parents.remove("A");
+        incoming = new ArrayList<PathCategory>();
+        for (String name : new String[] {"Root", "A2", "B", "A1", "B1"}) {
+            incoming.add(factory.apply(name));
+        }
+        incoming = TreeDiff.preorder(incoming, PathCategory::getName, cat -> parents.get(cat.getName()));
+        em.getTransaction().begin();
+        TreeDiff<PathCategory> diff = nsm.sync(PathCategory.class, 1, incoming, PathCategory::getName);
+        em.getTransaction().commit();
+        assertEquals(names(diff.getMoved(), PathCategory::getName), "A1");
+        nsm.clear();
+        em.clear();
+
+        List<Node<PathCategory>> tree = nsm.listNodes(PathCategory.class, 1);
+        assertEquals(render(tree, PathCategory::getName), "Root(A2, B(A1, B1))");
+        assertTrue(new TreeValidator(em).validate(PathCategory.class, 1).isEmpty());
+        Node<PathCategory> a1 = tree.get(3);
+        assertEquals(a1.unwrap().getPath(), tree.get(0).getId() + "/" + tree.get(2).getId() + "/" + a1.getId() + "/");
+        assertEquals(names(nodesOf(a1.getAncestors()), PathCategory::getName), "Root, B");
+    }
+
+    private static <T extends NodeInfo> List<T> nodesOf(List<Node<T>> nodes) {
+        List<T> entities = new ArrayList<T>();
+        for (Node<T> node : nodes) {
+            entities.add(node.unwrap());
+        }
+        return entities;
+    }
+
+    @Test
+    public void testSyncMaintainsParentColumnAndClosureTable() {
+        Function<String, ParentCategory> parentFactory = name -> node(ParentCategory.class, name, 0);
+        Function<String, ClosureCategory> closureFactory = name -> node(ClosureCategory.class, name, 0);
+        em.getTransaction().begin();
+        nsm.sync(ParentCategory.class, 1, parse("Root(A(A1, A2), B)", parentFactory), ParentCategory::getName);
+        nsm.sync(ClosureCategory.class, 1, parse("Root(A(A1, A2), B)", closureFactory), ClosureCategory::getName);
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+
+        em.getTransaction().begin();
+        nsm.sync(ParentCategory.class, 1, parse("Root(B(A2), A1)", parentFactory), ParentCategory::getName);
+        nsm.sync(ClosureCategory.class, 1, parse("Root(B(A2), A1)", closureFactory), ClosureCategory::getName);
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+
+        List<Node<ParentCategory>> parentTree = nsm.listNodes(ParentCategory.class, 1);
+        assertEquals(render(parentTree, ParentCategory::getName), "Root(B(A2), A1)");
+        assertEquals(parentTree.get(2).unwrap().getParentId(), (Integer) parentTree.get(1).getId());
+        assertEquals(parentTree.get(3).unwrap().getParentId(), (Integer) parentTree.get(0).getId());
+        assertNull(parentTree.get(0).unwrap().getParentId());
+
+        List<Node<ClosureCategory>> closureTree = nsm.listNodes(ClosureCategory.class, 1);
+        assertEquals(render(closureTree, ClosureCategory::getName), "Root(B(A2), A1)");
+        int root = closureTree.get(0).getId();
+        int b = closureTree.get(1).getId();
+        int a2 = closureTree.get(2).getId();
+        int a1 = closureTree.get(3).getId();
+        assertTrue(nsm.isDescendantOf(ClosureCategory.class, a2, b));
+        assertTrue(nsm.isDescendantOf(ClosureCategory.class, a2, root));
+        assertTrue(nsm.isDescendantOf(ClosureCategory.class, a1, root));
+        assertFalse(nsm.isDescendantOf(ClosureCategory.class, a1, b));
+        assertEquals(names(nodesOf(closureTree.get(2).getAncestors()), ClosureCategory::getName), "Root, B");
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset;
+
+import java.util.List;
+import java.util.Map;
+import org.pkaboo.jpa.nestedset.TreeValidator.Kind;
+import org.pkaboo.jpa.nestedset.TreeValidator.Violation;
+import org.pkaboo.jpa.nestedset.model.Category;
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+
+public class TreeValidatorTest extends FunctionalNestedSetTest {
+
+    /**
+     * Creates the tree
+     *
+     *             A
+     *           /   \
+     *          B     C
+     *         / \
+     *        D   E
+     */
+    private Category createTree(int rootId) {
+        em.getTransaction().begin();
+        Category a = category("A", rootId);
+        Node<Category> root = nsm.createRoot(a);
+        Node<Category> b = root.addChild(category("B", 0));
+        root.addChild(category("C", 0));
+        b.addChild(category("D", 0));
+        b.addChild(category("E", 0));
+        em.getTransaction().commit();
+        nsm.clear();
+        em.clear();
+        return a;
+    }
+
+    private void execute(String jpql) {
+        em.getTransaction().begin();
+        em.createQuery(jpql).executeUpdate();
+        em.getTransaction().commit();
+        em.clear();
+    }
+
+    @Test
+    public void testValidTree() {
+        createTree(1);
+        // a small page size makes the validator read the tree in several pages
+        assertTrue(new TreeValidator(em, 10, 2).validate(Category.class, 1).isEmpty());
+    }
+
+    @Test
+    public void testNumberingGap() {
+        createTree(1);
+        execute("update Category n set n.rgt = n.rgt + 2 where n.rgt >= 9 and n.rootId = 1");
+        execute("update Category n set n.lft = n.lft + 2 where n.lft >= 9 and n.rootId = 1");
+
+        List<Violation> violations = new TreeValidator(em, 10, 2).validate(Category.class, 1);
+        assertEquals(violations.size(), 2);
+        assertEquals(violations.get(0).getKind(), Kind.NUMBERING_GAP);
+        assertEquals(violations.get(1).getKind(), Kind.ROOT_RIGHT_MISMATCH);
+    }
+
+    @Test
+    public void testLevelAndNesting() {
+        createTree(1);
+        execute("update Category n set n.level = 4 where n.name = 'C'");
+        execute("update Category n set n.rgt = 11 where n.name = 'E'");
+
+        List<Violation> violations = new TreeValidator(em).validate(Category.class, 1);
+        assertEquals(violations.get(0).getKind(), Kind.OVERLAPPING_INTERVAL);
+        boolean levelMismatch = false;
+        for (Violation v : violations) {
+            levelMismatch |= v.getKind() == Kind.LEVEL_MISMATCH;
+        }
+        assertTrue(levelMismatch);
+
+        assertEquals(new TreeValidator(em, 1, 100).validate(Category.class, 1).size(), 1);
+    }
+
+    @Test
+    public void testValidateAll() {
+        createTree(1);
+        createTree(2);
+        execute("update Category n set n.level = 5 where n.name = 'D' and n.rootId = 2");
+
+        Map<Integer, List<Violation>> result = new ParallelTreeOperations(emFactory, 2)
+                .validateAll(Category.class, 10);
+        assertTrue(result.get(1).isEmpty());
+        assertEquals(result.get(2).size(), 1);
+        assertEquals(result.get(2).get(0).getKind(), Kind.LEVEL_MISMATCH);
+        assertEquals(result.get(2).get(0).getRootId(), 2);
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * LICENSE
+ *
+ * This source file is subject to the MIT license that is bundled
+ * with this package in the file MIT.txt.
+ * It is also available through the world-wide-web at this URL:
+ * http://www.opensource.org/licenses/mit-license.html
+ */
+
+package org.pkaboo.jpa.nestedset.model;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+@Entity
+@Table(indexes = {
+        @Index(columnList = "ancestor, descendant"),
+        @Index(columnList = "descendant, depth")})
+public class CategoryClosure {
+    @Id @GeneratedValue
+    private int id;
+    private int ancestor;
+    private int descendant;
+    private int depth;
+
+    public int getAncestor() {
+        return this.ancestor;
+    }
+
+    public int getDescendant() {
+        return this.descendant;
+    }
+
+    public int getDepth() {
+        return this.depth;
+    }
+}